@@ -0,0 +1,265 @@
+/*
+ * Galaxy
+ * Copyright (C) 2012 Parallel Universe Software Co.
+ *
+ * This file is part of Galaxy.
+ *
+ * Galaxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Galaxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Galaxy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package co.paralleluniverse.common.concurrent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A read-write lock for frequent, short read sections and rare write sections. <br/>
+ * Unlike {@link java.util.concurrent.locks.ReentrantReadWriteLock ReentrantReadWriteLock}, whose readers all update the same counter,
+ * each reader only updates one of many reader counters - picked by its thread id, and each on its own cache line - so readers running
+ * on different cores don't contend. The price is paid by the writer, which has to scan all counters. <br/>
+ * The read lock is reentrant, and so is the write lock. A thread holding the write lock may acquire the read lock, but a thread holding
+ * the read lock must not acquire the write lock. Conditions are not supported.
+ *
+ * @author pron
+ */
+public class StripedReadWriteLock implements ReadWriteLock {
+    private static final int PADDING = 16; // longs per counter; 128 bytes, so that no two counters share a cache line
+    private static final int SPINS = 100;
+    private final AtomicLongArray readers;
+    private final int mask;
+    private final ReentrantLock writerLock = new ReentrantLock();
+    private volatile boolean writer;
+    private final ThreadLocal<Reader> reader = new ThreadLocal<Reader>() {
+        @Override
+        protected Reader initialValue() {
+            return new Reader((int) (mix(Thread.currentThread().getId()) & mask) * PADDING);
+        }
+    };
+    private final Lock readLock = new ReadLock();
+    private final Lock writeLock = new WriteLock();
+
+    /**
+     * Creates a lock with four reader counters per available processor.
+     */
+    public StripedReadWriteLock() {
+        this(4 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a lock with the given number of reader counters (rounded up to a power of two).
+     */
+    public StripedReadWriteLock(int stripes) {
+        if (stripes < 1)
+            throw new IllegalArgumentException("stripes must be positive, but was " + stripes);
+        final int n = Integer.highestOneBit(stripes) == stripes ? stripes : Integer.highestOneBit(stripes) << 1;
+        this.readers = new AtomicLongArray(n * PADDING);
+        this.mask = n - 1;
+    }
+
+    @Override
+    public Lock readLock() {
+        return readLock;
+    }
+
+    @Override
+    public Lock writeLock() {
+        return writeLock;
+    }
+
+    private static final class Reader {
+        final int index;
+        int holds;
+
+        Reader(int index) {
+            this.index = index;
+        }
+    }
+
+    private boolean tryAcquireRead(Reader r) {
+        readers.incrementAndGet(r.index);
+        if (writer && !writerLock.isHeldByCurrentThread()) {
+            readers.decrementAndGet(r.index);
+            return false;
+        }
+        r.holds = 1;
+        return true;
+    }
+
+    private boolean readersDone() {
+        for (int i = 0; i < readers.length(); i += PADDING) {
+            if (readers.get(i) != 0)
+                return false;
+        }
+        return true;
+    }
+
+    private class ReadLock implements Lock {
+        @Override
+        public void lock() {
+            final Reader r = reader.get();
+            if (r.holds > 0) {
+                r.holds++;
+                return;
+            }
+            while (!tryAcquireRead(r)) {
+                writerLock.lock(); // wait for the writer to finish
+                writerLock.unlock();
+            }
+        }
+
+        @Override
+        public void lockInterruptibly() throws InterruptedException {
+            final Reader r = reader.get();
+            if (r.holds > 0) {
+                r.holds++;
+                return;
+            }
+            while (!tryAcquireRead(r)) {
+                writerLock.lockInterruptibly();
+                writerLock.unlock();
+            }
+        }
+
+        @Override
+        public boolean tryLock() {
+            final Reader r = reader.get();
+            if (r.holds > 0) {
+                r.holds++;
+                return true;
+            }
+            return tryAcquireRead(r);
+        }
+
+        @Override
+        public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+            final long deadline = System.nanoTime() + unit.toNanos(time);
+            final Reader r = reader.get();
+            if (r.holds > 0) {
+                r.holds++;
+                return true;
+            }
+            while (!tryAcquireRead(r)) {
+                if (!writerLock.tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS))
+                    return false;
+                writerLock.unlock();
+            }
+            return true;
+        }
+
+        @Override
+        public void unlock() {
+            final Reader r = reader.get();
+            if (r.holds <= 0)
+                throw new IllegalMonitorStateException("Read lock not held by this thread");
+            if (--r.holds == 0)
+                readers.decrementAndGet(r.index);
+        }
+
+        @Override
+        public Condition newCondition() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private class WriteLock implements Lock {
+        @Override
+        public void lock() {
+            writerLock.lock();
+            if (writerLock.getHoldCount() == 1) {
+                writer = true;
+                for (int spins = 0; !readersDone(); spins++) {
+                    if (spins > SPINS)
+                        Thread.yield();
+                }
+            }
+        }
+
+        @Override
+        public void lockInterruptibly() throws InterruptedException {
+            writerLock.lockInterruptibly();
+            if (writerLock.getHoldCount() == 1) {
+                writer = true;
+                for (int spins = 0; !readersDone(); spins++) {
+                    if (Thread.interrupted()) {
+                        release();
+                        throw new InterruptedException();
+                    }
+                    if (spins > SPINS)
+                        Thread.yield();
+                }
+            }
+        }
+
+        @Override
+        public boolean tryLock() {
+            if (!writerLock.tryLock())
+                return false;
+            if (writerLock.getHoldCount() == 1) {
+                writer = true;
+                if (!readersDone()) {
+                    release();
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+            final long deadline = System.nanoTime() + unit.toNanos(time);
+            if (!writerLock.tryLock(time, unit))
+                return false;
+            if (writerLock.getHoldCount() == 1) {
+                writer = true;
+                for (int spins = 0; !readersDone(); spins++) {
+                    if (System.nanoTime() > deadline) {
+                        release();
+                        return false;
+                    }
+                    if (spins > SPINS)
+                        Thread.yield();
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void unlock() {
+            if (!writerLock.isHeldByCurrentThread())
+                throw new IllegalMonitorStateException("Write lock not held by this thread");
+            release();
+        }
+
+        private void release() {
+            if (writerLock.getHoldCount() == 1)
+                writer = false;
+            writerLock.unlock();
+        }
+
+        @Override
+        public Condition newCondition() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static long mix(long x) {
+        x ^= x >>> 33;
+        x *= 0xff51afd7ed558ccdL;
+        x ^= x >>> 33;
+        return x;
+    }
+}
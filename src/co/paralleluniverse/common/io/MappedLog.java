@@ -0,0 +1,247 @@
+/*
+ * Galaxy
+ * Copyright (C) 2012 Parallel Universe Software Co.
+ * 
+ * This file is part of Galaxy.
+ *
+ * Galaxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ *
+ * Galaxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with Galaxy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package co.paralleluniverse.common.io;
+
+import gnu.trove.list.array.TIntArrayList;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An append-only log of variable-length records, kept in a directory of memory-mapped segment files. <br/>
+ * Each record is identified by its <i>offset</i> - its sequence number in the log. Records are appended sequentially to the last segment,
+ * and a new segment is started when the last one is full. Segments whose records are no longer needed are deleted as a whole with
+ * {@link #deleteBefore(long) deleteBefore}. <br/>
+ * A record is in the log as soon as {@link #append(ByteBuffer[]) append} returns, even if the process crashes; {@link #force() force}
+ * writes it to the storage device, so that it survives an operating system crash as well.
+ *
+ * @author pron
+ */
+public class MappedLog {
+    private static final String SUFFIX = ".log";
+    //
+    private final File directory;
+    private final int segmentSize;
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>(); // by base offset
+    private Segment last;
+    private long nextOffset;
+
+    /**
+     * Opens the log in the given directory, creating the directory if it does not exist. Records already in the log are recovered.
+     *
+     * @param directory the log's directory.
+     * @param segmentSize the size of each segment file in bytes; limits the size of a record.
+     */
+    public MappedLog(File directory, int segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Could not create directory " + directory);
+
+        final File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+        Arrays.sort(files); // the names are zero-padded base offsets
+        for (File file : files) {
+            final long base = Long.parseLong(file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+            final Segment segment = new Segment(file, base);
+            segments.put(base, segment);
+            last = segment;
+        }
+        this.nextOffset = last != null ? last.base + last.positions.size() : 0;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returns the offset of the first record in the log.
+     */
+    public synchronized long getStartOffset() {
+        return segments.isEmpty() ? nextOffset : segments.firstKey();
+    }
+
+    /**
+     * Returns the offset the next record appended to the log will have.
+     */
+    public synchronized long getEndOffset() {
+        return nextOffset;
+    }
+
+    /**
+     * Appends a record made of the concatenation of the given buffers' remaining bytes.
+     *
+     * @return the record's offset.
+     */
+    public synchronized long append(ByteBuffer... buffers) throws IOException {
+        int length = 0;
+        for (ByteBuffer b : buffers)
+            length += b.remaining();
+        if (4 + length > segmentSize)
+            throw new IllegalArgumentException("Record of size " + length + " is larger than the segment size " + segmentSize);
+
+        if (last == null || last.position + 4 + length > segmentSize) {
+            if (last != null)
+                last.buffer.force();
+            last = new Segment(new File(directory, String.format("%020d", nextOffset) + SUFFIX), nextOffset);
+            segments.put(last.base, last);
+        }
+        last.append(buffers, length);
+        return nextOffset++;
+    }
+
+    /**
+     * Returns the record with the given offset.
+     *
+     * @return a read-only buffer containing the record, or {@code null} if the offset is beyond the end of the log.
+     * @throws IllegalArgumentException if the record has been deleted.
+     */
+    public synchronized ByteBuffer read(long offset) {
+        if (offset >= nextOffset)
+            return null;
+        final Map.Entry<Long, Segment> entry = segments.floorEntry(offset);
+        if (entry == null)
+            throw new IllegalArgumentException("Record " + offset + " has been deleted (log starts at " + getStartOffset() + ")");
+        return entry.getValue().read((int) (offset - entry.getKey()));
+    }
+
+    /**
+     * Deletes all segments containing only records with offsets lower than the given offset.
+     */
+    public synchronized void deleteBefore(long offset) throws IOException {
+        while (!segments.isEmpty()) {
+            final Segment first = segments.firstEntry().getValue();
+            if (first == last || first.base + first.positions.size() > offset)
+                break;
+            segments.remove(first.base);
+            Files.deleteIfExists(first.file.toPath());
+        }
+    }
+
+    /**
+     * Returns the offset following the last record of the segment containing the record with the given offset.
+     */
+    public synchronized long getSegmentEndOffset(long offset) {
+        final Map.Entry<Long, Segment> entry = segments.floorEntry(offset);
+        if (entry == null || offset >= nextOffset)
+            throw new IllegalArgumentException("Record " + offset + " is not in the log");
+        return entry.getKey() + entry.getValue().positions.size();
+    }
+
+    /**
+     * Deletes all records with offsets greater than or equal to the given offset, so that the next record appended will have this
+     * offset. Used to discard records found to be corrupt.
+     */
+    public synchronized void truncate(long offset) throws IOException {
+        if (offset >= nextOffset)
+            return;
+        if (offset < getStartOffset())
+            throw new IllegalArgumentException("Record " + offset + " has been deleted (log starts at " + getStartOffset() + ")");
+        while (segments.lastKey() > offset || (segments.lastKey() == offset && segments.size() > 1)) {
+            final Segment segment = segments.remove(segments.lastKey());
+            Files.deleteIfExists(segment.file.toPath());
+        }
+        last = segments.lastEntry().getValue();
+        last.truncate((int) (offset - last.base));
+        nextOffset = offset;
+    }
+
+    /**
+     * Writes all appended records to the storage device. <br/>
+     * Records may be appended while this method is writing; they may or may not be written by it.
+     */
+    public void force() {
+        final Segment segment;
+        synchronized (this) {
+            segment = last; // earlier segments were written when the next one was started
+        }
+        if (segment != null)
+            segment.buffer.force(); // outside the lock, so that appenders don't wait for the device
+    }
+
+    @Override
+    public String toString() {
+        return "MappedLog{" + "directory=" + directory + ", segmentSize=" + segmentSize + '}';
+    }
+
+    private class Segment {
+        final File file;
+        final long base;
+        final MappedByteBuffer buffer;
+        final TIntArrayList positions = new TIntArrayList(); // the position of each record in the segment
+        int position;
+
+        Segment(File file, long base) throws IOException {
+            this.file = file;
+            this.base = base;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                if (raf.length() < segmentSize)
+                    raf.setLength(segmentSize);
+                this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            }
+            // recover: a record's header is its length + 1, so a zero header marks the end of the segment
+            int header;
+            while (position + 4 <= segmentSize && (header = buffer.getInt(position)) > 0 && position + 4 + header - 1 <= segmentSize) {
+                positions.add(position);
+                position += 4 + header - 1;
+            }
+        }
+
+        void append(ByteBuffer[] buffers, int length) {
+            final ByteBuffer b1 = buffer.duplicate();
+            b1.position(position + 4);
+            for (ByteBuffer b : buffers)
+                b1.put(b.duplicate());
+            buffer.putInt(position, length + 1); // written last, so that a partially written record is not recovered
+            positions.add(position);
+            position += 4 + length;
+        }
+
+        void truncate(int index) {
+            if (index >= positions.size())
+                return;
+            final int pos = positions.get(index);
+            for (int i = pos; i < position; i++)
+                buffer.put(i, (byte) 0);
+            positions.remove(index, positions.size() - index);
+            position = pos;
+        }
+
+        ByteBuffer read(int index) {
+            final int pos = positions.get(index);
+            final ByteBuffer b1 = buffer.duplicate();
+            b1.position(pos + 4);
+            b1.limit(pos + 4 + buffer.getInt(pos) - 1);
+            return b1.slice().asReadOnlyBuffer();
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Galaxy
+ * Copyright (C) 2012 Parallel Universe Software Co.
+ * 
+ * This file is part of Galaxy.
+ *
+ * Galaxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ *
+ * Galaxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with Galaxy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package co.paralleluniverse.common.io;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * A single-producer/single-consumer queue of variable-length records in a memory-mapped file, which can be used to pass data between
+ * processes through shared memory (e.g. a file in {@code /dev/shm}). <br/>
+ * The producer {@link #create(File, int) creates} the file and the consumer {@link #open(File) opens} it. Neither side ever blocks waiting
+ * for the other; {@link #offer(ByteBuffer[]) offer} returns {@code false} when there's no room, and {@link #poll() poll} returns {@code null}
+ * when there's nothing to read. <br/>
+ * The two sides share no lock, but {@code offer} is {@code synchronized}, so several threads in the producing process may write records
+ * (contending only with each other). {@code poll} must only be called by one thread at a time.
+ *
+ * @author pron
+ */
+public class MappedRingBuffer {
+    private static final int MAGIC = 0x47524e47; // "GRNG"
+    private static final int MAGIC_OFFSET = 0;
+    private static final int CAPACITY_OFFSET = 4;
+    private static final int HEAD_OFFSET = 64; // head and tail are on separate cache lines
+    private static final int TAIL_OFFSET = 128;
+    private static final int HEADER_SIZE = 192;
+    private static final int WRAP = -1;
+    private static final sun.misc.Unsafe unsafe = getUnsafe();
+    //
+    private final File file;
+    private final Object fileKey;
+    private final MappedByteBuffer buffer;
+    private final long address;
+    private final int capacity;
+    private final int mask;
+    private long head; // the producer's
+    private long tail; // the consumer's
+    private long cachedTail; // producer's view of the tail
+    private long cachedHead; // consumer's view of the head
+
+    /**
+     * Creates a new ring buffer file, replacing any existing file, and returns its producer side.
+     *
+     * @param file the file
+     * @param capacity the capacity of the buffer in bytes; must be a power of two.
+     */
+    public static MappedRingBuffer create(File file, int capacity) throws IOException {
+        if (Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("Capacity must be a power of two, but was " + capacity);
+        Files.deleteIfExists(file.toPath()); // a consumer of the old file will notice the change of file key
+        final MappedRingBuffer ring = new MappedRingBuffer(file, HEADER_SIZE + capacity);
+        ring.buffer.putInt(CAPACITY_OFFSET, capacity);
+        unsafe.putOrderedLong(null, ring.address + HEAD_OFFSET, 0);
+        unsafe.putOrderedLong(null, ring.address + TAIL_OFFSET, 0);
+        unsafe.putIntVolatile(null, ring.address + MAGIC_OFFSET, MAGIC);
+        return ring;
+    }
+
+    /**
+     * Opens an existing ring buffer file, and returns its consumer side.
+     *
+     * @param file the file
+     * @return the consumer side of the ring buffer, or {@code null} if the file has not been fully initialized by the producer yet.
+     * @throws FileNotFoundException if the file does not exist.
+     */
+    public static MappedRingBuffer open(File file) throws IOException {
+        if (!file.exists())
+            throw new FileNotFoundException(file.toString());
+        if (file.length() < HEADER_SIZE)
+            return null;
+        final MappedRingBuffer ring = new MappedRingBuffer(file, (int) file.length());
+        if (unsafe.getIntVolatile(null, ring.address + MAGIC_OFFSET) != MAGIC || ring.capacity + HEADER_SIZE != file.length())
+            return null;
+        ring.tail = unsafe.getLongVolatile(null, ring.address + TAIL_OFFSET);
+        ring.cachedHead = ring.tail; // so that the first poll reads the head
+        return ring;
+    }
+
+    /**
+     * Returns the key (e.g. the inode) of the given file, which can be compared to {@link #getFileKey() getFileKey()} to tell whether the
+     * file has been re-created.
+     *
+     * @return the file key, or {@code null} if the file does not exist.
+     */
+    public static Object fileKey(File file) {
+        try {
+            return Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private MappedRingBuffer(File file, int size) throws IOException {
+        this.file = file;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (raf.length() < size)
+                raf.setLength(size);
+            this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        this.fileKey = fileKey(file);
+        this.address = ((sun.nio.ch.DirectBuffer) buffer).address();
+        this.capacity = size - HEADER_SIZE;
+        this.mask = capacity - 1;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public Object getFileKey() {
+        return fileKey;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Appends a record made of the concatenation of the given buffers' remaining bytes. Must only be called by the producer.
+     *
+     * @return {@code true} if the record has been written; {@code false} if there wasn't enough room.
+     */
+    public synchronized boolean offer(ByteBuffer[] buffers) {
+        int length = 0;
+        for (ByteBuffer b : buffers)
+            length += b.remaining();
+
+        final int recordSize = align(4 + length);
+        int pos = (int) (head & mask);
+        final int contiguous = capacity - pos;
+        final int needed = recordSize <= contiguous ? recordSize : contiguous + recordSize;
+        if (recordSize > capacity)
+            throw new IllegalArgumentException("Record of size " + length + " is larger than the ring buffer's capacity " + capacity);
+        if (head + needed - cachedTail > capacity) {
+            cachedTail = unsafe.getLongVolatile(null, address + TAIL_OFFSET);
+            if (head + needed - cachedTail > capacity)
+                return false;
+        }
+
+        long newHead = head;
+        if (recordSize > contiguous) {
+            buffer.putInt(HEADER_SIZE + pos, WRAP);
+            newHead += contiguous;
+            pos = 0;
+        }
+        buffer.putInt(HEADER_SIZE + pos, length);
+        final ByteBuffer b1 = buffer.duplicate();
+        b1.position(HEADER_SIZE + pos + 4);
+        for (ByteBuffer b : buffers)
+            b1.put(b.duplicate());
+        newHead += recordSize;
+
+        head = newHead;
+        unsafe.putOrderedLong(null, address + HEAD_OFFSET, newHead); // publish
+        return true;
+    }
+
+    /**
+     * Removes the next record and returns it in a newly allocated heap buffer. Must only be called by the consumer.
+     *
+     * @return the next record, or {@code null} if the buffer is empty.
+     */
+    public ByteBuffer poll() {
+        if (tail >= cachedHead) {
+            cachedHead = unsafe.getLongVolatile(null, address + HEAD_OFFSET);
+            if (tail >= cachedHead)
+                return null;
+        }
+        int pos = (int) (tail & mask);
+        int length = buffer.getInt(HEADER_SIZE + pos);
+        if (length == WRAP) {
+            tail += capacity - pos;
+            pos = 0;
+            length = buffer.getInt(HEADER_SIZE);
+        }
+        final byte[] array = new byte[length];
+        final ByteBuffer b1 = buffer.duplicate();
+        b1.position(HEADER_SIZE + pos + 4);
+        b1.get(array);
+        tail += align(4 + length);
+
+        unsafe.putOrderedLong(null, address + TAIL_OFFSET, tail); // release the space
+        return ByteBuffer.wrap(array);
+    }
+
+    /**
+     * Deletes the file. The mapping itself is released when this object is garbage collected.
+     */
+    public void delete() throws IOException {
+        Files.deleteIfExists(file.toPath());
+    }
+
+    @Override
+    public String toString() {
+        return "MappedRingBuffer{" + "file=" + file + ", capacity=" + capacity + '}';
+    }
+
+    private static int align(int size) {
+        return (size + 7) & ~7;
+    }
+
+    private static sun.misc.Unsafe getUnsafe() {
+        try {
+            final Field field = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return (sun.misc.Unsafe) field.get(null);
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Galaxy
+ * Copyright (C) 2012 Parallel Universe Software Co.
+ * 
+ * This file is part of Galaxy.
+ *
+ * Galaxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ *
+ * Galaxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with Galaxy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package co.paralleluniverse.galaxy;
+
+/**
+ * A listener for messages sent in the grid, which receives them after they've been decoded by a {@link MessageDecoder}.
+ * @see Messenger#addMessageListener(long, MessageDecoder, DecodedMessageListener)
+ */
+public interface DecodedMessageListener<T> {
+    /**
+     * Called when a message has been received.
+     * @param fromNode The cluster node ID of the node that originated the message.
+     * @param message  The decoded message.
+     */
+    void messageReceived(short fromNode, T message);
+}
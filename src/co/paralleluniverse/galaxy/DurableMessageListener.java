@@ -0,0 +1,35 @@
+/*
+ * Galaxy
+ * Copyright (C) 2012 Parallel Universe Software Co.
+ * 
+ * This file is part of Galaxy.
+ *
+ * Galaxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ *
+ * Galaxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with Galaxy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package co.paralleluniverse.galaxy;
+
+/**
+ * A listener for messages on a durable topic (see {@link Messenger#setDurable(long, boolean)}), which is also told each message's offset
+ * in the topic's log, so that it can {@link Messenger#commit(long, long) commit} it once it's done with it.
+ */
+public interface DurableMessageListener {
+    /**
+     * Invoked when a message is received.
+     *
+     * @param fromNode The node sending the message.
+     * @param offset The message's offset in the topic's log, or {@code -1} if the topic is not durable.
+     * @param message The message.
+     */
+    void messageReceived(short fromNode, long offset, byte[] message);
+}
@@ -0,0 +1,45 @@
+/*
+ * Galaxy
+ * Copyright (C) 2012 Parallel Universe Software Co.
+ * 
+ * This file is part of Galaxy.
+ *
+ * Galaxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ *
+ * Galaxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with Galaxy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package co.paralleluniverse.galaxy;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes received messages for {@link DecodedMessageListener}s.
+ * @see Messenger#addMessageListener(long, MessageDecoder, DecodedMessageListener)
+ */
+public interface MessageDecoder<T> {
+    /**
+     * A decoder that passes the message's contents to the listener as they are, as a read-only {@link ByteBuffer}.
+     */
+    MessageDecoder<ByteBuffer> BUFFER = new MessageDecoder<ByteBuffer>() {
+        @Override
+        public ByteBuffer decode(ByteBuffer message) {
+            return message;
+        }
+    };
+
+    /**
+     * Decodes a message. A message is only decoded once, no matter how many listeners registered with this decoder are to receive it.
+     * @param message A read-only view of the message's contents.
+     * @return The decoded message.
+     */
+    T decode(ByteBuffer message);
+}
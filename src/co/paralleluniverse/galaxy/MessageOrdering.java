@@ -0,0 +1,88 @@
+/*
+ * Galaxy
+ * Copyright (C) 2012 Parallel Universe Software Co.
+ * 
+ * This file is part of Galaxy.
+ *
+ * Galaxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ *
+ * Galaxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with Galaxy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package co.paralleluniverse.galaxy;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Specifies which messages received on a topic are passed to the topic's listeners one at a time, in the order they've been received.
+ * Messages that don't have to be ordered relative to one another may be passed to the listeners concurrently.
+ *
+ * @see Messenger#setMessageOrdering(long, MessageOrdering)
+ */
+public final class MessageOrdering {
+    public enum Type {
+        SENDER, TOPIC, KEY, NONE
+    }
+
+    /**
+     * Extracts the key by which messages are ordered from a message.
+     */
+    public interface KeyExtractor {
+        /**
+         * Returns the message's ordering key.
+         * @param fromNode The cluster node ID of the node that originated the message.
+         * @param message A read-only view of the message's contents.
+         * @return The message's key. Keys are compared with {@code equals}.
+         */
+        Object getKey(short fromNode, ByteBuffer message);
+    }
+    /**
+     * Messages on the topic that have been sent by the same node are ordered.
+     */
+    public static final MessageOrdering PER_SENDER = new MessageOrdering(Type.SENDER, null);
+    /**
+     * All messages on the topic are ordered.
+     */
+    public static final MessageOrdering PER_TOPIC = new MessageOrdering(Type.TOPIC, null);
+    /**
+     * Messages on the topic are not ordered.
+     */
+    public static final MessageOrdering UNORDERED = new MessageOrdering(Type.NONE, null);
+
+    /**
+     * Messages on the topic that have the same key, as returned by the given key extractor, are ordered.
+     */
+    public static MessageOrdering perKey(KeyExtractor keyExtractor) {
+        if (keyExtractor == null)
+            throw new IllegalArgumentException("keyExtractor must not be null");
+        return new MessageOrdering(Type.KEY, keyExtractor);
+    }
+    private final Type type;
+    private final KeyExtractor keyExtractor;
+
+    private MessageOrdering(Type type, KeyExtractor keyExtractor) {
+        this.type = type;
+        this.keyExtractor = keyExtractor;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public KeyExtractor getKeyExtractor() {
+        return keyExtractor;
+    }
+
+    @Override
+    public String toString() {
+        return "MessageOrdering{" + type + '}';
+    }
+}
@@ -20,9 +20,13 @@
 package co.paralleluniverse.galaxy;
 
 import co.paralleluniverse.common.io.Streamable;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.util.List;
 
 /**
- * The grid's messaging service. All messages are guaranteed delivery in the order they've been sent.
+ * The grid's messaging service. All messages are guaranteed delivery in the order they've been sent. <br/>
+ * Message contents - {@code byte[]} or {@link Streamable} - are serialized directly into the outgoing packets, possibly after the 
+ * {@code send} method has returned, so they must not be modified once they've been passed to the messenger.
  */
 public interface Messenger {
     /**
@@ -53,6 +57,85 @@ public interface Messenger {
      */
     void removeMessageListener(String topic, MessageListener listener);
 
+    /**
+     * Adds a message listener on a {@code lonng} topic, which receives messages decoded by the given decoder. <br/>
+     * Unlike a {@link MessageListener}, which is passed a copy of each message's contents, the decoder reads the message where it's been
+     * received, and each message is decoded once for all of the topic's listeners registered with the same decoder.
+     * Use {@link MessageDecoder#BUFFER} to receive the message's contents as a read-only {@link java.nio.ByteBuffer}.
+     * @param topic The topic.
+     * @param decoder The decoder.
+     * @param listener The listener.
+     */
+    <T> void addMessageListener(long topic, MessageDecoder<? extends T> decoder, DecodedMessageListener<T> listener);
+
+    /**
+     * Adds a message listener on a {@code String} topic, which receives messages decoded by the given decoder.
+     * @param topic The topic.
+     * @param decoder The decoder.
+     * @param listener The listener.
+     * @see #addMessageListener(long, MessageDecoder, DecodedMessageListener)
+     */
+    <T> void addMessageListener(String topic, MessageDecoder<? extends T> decoder, DecodedMessageListener<T> listener);
+
+    /**
+     * Removes a decoded-message listener from a {@code lonng} topic.
+     * @param topic The topic.
+     * @param listener The listener.
+     */
+    void removeDecodedMessageListener(long topic, DecodedMessageListener<?> listener);
+
+    /**
+     * Removes a decoded-message listener from a {@code String} topic.
+     * @param topic The topic.
+     * @param listener The listener.
+     */
+    void removeDecodedMessageListener(String topic, DecodedMessageListener<?> listener);
+
+    /**
+     * Sets the order in which messages (and requests) received on a {@code long} topic are passed to the topic's listeners. <br/>
+     * If no ordering is set for a topic, its messages are passed to the listeners in the order they've been received from each node,
+     * together with the messages on all other such topics from the same node, and only one message on the topic is handled at a time.
+     * @param topic The topic.
+     * @param ordering The ordering, or {@code null} to restore the default.
+     */
+    void setMessageOrdering(long topic, MessageOrdering ordering);
+
+    /**
+     * Sets the order in which messages (and requests) received on a {@code String} topic are passed to the topic's listeners.
+     * @param topic The topic.
+     * @param ordering The ordering, or {@code null} to restore the default.
+     * @see #setMessageOrdering(long, MessageOrdering)
+     */
+    void setMessageOrdering(String topic, MessageOrdering ordering);
+
+    /**
+     * Adds a request listener on a {@code lonng} topic.
+     * @param topic The topic.
+     * @param listener The listener.
+     */
+    void addRequestListener(long topic, RequestListener listener);
+
+    /**
+     * Adds a request listener on a {@code String} topic.
+     * @param topic The topic.
+     * @param listener The listener.
+     */
+    void addRequestListener(String topic, RequestListener listener);
+
+    /**
+     * Removes a request listener from a {@code lonng} topic.
+     * @param topic The topic.
+     * @param listener The listener.
+     */
+    void removeRequestListener(long topic, RequestListener listener);
+
+    /**
+     * Removes a request listener from a {@code String} topic.
+     * @param topic The topic.
+     * @param listener The listener.
+     */
+    void removeRequestListener(String topic, RequestListener listener);
+
     /**
      * Sends a message to a known node, on a {@code String} topic.
      *
@@ -92,6 +175,272 @@ public interface Messenger {
      */
     void sendToNode(short node, long topic, byte[] data) throws TimeoutException;
 
+    /**
+     * Sends a flow-controlled message to a known node, on a {@code long} topic, if the node can take it. <br/>
+     * Flow-controlled messages on a topic take up credits, which the receiving node returns once its listeners have handled them.
+     * When the sender has run out of credits for the topic and node (i.e., the receiver has fallen behind by more than the messenger's
+     * {@code sendWindow} messages), this method returns {@code false} without sending the message. <br/>
+     * Flow-controlled messages are ordered with the other flow-controlled messages sent to the node on the same topic, but are not
+     * guaranteed to be ordered with any other messages.
+     *
+     * @param node The node to which to send the message.
+     * @param topic The message's topic.
+     * @param data The message.
+     * @return {@code true} if the message has been sent; {@code false} if the node has no room for it.
+     */
+    boolean trySend(short node, long topic, byte[] data);
+
+    /**
+     * Sends a flow-controlled message to a known node, on a {@code String} topic, if the node can take it.
+     *
+     * @param node The node to which to send the message.
+     * @param topic The message's topic.
+     * @param data The message.
+     * @return {@code true} if the message has been sent; {@code false} if the node has no room for it.
+     * @see #trySend(short, long, byte[])
+     */
+    boolean trySend(short node, String topic, byte[] data);
+
+    /**
+     * Sends a flow-controlled message to a known node, on a {@code long} topic, as soon as the node can take it. <br/>
+     * If the sender has run out of credits for the topic and node (see {@link #trySend(short, long, byte[]) trySend}), the message waits,
+     * in order, until the receiver returns some. This method never blocks; a producer can wait on the returned future to slow down to the
+     * receiver's pace.
+     *
+     * @param node The node to which to send the message.
+     * @param topic The message's topic.
+     * @param data The message.
+     * @return A future that completes when the message has been sent, or fails if the node has left the cluster.
+     */
+    ListenableFuture<Void> sendAsync(short node, long topic, byte[] data);
+
+    /**
+     * Sends a flow-controlled message to a known node, on a {@code String} topic, as soon as the node can take it.
+     *
+     * @param node The node to which to send the message.
+     * @param topic The message's topic.
+     * @param data The message.
+     * @return A future that completes when the message has been sent, or fails if the node has left the cluster.
+     * @see #sendAsync(short, long, byte[])
+     */
+    ListenableFuture<Void> sendAsync(short node, String topic, byte[] data);
+
+    /**
+     * Makes a {@code long} topic durable (or not) on this node. <br/>
+     * Messages received on a durable topic are appended to the topic's log, in the messenger's {@code durableLogDirectory}, before
+     * they are acknowledged and passed to the listeners, so that they are not lost if this node fails before the listeners are done
+     * with them. A {@link DurableMessageListener} {@link #commit(long, long) commits} the offset of each message it has processed,
+     * and, after a restart, can {@link #replay(long, DurableMessageListener) replay} all messages received after the last committed one.
+     * The log persists when the topic is no longer durable, and is re-opened when it is made durable again.
+     *
+     * @param topic The topic.
+     * @param value {@code true} to make the topic durable; {@code false} otherwise.
+     */
+    void setDurable(long topic, boolean value);
+
+    /**
+     * Makes a {@code String} topic durable (or not) on this node.
+     *
+     * @param topic The topic.
+     * @param value {@code true} to make the topic durable; {@code false} otherwise.
+     * @see #setDurable(long, boolean)
+     */
+    void setDurable(String topic, boolean value);
+
+    /**
+     * Adds a listener on a {@code long} topic, which is told the offset of each message in the log of the (durable) topic.
+     *
+     * @param topic The topic.
+     * @param listener The listener.
+     */
+    void addMessageListener(long topic, DurableMessageListener listener);
+
+    /**
+     * Adds a listener on a {@code String} topic, which is told the offset of each message in the log of the (durable) topic.
+     *
+     * @param topic The topic.
+     * @param listener The listener.
+     */
+    void addMessageListener(String topic, DurableMessageListener listener);
+
+    /**
+     * Removes a listener from a {@code long} topic.
+     *
+     * @param topic The topic.
+     * @param listener The listener.
+     */
+    void removeMessageListener(long topic, DurableMessageListener listener);
+
+    /**
+     * Removes a listener from a {@code String} topic.
+     *
+     * @param topic The topic.
+     * @param listener The listener.
+     */
+    void removeMessageListener(String topic, DurableMessageListener listener);
+
+    /**
+     * Marks all messages on a durable {@code long} topic, up to and including the one with the given offset, as processed.
+     * They will not be replayed, and the log space they take up may be reclaimed.
+     *
+     * @param topic The topic.
+     * @param offset The offset of the last processed message.
+     */
+    void commit(long topic, long offset);
+
+    /**
+     * Marks all messages on a durable {@code String} topic, up to and including the one with the given offset, as processed.
+     *
+     * @param topic The topic.
+     * @param offset The offset of the last processed message.
+     * @see #commit(long, long)
+     */
+    void commit(String topic, long offset);
+
+    /**
+     * Returns the offset of the last processed message on a durable {@code long} topic.
+     *
+     * @param topic The topic.
+     * @return The last committed offset, or {@code -1} if none.
+     */
+    long getCommittedOffset(long topic);
+
+    /**
+     * Returns the offset of the last processed message on a durable {@code String} topic.
+     *
+     * @param topic The topic.
+     * @return The last committed offset, or {@code -1} if none.
+     */
+    long getCommittedOffset(String topic);
+
+    /**
+     * Passes all messages in the log of a durable {@code long} topic that have been received after the last committed one to the given
+     * listener, in order, on the calling thread. This is normally called after a restart, before any listeners are added to the topic.
+     *
+     * @param topic The topic.
+     * @param listener The listener.
+     */
+    void replay(long topic, DurableMessageListener listener);
+
+    /**
+     * Passes all messages in the log of a durable {@code String} topic that have been received after the last committed one to the given
+     * listener.
+     *
+     * @param topic The topic.
+     * @param listener The listener.
+     * @see #replay(long, DurableMessageListener)
+     */
+    void replay(String topic, DurableMessageListener listener);
+
+    /**
+     * Sends several messages to a known node, on a {@code long} topic. <br/>
+     * The messages are sent together, in as few protocol messages as possible, but are received by the topic's listeners one by one, in order,
+     * just as if they'd been sent by successive calls to {@link #sendToNode(short, long, byte[]) sendToNode}.
+     *
+     * @param node The node to which to send the messages.
+     * @param topic The messages' topic.
+     * @param data The messages.
+     */
+    void sendBatch(short node, long topic, List<byte[]> data);
+
+    /**
+     * Sends several messages to a known node, on a {@code String} topic.
+     *
+     * @param node The node to which to send the messages.
+     * @param topic The messages' topic.
+     * @param data The messages.
+     * @see #sendBatch(short, long, List)
+     */
+    void sendBatch(short node, String topic, List<byte[]> data);
+
+    /**
+     * Sets whether small messages on a {@code long} topic, sent to a known node, are coalesced. <br/>
+     * Messages on coalesced topics wait a short while (the messenger's {@code coalescingWindowMicros}) for other such messages to the
+     * same node, and are then sent together. They remain ordered with all other messages sent to the node with {@code send} methods,
+     * but not with data-store operations, or with messages sent with {@code sendToOwnerOf}.
+     *
+     * @param topic The topic.
+     * @param value {@code true} to coalesce messages on the topic; {@code false} otherwise.
+     */
+    void setCoalescing(long topic, boolean value);
+
+    /**
+     * Sets whether small messages on a {@code String} topic, sent to a known node, are coalesced.
+     *
+     * @param topic The topic.
+     * @param value {@code true} to coalesce messages on the topic; {@code false} otherwise.
+     * @see #setCoalescing(long, boolean)
+     */
+    void setCoalescing(String topic, boolean value);
+
+    /**
+     * Subscribes this node to a {@code long} topic, so that it receives the messages {@link #publish(long, byte[]) published} on the topic
+     * by any node (including this one). The messages are passed to the topic's {@link #addMessageListener(long, MessageListener) listeners}.
+     *
+     * @param topic The topic.
+     */
+    void subscribe(long topic);
+
+    /**
+     * Subscribes this node to a {@code String} topic.
+     *
+     * @param topic The topic.
+     * @see #subscribe(long)
+     */
+    void subscribe(String topic);
+
+    /**
+     * Unsubscribes this node from a {@code long} topic.
+     *
+     * @param topic The topic.
+     */
+    void unsubscribe(long topic);
+
+    /**
+     * Unsubscribes this node from a {@code String} topic.
+     *
+     * @param topic The topic.
+     */
+    void unsubscribe(String topic);
+
+    /**
+     * Sends a message to all nodes currently {@link #subscribe(long) subscribed} to a {@code long} topic. <br/>
+     * The message is sent to each subscriber just as if it had been sent with {@link #sendToNode(short, long, byte[]) sendToNode}, so it is
+     * guaranteed delivery, in order with the other messages sent to the subscriber. A node that subscribes to the topic
+     * shortly before the message is published might not receive it.
+     *
+     * @param topic The message's topic.
+     * @param data The message.
+     */
+    void publish(long topic, byte[] data);
+
+    /**
+     * Sends a message to all nodes currently subscribed to a {@code String} topic.
+     *
+     * @param topic The message's topic.
+     * @param data The message.
+     * @see #publish(long, byte[])
+     */
+    void publish(String topic, byte[] data);
+
+    /**
+     * Sends a message to all nodes currently subscribed to a {@code long} topic.
+     *
+     * @param topic The message's topic.
+     * @param data The message.
+     * @see #publish(long, byte[])
+     */
+    void publish(long topic, Streamable data);
+
+    /**
+     * Sends a message to all nodes currently subscribed to a {@code String} topic.
+     *
+     * @param topic The message's topic.
+     * @param data The message.
+     * @see #publish(long, byte[])
+     */
+    void publish(String topic, Streamable data);
+
     /**
      * Sends a message to a the owner of a known grid object node, on a {@code long} topic.
      *
@@ -131,4 +480,50 @@ public interface Messenger {
      * @throws TimeoutException This exception is thrown if the operation has times-out.
      */
     void sendToOwnerOf(long ref, String topic, Streamable data) throws TimeoutException;
+
+    /**
+     * Sends a request to a known node, on a {@code long} topic, and returns a future for the reply.
+     * The request is received by the {@link RequestListener}s registered on the topic at the receiving node. <br/>
+     * If no reply arrives within the messenger's {@code callTimeout}, the future fails with a {@link TimeoutException}. 
+     * Cancelling the future discards the reply if one arrives later.
+     *
+     * @param node The node to which to send the request.
+     * @param topic The request's topic.
+     * @param data The request.
+     * @return a future for the reply's contents.
+     */
+    ListenableFuture<byte[]> call(short node, long topic, byte[] data);
+
+    /**
+     * Sends a request to a known node, on a {@code String} topic, and returns a future for the reply.
+     *
+     * @param node The node to which to send the request.
+     * @param topic The request's topic.
+     * @param data The request.
+     * @return a future for the reply's contents.
+     * @see #call(short, long, byte[])
+     */
+    ListenableFuture<byte[]> call(short node, String topic, byte[] data);
+
+    /**
+     * Sends a request to a the owner of a known grid object node, on a {@code long} topic, and returns a future for the reply.
+     *
+     * @param ref The grid ref to whose owner the request is to be sent.
+     * @param topic The request's topic.
+     * @param data The request.
+     * @return a future for the reply's contents.
+     * @see #call(short, long, byte[])
+     */
+    ListenableFuture<byte[]> callOwnerOf(long ref, long topic, byte[] data);
+
+    /**
+     * Sends a request to a the owner of a known grid object node, on a {@code String} topic, and returns a future for the reply.
+     *
+     * @param ref The grid ref to whose owner the request is to be sent.
+     * @param topic The request's topic.
+     * @param data The request.
+     * @return a future for the reply's contents.
+     * @see #call(short, long, byte[])
+     */
+    ListenableFuture<byte[]> callOwnerOf(long ref, String topic, byte[] data);
 }
@@ -0,0 +1,34 @@
+/*
+ * Galaxy
+ * Copyright (C) 2012 Parallel Universe Software Co.
+ * 
+ * This file is part of Galaxy.
+ *
+ * Galaxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ *
+ * Galaxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with Galaxy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package co.paralleluniverse.galaxy;
+
+/**
+ * A listener for requests sent in the grid with one of the {@link Messenger}'s {@code call} methods.
+ * @see Messenger
+ */
+public interface RequestListener {
+    /**
+     * Called when a request has been received.
+     * @param fromNode  The cluster node ID of the node that originated the request.
+     * @param request   The request's contents.
+     * @param responder The handle used to send the reply to the requesting node. It may be used after this method returns.
+     */
+    void requestReceived(short fromNode, byte[] request, Responder responder);
+}
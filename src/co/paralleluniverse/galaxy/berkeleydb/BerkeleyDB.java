@@ -50,6 +50,7 @@ import com.sleepycat.je.Transaction;
 import com.sleepycat.je.TransactionConfig;
 import gnu.trove.iterator.TLongIterator;
 import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.procedure.TLongShortProcedure;
 import java.beans.ConstructorProperties;
 import java.io.File;
 import java.io.IOException;
@@ -232,6 +233,26 @@ public class BerkeleyDB extends Component implements MainMemoryDB {
 //        }
     }
 
+    @Override
+    public void setOwner(long id, short owner, Object txn) {
+        ownerDirectory.put((Transaction) txn, new DatabaseEntry(Longs.toByteArray(id)), new DatabaseEntry(Shorts.toByteArray(owner)));
+    }
+
+    @Override
+    public void forEachOwner(TLongShortProcedure procedure) {
+        final DatabaseEntry key = new DatabaseEntry();
+        final DatabaseEntry value = new DatabaseEntry();
+        final DiskOrderedCursor cursor = ownerDirectory.openCursor(new DiskOrderedCursorConfig());
+        try {
+            while (cursor.getNext(key, value, null) == OperationStatus.SUCCESS) {
+                if (!procedure.execute(Longs.fromByteArray(key.getData()), Shorts.fromByteArray(value.getData())))
+                    break;
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
     public void resetOwners() {
         final boolean trace = LOG.isTraceEnabled();
 
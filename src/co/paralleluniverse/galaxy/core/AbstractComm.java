@@ -23,8 +23,14 @@ import co.paralleluniverse.galaxy.Cluster;
 import co.paralleluniverse.galaxy.cluster.NodeAddressResolver;
 import co.paralleluniverse.galaxy.cluster.NodeChangeListener;
 import co.paralleluniverse.galaxy.core.Message.LineMessage;
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Meter;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -43,11 +49,17 @@ public abstract class AbstractComm<Address> extends ClusterService implements Co
     private long timeout = 200;
     protected boolean sendToServerInsteadOfMulticast;
     private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final Queue<Message> loopback = new ConcurrentLinkedQueue<Message>();
+    private final AtomicBoolean loopbackDelivering = new AtomicBoolean();
+    private final Meter loopbackInline;
+    private final Meter loopbackQueued;
 
     public AbstractComm(String name, Cluster cluster, NodeAddressResolver<Address> addressResolver) {
         super(name, cluster);
         this.addressResolver = addressResolver;
         this.cluster = cluster;
+        this.loopbackInline = Metrics.newMeter(AbstractComm.class, "loopbackInline", name, "message", TimeUnit.SECONDS);
+        this.loopbackQueued = Metrics.newMeter(AbstractComm.class, "loopbackQueued", name, "message", TimeUnit.SECONDS);
         cluster.addNodeChangeListener(this);
     }
 
@@ -99,14 +111,7 @@ public abstract class AbstractComm<Address> extends ClusterService implements Co
         assert message.isBroadcast() ^ message.getNode() >= 0;
 
         if (message.getNode() == cluster.getMyNodeId()) {
-            scheduler.execute(new Runnable() {
-
-                @Override
-                public void run() {
-                    receive(message);
-                }
-
-            });
+            sendToSelf(message);
             return;
         }
 
@@ -124,6 +129,48 @@ public abstract class AbstractComm<Address> extends ClusterService implements Co
             broadcast(message);
     }
 
+    /**
+     * Delivers a message addressed to this node.
+     * If no other self-addressed message is being delivered, the message is received right away, on the calling thread.
+     * Otherwise, it is queued, and received - in order - by the thread currently delivering, once it's done with the messages queued before it.
+     * This also means that a message sent to self while receiving another is only received after the receiver has returned.
+     */
+    private void sendToSelf(Message message) {
+        if (loopback.isEmpty() && loopbackDelivering.compareAndSet(false, true)) {
+            loopbackInline.mark();
+            try {
+                receiveLoopback(message);
+            } finally {
+                loopbackDelivering.set(false);
+            }
+        } else {
+            loopbackQueued.mark();
+            loopback.add(message);
+        }
+        drainLoopback();
+    }
+
+    private void drainLoopback() {
+        // a message may be queued right after the delivering thread finds the queue empty but before it clears the flag, so we re-check
+        while (!loopback.isEmpty() && loopbackDelivering.compareAndSet(false, true)) {
+            try {
+                Message m;
+                while ((m = loopback.poll()) != null)
+                    receiveLoopback(m);
+            } finally {
+                loopbackDelivering.set(false);
+            }
+        }
+    }
+
+    private void receiveLoopback(Message message) {
+        try {
+            receive(message);
+        } catch (Exception e) {
+            LOG.error("Exception while receiving message sent to self: " + message, e);
+        }
+    }
+
     protected void assignMessageId(Message message) {
         if (message.getMessageId() < 0)
             message.setMessageId(nextMessageId()); // TODO: possible pitfall: b/c this method is not synchronized, two threads may run it concurrently, one would get a smaller id bu the other would put the message in a queue first - broken invariant!
@@ -21,6 +21,7 @@ package co.paralleluniverse.galaxy.core;
 
 import co.paralleluniverse.galaxy.core.Message.BACKUP;
 import java.util.Iterator;
+import java.util.List;
 
 /**
  *
@@ -46,12 +47,63 @@ public interface Backup {
 
     void flush();
 
-    Iterator<BACKUP> iterOwned();
+    /**
+     * Returns the number of lines this node owns.
+     */
+    int getNumOwned();
+
+    /**
+     * Returns iterators over the partitions of the owned lines, so that several threads may replicate them to a new slave in parallel.
+     * The partitions are disjoint, and together cover all owned lines. The owned lines are scanned once, by whichever iterator needs its
+     * next line, which hands the other partitions' lines to their iterators. <br/>
+     * Each line is copied when {@code next} is called, and {@code next} returns {@code null} for a line that is no longer owned by then.
+     *
+     * @param partitions the number of partitions.
+     * @return one iterator per partition; each may be used by a different thread.
+     */
+    List<Iterator<BACKUP>> iterOwned(int partitions);
+
+    /**
+     * Called by the slave comm as it replicates the owned lines to new slaves.
+     *
+     * @param remaining the number of lines yet to be replicated, to all slaves being replicated to.
+     * @param etaMillis the estimated time, in milliseconds, until replication to all of them completes.
+     */
+    void replicationProgress(long remaining, long etaMillis);
 
     void receive(Message message);
 
-    void slavesAck(long id);
+    /**
+     * Called by the slave comm whenever a slave acknowledges a backup packet, or when a slave the packet has been sent to goes away.
+     *
+     * @param id the packet's id.
+     * @param acks the number of slaves that have acknowledged the packet so far.
+     * @param slaves the number of live slaves the packet has been sent to (including those that have acknowledged it).
+     */
+    void slavesAck(long id, int acks, int slaves);
+
+    /**
+     * Returns whether a message acknowledged by the given number of slaves has been acknowledged by enough of them to be considered done.
+     * Must not have side effects, as the slave comm may call it while holding its locks.
+     *
+     * @param acks the number of slaves that have acknowledged the message so far.
+     * @param slaves the number of live slaves the message has been sent to (including those that have acknowledged it).
+     */
+    boolean isSlaveAckQuorum(int acks, int slaves);
 
+    /**
+     * Called by the slave comm exactly once for each INV it has sent, when the INV has been acknowledged by a
+     * {@link #isSlaveAckQuorum(int, int) quorum} of the slaves (counting only those that are still alive). The same line may be INVed
+     * again while some slaves have yet to acknowledge the previous INV, but their late acks don't count towards the new one.
+     *
+     * @param id the line's id.
+     */
     void slavesInvAck(long id);
 
+    /**
+     * Returns whether this node, as a slave, may serve reads of the lines it has received from its master, i.e. whether it's heard from
+     * the master recently enough.
+     */
+    boolean canServeReads();
+
 }
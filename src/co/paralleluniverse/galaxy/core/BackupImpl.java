@@ -20,28 +20,37 @@
 package co.paralleluniverse.galaxy.core;
 
 import co.paralleluniverse.common.MonitoringType;
+import co.paralleluniverse.common.concurrent.StripedReadWriteLock;
 import static co.paralleluniverse.common.logging.LoggingUtils.hex;
 import co.paralleluniverse.common.spring.Service;
 import co.paralleluniverse.common.util.DegenerateInvocationHandler;
 import co.paralleluniverse.galaxy.Cluster;
+import co.paralleluniverse.galaxy.cluster.NodeChangeListener;
+import co.paralleluniverse.galaxy.cluster.NodeInfo;
+import co.paralleluniverse.galaxy.cluster.SlaveConfigurationListener;
 import co.paralleluniverse.galaxy.core.Cache.CacheLine;
 import co.paralleluniverse.galaxy.core.Message.BACKUP;
 import co.paralleluniverse.galaxy.core.Message.BACKUP_PACKET;
 import co.paralleluniverse.galaxy.core.Message.BACKUP_PACKETACK;
 import co.paralleluniverse.galaxy.core.Message.INV;
 import java.beans.ConstructorProperties;
+import java.io.File;
 import java.lang.reflect.Proxy;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 import org.cliffc.high_scale_lib.NonBlockingHashMapLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -57,11 +66,28 @@ public class BackupImpl extends ClusterService implements Backup {
 
     private static final Logger LOG = LoggerFactory.getLogger(BackupImpl.class);
     private long maxDelayNanos = TimeUnit.NANOSECONDS.convert(10, TimeUnit.MILLISECONDS);
+    private SlaveAckQuorum slaveAckQuorum = SlaveAckQuorum.ALL;
+    private int maxInFlightPackets = 1;
+    private long maxSlaveReadStalenessNanos = 0;
     private final Comm serverComm;
     private final SlaveComm slaveComm;
     private Cache cache;
+    private CacheStorage snapshotStorage;
+    private File logDirectory;
+    private int logSegmentSize = 64 * 1024 * 1024;
+    private LogSyncPolicy logSyncPolicy = LogSyncPolicy.INTERVAL;
+    private long logSyncIntervalMillis = 10;
+    private WriteAheadLog log;
+    private final ThreadLocal<long[]> lastLogged = new ThreadLocal<long[]>() { // the offset of the last record appended by the thread
+        @Override
+        protected long[] initialValue() {
+            return new long[]{-1};
+        }
+    };
+    private long logMark; // records before this offset are all in currentBackups or in sent packets; guarded by currentBackupsLock
+    private final NonBlockingHashMapLong<Long> recovered = new NonBlockingHashMapLong<Long>(); // line versions replayed from the log, which the cache doesn't know need backing up
     //
-    private final ReadWriteLock mapLock = new ReentrantReadWriteLock(); // this could become a bottleneck. consider replacing with a scalable lock
+    private final ReadWriteLock mapLock = new StripedReadWriteLock(); // read-locked by every commit, so readers mustn't contend
     private NonBlockingHashMapLong<BackupEntry> map;
     private final NonBlockingHashMapLong<BackupEntry> map1 = new NonBlockingHashMapLong<BackupEntry>();
     private final NonBlockingHashMapLong<BackupEntry> map2 = new NonBlockingHashMapLong<BackupEntry>();
@@ -70,13 +96,13 @@ public class BackupImpl extends ClusterService implements Backup {
     private final Condition currentBackupsPossiblyReady = currentBackupsLock.newCondition();
     private final Map<Long, BACKUP> currentBackups = new HashMap<Long, BACKUP>();
     private long nextId = 100000;
-    private BACKUP_PACKET lastSent;
-    private volatile boolean awaitServer;
-    private volatile boolean awaitSlaves;
+    private final ArrayDeque<InFlightPacket> inFlight = new ArrayDeque<InFlightPacket>(); // sent and not yet acked, by id; guarded by currentBackupsLock
+    private final Map<Long, InFlightPacket> unreleased = new HashMap<Long, InFlightPacket>(); // sent and not yet both acked and released; guarded by currentBackupsLock
     private boolean shouldFlush;
-    private long lastFlush;
     //
     private volatile boolean completedReplication = false;
+    private volatile long lastSentNanos; // when we've last sent a packet to the slaves (as master)
+    private volatile long lastReceivedNanos; // when we've last heard from the master (as slave)
     //
     private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
     private final BackupMonitor monitor;
@@ -101,6 +127,40 @@ public class BackupImpl extends ClusterService implements Backup {
             slaveComm.setBackup(this);
 
         map = map1;
+
+        // the acks of the packets sent to nodes that have gone away will never arrive, but their snapshots can be released
+        cluster.addNodeChangeListener(new NodeChangeListener() {
+            @Override
+            public void nodeAdded(short id) {
+            }
+
+            @Override
+            public void nodeSwitched(short id) {
+                if (id == Comm.SERVER)
+                    releaseUnacked(true);
+            }
+
+            @Override
+            public void nodeRemoved(short id) {
+                if (id == Comm.SERVER)
+                    releaseUnacked(true);
+            }
+        });
+        cluster.addSlaveConfigurationListener(new SlaveConfigurationListener() {
+            @Override
+            public void newMaster(NodeInfo node) {
+            }
+
+            @Override
+            public void slaveAdded(NodeInfo node) {
+            }
+
+            @Override
+            public void slaveRemoved(NodeInfo node) {
+                if (getCluster().getMySlaves().isEmpty())
+                    releaseUnacked(false);
+            }
+        });
     }
 
     static BackupMonitor createMonitor(MonitoringType monitoringType, String name) {
@@ -126,6 +186,123 @@ public class BackupImpl extends ClusterService implements Backup {
         return (int) TimeUnit.MILLISECONDS.convert(maxDelayNanos, TimeUnit.NANOSECONDS);
     }
 
+    /**
+     * Sets how many of the slaves must acknowledge a backup or an INV before it is considered done.
+     */
+    public void setSlaveAckQuorum(SlaveAckQuorum slaveAckQuorum) {
+        assertDuringInitialization();
+        this.slaveAckQuorum = slaveAckQuorum;
+    }
+
+    @ManagedAttribute
+    public String getSlaveAckQuorum() {
+        return slaveAckQuorum.toString();
+    }
+
+    /**
+     * Sets the maximum number of backup packets that may be sent before the first of them has been acknowledged by the server and slaves.
+     */
+    public void setMaxInFlightPackets(int maxInFlightPackets) {
+        assertDuringInitialization();
+        if (maxInFlightPackets < 1)
+            throw new IllegalArgumentException("maxInFlightPackets must be at least 1, but was " + maxInFlightPackets);
+        this.maxInFlightPackets = maxInFlightPackets;
+    }
+
+    /**
+     * Sets the storage used for the snapshots of backed-up lines, which are kept until the packet containing them has been acknowledged by
+     * the server and all slaves. If not set, each snapshot is copied to a new heap buffer, as are the snapshots of lines larger than the
+     * storage's {@link CacheStorage#getMaxItemSize() maxItemSize}.
+     */
+    public void setSnapshotStorage(CacheStorage snapshotStorage) {
+        assertDuringInitialization();
+        this.snapshotStorage = snapshotStorage;
+    }
+
+    /**
+     * Sets the directory of the local write-ahead log, to which every backed-up line version is written, so that updates not yet
+     * acknowledged by the server or the slaves survive a crash. If not set, there is no log.
+     */
+    public void setLogDirectory(String directory) {
+        assertDuringInitialization();
+        this.logDirectory = directory != null ? new File(directory) : null;
+    }
+
+    @ManagedAttribute
+    public String getLogDirectory() {
+        return logDirectory != null ? logDirectory.getPath() : null;
+    }
+
+    /**
+     * Sets the size, in bytes, of each segment file of the write-ahead log.
+     */
+    public void setLogSegmentSize(int size) {
+        assertDuringInitialization();
+        this.logSegmentSize = size;
+    }
+
+    @ManagedAttribute
+    public int getLogSegmentSize() {
+        return logSegmentSize;
+    }
+
+    /**
+     * Sets when the write-ahead log is written to the storage device.
+     */
+    public void setLogSyncPolicy(LogSyncPolicy logSyncPolicy) {
+        assertDuringInitialization();
+        this.logSyncPolicy = logSyncPolicy;
+    }
+
+    @ManagedAttribute
+    public String getLogSyncPolicy() {
+        return logSyncPolicy.toString();
+    }
+
+    /**
+     * Sets the interval, in milliseconds, at which the write-ahead log is written to the storage device when the sync policy is
+     * {@link LogSyncPolicy#INTERVAL INTERVAL}.
+     */
+    public void setLogSyncIntervalMillis(long millis) {
+        assertDuringInitialization();
+        this.logSyncIntervalMillis = millis;
+    }
+
+    @ManagedAttribute
+    public long getLogSyncIntervalMillis() {
+        return logSyncIntervalMillis;
+    }
+
+    /**
+     * Sets the maximum time, in milliseconds, since a slave has last heard from its master, for the slave to serve reads of the lines it
+     * has received from the master. The master makes sure to send its slaves something at least twice that often, as long as it has no
+     * updates waiting to be sent or acknowledged. 0 (the default) means slaves don't serve reads.
+     */
+    public void setMaxSlaveReadStalenessMillis(long millis) {
+        assertDuringInitialization();
+        this.maxSlaveReadStalenessNanos = TimeUnit.NANOSECONDS.convert(millis, TimeUnit.MILLISECONDS);
+    }
+
+    @ManagedAttribute
+    public long getMaxSlaveReadStalenessMillis() {
+        return TimeUnit.MILLISECONDS.convert(maxSlaveReadStalenessNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @ManagedAttribute
+    public int getMaxInFlightPackets() {
+        return maxInFlightPackets;
+    }
+
+    @ManagedAttribute
+    public int getNumInFlightPackets() {
+        currentBackupsLock.lock();
+        try {
+            return inFlight.size();
+        } finally {
+            currentBackupsLock.unlock();
+        }
+    }
+
     @Override
     public void init() throws Exception {
         if (serverComm instanceof Service)
@@ -140,12 +317,50 @@ public class BackupImpl extends ClusterService implements Backup {
         // we won't present this node as a slave.
         // If not, I may become the master, or may go online shortly after another concurrently initializing node which will become the master,
         // in which case we can expect the replication to complete shortly (as the master won't have time to update that many items).
+        if (logDirectory != null)
+            openLog(getCluster().getMaster(getCluster().getMyNodeId()) == null);
         if (getCluster().getMaster(getCluster().getMyNodeId()) == null)
             setReady(true);
 
         super.postInit();
     }
 
+    void openLog(boolean replay) throws Exception { // visible for testing
+        this.log = new WriteAheadLog(logDirectory, logSegmentSize);
+        if (replay && !getCluster().hasServer()) {
+            // we're the first of our group to come up, so nobody else has the lines we owned; they are ours again, as though we were a slave
+            final short myNodeId = getCluster().getMyNodeId();
+            final int count = log.replay(new WriteAheadLog.Listener() {
+                @Override
+                public void record(long line, long version, ByteBuffer data) {
+                    cache.receive(Message.BACKUP(line, version, data).setNode(myNodeId).setIncoming());
+                    final Long v = recovered.get(line);
+                    if (v == null || v < version)
+                        recovered.put(line, Long.valueOf(version));
+                }
+            });
+            LOG.info("Replayed {} records from the write-ahead log {}", count, log);
+            for (Map.Entry<Long, Long> entry : recovered.entrySet())
+                map.put(entry.getKey(), new BackupEntry(entry.getKey(), entry.getValue())); // back them up (and so commit them) with the first flush
+        } else {
+            // either another node of our group has been the master since, or the server has taken over our lines when we went down;
+            // either way, our lines may have been updated since, and the log is stale.
+            if (log.getEndOffset() > 0)
+                LOG.info("Not replaying the write-ahead log {}, as {}", log, replay ? "the server has taken over this node's lines" : "a master exists");
+            log.commit(log.getEndOffset());
+        }
+        logMark = log.getEndOffset();
+
+        if (logSyncPolicy == LogSyncPolicy.INTERVAL && logSyncIntervalMillis > 0) {
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    log.force();
+                }
+            }, logSyncIntervalMillis, logSyncIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
     @Override
     protected void start(boolean master) {
         if (master)
@@ -168,6 +383,8 @@ public class BackupImpl extends ClusterService implements Backup {
     protected void shutdown() {
         super.shutdown();
         scheduler.shutdownNow();
+        if (log != null)
+            log.force();
     }
 
     @Override
@@ -185,6 +402,54 @@ public class BackupImpl extends ClusterService implements Backup {
             }
 
         }, maxDelayNanos, maxDelayNanos, TimeUnit.NANOSECONDS);
+
+        if (maxSlaveReadStalenessNanos > 0) {
+            final long period = maxSlaveReadStalenessNanos / 2;
+            scheduler.scheduleAtFixedRate(new Runnable() {
+
+                @Override
+                public void run() {
+                    if (System.nanoTime() - lastSentNanos >= period)
+                        sendHeartbeat();
+                }
+
+            }, period, period, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Lets the slaves know we're alive and they're up to date when there are no updates to send them, so they may keep serving reads.
+     * If there are updates they haven't received - waiting to be flushed, or held back because too many packets are in flight - they're
+     * not up to date, so no heartbeat is sent, and they stop serving reads once they've gone without a packet for longer than the
+     * staleness bound.
+     */
+    void sendHeartbeat() { // visible for testing
+        final BACKUP_PACKET packet;
+        currentBackupsLock.lock();
+        try {
+            if (!map1.isEmpty() || !map2.isEmpty() || !currentBackups.isEmpty() || !inFlight.isEmpty()) {
+                LOG.debug("Updates pending. Not sending heartbeat.");
+                return;
+            }
+            packet = Message.BACKUP_PACKET(nextId, Collections.<BACKUP>emptyList());
+            nextId++;
+        } finally {
+            currentBackupsLock.unlock();
+        }
+        try {
+            lastSentNanos = System.nanoTime();
+            slaveComm.send(packet); // the ack is ignored, as the packet isn't in flight
+        } catch (NodeNotFoundException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Override
+    public boolean canServeReads() {
+        return maxSlaveReadStalenessNanos > 0
+                && completedReplication
+                && !getCluster().isMaster()
+                && System.nanoTime() - lastReceivedNanos <= maxSlaveReadStalenessNanos;
     }
 
     @Override
@@ -192,7 +457,7 @@ public class BackupImpl extends ClusterService implements Backup {
         try {
             if (LOG.isDebugEnabled())
                 LOG.debug("INV {}, {}", id, owner);
-            return !slaveComm.send(Message.INV(getCluster().getMyNodeId(), id, owner));
+            return !slaveComm.send(Message.INV(getCluster().getMyNodeId(), id, owner)); // if sent, the cache waits for slavesInvAck
         } catch (NodeNotFoundException e) {
             throw new AssertionError(e);
         }
@@ -218,10 +483,18 @@ public class BackupImpl extends ClusterService implements Backup {
             currentBackupsPossiblyReady.signal();
             currentBackupsLock.unlock();
         }
+        if (log != null && logSyncPolicy == LogSyncPolicy.COMMIT) {
+            final long[] last = lastLogged.get();
+            if (last[0] >= 0) {
+                log.sync(last[0]); // group commit
+                last[0] = -1;
+            }
+        }
     }
 
     /**
      * Must be called by the cache when the line is synchronized, and under a read-lock (i.e. between startBackup and endBackup)
+     * If there's a write-ahead log, the line's contents are appended to it right away, while the line is still synchronized.
      *
      * @param id
      * @param version
@@ -230,8 +503,14 @@ public class BackupImpl extends ClusterService implements Backup {
     public void backup(long id, long version) {
         if (LOG.isDebugEnabled())
             LOG.debug("Backup: {} ver: {} {}", new Object[]{hex(id), version, copyImmediately ? "(COPY)" : ""});
+        if (log != null) {
+            final CacheLine line = cache.getLine(id);
+            line.rewind();
+            lastLogged.get()[0] = log.append(id, version, line.getData());
+            line.rewind();
+        }
         if (copyImmediately)
-            currentBackups.put(id, makeBackup(cache.getLine(id), version));
+            putBackup(makeBackup(cache.getLine(id), version));
         else
             map.put(id, new BackupEntry(id, version));
     }
@@ -257,6 +536,14 @@ public class BackupImpl extends ClusterService implements Backup {
                     return;
 
                 switchMaps(); // we switch the maps in the hopes that oldMap is complete, and so backups can continue to work on second map
+                if (log != null) {
+                    currentBackupsLock.lock();
+                    try {
+                        logMark = log.getEndOffset(); // all records before this are of versions in oldMap or in earlier maps
+                    } finally {
+                        currentBackupsLock.unlock();
+                    }
+                }
             } finally {
                 mapLock.writeLock().unlock();
             }
@@ -276,7 +563,7 @@ public class BackupImpl extends ClusterService implements Backup {
                             oldMap.remove(be.id);
                             if (LOG.isDebugEnabled())
                                 LOG.debug("Copied {} ver {} for backup", hex(be.id), be.version);
-                            currentBackups.put(be.id, backup);
+                            putBackup(backup);
                         } else {
                             if (LOG.isDebugEnabled())
                                 LOG.debug("Matching version for {} ({}) not found", hex(be.id), be.version);
@@ -304,7 +591,7 @@ public class BackupImpl extends ClusterService implements Backup {
                                 map.remove(be.id);
                                 if (LOG.isDebugEnabled())
                                     LOG.debug("Copied {} ver {} for backup", hex(be.id), be.version);
-                                currentBackups.put(be.id, backup);
+                                putBackup(backup);
                             } else
                                 oldMap.put(be.id, be);
                         }
@@ -342,23 +629,42 @@ public class BackupImpl extends ClusterService implements Backup {
         }
     }
 
+    /**
+     * Sends a packet that couldn't be sent earlier because too many packets were in flight.
+     * Like all packets, it's sent from the scheduler's thread, so that packets are always sent in order.
+     */
+    private void flushPending() {
+        scheduler.submit(new Runnable() {
+
+            @Override
+            public void run() {
+                final BACKUP_PACKET packet = flush1();
+                if (packet != null)
+                    send(packet);
+            }
+
+        });
+    }
+
     private BACKUP_PACKET flush1() {
         currentBackupsLock.lock();
         try {
-            if (lastSent == null) {
+            if (inFlight.size() < maxInFlightPackets) {
                 shouldFlush = false;
-                this.lastFlush = System.nanoTime();
                 if (currentBackups.isEmpty())
                     return null;
                 final BACKUP_PACKET packet;
                 packet = Message.BACKUP_PACKET(nextId, currentBackups.values());
                 nextId++;
-                lastSent = packet;
+                final InFlightPacket inFlightPacket = new InFlightPacket(packet, serverComm == null, logMark);
+                inFlight.addLast(inFlightPacket);
+                unreleased.put(packet.getId(), inFlightPacket);
+                monitor.setInFlightPackets(inFlight.size());
                 currentBackups.clear();
                 return packet;
-            } else { // last backup not yet acked
-                LOG.debug("Last backup not acked. Not sending.");
-                final long passedMillis = TimeUnit.MILLISECONDS.convert(System.nanoTime() - lastFlush, TimeUnit.NANOSECONDS);
+            } else { // window full
+                LOG.debug("{} backup packets not yet acked. Not sending.", inFlight.size());
+                final long passedMillis = TimeUnit.MILLISECONDS.convert(System.nanoTime() - inFlight.peekFirst().sentNanos, TimeUnit.NANOSECONDS);
                 if (passedMillis > 2000)
                     LOG.warn("SLAVE HAS NOT ACKED IN {} MILLISECONDS. SOMETHING IS SERIOUSLY WRONG!", passedMillis);
                 shouldFlush = true;
@@ -372,16 +678,14 @@ public class BackupImpl extends ClusterService implements Backup {
     private void send(BACKUP_PACKET packet) {
         monitor.addBackupPacket();
         monitor.addBackups(packet.getBackups().size());
+        lastSentNanos = System.nanoTime();
         try {
-            awaitServer = true;
-            awaitSlaves = true;
             if (serverComm != null) {
                 LOG.debug("Sending backup packet to server: {}", packet);
                 serverComm.send(packet);
-            } else
-                ack(true);
+            }
             if (!slaveComm.send(packet))
-                ack(false);
+                ack(packet.getId(), false, true);
             else
                 LOG.debug("Sent backup packet to slaves: {}", packet);
         } catch (NodeNotFoundException e) {
@@ -399,7 +703,8 @@ public class BackupImpl extends ClusterService implements Backup {
     private Message.BACKUP makeBackup(CacheLine line, long version) {
         if (line.getVersion() != version)
             return null;
-        final ByteBuffer buffer = ByteBuffer.allocate(line.getData().limit()); // storage.allocateStorage(line.getData().limit());
+        final int size = line.getData().limit();
+        final ByteBuffer buffer = isStored(size) ? snapshotStorage.allocateStorage(size) : ByteBuffer.allocate(size);
         line.rewind();
         buffer.put(line.getData());
         line.rewind();
@@ -409,26 +714,45 @@ public class BackupImpl extends ClusterService implements Backup {
         return backup;
     }
 
+    /**
+     * Must be called under currentBackupsLock
+     */
+    private void putBackup(BACKUP backup) {
+        final BACKUP replaced = currentBackups.put(backup.getLine(), backup);
+        if (replaced != null)
+            release(replaced);
+    }
+
+    private void release(BACKUP backup) {
+        if (backup.getData() == null)
+            return;
+        backup.getData().clear(); // restore the limit the storage has allocated
+        if (!isStored(backup.getData().capacity()))
+            return; // a heap buffer (a storage buffer's capacity is never larger than the storage's maxItemSize)
+        snapshotStorage.deallocateStorage(backup.getLine(), backup.getData());
+    }
+
+    /**
+     * Whether a snapshot of the given size is allocated from the snapshot storage rather than on the heap.
+     */
+    private boolean isStored(int size) {
+        return snapshotStorage != null && size <= snapshotStorage.getMaxItemSize();
+    }
+
     private void serverAck(Message message) {
         final BACKUP_PACKETACK ack = (BACKUP_PACKETACK) message;
-        if (ack.getId() != lastSent.getId()) {
-            LOG.warn("Received backup ack from server with id {} which is different from last sent: {}", ack.getId(), lastSent.getId());
-            return;
-        }
-        ack(true);
+        ack(ack.getId(), true, true);
     }
 
     @Override
-    public void slavesAck(long id) {
-        if (lastSent == null) {
-            LOG.warn("Received backup ack from slaves with id {} but lastSent is null", id);
-            return;
-        }
-        if (id != lastSent.getId()) {
-            LOG.warn("Received backup ack from slaves with id {} which is different from last sent: {}", id, lastSent.getId());
-            return;
-        }
-        ack(false);
+    public boolean isSlaveAckQuorum(int acks, int slaves) {
+        return acks >= slaveAckQuorum.required(slaves);
+    }
+
+    @Override
+    public void slavesAck(long id, int acks, int slaves) {
+        if (isSlaveAckQuorum(acks, slaves))
+            ack(id, false, acks >= slaves);
     }
 
     @Override
@@ -436,61 +760,191 @@ public class BackupImpl extends ClusterService implements Backup {
         cache.receive(Message.INVACK(getCluster().getMyNodeId(), id));
     }
 
-    private void ack(boolean server) {
-        LOG.debug("Ack {}", server ? "server" : "slaves");
-        BACKUP_PACKET packet = null;
-        final BACKUP_PACKET _lastSent;
+    /**
+     * Packets may be acked out of order, but they are completed - i.e. the cache is told its lines have been backed up - in order.
+     * A packet's snapshots are released only when neither the server comm nor the slave comm can still be writing it, i.e. when it's been
+     * acked by the server and by all slaves (not just the quorum).
+     *
+     * @param all whether all slaves have acked (or gone away); ignored for server acks.
+     */
+    private void ack(long id, boolean server, boolean all) {
+        LOG.debug("Ack {} {}", server ? "server" : "slaves", id);
+        final List<BACKUP_PACKET> completed = new ArrayList<BACKUP_PACKET>();
+        final boolean flush;
+        InFlightPacket released = null;
+        long commitLog = -1;
         currentBackupsLock.lock();
         try {
-            if (server && awaitSlaves) {
-                awaitServer = false;
+            final InFlightPacket packet = unreleased.get(id);
+            if (packet == null) {
+                if (server)
+                    LOG.warn("Received backup ack from server with id {} which is not in flight", id);
+                else
+                    LOG.debug("Received backup ack from slaves with id {} after the packet had been acked", id);
                 return;
             }
-            if (!server && awaitServer) {
-                awaitSlaves = false;
-                return;
+            final long nanos = System.nanoTime() - packet.sentNanos;
+            if (server && !packet.serverAcked) {
+                packet.serverAcked = true;
+                monitor.addServerAckTime(nanos);
+            } else if (!server && !packet.slavesAcked) {
+                packet.slavesAcked = true;
+                monitor.addSlaveAckTime(nanos);
+            }
+            if (!server && all)
+                packet.allSlavesAcked = true;
+            if (!packet.released && packet.isReleasable()) {
+                packet.released = true;
+                released = packet;
+            }
+            if (packet.released && packet.isAcked())
+                unreleased.remove(id);
+
+            while (!inFlight.isEmpty() && inFlight.peekFirst().isAcked()) {
+                final InFlightPacket p = inFlight.pollFirst();
+                completed.add(p.packet);
+                commitLog = p.logMark;
+            }
+            if (!completed.isEmpty())
+                monitor.setInFlightPackets(inFlight.size());
+            flush = shouldFlush && !completed.isEmpty();
+        } finally {
+            currentBackupsLock.unlock();
+        }
+
+        for (BACKUP_PACKET packet : completed) {
+            for (BACKUP backup : packet.getBackups()) {
+                if (!recovered.isEmpty() && recovered.remove(backup.getLine(), (Object) backup.getVersion()))
+                    continue; // replayed from the log, so the cache isn't waiting for this ack
+                cache.receive(Message.BACKUPACK((short) 0, backup.getLine(), backup.getVersion()).setIncoming());
+            }
+        }
+        if (log != null && commitLog >= 0)
+            log.commit(commitLog);
+        if (released != null) {
+            for (BACKUP backup : released.packet.getBackups())
+                release(backup);
+        }
+        if (flush)
+            flushPending();
+    }
+
+    /**
+     * Releases the snapshots of the packets sent, but not yet acked, by the server (or by all slaves), once it (or they) have gone away, as
+     * their acks will never arrive. The packets are still completed if they're acked by those who remain.
+     */
+    // visible for testing
+    void releaseUnacked(boolean server) {
+        final List<InFlightPacket> released = new ArrayList<InFlightPacket>();
+        currentBackupsLock.lock();
+        try {
+            for (InFlightPacket packet : unreleased.values()) {
+                if (server)
+                    packet.serverGone = true;
+                else
+                    packet.allSlavesAcked = true;
+                if (!packet.released && packet.isReleasable()) {
+                    packet.released = true;
+                    released.add(packet);
+                }
             }
-            _lastSent = lastSent;
-            lastSent = null;
-            awaitServer = false;
-            awaitSlaves = false;
-            if (shouldFlush)
-                packet = flush1();
         } finally {
             currentBackupsLock.unlock();
         }
+        if (!released.isEmpty())
+            LOG.info("Releasing the snapshots of {} backup packets that won't be acked by the {}", released.size(), server ? "server" : "slaves");
+        for (InFlightPacket packet : released) {
+            for (BACKUP backup : packet.packet.getBackups())
+                release(backup);
+        }
+    }
 
-        for (BACKUP backup : _lastSent.getBackups())
-            cache.receive(Message.BACKUPACK((short) 0, backup.getLine(), backup.getVersion()).setIncoming());
-        if (packet != null)
-            send(packet);
+    @Override
+    public int getNumOwned() {
+        return cache.getNumOwned();
     }
 
     @Override
-    public Iterator<BACKUP> iterOwned() {
-        final Iterator<Cache.CacheLine> it = cache.ownedIterator();
-        return new Iterator<BACKUP>() {
+    public List<Iterator<BACKUP>> iterOwned(int partitions) {
+        final OwnedScanner scanner = new OwnedScanner(cache.ownedIterator(), partitions);
+        final List<Iterator<BACKUP>> iterators = new ArrayList<Iterator<BACKUP>>(partitions);
+        for (int i = 0; i < partitions; i++)
+            iterators.add(new OwnedIterator(scanner, i));
+        return iterators;
+    }
 
-            @Override
-            public boolean hasNext() {
-                return it.hasNext();
-            }
+    /**
+     * Scans the owned lines once for all partitions. A partition that has run out of lines pulls more from the cache's iterator, queueing
+     * those of the other partitions until their iterators ask for them.
+     */
+    private static class OwnedScanner {
+        private final Iterator<Cache.CacheLine> it;
+        private final List<ArrayDeque<Cache.CacheLine>> queues;
 
-            @Override
-            public BACKUP next() {
+        OwnedScanner(Iterator<Cache.CacheLine> it, int partitions) {
+            this.it = it;
+            this.queues = new ArrayList<ArrayDeque<Cache.CacheLine>>(partitions);
+            for (int i = 0; i < partitions; i++)
+                queues.add(new ArrayDeque<Cache.CacheLine>());
+        }
+
+        /**
+         * @return the partition's next line, or {@code null} if there are none left.
+         */
+        synchronized Cache.CacheLine next(int partition) {
+            final ArrayDeque<Cache.CacheLine> queue = queues.get(partition);
+            while (queue.isEmpty() && it.hasNext()) {
                 final Cache.CacheLine line = it.next();
-                synchronized (line) {
-                    monitor.addReplicationBackup(1);
-                    return (BACKUP) Message.BACKUP(line.getId(), line.getVersion(), line.getData()).cloneDataBuffers();
-                }
+                queues.get(partition(line.getId(), queues.size())).addLast(line);
             }
+            return queue.pollFirst();
+        }
+    }
 
-            @Override
-            public void remove() {
-                throw new UnsupportedOperationException();
+    private class OwnedIterator implements Iterator<BACKUP> {
+        private final OwnedScanner scanner;
+        private final int partition;
+        private Cache.CacheLine next;
+
+        OwnedIterator(OwnedScanner scanner, int partition) {
+            this.scanner = scanner;
+            this.partition = partition;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null)
+                next = scanner.next(partition);
+            return next != null;
+        }
+
+        @Override
+        public BACKUP next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            final Cache.CacheLine line = next;
+            next = null;
+            synchronized (line) {
+                if (line.getState().isLessThan(Cache.State.O))
+                    return null; // transferred since we've started
+                monitor.addReplicationBackup(1);
+                return (BACKUP) Message.BACKUP(line.getId(), line.getVersion(), line.getData()).cloneDataBuffers();
             }
+        }
 
-        };
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static int partition(long id, int partitions) {
+        return (int) ((id ^ (id >>> 32)) & 0x7fffffff) % partitions;
+    }
+
+    @Override
+    public void replicationProgress(long remaining, long etaMillis) {
+        monitor.setReplicationProgress(remaining, etaMillis);
     }
 
     @Override
@@ -503,6 +957,7 @@ public class BackupImpl extends ClusterService implements Backup {
                 if (getCluster().isMaster())
                     LOG.warn("Received backup packet while master: {}", message);
                 else {
+                    lastReceivedNanos = System.nanoTime();
                     monitor.addBackupPacket();
                     monitor.addBackups(((BACKUP_PACKET) message).getBackups().size());
                     handleReceivedBackupPacket((BACKUP_PACKET) message);
@@ -512,6 +967,7 @@ public class BackupImpl extends ClusterService implements Backup {
                 if (getCluster().isMaster())
                     LOG.warn("Received backup while master: {}", message);
                 else {
+                    lastReceivedNanos = System.nanoTime();
                     monitor.addReplicationBackup(1);
                     handleReceivedBackup((BACKUP) message);
                 }
@@ -519,8 +975,10 @@ public class BackupImpl extends ClusterService implements Backup {
             case INV:
                 if (getCluster().isMaster())
                     LOG.warn("Received INV while master: {}", message);
-                else
+                else {
+                    lastReceivedNanos = System.nanoTime();
                     handleReceivedInvalidate((INV) message);
+                }
                 break;
             default:
         }
@@ -569,4 +1027,82 @@ public class BackupImpl extends ClusterService implements Backup {
 
     }
 
+
+    private static class InFlightPacket {
+        final BACKUP_PACKET packet;
+        final long sentNanos = System.nanoTime();
+        boolean serverAcked;
+        boolean slavesAcked;
+        boolean allSlavesAcked;
+        boolean serverGone; // the server has gone away (or been replaced) before acking
+        boolean released; // the snapshots have been released
+        final long logMark; // once acked, the write-ahead log's records before this offset are no longer needed
+
+        InFlightPacket(BACKUP_PACKET packet, boolean serverAcked, long logMark) {
+            this.packet = packet;
+            this.serverAcked = serverAcked;
+            this.logMark = logMark;
+        }
+
+        boolean isAcked() {
+            return serverAcked && slavesAcked;
+        }
+
+        boolean isReleasable() { // no comm can still be writing the packet
+            return (serverAcked || serverGone) && allSlavesAcked;
+        }
+    }
+
+    /**
+     * When the write-ahead log is written to the storage device.
+     */
+    public static enum LogSyncPolicy {
+        /**
+         * Whenever the OS decides to. The log then survives a crash of the process, but not of the OS.
+         */
+        NONE,
+        /**
+         * Periodically, every {@code logSyncIntervalMillis} milliseconds.
+         */
+        INTERVAL,
+        /**
+         * Before a transaction's commit (or a line's release) returns. Concurrent commits share the writes.
+         */
+        COMMIT
+    }
+
+    /**
+     * The number of slaves that must acknowledge a backup or an INV.
+     */
+    public static enum SlaveAckQuorum {
+        /**
+         * Any one of the slaves.
+         */
+        ANY {
+            @Override
+            int required(int slaves) {
+                return Math.min(1, slaves);
+            }
+        },
+        /**
+         * A majority of the slaves.
+         */
+        MAJORITY {
+            @Override
+            int required(int slaves) {
+                return slaves > 0 ? slaves / 2 + 1 : 0;
+            }
+        },
+        /**
+         * All of the slaves.
+         */
+        ALL {
+            @Override
+            int required(int slaves) {
+                return slaves;
+            }
+        };
+
+        abstract int required(int slaves);
+    }
 }
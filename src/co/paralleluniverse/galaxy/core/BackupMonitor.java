@@ -33,4 +33,8 @@ interface BackupMonitor {
     void addSlaveAckTime(long nanos);
 
     void addServerAckTime(long nanos);
+
+    void setInFlightPackets(int num);
+
+    void setReplicationProgress(long remaining, long etaMillis);
 }
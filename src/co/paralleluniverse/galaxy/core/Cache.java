@@ -331,6 +331,10 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
         return owned.values().iterator();
     }
 
+    int getNumOwned() {
+        return owned.size();
+    }
+
     //<editor-fold defaultstate="collapsed" desc="Types">
     /////////////////////////// Types ///////////////////////////////////////////
     enum State {
@@ -492,8 +496,11 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
     //<editor-fold defaultstate="collapsed" desc="Execution flow">
     /////////////////////////// Execution flow ///////////////////////////////////////////
     public Object doOp(Op.Type type, long id, Object data, Object extra, Transaction txn) throws TimeoutException {
-        if (!getCluster().isMaster() && type != Op.Type.LSTN)
+        if (!getCluster().isMaster() && type != Op.Type.LSTN) {
+            if (type == Op.Type.GET)
+                return doSlaveGet(id, data);
             throw new IllegalStateException("Node is a slave. Cannot run grid operations");
+        }
 
         if (LOG.isDebugEnabled())
             LOG.debug("Run(fast): Op.{}(line:{}{}{})", new Object[]{type, hex(id), (data != null ? ", data:" + data : ""), (extra != null ? ", extra:" + extra : "")});
@@ -509,8 +516,11 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
     }
 
     public ListenableFuture<Object> doOpAsync(Op.Type type, long id, Object data, Object extra, Transaction txn) {
-        if (!getCluster().isMaster())
+        if (!getCluster().isMaster()) {
+            if (type == Op.Type.GET)
+                return Futures.immediateFuture(doSlaveGet(id, data));
             throw new IllegalStateException("Node is a slave. Cannot run grid operations");
+        }
 
         if (LOG.isDebugEnabled())
             LOG.debug("Run(fast): Op.{}(line:{}{}{})", new Object[]{type, hex(id), (data != null ? ", data:" + data : ""), (extra != null ? ", extra:" + extra : "")});
@@ -561,6 +571,29 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
             return Futures.immediateFuture(result);
     }
 
+    /**
+     * A slave may serve plain (non-transactional) reads of the lines it has received from its master, as long as the backup says it's heard
+     * from the master recently enough. The data is possibly stale, but never by more than the backup's staleness bound plus the master's
+     * flush delay.
+     */
+    private Object doSlaveGet(long id, Object data) {
+        if (!backup.canServeReads())
+            throw new IllegalStateException("Node is a slave, and is not configured to serve reads or is too far behind its master");
+        final CacheLine line = getLine(id);
+        if (line == null)
+            throw new IllegalStateException("Node is a slave, and does not have line " + hex(id));
+        synchronized (line) {
+            if (line.getState() != State.E || line.is(CacheLine.DELETED))
+                throw new IllegalStateException("Node is a slave, and does not have line " + hex(id));
+            monitor.addStaleHit();
+            if (data != null) {
+                readData(line, (Persistable) data);
+                return null;
+            } else
+                return readData(line);
+        }
+    }
+
     /**
      * We try to run the op w/o creating an Op object.
      */
@@ -576,8 +609,18 @@ public class Cache extends ClusterService implements MessageReceiver, NodeChange
         }
 
         Object res;
-        synchronized (line) {
-            res = handleOp(line, type, data, extra, txn, false, LINE_EVERYTHING_CHANGED);
+        final boolean nested = recursive.get() == Boolean.TRUE;
+        if (!nested)
+            recursive.set(Boolean.TRUE); // messages sent to self while we hold the line are received after we release it
+        try {
+            synchronized (line) {
+                res = handleOp(line, type, data, extra, txn, false, LINE_EVERYTHING_CHANGED);
+            }
+            if (!nested)
+                receiveShortCircuit();
+        } finally {
+            if (!nested)
+                recursive.remove();
         }
         if (res != PENDING)
             monitor.addOp(type, 0);
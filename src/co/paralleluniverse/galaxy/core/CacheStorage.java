@@ -30,6 +30,11 @@ public interface CacheStorage {
     ByteBuffer allocateStorage(int size);
 
     void deallocateStorage(long id, ByteBuffer buffer);
+
+    /**
+     * The largest buffer, in bytes, that {@link #allocateStorage(int) allocateStorage} can allocate.
+     */
+    int getMaxItemSize();
     
     long getTotalAllocatedSize();
 }
@@ -53,6 +53,11 @@ class HeapLocalStorage extends Component implements CacheStorage {
         monitor.deallocated(buffer.capacity());
     }
 
+    @Override
+    public int getMaxItemSize() {
+        return Integer.MAX_VALUE;
+    }
+
     @Override
     public long getTotalAllocatedSize() {
         return totalSize.get();
@@ -39,6 +39,9 @@ public class JMXBackupMonitor extends PeriodicMonitor implements BackupMonitor,
     private int backupPackets;
     private long avgSlavesAckTimeMicros;
     private long avgServerAckTimeMicros;
+    private volatile int inFlightPackets;
+    private volatile long replicationRemaining;
+    private volatile long replicationEtaMillis;
 
     public JMXBackupMonitor(String name) {
         super(BackupMXBean.class, "co.paralleluniverse.galaxy.core:type=Backup");
@@ -90,6 +93,17 @@ public class JMXBackupMonitor extends PeriodicMonitor implements BackupMonitor,
         serverAckTimeCounter.add(TimeUnit.MICROSECONDS.convert(nanos, TimeUnit.NANOSECONDS));
     }
 
+    @Override
+    public void setInFlightPackets(int num) {
+        this.inFlightPackets = num;
+    }
+
+    @Override
+    public void setReplicationProgress(long remaining, long etaMillis) {
+        this.replicationRemaining = remaining;
+        this.replicationEtaMillis = etaMillis;
+    }
+
     @Override
     public long getAvgServerAckTimeMicros() {
         return avgServerAckTimeMicros;
@@ -114,4 +128,19 @@ public class JMXBackupMonitor extends PeriodicMonitor implements BackupMonitor,
     public int getReplicationBackups() {
         return replicationBackups;
     }
+
+    @Override
+    public int getInFlightPackets() {
+        return inFlightPackets;
+    }
+
+    @Override
+    public long getReplicationRemaining() {
+        return replicationRemaining;
+    }
+
+    @Override
+    public long getReplicationEtaMillis() {
+        return replicationEtaMillis;
+    }
 }
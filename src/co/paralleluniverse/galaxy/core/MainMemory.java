@@ -32,11 +32,27 @@ import co.paralleluniverse.galaxy.core.Message.LineMessage;
 import co.paralleluniverse.galaxy.server.MainMemoryDB;
 import co.paralleluniverse.galaxy.server.MainMemoryEntry;
 import com.google.common.base.Throwables;
+import gnu.trove.procedure.TLongShortProcedure;
 import java.beans.ConstructorProperties;
 import java.lang.reflect.Proxy;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
 
 /**
  *
@@ -49,6 +65,20 @@ public class MainMemory extends ClusterService implements MessageReceiver, NodeC
     private final Comm comm;
     private final MainMemoryDB store;
     private final MainMemoryMonitor monitor;
+    private boolean groupCommit;
+    private long groupCommitDelayMicros;
+    private int groupCommitMaxSize = 10000;
+    private final BlockingQueue<Message> commitQueue = new LinkedBlockingQueue<Message>(1024); // BACKUP_PACKETs and DELs awaiting commit
+    private final Object commitLock = new Object();
+    private Thread committer;
+    private boolean cacheOwners;
+    private long ownerFlushIntervalMillis = 100;
+    private volatile OwnerDirectory owners; // null until loaded
+    private final ReadWriteLock ownersLock = new ReentrantReadWriteLock(); // read-locked by writes to the store, write-locked by owner flushes
+    private ScheduledExecutorService ownerFlusher;
+    private int workerThreads;
+    private int workerQueueSize = 1024;
+    private Worker[] workers;
 
     @ConstructorProperties({"name", "cluster", "store", "comm", "monitoringType"})
     public MainMemory(String name, Cluster cluster, MainMemoryDB store, Comm comm, MonitoringType monitoringType) {
@@ -66,6 +96,139 @@ public class MainMemory extends ClusterService implements MessageReceiver, NodeC
         comm.setReceiver(this);
     }
 
+    /**
+     * Sets whether backup packets (and deletes) are committed together. If set, they are queued, and a single thread commits all those
+     * that have been queued - from all nodes - in one transaction, and acknowledges each of them once it's done.
+     */
+    public void setGroupCommit(boolean groupCommit) {
+        assertDuringInitialization();
+        this.groupCommit = groupCommit;
+    }
+
+    @ManagedAttribute
+    public boolean isGroupCommit() {
+        return groupCommit;
+    }
+
+    /**
+     * Sets how long, in microseconds, a group commit waits for more packets once the first has been queued. 0 (the default) means it
+     * doesn't wait, and so packets are grouped only while the previous commit is in progress.
+     */
+    public void setGroupCommitDelayMicros(long micros) {
+        assertDuringInitialization();
+        this.groupCommitDelayMicros = micros;
+    }
+
+    @ManagedAttribute
+    public long getGroupCommitDelayMicros() {
+        return groupCommitDelayMicros;
+    }
+
+    /**
+     * Sets the maximum number of backups committed together.
+     */
+    public void setGroupCommitMaxSize(int size) {
+        assertDuringInitialization();
+        this.groupCommitMaxSize = size;
+    }
+
+    @ManagedAttribute
+    public int getGroupCommitMaxSize() {
+        return groupCommitMaxSize;
+    }
+
+    /**
+     * Sets whether line ownership is kept in memory. If set, the owners of all lines are loaded from the store when this node becomes the
+     * master, and ownership changes are made in memory and written to the store in the background, every
+     * {@link #setOwnerFlushIntervalMillis(long) ownerFlushIntervalMillis}. <br/>
+     * Ownership changes made since the last flush are lost if the server fails.
+     */
+    public void setCacheOwners(boolean cacheOwners) {
+        assertDuringInitialization();
+        this.cacheOwners = cacheOwners;
+    }
+
+    @ManagedAttribute
+    public boolean isCacheOwners() {
+        return cacheOwners;
+    }
+
+    /**
+     * Sets how often, in milliseconds, ownership changes are written to the store when {@link #setCacheOwners(boolean) cacheOwners} is set.
+     */
+    public void setOwnerFlushIntervalMillis(long millis) {
+        assertDuringInitialization();
+        this.ownerFlushIntervalMillis = millis;
+    }
+
+    @ManagedAttribute
+    public long getOwnerFlushIntervalMillis() {
+        return ownerFlushIntervalMillis;
+    }
+
+    @ManagedAttribute
+    public int getNumCachedOwners() {
+        final OwnerDirectory directory = owners;
+        return directory != null ? directory.size() : 0;
+    }
+
+    /**
+     * Sets the number of threads handling messages. If 0 (the default), messages are handled by the comm's threads. Otherwise, messages
+     * are partitioned among the workers by line, so that all messages concerning a line are handled in the order they've been received,
+     * while those concerning different lines are handled in parallel. A backup packet is handled once all workers of its lines have
+     * handled the messages received before it.
+     */
+    public void setWorkerThreads(int workerThreads) {
+        assertDuringInitialization();
+        this.workerThreads = workerThreads;
+    }
+
+    @ManagedAttribute
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    /**
+     * Sets the maximum number of messages waiting for each worker thread. When a worker's queue is full, the comm waits.
+     */
+    public void setWorkerQueueSize(int workerQueueSize) {
+        assertDuringInitialization();
+        this.workerQueueSize = workerQueueSize;
+    }
+
+    @ManagedAttribute
+    public int getWorkerQueueSize() {
+        return workerQueueSize;
+    }
+
+    @Override
+    protected void init() throws Exception {
+        super.init();
+        if (workerThreads > 0) {
+            workers = new Worker[workerThreads];
+            for (int i = 0; i < workers.length; i++) {
+                workers[i] = new Worker(getName() + "-worker-" + i, workerQueueSize);
+                workers[i].start();
+            }
+        }
+        if (cacheOwners)
+            ownerFlusher = Executors.newSingleThreadScheduledExecutor();
+        if (groupCommit) {
+            committer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (!Thread.interrupted())
+                            commitQueued(true);
+                    } catch (InterruptedException e) {
+                    }
+                }
+            }, getName() + "-committer");
+            committer.setDaemon(true);
+            committer.start();
+        }
+    }
+
     @Override
     protected void start(boolean master) {
         if (master) {
@@ -75,6 +238,8 @@ public class MainMemory extends ClusterService implements MessageReceiver, NodeC
             }
 
             ((RefAllocator) getCluster()).setCounter(store.getMaxId() + 1);
+            if (cacheOwners)
+                loadOwners();
         }
         setReady(true);
     }
@@ -82,10 +247,122 @@ public class MainMemory extends ClusterService implements MessageReceiver, NodeC
     @Override
     public void switchToMaster() {
         super.switchToMaster();
+        if (cacheOwners)
+            loadOwners();
+    }
+
+    private void loadOwners() {
+        if (owners != null)
+            return;
+        final OwnerDirectory directory = new OwnerDirectory(1024);
+        store.forEachOwner(new TLongShortProcedure() {
+            @Override
+            public boolean execute(long id, short owner) {
+                directory.putIfAbsent(id, owner);
+                return true;
+            }
+        });
+        LOG.info("Loaded the owners of {} lines", directory.size());
+        this.owners = directory;
+        ownerFlusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flushOwners();
+                } catch (Exception e) {
+                    LOG.error("Exception while writing owners to the store.", e);
+                }
+            }
+        }, ownerFlushIntervalMillis, ownerFlushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes all ownership changes made since the last flush to the store, in one transaction.
+     */
+    // visible for testing
+    void flushOwners() {
+        final OwnerDirectory directory = owners;
+        if (directory == null)
+            return;
+        ownersLock.writeLock().lock();
+        try {
+            final long[] dirty = directory.drainDirty();
+            if (dirty.length == 0)
+                return;
+            final Object txn = store.beginTransaction();
+            try {
+                int n = 0;
+                for (long id : dirty) {
+                    final short owner = directory.getOwner(id);
+                    if (owner >= 0) { // otherwise deleted
+                        store.setOwner(id, owner, txn);
+                        n++;
+                    }
+                }
+                monitor.addTransaction(n);
+                store.commit(txn);
+                LOG.debug("Wrote the owners of {} lines", n);
+            } catch (Exception e) {
+                store.abort(txn);
+                for (long id : dirty)
+                    directory.markDirty(id); // retry at the next flush
+                throw Throwables.propagate(e);
+            }
+        } finally {
+            ownersLock.writeLock().unlock();
+        }
+    }
+
+    private short casOwner(long id, short oldNode, short newNode) {
+        final OwnerDirectory directory = owners;
+        return directory != null ? directory.casOwner(id, oldNode, newNode) : store.casOwner(id, oldNode, newNode);
+    }
+
+    /**
+     * Writes a line's owner to the store within the given transaction if it has been changed but not yet flushed, as writes to the store
+     * may depend on it.
+     */
+    private void writeOwnerIfDirty(OwnerDirectory directory, long id, Object txn) {
+        if (directory != null && directory.isDirty(id)) {
+            final short owner = directory.getOwner(id);
+            if (owner >= 0)
+                store.setOwner(id, owner, txn);
+        }
     }
 
     @Override
     protected void shutdown() {
+        if (workers != null) {
+            for (Worker worker : workers)
+                worker.interrupt();
+            try {
+                for (Worker worker : workers)
+                    worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (ownerFlusher != null) {
+            ownerFlusher.shutdownNow();
+            try {
+                flushOwners();
+            } catch (Exception e) {
+                LOG.error("Exception while writing owners to the store.", e);
+            }
+        }
+        if (committer != null) {
+            committer.interrupt();
+            try {
+                committer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        final OwnerDirectory directory = owners;
+        if (directory != null) {
+            owners = null;
+            directory.free(); // it's off-heap
+        }
         store.close();
     }
 
@@ -109,6 +386,61 @@ public class MainMemory extends ClusterService implements MessageReceiver, NodeC
 //            return;
 //        }
         LOG.debug("Received: {}", message);
+        if (workers == null)
+            handle(message);
+        else
+            dispatch(message);
+    }
+
+    private void dispatch(final Message message) {
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                handle(message);
+            }
+        };
+        if (message.getType() == Message.Type.BACKUP_PACKET) {
+            final boolean[] shards = new boolean[workers.length];
+            int n = 0;
+            for (BACKUP backup : ((BACKUP_PACKET) message).getBackups()) {
+                final int shard = shard(backup.getLine());
+                if (!shards[shard]) {
+                    shards[shard] = true;
+                    n++;
+                }
+            }
+            if (n > 1) {
+                final Barrier barrier = new Barrier(n, task);
+                synchronized (workers) { // so that all barriers are queued in the same order in all workers
+                    for (int i = 0; i < shards.length; i++) {
+                        if (shards[i])
+                            workers[i].add(barrier);
+                    }
+                }
+            } else
+                workers[n == 1 ? indexOf(shards) : shard(message.getNode())].add(task);
+        } else if (message instanceof LineMessage)
+            workers[shard(((LineMessage) message).getLine())].add(task);
+        else
+            task.run();
+    }
+
+    private int shard(long line) {
+        line ^= line >>> 33;
+        line *= 0xff51afd7ed558ccdL;
+        line ^= line >>> 33;
+        return (int) ((line & Long.MAX_VALUE) % workers.length);
+    }
+
+    private static int indexOf(boolean[] array) {
+        for (int i = 0; i < array.length; i++) {
+            if (array[i])
+                return i;
+        }
+        return -1;
+    }
+
+    private void handle(Message message) {
         switch (message.getType()) {
             case GET:
             case GETX:
@@ -142,15 +474,20 @@ public class MainMemory extends ClusterService implements MessageReceiver, NodeC
 
         for (;;) {
             short owner;
-            if (isReserved(id) && store.casOwner(id, (short) -1, msg.getNode()) == msg.getNode()) { // if nonexistent root - create it
+            if (isReserved(id) && casOwner(id, (short) -1, msg.getNode()) == msg.getNode()) { // if nonexistent root - create it
                 if (LOG.isDebugEnabled())
                     LOG.debug("Owner of reserved line {} is now node {} (CAS)", hex(id), msg.getNode());
                 monitor.addOwnerWrite();
                 monitor.addObjectServed();
-                store.write(id, msg.getNode(), 1, new byte[0], null);
+                ownersLock.readLock().lock();
+                try {
+                    store.write(id, msg.getNode(), 1, new byte[0], null);
+                } finally {
+                    ownersLock.readLock().unlock();
+                }
                 send(Message.PUTX(msg, id, new short[0], 1, null));
                 return true;
-            } else if ((owner = store.casOwner(id, SERVER, msg.getNode())) == msg.getNode()) { // if owner is server, then transfer ownership
+            } else if ((owner = casOwner(id, SERVER, msg.getNode())) == msg.getNode()) { // if owner is server, then transfer ownership
                 MainMemoryEntry entry = store.read(id);
                 if (LOG.isDebugEnabled())
                     LOG.debug("Owner of line {} is now node {} (previously owned by server)", hex(id), msg.getNode());
@@ -186,7 +523,7 @@ public class MainMemory extends ClusterService implements MessageReceiver, NodeC
         // so, we check to see where A got the line from (previous owner). Since it's B but we already have C as the owner, we INV instead of INVACK.
 
         short currentOwner;
-        if ((currentOwner = store.casOwner(id, previousOwner, owner)) == owner) {
+        if ((currentOwner = casOwner(id, previousOwner, owner)) == owner) {
             if (LOG.isDebugEnabled())
                 LOG.debug("Got INV: Owner of line {} is now node {}", hex(id), msg.getNode());
             monitor.addOwnerWrite();
@@ -200,13 +537,20 @@ public class MainMemory extends ClusterService implements MessageReceiver, NodeC
     }
 
     private void handleMessageDelete(LineMessage msg) {
+        if (groupCommit) {
+            enqueue(msg);
+            return;
+        }
         final long id = msg.getLine();
         final short owner = msg.getNode();
         if (LOG.isDebugEnabled())
             LOG.debug("Line {} deleted.", hex(id));
 
+        ownersLock.readLock().lock();
         final Object txn = store.beginTransaction();
         try {
+            if (owners != null)
+                owners.remove(id);
             store.delete(id, txn);
             store.commit(txn);
             send(Message.INVACK(msg));
@@ -214,6 +558,8 @@ public class MainMemory extends ClusterService implements MessageReceiver, NodeC
             LOG.error("Exception during delete. Aborting transaction.", e);
             store.abort(txn);
             throw Throwables.propagate(e);
+        } finally {
+            ownersLock.readLock().unlock();
         }
     }
 
@@ -225,27 +571,192 @@ public class MainMemory extends ClusterService implements MessageReceiver, NodeC
     }
 
     private void handleMessageBackup(BACKUP_PACKET msg) {
+        if (groupCommit) {
+            enqueue(msg);
+            return;
+        }
+        final OwnerDirectory directory = owners;
+        ownersLock.readLock().lock();
         final Object txn = store.beginTransaction();
         try {
             monitor.addTransaction(msg.getBackups().size());
             for (BACKUP backup : msg.getBackups()) {
                 if (LOG.isDebugEnabled())
                     LOG.debug("Backing up version {} of line {} data: {}", new Object[]{backup.getVersion(), hex(backup.getLine()), backup.getData() != null ? "(" + backup.getData().remaining() + " bytes)" : "null"});
+                writeOwnerIfDirty(directory, backup.getLine(), txn);
                 store.write(backup.getLine(), msg.getNode(), backup.getVersion(), Persistables.toByteArray(backup.getData()), txn);
             }
             store.commit(txn);
+            if (directory != null) {
+                for (BACKUP backup : msg.getBackups())
+                    directory.putIfAbsent(backup.getLine(), msg.getNode());
+            }
             send(Message.BACKUP_PACKETACK(msg));
         } catch (Exception e) {
             LOG.error("Exception during DB operation. Aborting transaction.", e);
             store.abort(txn);
             throw Throwables.propagate(e);
+        } finally {
+            ownersLock.readLock().unlock();
+        }
+    }
+
+    private void enqueue(Message msg) {
+        try {
+            commitQueue.put(msg); // blocks the comm if commits fall behind
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Commits the queued backup packets and deletes in one transaction, and then acknowledges them in order. When the same line is written
+     * (or deleted) more than once, only the last operation is applied. <br/>
+     * If the transaction fails, the messages are committed again one at a time, so that a single bad message doesn't hold back the
+     * others, which may have come from other nodes; the ones that fail again are not acknowledged.
+     *
+     * @param wait whether to wait for something to be queued. If so, returns after a while even if nothing has been, so as not to hold
+     *             {@code commitLock} for long.
+     */
+    // visible for testing
+    void commitQueued(boolean wait) throws InterruptedException {
+        synchronized (commitLock) {
+            final Message first = wait ? commitQueue.poll(10, TimeUnit.MILLISECONDS) : commitQueue.poll();
+            if (first == null)
+                return;
+            if (wait && groupCommitDelayMicros > 0)
+                TimeUnit.MICROSECONDS.sleep(groupCommitDelayMicros);
+
+            final List<Message> messages = new ArrayList<Message>();
+            int size = 0;
+            for (Message msg = first; msg != null; msg = size < groupCommitMaxSize ? commitQueue.poll() : null) {
+                messages.add(msg);
+                size += msg.getType() == Message.Type.BACKUP_PACKET ? ((BACKUP_PACKET) msg).getBackups().size() : 1;
+            }
+
+            if (commit(messages) || messages.size() == 1)
+                return;
+            LOG.warn("Group commit of {} messages failed. Committing them one at a time.", messages.size());
+            for (Message msg : messages)
+                commit(Collections.singletonList(msg));
         }
     }
 
+    /**
+     * Commits the given backup packets and deletes in one transaction, and, if successful, acknowledges them in order.
+     *
+     * @return {@code true} if the transaction has been committed; {@code false} if it's been aborted.
+     */
+    private boolean commit(List<Message> messages) {
+        final Map<Long, Object> ops = new LinkedHashMap<Long, Object>(); // line -> the last BACKUP (with its node), or DELETED
+        for (Message msg : messages) {
+            if (msg.getType() == Message.Type.BACKUP_PACKET) {
+                for (BACKUP backup : ((BACKUP_PACKET) msg).getBackups()) {
+                    ops.remove(backup.getLine()); // so that the order of insertion is the order of the last operation
+                    ops.put(backup.getLine(), new Write(msg.getNode(), backup));
+                }
+            } else {
+                ops.remove(((LineMessage) msg).getLine());
+                ops.put(((LineMessage) msg).getLine(), DELETED);
+            }
+        }
+
+        final OwnerDirectory directory = owners;
+        ownersLock.readLock().lock();
+        final Object txn = store.beginTransaction();
+        try {
+            monitor.addTransaction(ops.size());
+            for (Map.Entry<Long, Object> op : ops.entrySet()) {
+                if (op.getValue() == DELETED) {
+                    if (LOG.isDebugEnabled())
+                        LOG.debug("Line {} deleted.", hex(op.getKey()));
+                    store.delete(op.getKey(), txn);
+                } else {
+                    final Write write = (Write) op.getValue();
+                    if (LOG.isDebugEnabled())
+                        LOG.debug("Backing up version {} of line {} data: {}", new Object[]{write.backup.getVersion(), hex(write.backup.getLine()), write.backup.getData() != null ? "(" + write.backup.getData().remaining() + " bytes)" : "null"});
+                    writeOwnerIfDirty(directory, write.backup.getLine(), txn);
+                    store.write(write.backup.getLine(), write.node, write.backup.getVersion(), Persistables.toByteArray(write.backup.getData()), txn);
+                }
+            }
+            store.commit(txn);
+            if (directory != null) {
+                for (Map.Entry<Long, Object> op : ops.entrySet()) {
+                    if (op.getValue() == DELETED)
+                        directory.remove(op.getKey());
+                    else
+                        directory.putIfAbsent(op.getKey(), ((Write) op.getValue()).node);
+                }
+            }
+        } catch (Exception e) {
+            LOG.error("Exception during DB operation. Aborting transaction of " + messages.size() + " messages.", e);
+            store.abort(txn);
+            return false;
+        } finally {
+            ownersLock.readLock().unlock();
+        }
+        LOG.debug("Committed {} messages ({} lines)", messages.size(), ops.size());
+
+        for (Message msg : messages) {
+            if (msg.getType() == Message.Type.BACKUP_PACKET)
+                send(Message.BACKUP_PACKETACK((BACKUP_PACKET) msg));
+            else
+                send(Message.INVACK((LineMessage) msg));
+        }
+        return true;
+    }
+
     @Override
-    public void nodeRemoved(short node) {
+    public void nodeRemoved(final short node) {
         LOG.info("Node {} removed. Server now owns its lines.", node);
-        store.removeOwner(node);
+        if (workers != null) { // the node's messages received so far must be handled before we take over its lines
+            final Barrier barrier = new Barrier(workers.length, new Runnable() {
+                @Override
+                public void run() {
+                    handleNodeRemoved(node);
+                }
+            });
+            synchronized (workers) {
+                for (Worker worker : workers)
+                    worker.add(barrier);
+            }
+            try {
+                barrier.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else
+            handleNodeRemoved(node);
+    }
+
+    private void handleNodeRemoved(short node) {
+        if (groupCommit) {
+            synchronized (commitLock) { // the node's queued backups must be written before we take over its lines
+                try {
+                    while (!commitQueue.isEmpty())
+                        commitQueued(false);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                removeOwner(node);
+            }
+        } else
+            removeOwner(node);
+    }
+
+    private void removeOwner(short node) {
+        if (owners == null) {
+            store.removeOwner(node);
+            return;
+        }
+        ownersLock.writeLock().lock(); // so that a flush doesn't write the node as an owner after we've removed it
+        try {
+            flushOwners();
+            owners.replaceOwner(node, SERVER);
+            store.removeOwner(node);
+        } finally {
+            ownersLock.writeLock().unlock();
+        }
     }
 
     @Override
@@ -256,4 +767,86 @@ public class MainMemory extends ClusterService implements MessageReceiver, NodeC
     public void nodeSwitched(short id) {
     }
 
+    private static final Object DELETED = new Object();
+
+    private class Worker extends Thread {
+        private final BlockingQueue<Runnable> queue;
+
+        Worker(String name, int queueSize) {
+            super(name);
+            this.queue = new LinkedBlockingQueue<Runnable>(queueSize);
+            setDaemon(true);
+        }
+
+        void add(Runnable task) {
+            try {
+                queue.put(task); // blocks the comm if we fall behind
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (;;) {
+                    final Runnable task = queue.take();
+                    try {
+                        task.run();
+                    } catch (Exception e) {
+                        LOG.error("Exception while handling message.", e);
+                    }
+                }
+            } catch (InterruptedException e) {
+            }
+        }
+    }
+
+    /**
+     * A task queued in several workers, which is run by the last of them to get to it, while the others wait for it to complete. As
+     * barriers are queued in all their workers at once (while holding the workers' lock), they're in the same order in all queues, so that
+     * workers can't wait for one another in a cycle.
+     */
+    private static class Barrier implements Runnable {
+        private final AtomicInteger remaining;
+        private final Runnable task;
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        Barrier(int workers, Runnable task) {
+            this.remaining = new AtomicInteger(workers);
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            if (remaining.decrementAndGet() == 0) {
+                try {
+                    task.run();
+                } finally {
+                    done.countDown();
+                }
+            } else {
+                try {
+                    done.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        void await() throws InterruptedException {
+            done.await();
+        }
+    }
+
+    private static class Write {
+        final short node;
+        final BACKUP backup;
+
+        Write(short node, BACKUP backup) {
+            this.node = node;
+            this.backup = backup;
+        }
+    }
+
 }
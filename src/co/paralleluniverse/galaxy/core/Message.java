@@ -148,6 +148,10 @@ public class Message implements Streamable, Externalizable, Cloneable {
         return new MSG(nodes, line, data);
     }
 
+    public static MSG MSG(short node, long line, Streamable payload) {
+        return new MSG(node, line, payload);
+    }
+
     public static LineMessage MSGACK(MSG responseTo) {
         return new LineMessage(responseTo, Type.MSGACK);
     }
@@ -485,19 +489,42 @@ public class Message implements Streamable, Externalizable, Cloneable {
      * @return
      */
     public ByteBuffer[] toByteBuffers() {
-        final ByteBuffer buffer0 = ByteBuffer.allocate(size1() + 2 * getNumDataBuffers());
-        Persistables.persistable(streamableNoBuffers()).write(buffer0);
+        return toByteBuffers(ByteBuffer.allocate(headerSize()));
+    }
+
+    /**
+     * Same as {@link #toByteBuffers() toByteBuffers()}, only the first buffer is a slice of the given buffer rather than a new one. This lets
+     * the comm encode headers into buffers it manages itself. The given buffer must have at least {@link #headerSize() headerSize()} bytes
+     * remaining, and its position is advanced past the header.
+     *
+     * @param headers the buffer to write the header into.
+     * @return
+     */
+    public ByteBuffer[] toByteBuffers(ByteBuffer headers) {
+        final int start = headers.position();
+        Persistables.persistable(streamableNoBuffers()).write(headers);
         for (int i = 0; i < getNumDataBuffers(); i++)
-            buffer0.putShort(getDataBuffer(i) != null ? verifyShort(getDataBuffer(i).remaining()) : 0);
-        buffer0.flip();
+            headers.putShort(getDataBuffer(i) != null ? verifyShort(getDataBuffer(i).remaining()) : 0);
+
+        final ByteBuffer buffer0 = headers.duplicate();
+        buffer0.position(start);
+        buffer0.limit(headers.position());
 
         final ByteBuffer[] buffers = new ByteBuffer[1 + getNumDataBuffers()];
-        buffers[0] = buffer0;
+        buffers[0] = buffer0.slice();
         for (int i = 0; i < getNumDataBuffers(); i++)
             buffers[1 + i] = getDataBuffer(i);
         return buffers;
     }
 
+    /**
+     * The size of the first buffer returned by {@link #toByteBuffers() toByteBuffers}, i.e. the message header followed by the lengths of the data
+     * buffers.
+     */
+    public int headerSize() {
+        return size1() + 2 * getNumDataBuffers();
+    }
+
     /**
      * Note that you cannot use this method to read a buffer wrapping the array returned from toByteArray as the internal representation is different!
      *
@@ -1079,6 +1106,7 @@ public class Message implements Streamable, Externalizable, Cloneable {
     ///////////////////////////////////////////////////////////////////////
     public static class MSG extends LineMessage {
         private byte[] data;
+        private Streamable payload; // written directly when the message is serialized; data is only created if asked for
 
         MSG() {
             super(Type.MSG);
@@ -1099,25 +1127,43 @@ public class Message implements Streamable, Externalizable, Cloneable {
             this.data = data;
         }
 
+        private MSG(short node, long line, Streamable payload) {
+            super(node, Type.MSG, line);
+            this.payload = payload;
+        }
+
         public byte[] getData() {
+            if (data == null && payload != null)
+                data = Streamables.toByteArray(payload);
             return data;
         }
 
         public void setData(byte[] data) {
             this.data = data;
+            this.payload = null;
         }
 
         @Override
         public int sizeNoHeader() {
-            return super.sizeNoHeader() + 2 + (data != null ? data.length : 0);
+            return super.sizeNoHeader() + 2 + dataSize();
         }
 
         @Override
         public void writeNoHeader(DataOutput out) throws IOException {
             super.writeNoHeader(out);
-            out.writeShort(data != null ? (short) data.length : 0);
+            out.writeShort((short) dataSize());
             if (data != null)
                 out.write(data);
+            else if (payload != null)
+                payload.write(out);
+        }
+
+        private int dataSize() {
+            if (data != null)
+                return data.length;
+            if (payload != null)
+                return payload.size();
+            return 0;
         }
 
         @Override
@@ -1134,7 +1180,7 @@ public class Message implements Streamable, Externalizable, Cloneable {
 
         @Override
         public String partialToString() {
-            return super.partialToString() + ", data: " + (data == null ? "null" : "(" + data.length + " bytes)");
+            return super.partialToString() + ", data: " + (data == null && payload == null ? "null" : "(" + dataSize() + " bytes)");
         }
     }
 }
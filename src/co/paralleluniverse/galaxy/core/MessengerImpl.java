@@ -7,23 +7,66 @@ package co.paralleluniverse.galaxy.core;
 import co.paralleluniverse.common.concurrent.WithExecutor;
 import co.paralleluniverse.common.collection.ConcurrentMultimap;
 import co.paralleluniverse.common.concurrent.CurrentThreadExecutor;
+import co.paralleluniverse.common.io.MappedLog;
 import co.paralleluniverse.common.io.Streamable;
 import co.paralleluniverse.common.io.Streamables;
 import co.paralleluniverse.common.spring.Component;
+import co.paralleluniverse.galaxy.Cluster;
+import co.paralleluniverse.galaxy.DecodedMessageListener;
+import co.paralleluniverse.galaxy.DurableMessageListener;
+import co.paralleluniverse.galaxy.MessageDecoder;
 import co.paralleluniverse.galaxy.MessageListener;
+import co.paralleluniverse.galaxy.MessageOrdering;
 import co.paralleluniverse.galaxy.Messenger;
+import co.paralleluniverse.galaxy.RequestListener;
+import co.paralleluniverse.galaxy.Responder;
 import co.paralleluniverse.galaxy.TimeoutException;
+import co.paralleluniverse.galaxy.cluster.DistributedTree;
+import co.paralleluniverse.galaxy.cluster.LifecycleListener;
+import co.paralleluniverse.galaxy.cluster.NodeChangeListener;
 import co.paralleluniverse.galaxy.core.Message.LineMessage;
 import co.paralleluniverse.galaxy.core.Message.MSG;
 import co.paralleluniverse.galaxy.core.Op.Type;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.beans.ConstructorProperties;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
+import java.io.DataInputStream;
 import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import org.cliffc.high_scale_lib.NonBlockingHashMap;
 import org.cliffc.high_scale_lib.NonBlockingHashMapLong;
 import org.slf4j.Logger;
@@ -36,21 +79,64 @@ import org.slf4j.LoggerFactory;
 public class MessengerImpl extends Component implements Messenger {
 
     private static final Logger LOG = LoggerFactory.getLogger(MessengerImpl.class);
+    private static final int MAX_LANES = 1024;
+    static final String SUBSCRIPTIONS = "/co.paralleluniverse.galaxy/messenger/subscriptions";
+    private static final short[] NO_NODES = new short[0];
     private final Cache cache;
-    private final ConcurrentMultimap<Long, MessageListener, List<MessageListener>> longTopicListeners = new ConcurrentMultimap<Long, MessageListener, List<MessageListener>>(new NonBlockingHashMapLong<List<MessageListener>>(), (List<MessageListener>) Collections.EMPTY_LIST) {
+    // MessageListeners and DecodingListeners
+    private final ConcurrentMultimap<Long, Object, List<Object>> longTopicListeners = new ConcurrentMultimap<Long, Object, List<Object>>(new NonBlockingHashMapLong<List<Object>>(), (List<Object>) Collections.EMPTY_LIST) {
 
         @Override
-        protected List<MessageListener> allocateElement() {
-            return new CopyOnWriteArrayList<MessageListener>();
+        protected List<Object> allocateElement() {
+            return new CopyOnWriteArrayList<Object>();
         }
     };
-    private final ConcurrentMultimap<String, MessageListener, List<MessageListener>> stringTopicListeners = new ConcurrentMultimap<String, MessageListener, List<MessageListener>>(new NonBlockingHashMap<String, List<MessageListener>>(), (List<MessageListener>) Collections.EMPTY_LIST) {
+    private final ConcurrentMultimap<String, Object, List<Object>> stringTopicListeners = new ConcurrentMultimap<String, Object, List<Object>>(new NonBlockingHashMap<String, List<Object>>(), (List<Object>) Collections.EMPTY_LIST) {
 
         @Override
-        protected List<MessageListener> allocateElement() {
-            return new CopyOnWriteArrayList<MessageListener>();
+        protected List<Object> allocateElement() {
+            return new CopyOnWriteArrayList<Object>();
         }
     };
+    private final ConcurrentMultimap<Long, RequestListener, List<RequestListener>> longTopicRequestListeners = new ConcurrentMultimap<Long, RequestListener, List<RequestListener>>(new NonBlockingHashMapLong<List<RequestListener>>(), (List<RequestListener>) Collections.EMPTY_LIST) {
+
+        @Override
+        protected List<RequestListener> allocateElement() {
+            return new CopyOnWriteArrayList<RequestListener>();
+        }
+    };
+    private final ConcurrentMultimap<String, RequestListener, List<RequestListener>> stringTopicRequestListeners = new ConcurrentMultimap<String, RequestListener, List<RequestListener>>(new NonBlockingHashMap<String, List<RequestListener>>(), (List<RequestListener>) Collections.EMPTY_LIST) {
+
+        @Override
+        protected List<RequestListener> allocateElement() {
+            return new CopyOnWriteArrayList<RequestListener>();
+        }
+    };
+    private final NonBlockingHashMapLong<MessageOrdering> longTopicOrderings = new NonBlockingHashMapLong<MessageOrdering>();
+    private final NonBlockingHashMap<String, MessageOrdering> stringTopicOrderings = new NonBlockingHashMap<String, MessageOrdering>();
+    private final Integer[] lanes;
+    private final AtomicInteger nextUnorderedLane = new AtomicInteger();
+    private final NonBlockingHashMapLong<Call> pendingCalls = new NonBlockingHashMapLong<Call>();
+    private final AtomicLong nextCallId = new AtomicLong(1L);
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("messengerScheduler").setDaemon(true).build());
+    private long callTimeout = 10000;
+    private final NonBlockingHashMapLong<Boolean> longTopicsCoalesced = new NonBlockingHashMapLong<Boolean>();
+    private final NonBlockingHashMap<String, Boolean> stringTopicsCoalesced = new NonBlockingHashMap<String, Boolean>();
+    private final ConcurrentMap<Short, Coalescer> coalescers = new ConcurrentHashMap<Short, Coalescer>();
+    private long coalescingWindowMicros = 1000;
+    private int maxCoalescedSize = 1024;
+    // topics (Long or String) this node has subscribed to
+    private final Set<Object> mySubscriptions = new HashSet<Object>();
+    // each node's subscribed topics (Long or String), and the (sorted) subscribers of each topic
+    private final Map<Short, Set<Object>> nodeSubscriptions = new ConcurrentHashMap<Short, Set<Object>>();
+    private final NonBlockingHashMap<Object, short[]> topicSubscribers = new NonBlockingHashMap<Object, short[]>();
+    private int sendWindow = 100;
+    private final ConcurrentMap<FlowKey, Flow> flows = new ConcurrentHashMap<FlowKey, Flow>(); // sender side
+    private final ConcurrentMap<FlowKey, AtomicInteger> consumed = new ConcurrentHashMap<FlowKey, AtomicInteger>(); // receiver side
+    private File durableLogDirectory;
+    private int durableLogSegmentSize = 64 * 1024 * 1024;
+    private long durableLogSyncIntervalMillis = 1000;
+    private final ConcurrentMap<Object, DurableTopic> durableTopics = new ConcurrentHashMap<Object, DurableTopic>(); // by Long or String topic
     private final NodeOrderedThreadPoolExecutor executor;
 
     @ConstructorProperties({"name", "cache", "threadPool"})
@@ -60,6 +146,10 @@ public class MessengerImpl extends Component implements Messenger {
         if(executor == null)
             throw new RuntimeException("The executor must be set!");
         this.cache = cache;
+        // one lane per thread, which bounds the number of child executors used by ordered topics
+        this.lanes = new Integer[Math.max(1, Math.min(MAX_LANES, executor.getMaximumPoolSize()))];
+        for (int i = 0; i < lanes.length; i++)
+            lanes[i] = i;
         cache.setReceiver(new MessageReceiver() {
 
             @Override
@@ -72,6 +162,508 @@ public class MessengerImpl extends Component implements Messenger {
         });
     }
 
+    /**
+     * Sets the time, in milliseconds, to wait for a reply to a {@code call} before failing it with a {@link TimeoutException}.
+     */
+    public void setCallTimeout(long milliseconds) {
+        assertDuringInitialization();
+        this.callTimeout = milliseconds;
+    }
+
+    public long getCallTimeout() {
+        return callTimeout;
+    }
+
+    @Override
+    protected void init() throws Exception {
+        super.init();
+        final Cluster cluster = cache.getCluster();
+        final DistributedTree tree = cluster.getDistributedTree();
+        tree.create(SUBSCRIPTIONS, false);
+        tree.addListener(SUBSCRIPTIONS, new DistributedTree.ListenerAdapter() {
+            @Override
+            public void nodeChildAdded(String node, String child) {
+                readSubscriptions(child);
+            }
+
+            @Override
+            public void nodeChildUpdated(String node, String child) {
+                readSubscriptions(child);
+            }
+
+            @Override
+            public void nodeChildDeleted(String node, String child) {
+                final short id = Short.parseShort(child);
+                if (id != cache.getCluster().getMyNodeId())
+                    setSubscriptions(id, Collections.emptySet());
+            }
+        });
+        for (String child : tree.getChildren(SUBSCRIPTIONS))
+            readSubscriptions(child);
+
+        cluster.addLifecycleListener(new LifecycleListener() {
+            @Override
+            public void joinedCluster() {
+            }
+
+            @Override
+            public void online(boolean master) {
+                if (master)
+                    writeSubscriptions();
+            }
+
+            @Override
+            public void offline() {
+            }
+
+            @Override
+            public void switchToMaster() {
+                writeSubscriptions();
+            }
+        });
+
+        cluster.addNodeChangeListener(new NodeChangeListener() {
+            @Override
+            public void nodeAdded(short id) {
+            }
+
+            @Override
+            public void nodeSwitched(short id) {
+                // the new master knows nothing of the messages we've sent its predecessor
+                resetFlows(id, false);
+            }
+
+            @Override
+            public void nodeRemoved(short id) {
+                resetFlows(id, true);
+            }
+        });
+
+        if (durableLogSyncIntervalMillis > 0) {
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    for (DurableTopic topic : durableTopics.values())
+                        topic.log.force();
+                }
+            }, durableLogSyncIntervalMillis, durableLogSyncIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sets the directory in which the logs of durable topics are kept.
+     */
+    public void setDurableLogDirectory(String directory) {
+        assertDuringInitialization();
+        this.durableLogDirectory = new File(directory);
+    }
+
+    public String getDurableLogDirectory() {
+        return durableLogDirectory != null ? durableLogDirectory.getPath() : null;
+    }
+
+    /**
+     * Sets the size, in bytes, of each segment file of a durable topic's log.
+     */
+    public void setDurableLogSegmentSize(int size) {
+        assertDuringInitialization();
+        this.durableLogSegmentSize = size;
+    }
+
+    public int getDurableLogSegmentSize() {
+        return durableLogSegmentSize;
+    }
+
+    /**
+     * Sets the interval, in milliseconds, at which the logs of durable topics are written to the storage device. 0 leaves it to the OS.
+     */
+    public void setDurableLogSyncIntervalMillis(long millis) {
+        assertDuringInitialization();
+        this.durableLogSyncIntervalMillis = millis;
+    }
+
+    public long getDurableLogSyncIntervalMillis() {
+        return durableLogSyncIntervalMillis;
+    }
+
+    /**
+     * Sets the number of flow-controlled messages on a topic that may be sent to a node before the node has finished handling them.
+     */
+    public void setSendWindow(int sendWindow) {
+        assertDuringInitialization();
+        if (sendWindow < 1)
+            throw new IllegalArgumentException("sendWindow must be positive, but was " + sendWindow);
+        this.sendWindow = sendWindow;
+    }
+
+    public int getSendWindow() {
+        return sendWindow;
+    }
+
+    /**
+     * Sets the longest time, in microseconds, a message on a coalesced topic may wait for other messages to the same node to be sent
+     * together with.
+     */
+    public void setCoalescingWindowMicros(long micros) {
+        assertDuringInitialization();
+        this.coalescingWindowMicros = micros;
+    }
+
+    public long getCoalescingWindowMicros() {
+        return coalescingWindowMicros;
+    }
+
+    /**
+     * Sets the maximum size, in bytes, of the messages sent together by coalescing. Larger messages aren't coalesced.
+     */
+    public void setMaxCoalescedSize(int size) {
+        assertDuringInitialization();
+        if (size > Msg.MAX_BATCHED_SIZE)
+            throw new IllegalArgumentException("maxCoalescedSize must not exceed " + Msg.MAX_BATCHED_SIZE + ", but was " + size);
+        this.maxCoalescedSize = size;
+    }
+
+    public int getMaxCoalescedSize() {
+        return maxCoalescedSize;
+    }
+
+    @Override
+    protected void shutdown() {
+        super.shutdown();
+        for (Coalescer coalescer : coalescers.values())
+            coalescer.flush();
+        scheduler.shutdownNow();
+        for (DurableTopic topic : durableTopics.values())
+            topic.log.force();
+    }
+
+    @Override
+    public void setDurable(long topic, boolean value) {
+        setDurable((Object) topic, value);
+    }
+
+    @Override
+    public void setDurable(String topic, boolean value) {
+        if (topic == null)
+            throw new IllegalArgumentException("Topic must not be null");
+        setDurable((Object) topic, value);
+    }
+
+    private synchronized void setDurable(Object topic, boolean value) {
+        if (!value) {
+            final DurableTopic dt = durableTopics.remove(topic);
+            if (dt != null)
+                dt.log.force();
+            return;
+        }
+        if (durableTopics.containsKey(topic))
+            return;
+        if (durableLogDirectory == null)
+            throw new IllegalStateException("durableLogDirectory has not been set");
+        try {
+            durableTopics.put(topic, new DurableTopic(new File(durableLogDirectory, topicDirectoryName(topic)), durableLogSegmentSize));
+        } catch (IOException e) {
+            throw new RuntimeException("Could not open the log of topic " + topic, e);
+        }
+    }
+
+    private static String topicDirectoryName(Object topic) {
+        if (topic instanceof Long)
+            return "l" + topic;
+        try {
+            return "s" + URLEncoder.encode((String) topic, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Override
+    public void addMessageListener(long topic, DurableMessageListener listener) {
+        longTopicListeners.put(topic, listener);
+    }
+
+    @Override
+    public void addMessageListener(String topic, DurableMessageListener listener) {
+        stringTopicListeners.put(topic, listener);
+    }
+
+    @Override
+    public void removeMessageListener(long topic, DurableMessageListener listener) {
+        longTopicListeners.remove(topic, listener);
+    }
+
+    @Override
+    public void removeMessageListener(String topic, DurableMessageListener listener) {
+        stringTopicListeners.remove(topic, listener);
+    }
+
+    @Override
+    public void commit(long topic, long offset) {
+        getDurableTopic(topic).commit(offset);
+    }
+
+    @Override
+    public void commit(String topic, long offset) {
+        getDurableTopic(topic).commit(offset);
+    }
+
+    @Override
+    public long getCommittedOffset(long topic) {
+        return getDurableTopic(topic).getCommitted();
+    }
+
+    @Override
+    public long getCommittedOffset(String topic) {
+        return getDurableTopic(topic).getCommitted();
+    }
+
+    @Override
+    public void replay(long topic, DurableMessageListener listener) {
+        getDurableTopic(topic).replay(listener);
+    }
+
+    @Override
+    public void replay(String topic, DurableMessageListener listener) {
+        getDurableTopic(topic).replay(listener);
+    }
+
+    private DurableTopic getDurableTopic(Object topic) {
+        final DurableTopic dt = durableTopics.get(topic);
+        if (dt == null)
+            throw new IllegalStateException("Topic " + topic + " is not durable");
+        return dt;
+    }
+
+    @Override
+    public void setCoalescing(long topic, boolean value) {
+        if (value)
+            longTopicsCoalesced.put(topic, Boolean.TRUE);
+        else
+            longTopicsCoalesced.remove(topic);
+    }
+
+    @Override
+    public void setCoalescing(String topic, boolean value) {
+        if (value)
+            stringTopicsCoalesced.put(topic, Boolean.TRUE);
+        else
+            stringTopicsCoalesced.remove(topic);
+    }
+
+    @Override
+    public void subscribe(long topic) {
+        subscribe((Object) topic, true);
+    }
+
+    @Override
+    public void subscribe(String topic) {
+        if (topic == null)
+            throw new IllegalArgumentException("Topic must not be null");
+        subscribe((Object) topic, true);
+    }
+
+    @Override
+    public void unsubscribe(long topic) {
+        subscribe((Object) topic, false);
+    }
+
+    @Override
+    public void unsubscribe(String topic) {
+        subscribe((Object) topic, false);
+    }
+
+    private void subscribe(Object topic, boolean value) {
+        synchronized (mySubscriptions) {
+            if (!(value ? mySubscriptions.add(topic) : mySubscriptions.remove(topic)))
+                return;
+            setSubscriptions(cache.getCluster().getMyNodeId(), new HashSet<Object>(mySubscriptions));
+            writeSubscriptions();
+        }
+    }
+
+    @Override
+    public void publish(long topic, byte[] data) {
+        publishTo(topic, new Msg(topic, null, data));
+    }
+
+    @Override
+    public void publish(String topic, byte[] data) {
+        if (topic == null)
+            throw new IllegalArgumentException("Topic must not be null");
+        publishTo(topic, new Msg(-1, topic, data));
+    }
+
+    @Override
+    public void publish(long topic, Streamable data) {
+        publishTo(topic, new Msg(topic, null, data));
+    }
+
+    @Override
+    public void publish(String topic, Streamable data) {
+        if (topic == null)
+            throw new IllegalArgumentException("Topic must not be null");
+        publishTo(topic, new Msg(-1, topic, data));
+    }
+
+    private void publishTo(Object topic, Msg msg) {
+        final short[] subscribers = topicSubscribers.get(topic);
+        if (subscribers == null)
+            return;
+        if (LOG.isDebugEnabled())
+            LOG.debug("Publishing to nodes {}: {}", Arrays.toString(subscribers), msg);
+        for (short node : subscribers)
+            sendToNode(node, msg);
+    }
+
+    /**
+     * Returns the nodes currently subscribed to the given topic.
+     */
+    short[] getSubscribers(Object topic) {
+        final short[] subscribers = topicSubscribers.get(topic);
+        return subscribers != null ? subscribers : NO_NODES;
+    }
+
+    private void writeSubscriptions() {
+        final Cluster cluster = cache.getCluster();
+        if (!cluster.isMaster())
+            return; // only masters receive messages
+        final byte[] value;
+        synchronized (mySubscriptions) {
+            value = writeTopics(mySubscriptions);
+        }
+        final String path = SUBSCRIPTIONS + '/' + cluster.getMyNodeId();
+        final DistributedTree tree = cluster.getDistributedTree();
+        tree.create(path, true);
+        tree.set(path, value);
+    }
+
+    private void readSubscriptions(String child) {
+        final short node = Short.parseShort(child);
+        if (node == cache.getCluster().getMyNodeId())
+            return;
+        final byte[] value = cache.getCluster().getDistributedTree().get(SUBSCRIPTIONS + '/' + child);
+        setSubscriptions(node, value != null ? readTopics(value) : Collections.emptySet());
+    }
+
+    private synchronized void setSubscriptions(short node, Set<Object> topics) {
+        final Set<Object> old = nodeSubscriptions.get(node);
+        if (topics.isEmpty())
+            nodeSubscriptions.remove(node);
+        else
+            nodeSubscriptions.put(node, topics);
+        LOG.debug("Node {} subscribed to topics {}", node, topics);
+
+        if (old != null) {
+            for (Object topic : old) {
+                if (!topics.contains(topic)) {
+                    final short[] nodes = remove(topicSubscribers.get(topic), node);
+                    if (nodes.length == 0)
+                        topicSubscribers.remove(topic);
+                    else
+                        topicSubscribers.put(topic, nodes);
+                }
+            }
+        }
+        for (Object topic : topics) {
+            if (old == null || !old.contains(topic))
+                topicSubscribers.put(topic, add(topicSubscribers.get(topic), node));
+        }
+    }
+
+    private static short[] add(short[] nodes, short node) {
+        if (nodes == null)
+            return new short[]{node};
+        final int i = Arrays.binarySearch(nodes, node);
+        if (i >= 0)
+            return nodes;
+        final int pos = -(i + 1);
+        final short[] newNodes = new short[nodes.length + 1];
+        System.arraycopy(nodes, 0, newNodes, 0, pos);
+        newNodes[pos] = node;
+        System.arraycopy(nodes, pos, newNodes, pos + 1, nodes.length - pos);
+        return newNodes;
+    }
+
+    private static short[] remove(short[] nodes, short node) {
+        final int i = nodes != null ? Arrays.binarySearch(nodes, node) : -1;
+        if (i < 0)
+            return nodes != null ? nodes : NO_NODES;
+        final short[] newNodes = new short[nodes.length - 1];
+        System.arraycopy(nodes, 0, newNodes, 0, i);
+        System.arraycopy(nodes, i + 1, newNodes, i, nodes.length - i - 1);
+        return newNodes;
+    }
+
+    static byte[] writeTopics(Collection<Object> topics) {
+        try {
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(baos);
+            out.writeInt(topics.size());
+            for (Object topic : topics) {
+                if (topic instanceof String) {
+                    out.writeBoolean(true);
+                    out.writeUTF((String) topic);
+                } else {
+                    out.writeBoolean(false);
+                    out.writeLong((Long) topic);
+                }
+            }
+            out.flush();
+            return baos.toByteArray();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    static Set<Object> readTopics(byte[] value) {
+        try {
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(value));
+            final int n = in.readInt();
+            final Set<Object> topics = new HashSet<Object>(n);
+            for (int i = 0; i < n; i++)
+                topics.add(in.readBoolean() ? (Object) in.readUTF() : (Object) in.readLong());
+            return topics;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public void sendBatch(short node, long topic, List<byte[]> data) {
+        sendBatch(node, topic, null, data);
+    }
+
+    @Override
+    public void sendBatch(short node, String topic, List<byte[]> data) {
+        if (topic == null)
+            throw new IllegalArgumentException("Topic must not be null");
+        sendBatch(node, -1, topic, data);
+    }
+
+    private void sendBatch(short node, long lTopic, String sTopic, List<byte[]> data) {
+        final List<Msg> msgs = new ArrayList<Msg>(data.size());
+        for (byte[] d : data) {
+            final Msg msg = new Msg(lTopic, sTopic, d);
+            if (msg.size() > Msg.MAX_BATCHED_SIZE)
+                throw new IllegalArgumentException("Batched message size must not exceed " + Msg.MAX_BATCHED_SIZE + ", but was " + msg.size());
+            msgs.add(msg);
+        }
+        flushCoalesced(node); // keep the order with the messages already waiting to be coalesced
+        List<Msg> batch = new ArrayList<Msg>();
+        int size = 0;
+        for (Msg msg : msgs) {
+            if (!batch.isEmpty() && size + msg.size() > Msg.MAX_BATCHED_SIZE) {
+                send(node, Msg.batch(batch));
+                batch = new ArrayList<Msg>();
+                size = 0;
+            }
+            batch.add(msg);
+            size += msg.size();
+        }
+        if (!batch.isEmpty())
+            send(node, Msg.batch(batch));
+    }
+
     @Override
     public void addMessageListener(long topic, MessageListener listener) {
         longTopicListeners.put(topic, listener);
@@ -92,6 +684,143 @@ public class MessengerImpl extends Component implements Messenger {
         stringTopicListeners.remove(topic, listener);
     }
 
+    @Override
+    public void setMessageOrdering(long topic, MessageOrdering ordering) {
+        if (ordering != null)
+            longTopicOrderings.put(topic, ordering);
+        else
+            longTopicOrderings.remove(topic);
+    }
+
+    @Override
+    public void setMessageOrdering(String topic, MessageOrdering ordering) {
+        if (ordering != null)
+            stringTopicOrderings.put(topic, ordering);
+        else
+            stringTopicOrderings.remove(topic);
+    }
+
+    @Override
+    public <T> void addMessageListener(long topic, MessageDecoder<? extends T> decoder, DecodedMessageListener<T> listener) {
+        longTopicListeners.put(topic, new DecodingListener<T>(decoder, listener));
+    }
+
+    @Override
+    public void removeDecodedMessageListener(long topic, DecodedMessageListener<?> listener) {
+        longTopicListeners.remove(topic, DecodingListener.of(listener));
+    }
+
+    @Override
+    public <T> void addMessageListener(String topic, MessageDecoder<? extends T> decoder, DecodedMessageListener<T> listener) {
+        stringTopicListeners.put(topic, new DecodingListener<T>(decoder, listener));
+    }
+
+    @Override
+    public void removeDecodedMessageListener(String topic, DecodedMessageListener<?> listener) {
+        stringTopicListeners.remove(topic, DecodingListener.of(listener));
+    }
+
+    @Override
+    public void addRequestListener(long topic, RequestListener listener) {
+        longTopicRequestListeners.put(topic, listener);
+    }
+
+    @Override
+    public void removeRequestListener(long topic, RequestListener listener) {
+        longTopicRequestListeners.remove(topic, listener);
+    }
+
+    @Override
+    public void addRequestListener(String topic, RequestListener listener) {
+        stringTopicRequestListeners.put(topic, listener);
+    }
+
+    @Override
+    public void removeRequestListener(String topic, RequestListener listener) {
+        stringTopicRequestListeners.remove(topic, listener);
+    }
+
+    @Override
+    public boolean trySend(short node, long topic, byte[] data) {
+        return getFlow(node, topic).trySend(new Msg(topic, null, data));
+    }
+
+    @Override
+    public boolean trySend(short node, String topic, byte[] data) {
+        if (topic == null)
+            throw new IllegalArgumentException("Topic must not be null");
+        return getFlow(node, topic).trySend(new Msg(-1, topic, data));
+    }
+
+    @Override
+    public ListenableFuture<Void> sendAsync(short node, long topic, byte[] data) {
+        return getFlow(node, topic).send(new Msg(topic, null, data));
+    }
+
+    @Override
+    public ListenableFuture<Void> sendAsync(short node, String topic, byte[] data) {
+        if (topic == null)
+            throw new IllegalArgumentException("Topic must not be null");
+        return getFlow(node, topic).send(new Msg(-1, topic, data));
+    }
+
+    private Flow getFlow(short node, Object topic) {
+        final FlowKey key = new FlowKey(node, topic);
+        Flow flow = flows.get(key);
+        if (flow == null) {
+            flow = new Flow(node, topic, sendWindow);
+            final Flow old = flows.putIfAbsent(key, flow);
+            if (old != null)
+                flow = old;
+        }
+        return flow;
+    }
+
+    private void resetFlows(short node, boolean removed) {
+        for (Iterator<Map.Entry<FlowKey, Flow>> it = flows.entrySet().iterator(); it.hasNext();) {
+            final Map.Entry<FlowKey, Flow> entry = it.next();
+            if (entry.getKey().node == node) {
+                if (removed) {
+                    it.remove();
+                    entry.getValue().fail(new NodeNotFoundException(node));
+                } else
+                    entry.getValue().switchNode(entry.getKey());
+            }
+        }
+        for (Iterator<FlowKey> it = consumed.keySet().iterator(); it.hasNext();) {
+            if (it.next().node == node)
+                it.remove();
+        }
+    }
+
+    /**
+     * Called when a flow-controlled message has been handled, and returns its credit to the sender.
+     * Credits are accumulated while a grant is waiting to be sent, so a busy receiver sends few grants.
+     */
+    private void consumed(final short node, final Msg msg) {
+        final FlowKey key = new FlowKey(node, topicOf(msg));
+        AtomicInteger count = consumed.get(key);
+        if (count == null) {
+            count = new AtomicInteger();
+            final AtomicInteger old = consumed.putIfAbsent(key, count);
+            if (old != null)
+                count = old;
+        }
+        if (count.getAndIncrement() == 0) {
+            final AtomicInteger c = count;
+            scheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    sendToNode(node, Msg.credit(msg.getlTopic(), msg.getsTopic(), c.getAndSet(0)));
+                }
+            });
+        }
+    }
+
+    private static Object topicOf(Msg msg) {
+        return msg.hasSTopic() ? msg.getsTopic() : (Object) msg.getlTopic();
+    }
+
     @Override
     public void sendToNode(short node, long topic, byte[] data) {
         sendToNode(node, new Msg(topic, null, data));
@@ -140,70 +869,651 @@ public class MessengerImpl extends Component implements Messenger {
         sendToOwnerOf(ref, new Msg(-1, topic, data));
     }
 
+    @Override
+    public ListenableFuture<byte[]> call(short node, long topic, byte[] data) {
+        final Call call = newCall();
+        sendToNode(node, Msg.request(topic, null, call.id, data));
+        return call.future;
+    }
+
+    @Override
+    public ListenableFuture<byte[]> call(short node, String topic, byte[] data) {
+        if (topic == null)
+            throw new IllegalArgumentException("Topic must not be null");
+        final Call call = newCall();
+        sendToNode(node, Msg.request(-1, topic, call.id, data));
+        return call.future;
+    }
+
+    @Override
+    public ListenableFuture<byte[]> callOwnerOf(long ref, long topic, byte[] data) {
+        final Call call = newCall();
+        callOwnerOf(ref, Msg.request(topic, null, call.id, data), call);
+        return call.future;
+    }
+
+    @Override
+    public ListenableFuture<byte[]> callOwnerOf(long ref, String topic, byte[] data) {
+        if (topic == null)
+            throw new IllegalArgumentException("Topic must not be null");
+        final Call call = newCall();
+        callOwnerOf(ref, Msg.request(-1, topic, call.id, data), call);
+        return call.future;
+    }
+
+    private Call newCall() {
+        final Call call = new Call(nextCallId.getAndIncrement());
+        pendingCalls.put(call.id, call);
+        call.timeout = scheduler.schedule(new Runnable() {
+
+            @Override
+            public void run() {
+                final Call c = pendingCalls.remove(call.id);
+                if (c != null) {
+                    LOG.debug("Call {} has timed out", c.id);
+                    c.future.setException(new TimeoutException());
+                }
+            }
+        }, callTimeout, TimeUnit.MILLISECONDS);
+        call.future.addListener(new Runnable() {
+
+            @Override
+            public void run() {
+                // the future is done: replied to, timed out or cancelled
+                pendingCalls.remove(call.id);
+                call.timeout.cancel(false);
+            }
+        }, CurrentThreadExecutor.instance);
+        return call;
+    }
+
+    private void callOwnerOf(long line, Msg msg, final Call call) {
+        if (LOG.isDebugEnabled())
+            LOG.debug("Sending to owner of {}: {}", Long.toHexString(line), msg);
+        final LineMessage message = Message.MSG((short) -1, line, msg);
+        Futures.addCallback(cache.doOpAsync(Type.SEND, line, null, message, null), new FutureCallback<Object>() {
+
+            @Override
+            public void onSuccess(Object result) {
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                call.future.setException(t);
+            }
+        });
+    }
+
+    private void reply(short node, long callId, byte[] data) {
+        sendToNode(node, Msg.reply(callId, data));
+    }
+
     private void sendToNode(short node, Msg msg) {
+        if (msg.size() > Msg.MAX_DATA_SIZE)
+            throw new IllegalArgumentException("Message size must not exceed " + Msg.MAX_DATA_SIZE + ", but was " + msg.size());
+        if (msg.isPlain() && msg.size() <= maxCoalescedSize && isCoalesced(msg)) {
+            getCoalescer(node).add(msg);
+            return;
+        }
+        flushCoalesced(node); // keep the order with the messages already waiting to be coalesced
+        send(node, msg);
+    }
+
+    private void send(short node, Msg msg) {
         if (LOG.isDebugEnabled())
             LOG.debug("Sending to node {}: {}", node, msg);
-        cache.send(Message.MSG(node, -1, Streamables.toByteArray(msg)));
+        cache.send(Message.MSG(node, -1, msg));
+    }
+
+    private boolean isCoalesced(Msg msg) {
+        return msg.hasSTopic() ? stringTopicsCoalesced.containsKey(msg.getsTopic()) : longTopicsCoalesced.containsKey(msg.getlTopic());
+    }
+
+    private Coalescer getCoalescer(short node) {
+        Coalescer coalescer = coalescers.get(node);
+        if (coalescer == null) {
+            coalescer = new Coalescer(node);
+            final Coalescer old = coalescers.putIfAbsent(node, coalescer);
+            if (old != null)
+                coalescer = old;
+        }
+        return coalescer;
+    }
+
+    private void flushCoalesced(short node) {
+        final Coalescer coalescer = coalescers.get(node);
+        if (coalescer != null)
+            coalescer.flush();
     }
 
     private void sendToOwnerOf(long line, Msg msg) throws TimeoutException {
         if (LOG.isDebugEnabled())
             LOG.debug("Sending to owner of {}: {}", Long.toHexString(line), msg);
-        final LineMessage message = Message.MSG((short) -1, line, Streamables.toByteArray(msg));
+        final LineMessage message = Message.MSG((short) -1, line, msg);
         cache.doOpAsync(Type.SEND, line, null, message, null);
     }
 
     private void receive(MSG message) {
-        final Msg msg = new Msg();
-        Streamables.fromByteArray(msg, message.getData());
+        final byte[] array = message.getData();
+        final Msg msg = Msg.parse(array, 0, array.length);
         LOG.debug("Received: {}", msg);
-        final Collection<MessageListener> ls = msg.hasSTopic() ? stringTopicListeners.get(msg.getsTopic()) : longTopicListeners.get(msg.getlTopic());
+        if (msg.isBatch()) {
+            for (Msg m : msg.parseBatch())
+                receive(message.getNode(), m);
+        } else
+            receive(message.getNode(), msg);
+    }
+
+    private void receive(short node, Msg msg) {
+        if (msg.isReply()) {
+            final Call call = pendingCalls.remove(msg.getCallId());
+            if (call != null)
+                call.future.set(msg.getData());
+            else
+                LOG.debug("No pending call for reply {} (timed out or cancelled)", msg);
+            return;
+        }
+        if (msg.isCredit()) {
+            final Flow flow = flows.get(new FlowKey(node, topicOf(msg)));
+            if (flow != null)
+                flow.grant(msg.getCredits());
+            return;
+        }
+        if (msg.isPlain()) {
+            final DurableTopic dt = durableTopics.get(topicOf(msg));
+            if (dt != null)
+                dt.append(node, msg); // before the message is acked
+        }
+        final Collection<?> ls;
+        if (msg.isRequest())
+            ls = msg.hasSTopic() ? stringTopicRequestListeners.get(msg.getsTopic()) : longTopicRequestListeners.get(msg.getlTopic());
+        else
+            ls = msg.hasSTopic() ? stringTopicListeners.get(msg.getsTopic()) : longTopicListeners.get(msg.getlTopic());
         if (ls != null)
-            notifyListeners(ls, message.getNode(), msg);
+            notifyListeners(ls, node, msg);
+        else if (msg.isFlowControlled())
+            consumed(node, msg);
     }
 
-    private void notifyListeners(final Collection<MessageListener> listeners, final short node, final Msg msg) {
-        executor.execute(new NodeTask() {
+    private void notifyListeners(final Collection<?> listeners, final short node, final Msg msg) {
+        final Responder responder = msg.isRequest() ? new CallResponder(node, msg.getCallId()) : null;
+        final MessageOrdering ordering = msg.hasSTopic() ? stringTopicOrderings.get(msg.getsTopic()) : longTopicOrderings.get(msg.getlTopic());
+        // messages on topics with no ordering are handled in order per sending node, each node by its own child executor
+        final Object key = ordering != null ? lanes[lane(ordering, node, msg)] : (Object) Short.valueOf(node);
+
+        executor.execute(new KeyTask() {
 
             @Override
-            public short getNode() {
-                return node;
+            public Object getKey() {
+                return key;
             }
 
             @Override
             public void run() {
-                synchronized (listeners) { // make topic messages serial
-                    for (final MessageListener listener : listeners) {
-                        if (!(listener instanceof WithExecutor)) {
-                            try {
-                                listener.messageReceived(node, msg.getData());
-                            } catch (Exception e) {
-                                LOG.error("Listener threw an exception.", e);
-                            }
-                        } else {
-                            ((WithExecutor) listener).getExecutor().execute(new Runnable() {
-
-                                @Override
-                                public void run() {
-                                    try {
-                                        listener.messageReceived(node, msg.getData());
-                                    } catch (Exception e) {
-                                        LOG.error("Listener threw an exception.", e);
-                                    }
-                                }
-                            });
-                        }
+                if (ordering == null) {
+                    synchronized (listeners) { // make topic messages serial
+                        notifyListeners(listeners, node, msg, responder);
                     }
-                }
+                } else
+                    notifyListeners(listeners, node, msg, responder);
+                if (msg.isFlowControlled())
+                    consumed(node, msg);
             }
         });
     }
 
-    private static class Msg implements Streamable {
+    /**
+     * Messages that must be ordered relative to one another are mapped to the same lane, and each lane's messages are handled
+     * one at a time, in order.
+     */
+    private int lane(MessageOrdering ordering, short node, Msg msg) {
+        final int topicHash = msg.hasSTopic() ? msg.getsTopic().hashCode() : (int) (msg.getlTopic() ^ (msg.getlTopic() >>> 32));
+        final int hash;
+        switch (ordering.getType()) {
+            case SENDER:
+                hash = 31 * topicHash + node;
+                break;
+            case TOPIC:
+                hash = topicHash;
+                break;
+            case KEY:
+                Object key;
+                try {
+                    key = ordering.getKeyExtractor().getKey(node, msg.getBuffer());
+                } catch (Exception e) {
+                    LOG.error("Key extractor threw an exception.", e);
+                    key = null;
+                }
+                hash = 31 * topicHash + (key != null ? key.hashCode() : 0);
+                break;
+            case NONE:
+                return (nextUnorderedLane.getAndIncrement() & Integer.MAX_VALUE) % lanes.length;
+            default:
+                throw new AssertionError();
+        }
+        return ((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % lanes.length;
+    }
+
+    private static void notifyListeners(Collection<?> listeners, final short node, Msg msg, final Responder responder) {
+        MessageDecoder<?> decoder = null;
+        Object decoded = null;
+        for (final Object listener : listeners) {
+            final Object message;
+            final Object target;
+            if (listener instanceof DecodingListener) {
+                final DecodingListener<?> dl = (DecodingListener<?>) listener;
+                if (dl.decoder != decoder) { // listeners registered with the same decoder share the decoded message
+                    try {
+                        decoded = dl.decoder.decode(msg.getBuffer());
+                        decoder = dl.decoder;
+                    } catch (Exception e) {
+                        LOG.error("Decoder threw an exception.", e);
+                        decoder = null;
+                        continue;
+                    }
+                }
+                message = decoded;
+                target = dl.listener;
+            } else {
+                message = msg.getData();
+                target = listener;
+            }
+
+            final long offset = msg.getLogOffset();
+            if (!(target instanceof WithExecutor))
+                notifyListener(listener, node, offset, message, responder);
+            else {
+                ((WithExecutor) target).getExecutor().execute(new Runnable() {
 
+                    @Override
+                    public void run() {
+                        notifyListener(listener, node, offset, message, responder);
+                    }
+                });
+            }
+        }
+    }
+
+    private static void notifyListener(Object listener, short node, long offset, Object message, Responder responder) {
+        try {
+            if (listener instanceof DecodingListener)
+                ((DecodingListener<?>) listener).messageReceived(node, message);
+            else if (listener instanceof DurableMessageListener)
+                ((DurableMessageListener) listener).messageReceived(node, offset, (byte[]) message);
+            else if (responder != null)
+                ((RequestListener) listener).requestReceived(node, (byte[]) message, responder);
+            else
+                ((MessageListener) listener).messageReceived(node, (byte[]) message);
+        } catch (Exception e) {
+            LOG.error("Listener threw an exception.", e);
+        }
+    }
+
+    private static class DecodingListener<T> {
+        final MessageDecoder<? extends T> decoder;
+        final DecodedMessageListener<T> listener;
+
+        DecodingListener(MessageDecoder<? extends T> decoder, DecodedMessageListener<T> listener) {
+            this.decoder = decoder;
+            this.listener = listener;
+        }
+
+        /**
+         * Returns a DecodingListener equal to the one the given listener has been registered with, for removing it.
+         */
+        static <T> DecodingListener<T> of(DecodedMessageListener<T> listener) {
+            return new DecodingListener<T>(null, listener);
+        }
+
+        @SuppressWarnings("unchecked")
+        void messageReceived(short node, Object message) {
+            listener.messageReceived(node, (T) message); // decoded by our decoder (or by the same decoder, registered with another listener)
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof DecodingListener && ((DecodingListener<?>) obj).listener.equals(listener);
+        }
+
+        @Override
+        public int hashCode() {
+            return listener.hashCode();
+        }
+    }
+
+    private interface KeyTask extends Runnable, KeyAttached {
+    }
+
+    /**
+     * The log of a durable topic, and the offset of the last message its listeners have committed.
+     * Each record in the log is the sending node followed by the message.
+     */
+    private static class DurableTopic {
+        final MappedLog log;
+        final MappedByteBuffer committedFile;
+        long committed;
+
+        DurableTopic(File directory, int segmentSize) throws IOException {
+            this.log = new MappedLog(directory, segmentSize);
+            try (RandomAccessFile raf = new RandomAccessFile(new File(directory, "committed"), "rw")) {
+                final boolean exists = raf.length() >= 8;
+                this.committedFile = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 8);
+                this.committed = exists ? committedFile.getLong(0) : log.getStartOffset() - 1;
+            }
+        }
+
+        void append(short node, Msg msg) {
+            try {
+                final ByteBuffer header = ByteBuffer.allocate(2);
+                header.putShort(0, node);
+                msg.setLogOffset(log.append(header, msg.getBuffer()));
+            } catch (IOException e) {
+                throw new RuntimeException("Could not append message to log " + log, e);
+            }
+        }
+
+        synchronized long getCommitted() {
+            return committed;
+        }
+
+        synchronized void commit(long offset) {
+            if (offset <= committed)
+                return;
+            committed = offset;
+            committedFile.putLong(0, offset);
+            try {
+                log.deleteBefore(offset + 1);
+            } catch (IOException e) {
+                LOG.warn("Could not delete old segments of log " + log, e);
+            }
+        }
+
+        void replay(DurableMessageListener listener) {
+            final long end = log.getEndOffset();
+            for (long offset = Math.max(getCommitted() + 1, log.getStartOffset()); offset < end; offset++) {
+                final ByteBuffer record = log.read(offset);
+                final short node = record.getShort();
+                final byte[] message = new byte[record.remaining()];
+                record.get(message);
+                listener.messageReceived(node, offset, message);
+            }
+        }
+    }
+
+    private static final class FlowKey {
+        final short node;
+        final Object topic; // Long or String
+
+        FlowKey(short node, Object topic) {
+            this.node = node;
+            this.topic = topic;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this)
+                return true;
+            if (!(obj instanceof FlowKey))
+                return false;
+            final FlowKey other = (FlowKey) obj;
+            return node == other.node && topic.equals(other.topic);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * node + topic.hashCode();
+        }
+    }
+
+    /**
+     * The sending side of the flow control of a topic to a node. Each message takes up a credit, which the receiver returns when it has
+     * handled the message; when there are no credits left, messages wait until there are.
+     */
+    private class Flow {
+        private final short node;
+        private final Object topic;
+        private int credits;
+        private boolean switched; // replaced by a new flow to the node's new master
+        private final ArrayDeque<Msg> pending = new ArrayDeque<Msg>();
+        private final ArrayDeque<SettableFuture<Void>> pendingFutures = new ArrayDeque<SettableFuture<Void>>();
+
+        Flow(short node, Object topic, int credits) {
+            this.node = node;
+            this.topic = topic;
+            this.credits = credits;
+        }
+
+        boolean trySend(Msg msg) {
+            synchronized (this) {
+                if (!switched)
+                    return sendIfCredit(msg);
+            }
+            return getFlow(node, topic).trySend(msg);
+        }
+
+        ListenableFuture<Void> send(Msg msg) {
+            final SettableFuture<Void> future = SettableFuture.create();
+            synchronized (this) {
+                if (switched)
+                    return getFlow(node, topic).send(msg);
+                if (!sendIfCredit(msg)) {
+                    pending.add(msg);
+                    pendingFutures.add(future);
+                    return future;
+                }
+            }
+            future.set(null);
+            return future;
+        }
+
+        private boolean sendIfCredit(Msg msg) {
+            assert Thread.holdsLock(this);
+            if (!pending.isEmpty() || credits == 0)
+                return false;
+            credits--;
+            msg.setFlowControlled();
+            sendToNode(node, msg);
+            return true;
+        }
+
+        void grant(int n) {
+            final List<SettableFuture<Void>> sent;
+            synchronized (this) {
+                credits += n;
+                sent = sendPending();
+            }
+            for (SettableFuture<Void> future : sent)
+                future.set(null);
+        }
+
+        private List<SettableFuture<Void>> sendPending() {
+            assert Thread.holdsLock(this);
+            final List<SettableFuture<Void>> sent = new ArrayList<SettableFuture<Void>>();
+            while (credits > 0 && !pending.isEmpty()) {
+                credits--;
+                final Msg msg = pending.poll();
+                msg.setFlowControlled();
+                sendToNode(node, msg);
+                sent.add(pendingFutures.poll());
+            }
+            return sent;
+        }
+
+        /**
+         * Replaces this flow with a new one to the node's new master, which knows nothing of the credits this flow has used.
+         * Waiting messages are moved, in order, to the new flow, so that they count against its window rather than being sent on top of it.
+         * Senders still holding this flow are redirected to the new one.
+         */
+        void switchNode(FlowKey key) {
+            final List<SettableFuture<Void>> sent;
+            synchronized (this) {
+                if (switched)
+                    return;
+                final Flow flow = new Flow(node, topic, sendWindow);
+                flow.pending.addAll(pending);
+                flow.pendingFutures.addAll(pendingFutures);
+                pending.clear();
+                pendingFutures.clear();
+                synchronized (flow) {
+                    sent = flow.sendPending();
+                }
+                // while we hold the lock no message can be sent on this flow, so none overtakes the ones we've moved
+                switched = true;
+                flows.replace(key, this, flow);
+            }
+            for (SettableFuture<Void> future : sent)
+                future.set(null);
+        }
+
+        void fail(Throwable t) {
+            final List<SettableFuture<Void>> failed;
+            synchronized (this) {
+                failed = new ArrayList<SettableFuture<Void>>(pendingFutures);
+                pending.clear();
+                pendingFutures.clear();
+            }
+            for (SettableFuture<Void> future : failed)
+                future.setException(t);
+        }
+    }
+
+    /**
+     * Collects small messages to a node, and sends them together in one batch message.
+     */
+    private class Coalescer implements Runnable {
+        private final short node;
+        private List<Msg> pending = new ArrayList<Msg>();
+        private int size;
+        private ScheduledFuture<?> timer;
+
+        Coalescer(short node) {
+            this.node = node;
+        }
+
+        synchronized void add(Msg msg) {
+            assert msg.size() <= maxCoalescedSize && maxCoalescedSize <= Msg.MAX_BATCHED_SIZE;
+            if (size + msg.size() > maxCoalescedSize)
+                flush();
+            pending.add(msg);
+            size += msg.size();
+            if (timer == null)
+                timer = scheduler.schedule(this, coalescingWindowMicros, TimeUnit.MICROSECONDS);
+        }
+
+        synchronized void flush() {
+            if (timer != null) {
+                timer.cancel(false);
+                timer = null;
+            }
+            if (pending.isEmpty())
+                return;
+            final List<Msg> batch = pending;
+            pending = new ArrayList<Msg>();
+            size = 0;
+            send(node, batch.size() == 1 ? batch.get(0) : Msg.batch(batch));
+        }
+
+        @Override
+        public void run() {
+            flush();
+        }
+    }
+
+    private static class Call {
+        final long id;
+        final SettableFuture<byte[]> future = SettableFuture.create();
+        ScheduledFuture<?> timeout;
+
+        Call(long id) {
+            this.id = id;
+        }
+    }
+
+    private class CallResponder implements Responder {
+        private final short node;
+        private final long callId;
+        private final AtomicBoolean replied = new AtomicBoolean();
+
+        CallResponder(short node, long callId) {
+            this.node = node;
+            this.callId = callId;
+        }
+
+        @Override
+        public void reply(byte[] data) {
+            if (!replied.compareAndSet(false, true))
+                throw new IllegalStateException("Request " + callId + " from node " + node + " has already been replied to");
+            MessengerImpl.this.reply(node, callId, data);
+        }
+    }
+
+    private static class Msg implements Streamable {
+        private static final byte FLAG_STRING_TOPIC = 1; // compatible with the boolean that used to be written
+        private static final byte FLAG_REQUEST = 1 << 1;
+        private static final byte FLAG_REPLY = 1 << 2;
+        private static final byte FLAG_BATCH = 1 << 3; // the data is a sequence of messages
+        private static final byte FLAG_CREDIT = 1 << 4; // the data is the number of credits returned to the sender
+        private static final byte FLAG_FLOW_CONTROLLED = 1 << 5; // the receiver must return the message's credit
+        private static final byte KINDS = FLAG_REQUEST | FLAG_REPLY | FLAG_BATCH | FLAG_CREDIT;
+        static final int MAX_DATA_SIZE = 0xffff; // the size of a message, including its header, is written as a short
+        private static final int BATCH_HEADER_SIZE = 1 + 8 + 2; // flags, long topic and length
+        static final int MAX_BATCHED_SIZE = MAX_DATA_SIZE - BATCH_HEADER_SIZE; // the total size of the messages in a batch
         private long lTopic = -1;
         private String sTopic = null;
-        private byte[] data;
+        private byte kind; // 0, FLAG_REQUEST, FLAG_REPLY, FLAG_BATCH or FLAG_CREDIT
+        private boolean flowControlled;
+        private long logOffset = -1; // the message's offset in its durable topic's log
+        private long callId;
+        private Streamable payload; // when sending a Streamable, it is written directly into the message
+        private byte[] array; // the data is array[offset, offset + length)
+        private int offset;
+        private int length;
+        private byte[] data; // a copy of the data, if it's not the whole array
+
+        static Msg request(long lTopic, String sTopic, long callId, byte[] data) {
+            final Msg msg = new Msg(lTopic, sTopic, data);
+            msg.kind = FLAG_REQUEST;
+            msg.callId = callId;
+            return msg;
+        }
+
+        static Msg reply(long callId, byte[] data) {
+            final Msg msg = new Msg(-1, null, data);
+            msg.kind = FLAG_REPLY;
+            msg.callId = callId;
+            return msg;
+        }
+
+        static Msg credit(long lTopic, String sTopic, int credits) {
+            final Msg msg = new Msg(lTopic, sTopic, new byte[]{(byte) (credits >>> 24), (byte) (credits >>> 16), (byte) (credits >>> 8), (byte) credits});
+            msg.kind = FLAG_CREDIT;
+            return msg;
+        }
+
+        static Msg batch(final List<Msg> messages) {
+            final Msg msg = new Msg(-1, null, new Streamable() {
+                @Override
+                public int size() {
+                    int size = 0;
+                    for (Msg m : messages)
+                        size += m.size();
+                    return size;
+                }
+
+                @Override
+                public void write(DataOutput out) throws IOException {
+                    for (Msg m : messages)
+                        m.write(out);
+                }
+
+                @Override
+                public void read(DataInput in) throws IOException {
+                    throw new UnsupportedOperationException();
+                }
+            });
+            msg.kind = FLAG_BATCH;
+            return msg;
+        }
 
         public Msg() {
         }
@@ -229,17 +1539,105 @@ public class MessengerImpl extends Component implements Messenger {
         private Msg(long lTopic, String sTopic, byte[] data) {
             this.lTopic = lTopic;
             this.sTopic = sTopic;
-            this.data = data;
+            this.array = data;
+            this.offset = 0;
+            this.length = data.length;
         }
 
         private Msg(long lTopic, String sTopic, Streamable data) {
-            this(lTopic, sTopic, Streamables.toByteArray(data));
+            this.lTopic = lTopic;
+            this.sTopic = sTopic;
+            this.payload = data;
+            this.length = data.size();
+        }
+
+        /**
+         * Parses a message in {@code array[start, end)} without copying its data out of the array.
+         */
+        static Msg parse(byte[] array, int start, int end) {
+            try {
+                final ByteArrayInputStream bais = new ByteArrayInputStream(array, start, end - start);
+                final Msg msg = new Msg();
+                msg.readHeader(new DataInputStream(bais));
+                msg.array = array;
+                msg.offset = end - bais.available();
+                if (msg.offset + msg.length > end)
+                    throw new IOException("Message data length " + msg.length + " exceeds the message size " + (end - start));
+                return msg;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        /**
+         * Parses the messages contained in a batch message.
+         */
+        List<Msg> parseBatch() {
+            assert isBatch();
+            final List<Msg> messages = new ArrayList<Msg>();
+            final int end = offset + length;
+            int pos = offset;
+            while (pos < end) {
+                final Msg m = parse(array, pos, end);
+                messages.add(m);
+                pos = m.offset + m.length;
+            }
+            return messages;
         }
 
         public boolean hasSTopic() {
             return sTopic != null;
         }
 
+        public boolean isRequest() {
+            return kind == FLAG_REQUEST;
+        }
+
+        public boolean isReply() {
+            return kind == FLAG_REPLY;
+        }
+
+        public boolean isBatch() {
+            return kind == FLAG_BATCH;
+        }
+
+        public boolean isPlain() {
+            return kind == 0;
+        }
+
+        public boolean isCredit() {
+            return kind == FLAG_CREDIT;
+        }
+
+        public int getCredits() {
+            assert isCredit();
+            return ByteBuffer.wrap(array, offset, length).getInt();
+        }
+
+        public boolean isFlowControlled() {
+            return flowControlled;
+        }
+
+        void setFlowControlled() {
+            this.flowControlled = true;
+        }
+
+        public long getLogOffset() {
+            return logOffset;
+        }
+
+        void setLogOffset(long offset) {
+            this.logOffset = offset;
+        }
+
+        public long getCallId() {
+            return callId;
+        }
+
+        private boolean hasCallId() {
+            return kind == FLAG_REQUEST || kind == FLAG_REPLY;
+        }
+
         public long getlTopic() {
             return lTopic;
         }
@@ -249,55 +1647,87 @@ public class MessengerImpl extends Component implements Messenger {
         }
 
         public byte[] getData() {
+            if (payload != null)
+                return Streamables.toByteArray(payload);
+            if (offset == 0 && length == array.length)
+                return array;
+            if (data == null)
+                data = Arrays.copyOfRange(array, offset, offset + length);
             return data;
         }
 
+        public ByteBuffer getBuffer() {
+            if (payload != null)
+                return ByteBuffer.wrap(getData()).asReadOnlyBuffer();
+            return ByteBuffer.wrap(array, offset, length).slice().asReadOnlyBuffer();
+        }
+
         @Override
         public int size() {
-            return 1 + (lTopic != -1 ? 8 : Streamables.calcUtfLength(sTopic) + 2 + data.length);
+            return 1 + (hasSTopic() ? Streamables.calcUtfLength(sTopic) + 2 : 8) + (hasCallId() ? 8 : 0) + 2 + length;
         }
 
         @Override
         public void write(DataOutput out) throws IOException {
             final boolean hasSTopic = hasSTopic();
-            out.writeBoolean(hasSTopic);
+            out.writeByte((hasSTopic ? FLAG_STRING_TOPIC : 0) | kind | (flowControlled ? FLAG_FLOW_CONTROLLED : 0));
             if (hasSTopic)
                 out.writeUTF(sTopic);
             else
                 out.writeLong(lTopic);
-            out.writeShort((short) data.length);
-            out.write(data);
+            if (hasCallId())
+                out.writeLong(callId);
+            out.writeShort((short) length);
+            if (payload != null)
+                payload.write(out);
+            else
+                out.write(array, offset, length);
         }
 
         @Override
         public void read(DataInput in) throws IOException {
-            final boolean hasSTopic = in.readBoolean();
-            if (hasSTopic) {
+            readHeader(in);
+            this.array = new byte[length];
+            this.offset = 0;
+            this.data = null;
+            in.readFully(array);
+        }
+
+        private void readHeader(DataInput in) throws IOException {
+            final byte flags = in.readByte();
+            if ((flags & FLAG_STRING_TOPIC) != 0) {
                 lTopic = -1;
                 sTopic = in.readUTF();
             } else {
                 lTopic = in.readLong();
                 sTopic = null;
             }
-            final int dataLength = in.readUnsignedShort();
-            data = new byte[dataLength];
-            in.readFully(data);
+            kind = (byte) (flags & KINDS);
+            flowControlled = (flags & FLAG_FLOW_CONTROLLED) != 0;
+            callId = hasCallId() ? in.readLong() : 0;
+            length = in.readUnsignedShort();
+            payload = null;
         }
 
         @Override
         public String toString() {
             final StringBuilder sb = new StringBuilder();
             sb.append("Msg[");
+            if (isRequest())
+                sb.append("Request: ").append(callId).append(' ');
+            else if (isReply())
+                sb.append("Reply: ").append(callId).append(' ');
+            else if (isBatch())
+                sb.append("Batch ");
+            else if (isCredit())
+                sb.append("Credit: ").append(getCredits()).append(' ');
             sb.append("Topic: ");
             if (sTopic != null)
                 sb.append('"').append(sTopic).append('"');
             else
                 sb.append(lTopic);
             sb.append(" data: ");
-            if (data == null)
-                sb.append("null");
-            else
-                sb.append(("(")).append(data.length).append(" bytes)");
+            sb.append(("(")).append(length).append(" bytes)");
             sb.append("]");
             return sb.toString();
         }
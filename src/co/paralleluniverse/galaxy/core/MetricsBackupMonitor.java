@@ -20,6 +20,8 @@
 package co.paralleluniverse.galaxy.core;
 
 import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Histogram;
 import com.yammer.metrics.core.Meter;
 import com.yammer.metrics.core.Timer;
 import java.util.concurrent.TimeUnit;
@@ -34,6 +36,24 @@ public class MetricsBackupMonitor implements BackupMonitor {
     private final Meter backupPackets = Metrics.newMeter(Cache.class, "backupPacketsSent", "backupPacket", TimeUnit.SECONDS);
     private final Timer slavesAckTime = Metrics.newTimer(Cache.class, "slavesAckTime", "slavesAck", TimeUnit.MICROSECONDS, TimeUnit.SECONDS);
     private final Timer serverAckTime = Metrics.newTimer(Cache.class, "serverAckTime", "serverAck", TimeUnit.MICROSECONDS, TimeUnit.SECONDS);
+    private final Histogram inFlightPackets = Metrics.newHistogram(Cache.class, "backupPacketsInFlight", true);
+    private volatile long replicationRemaining;
+    private volatile long replicationEtaMillis;
+
+    public MetricsBackupMonitor() {
+        Metrics.newGauge(Cache.class, "replicationRemaining", new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return replicationRemaining;
+            }
+        });
+        Metrics.newGauge(Cache.class, "replicationEtaMillis", new Gauge<Long>() {
+            @Override
+            public Long value() {
+                return replicationEtaMillis;
+            }
+        });
+    }
 
     @Override
     public void addReplicationBackup(int num) {
@@ -59,4 +79,15 @@ public class MetricsBackupMonitor implements BackupMonitor {
     public void addServerAckTime(long nanos) {
         serverAckTime.update(nanos, TimeUnit.NANOSECONDS);
     }
+
+    @Override
+    public void setInFlightPackets(int num) {
+        inFlightPackets.update(num);
+    }
+
+    @Override
+    public void setReplicationProgress(long remaining, long etaMillis) {
+        this.replicationRemaining = remaining;
+        this.replicationEtaMillis = etaMillis;
+    }
 }
@@ -28,7 +28,8 @@ import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 /**
- * Runs only Runnables that implement NodeAttached (you can extend NodeTask).
+ * Runs only Runnables that implement NodeAttached (you can extend NodeTask) or KeyAttached.
+ * Tasks with the same node (or key) are run in order.
  * @author pron
  */
 public class NodeOrderedThreadPoolExecutor extends OrderedThreadPoolExecutor {
@@ -75,6 +76,8 @@ public class NodeOrderedThreadPoolExecutor extends OrderedThreadPoolExecutor {
     
     @Override
     protected Object getChildExecutorKey(Runnable task) {
+        if (task instanceof KeyAttached)
+            return ((KeyAttached) task).getKey();
         return ((NodeAttached)task).getNode();
     }
 }
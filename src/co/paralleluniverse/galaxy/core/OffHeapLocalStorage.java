@@ -127,6 +127,11 @@ class OffHeapLocalStorage extends Component implements CacheStorage {
         page.deallocate(buffer);
     }
 
+    @Override
+    public int getMaxItemSize() {
+        return maxItemSize;
+    }
+
     @Override
     public long getTotalAllocatedSize() {
         return totalSize.get();
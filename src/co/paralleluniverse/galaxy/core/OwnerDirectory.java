@@ -0,0 +1,385 @@
+/*
+ * Galaxy
+ * Copyright (C) 2012 Parallel Universe Software Co.
+ *
+ * This file is part of Galaxy.
+ *
+ * Galaxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Galaxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Galaxy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package co.paralleluniverse.galaxy.core;
+
+import co.paralleluniverse.common.collection.ConcurrentLongSet;
+import co.paralleluniverse.common.concurrent.StripedReadWriteLock;
+import java.lang.reflect.Field;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+
+/**
+ * The server's in-memory map of line ids to owners. <br/>
+ * An open-addressing hash table of primitive longs, two per line - the id and the owner - kept off-heap, so that it holds millions of
+ * lines without creating any objects or adding to the heap the GC has to scan and copy. It must therefore be {@link #free() freed}.
+ * Ownership changes are compare-and-sets on the owner slot; the table's read lock is held only so that it isn't resized (or freed)
+ * underneath, and is cheap to acquire (see {@link StripedReadWriteLock}). <br/>
+ * Lines whose owner has been changed by {@link #casOwner(long, short, short) casOwner} are recorded as dirty until
+ * {@link #drainDirty() drained}, so that the changes can be written to the store in batches.
+ *
+ * @author pron
+ */
+class OwnerDirectory {
+    private static final long NO_ID = -1L; // an unused key slot
+    private static final long ABSENT = 0L; // an owner slot of a line that's been removed (or not yet put)
+    private static final long PRESENT = 1L << 32;
+    private static final float LOAD_FACTOR = 0.75f;
+    private static final sun.misc.Unsafe unsafe = getUnsafe();
+    private volatile Table table; // [id, owner] pairs; guarded by lock; null once freed
+    private final AtomicInteger used = new AtomicInteger(); // key slots in use, including those of removed lines
+    private final AtomicInteger size = new AtomicInteger();
+    private final ReadWriteLock lock = new StripedReadWriteLock();
+    private final ConcurrentLongSet dirty = new ConcurrentLongSet();
+
+    OwnerDirectory(int initialCapacity) {
+        this.table = newTable(Math.max(16, nextPowerOfTwo((int) (initialCapacity / LOAD_FACTOR) + 1)));
+    }
+
+    /**
+     * Returns the owner of the given line, or -1 if the line doesn't exist.
+     */
+    short getOwner(long id) {
+        lock.readLock().lock();
+        try {
+            final Table t = table();
+            final int i = find(t, id);
+            if (i < 0)
+                return -1;
+            final long entry = t.get(i + 1);
+            return entry == ABSENT ? -1 : owner(entry);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Sets the owner of the given line to {@code newNode} if it is currently {@code oldNode}, with the semantics of
+     * {@link co.paralleluniverse.galaxy.server.MainMemoryDB#casOwner(long, short, short) MainMemoryDB.casOwner}: if {@code oldNode} is
+     * negative, the line is created unless it already exists.
+     *
+     * @return {@code newNode} if successful; otherwise the line's current owner, or -1 if it doesn't exist.
+     */
+    short casOwner(long id, short oldNode, short newNode) {
+        for (;;) {
+            lock.readLock().lock();
+            try {
+                final Table t = table();
+                final int i = oldNode < 0 ? claim(t, id) : find(t, id);
+                if (i == -2)
+                    continue; // table's full; resized (in finally)
+                if (i < 0)
+                    return -1;
+                for (;;) {
+                    final long current = t.get(i + 1);
+                    if (current == ABSENT) {
+                        if (oldNode >= 0)
+                            return -1;
+                        if (t.compareAndSet(i + 1, ABSENT, entry(newNode))) {
+                            size.incrementAndGet();
+                            dirty.add(id);
+                            return newNode;
+                        }
+                    } else if (owner(current) != oldNode)
+                        return owner(current);
+                    else if (t.compareAndSet(i + 1, current, entry(newNode))) {
+                        if (newNode != oldNode)
+                            dirty.add(id);
+                        return newNode;
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+                resizeIfNeeded();
+            }
+        }
+    }
+
+    /**
+     * Adds the given line with the given owner unless it already exists. Does not mark the line as dirty.
+     */
+    void putIfAbsent(long id, short owner) {
+        for (;;) {
+            lock.readLock().lock();
+            try {
+                final Table t = table();
+                final int i = claim(t, id);
+                if (i == -2)
+                    continue;
+                if (t.compareAndSet(i + 1, ABSENT, entry(owner)))
+                    size.incrementAndGet();
+                return;
+            } finally {
+                lock.readLock().unlock();
+                resizeIfNeeded();
+            }
+        }
+    }
+
+    /**
+     * Removes the given line.
+     */
+    void remove(long id) {
+        lock.readLock().lock();
+        try {
+            final Table t = table();
+            final int i = find(t, id);
+            if (i >= 0 && t.getAndSet(i + 1, ABSENT) != ABSENT)
+                size.decrementAndGet();
+            dirty.remove(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Transfers all lines owned by the given node to the given new owner (normally the server). Does not mark them as dirty.
+     */
+    void replaceOwner(short node, short newOwner) {
+        lock.readLock().lock();
+        try {
+            final Table t = table();
+            final long expected = entry(node);
+            for (int i = 0; i < t.length(); i += 2) {
+                if (t.get(i + 1) == expected)
+                    t.compareAndSet(i + 1, expected, entry(newOwner));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the ids of all lines whose owner has changed since the last call, and clears them. Their current owners should be read
+     * (with {@link #getOwner(long) getOwner}) only after this method returns.
+     */
+    long[] drainDirty() {
+        return dirty.getSnapshotAndClear();
+    }
+
+    /**
+     * Marks the given line as dirty, e.g. when writing a drained line to the store has failed.
+     */
+    void markDirty(long id) {
+        dirty.add(id);
+    }
+
+    /**
+     * Returns whether the owner of the given line has changed since the last call to {@link #drainDirty() drainDirty}.
+     */
+    boolean isDirty(long id) {
+        return dirty.contains(id);
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    int getCapacity() {
+        return table().length() / 2;
+    }
+
+    /**
+     * Frees the table's memory. The directory can't be used afterwards.
+     */
+    void free() {
+        lock.writeLock().lock();
+        try {
+            if (table != null) {
+                table.free();
+                table = null;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private Table table() {
+        final Table t = table;
+        if (t == null)
+            throw new IllegalStateException("The owner directory has been freed");
+        return t;
+    }
+
+    /**
+     * Returns the index of the given line's id slot, or -1 if it's not in the table.
+     */
+    private static int find(Table t, long id) {
+        final int mask = t.length() - 1;
+        final int start = hash(id) & mask;
+        int i = start;
+        do {
+            final long k = t.get(i);
+            if (k == id)
+                return i;
+            if (k == NO_ID)
+                return -1;
+            i = (i + 2) & mask;
+        } while (i != start);
+        return -1;
+    }
+
+    /**
+     * Returns the index of the given line's id slot, which is taken if the line isn't in the table, or -2 if the table is full.
+     */
+    private int claim(Table t, long id) {
+        assert id != NO_ID;
+        final int mask = t.length() - 1;
+        final int start = hash(id) & mask;
+        int i = start;
+        do {
+            long k = t.get(i);
+            if (k == NO_ID) {
+                if (t.compareAndSet(i, NO_ID, id)) {
+                    used.incrementAndGet();
+                    return i;
+                }
+                k = t.get(i);
+            }
+            if (k == id)
+                return i;
+            i = (i + 2) & mask;
+        } while (i != start);
+        used.set(Integer.MAX_VALUE); // force a resize
+        return -2;
+    }
+
+    private void resizeIfNeeded() {
+        final Table current = table;
+        if (current == null || used.get() <= LOAD_FACTOR * (current.length() / 2))
+            return;
+        lock.writeLock().lock();
+        try {
+            final Table t = table;
+            if (t == null || used.get() <= LOAD_FACTOR * (t.length() / 2))
+                return;
+            // removed lines are dropped, so the table may not need to grow
+            final int capacity = nextPowerOfTwo((int) (Math.max(size.get(), 8) * 2 / LOAD_FACTOR));
+            final Table newTable = newTable(Math.max(capacity, t.length() / 2));
+            final int mask = newTable.length() - 1;
+            int n = 0;
+            for (int i = 0; i < t.length(); i += 2) {
+                final long owner = t.get(i + 1);
+                if (owner == ABSENT)
+                    continue;
+                int j = hash(t.get(i)) & mask;
+                while (newTable.get(j) != NO_ID)
+                    j = (j + 2) & mask;
+                newTable.set(j, t.get(i));
+                newTable.set(j + 1, owner);
+                n++;
+            }
+            used.set(n);
+            table = newTable;
+            t.free(); // nobody's using it, as we hold the write lock
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static Table newTable(int capacity) {
+        final Table t = new Table(capacity * 2);
+        for (int i = 0; i < t.length(); i += 2) {
+            t.set(i, NO_ID);
+            t.set(i + 1, ABSENT);
+        }
+        return t;
+    }
+
+    private static long entry(short owner) {
+        return PRESENT | (owner & 0xffffL);
+    }
+
+    private static short owner(long entry) {
+        return (short) entry;
+    }
+
+    private static int hash(long id) {
+        id ^= id >>> 33;
+        id *= 0xff51afd7ed558ccdL;
+        id ^= id >>> 33;
+        return ((int) id) << 1; // an even index
+    }
+
+    private static int nextPowerOfTwo(int x) {
+        return Integer.highestOneBit(x) == x ? x : Integer.highestOneBit(x) << 1;
+    }
+
+    @Override
+    public String toString() {
+        final Table t = table;
+        return "OwnerDirectory{" + "size: " + size.get() + (t != null ? " capacity: " + t.length() / 2 : " freed") + '}';
+    }
+
+    /**
+     * An array of longs in native memory, with the atomic operations of {@link java.util.concurrent.atomic.AtomicLongArray}.
+     */
+    private static final class Table {
+        private final long address;
+        private final int length;
+
+        Table(int length) {
+            this.address = unsafe.allocateMemory(8L * length);
+            this.length = length;
+        }
+
+        int length() {
+            return length;
+        }
+
+        long get(int i) {
+            return unsafe.getLongVolatile(null, offset(i));
+        }
+
+        void set(int i, long value) {
+            unsafe.putLongVolatile(null, offset(i), value);
+        }
+
+        boolean compareAndSet(int i, long expect, long update) {
+            return unsafe.compareAndSwapLong(null, offset(i), expect, update);
+        }
+
+        long getAndSet(int i, long value) {
+            for (;;) {
+                final long current = get(i);
+                if (compareAndSet(i, current, value))
+                    return current;
+            }
+        }
+
+        void free() {
+            unsafe.freeMemory(address);
+        }
+
+        private long offset(int i) {
+            assert i >= 0 && i < length;
+            return address + 8L * i;
+        }
+    }
+
+    private static sun.misc.Unsafe getUnsafe() {
+        try {
+            final Field field = sun.misc.Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return (sun.misc.Unsafe) field.get(null);
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Galaxy
+ * Copyright (C) 2012 Parallel Universe Software Co.
+ *
+ * This file is part of Galaxy.
+ *
+ * Galaxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Galaxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Galaxy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package co.paralleluniverse.galaxy.core;
+
+import co.paralleluniverse.common.io.MappedLog;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The peer-local log of backed-up line versions, kept so that updates not yet acknowledged by the server or the slaves survive a crash.
+ * Each record is a checksum followed by the line id, the version and the line's data. <br/>
+ * Records are committed - i.e. no longer needed - once the backup packet containing their versions has been acknowledged; the segments
+ * holding only committed records are deleted.
+ *
+ * @author pron
+ */
+class WriteAheadLog {
+    private static final Logger LOG = LoggerFactory.getLogger(WriteAheadLog.class);
+    private static final int HEADER_SIZE = 4 + 8 + 8;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final ThreadLocal<ByteBuffer> header = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(HEADER_SIZE);
+        }
+    };
+    private static final ThreadLocal<CRC32> crc = new ThreadLocal<CRC32>() {
+        @Override
+        protected CRC32 initialValue() {
+            return new CRC32();
+        }
+    };
+    private static final ThreadLocal<byte[]> chunk = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[4096];
+        }
+    };
+    //
+    private final MappedLog log;
+    private final MappedByteBuffer committedFile;
+    private long committed; // the offset of the first record still needed; guarded by this
+    private final Object syncLock = new Object();
+    private volatile long synced = -1; // the offset of the last record written to the storage device
+
+    WriteAheadLog(File directory, int segmentSize) throws IOException {
+        this.log = new MappedLog(directory, segmentSize);
+        try (RandomAccessFile raf = new RandomAccessFile(new File(directory, "committed"), "rw")) {
+            final boolean exists = raf.length() >= 8;
+            this.committedFile = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 8);
+            this.committed = exists ? committedFile.getLong(0) : log.getStartOffset();
+        }
+    }
+
+    /**
+     * Appends a line version to the log.
+     *
+     * @return the record's offset.
+     */
+    long append(long line, long version, ByteBuffer data) {
+        if (data == null)
+            data = EMPTY;
+        final ByteBuffer h = header.get();
+        h.clear();
+        h.position(4);
+        h.putLong(line);
+        h.putLong(version);
+        h.flip();
+
+        final CRC32 c = crc.get();
+        c.reset();
+        c.update(h.array(), 4, HEADER_SIZE - 4);
+        update(c, data);
+        h.putInt(0, (int) c.getValue());
+        try {
+            return log.append(h, data);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not append backup to log " + log, e);
+        }
+    }
+
+    /**
+     * Returns the offset the next record appended to the log will have.
+     */
+    long getEndOffset() {
+        return log.getEndOffset();
+    }
+
+    /**
+     * Writes all records up to and including the given offset to the storage device. <br/>
+     * Threads calling this method concurrently share a single write: whoever gets to write first writes all records appended so far, so
+     * that the others usually find theirs already written.
+     */
+    void sync(long offset) {
+        if (synced >= offset)
+            return;
+        synchronized (syncLock) {
+            if (synced >= offset)
+                return;
+            forceAll();
+        }
+    }
+
+    /**
+     * Writes all appended records, and the mark of the committed ones, to the storage device.
+     */
+    void force() {
+        synchronized (syncLock) {
+            forceAll();
+        }
+    }
+
+    private void forceAll() {
+        assert Thread.holdsLock(syncLock);
+        final long end = log.getEndOffset() - 1;
+        log.force();
+        committedFile.force(); // after the records, so that the mark doesn't survive a crash that the records it points past didn't
+        synced = end;
+    }
+
+    /**
+     * Marks all records with offsets lower than the given offset as no longer needed.
+     */
+    synchronized void commit(long offset) {
+        if (offset <= committed)
+            return;
+        committed = offset;
+        committedFile.putLong(0, offset);
+        try {
+            log.deleteBefore(offset);
+        } catch (IOException e) {
+            LOG.warn("Could not delete old segments of log " + log, e);
+        }
+    }
+
+    /**
+     * Passes all records that have not been committed to the given listener, in order. Stops at the first record whose checksum does not
+     * match, as it (and everything after it) may have been partially written when the process crashed, and truncates the log there, so
+     * that the records appended from now on aren't hidden behind it the next time the log is replayed.
+     *
+     * @return the number of records replayed.
+     */
+    int replay(Listener listener) {
+        final long start;
+        synchronized (this) {
+            start = Math.max(committed, log.getStartOffset());
+        }
+        final long end = log.getEndOffset();
+        int count = 0;
+        long bad = -1;
+        for (long offset = start; offset < end; offset++) {
+            final ByteBuffer record = log.read(offset);
+            if (record.remaining() < HEADER_SIZE) {
+                LOG.warn("Truncated record {} in log {}. Discarding the rest of the log.", offset, log);
+                bad = offset;
+                break;
+            }
+            final int checksum = record.getInt();
+            final long line = record.getLong();
+            final long version = record.getLong();
+            final ByteBuffer data = record.slice();
+
+            final CRC32 c = crc.get();
+            c.reset();
+            record.position(4);
+            record.limit(HEADER_SIZE);
+            update(c, record);
+            update(c, data);
+            if ((int) c.getValue() != checksum) {
+                LOG.warn("Checksum mismatch in record {} of log {}. Discarding the rest of the log.", offset, log);
+                bad = offset;
+                break;
+            }
+            listener.record(line, version, data);
+            count++;
+        }
+        if (bad >= 0) {
+            try {
+                log.truncate(bad);
+            } catch (IOException e) {
+                throw new RuntimeException("Could not truncate log " + log, e);
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return "WriteAheadLog{" + log + '}';
+    }
+
+    private static void update(CRC32 c, ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            c.update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            return;
+        }
+        final byte[] bytes = chunk.get();
+        final ByteBuffer b = buffer.duplicate();
+        while (b.hasRemaining()) {
+            final int n = Math.min(bytes.length, b.remaining());
+            b.get(bytes, 0, n);
+            c.update(bytes, 0, n);
+        }
+    }
+
+    interface Listener {
+        void record(long line, long version, ByteBuffer data);
+    }
+}
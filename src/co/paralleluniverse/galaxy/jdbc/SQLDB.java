@@ -24,6 +24,7 @@ import co.paralleluniverse.common.spring.Component;
 import co.paralleluniverse.galaxy.server.MainMemoryDB;
 import co.paralleluniverse.galaxy.server.MainMemoryEntry;
 import com.google.common.base.Throwables;
+import gnu.trove.procedure.TLongShortProcedure;
 import java.beans.ConstructorProperties;
 import java.io.PrintStream;
 import java.sql.Connection;
@@ -35,11 +36,15 @@ import java.sql.Statement;
 import java.sql.Types;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.sql.DataSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * A store that keeps the lines in a table accessed over a single JDBC connection. As the connection and its prepared statements may not
+ * be used concurrently, all operations are serialized, and a transaction holds off all operations by other threads from
+ * {@link #beginTransaction()} until it's committed or aborted (by the same thread).
  *
  * @author pron
  */
@@ -61,6 +66,8 @@ public class SQLDB extends Component implements MainMemoryDB {
     private PreparedStatement casOwner;
     private PreparedStatement getOwner;
     private PreparedStatement deleteOwner;
+    private PreparedStatement setOwner;
+    private PreparedStatement getOwners;
     private PreparedStatement insertLine;
     private PreparedStatement setLine;
     private PreparedStatement getLine;
@@ -68,6 +75,7 @@ public class SQLDB extends Component implements MainMemoryDB {
     private PreparedStatement selectAll;
     private PreparedStatement getMaxId;
     private static final Object TRANSACTION = new Object();
+    private final ReentrantLock lock = new ReentrantLock(); // guards the connection and its statements; held throughout a transaction
 
     @ConstructorProperties({"name", "dataSource"})
     public SQLDB(String name, DataSource dataSource) {
@@ -172,6 +180,8 @@ public class SQLDB extends Component implements MainMemoryDB {
         write(0, (short) 0, 0, null, null);
         delete(0, null);
         removeOwner((short) 0);
+        setOwner(0, (short) 0, null);
+        forEachOwner(null);
         if (useUpdateableCursors)
             casOwnerUpdateableCursor(0, (short) 0, (short) 0);
         else {
@@ -214,118 +224,141 @@ public class SQLDB extends Component implements MainMemoryDB {
 
     @Override
     public void close() {
+        lock.lock();
         try {
             conn.close();
         } catch (SQLException e) {
             throw Throwables.propagate(e);
+        } finally {
+            lock.unlock();
         }
     }
 
     @Override
     public Object beginTransaction() {
+        lock.lock(); // released by commit or abort
         return TRANSACTION;
     }
 
     @Override
     public void commit(Object txn) {
+        assert txn == TRANSACTION && lock.isHeldByCurrentThread();
         try {
             LOG.debug("COMMIT");
-            assert txn == TRANSACTION;
             conn.commit();
         } catch (SQLException e) {
             throw Throwables.propagate(e);
+        } finally {
+            lock.unlock();
         }
     }
 
     @Override
     public void abort(Object txn) {
+        assert txn == TRANSACTION && lock.isHeldByCurrentThread();
         try {
             LOG.debug("ROLLBACK");
-            assert txn == TRANSACTION;
             conn.rollback();
         } catch (SQLException e) {
             throw Throwables.propagate(e);
+        } finally {
+            lock.unlock();
         }
     }
 
     @Override
     public void write(long id, short owner, long version, byte[] data, Object txn) {
-        if (setLine == null) {
-            setLine = prepareStatement("UPDATE " + table + " SET version = ?, data = ? WHERE id = ? AND owner = ?");
-            return;
-        }
+        lock.lock();
+        try {
+            if (setLine == null) {
+                setLine = prepareStatement("UPDATE " + table + " SET version = ?, data = ? WHERE id = ? AND owner = ?");
+                return;
+            }
 
-        if (LOG.isDebugEnabled())
-            LOG.debug("WRITE " + id + " ver: " + version + " data: (" + data.length + " bytes)");
+            if (LOG.isDebugEnabled())
+                LOG.debug("WRITE " + id + " ver: " + version + " data: (" + data.length + " bytes)");
 
-        if (data.length > maxItemSize) {
-            LOG.error("Data length is {}, which is bigger than maxItemSize ({})", data.length, maxItemSize);
-            throw new RuntimeException("Data too big.");
-        }
-        try {
-            setLine.setLong(3, id);
-            setLine.setShort(4, owner);
-            setLine.setLong(1, version);
-            setLine.setBytes(2, data);
-            if (setLine.executeUpdate() < 1) {
-                LOG.debug("Setting line {} failed. Inserting.", id);
-                insert(id, (short) owner, version, data, txn);
-            } else if (txn == null) // insert() commits
-                conn.commit();
-        } catch (SQLException e) {
-            throw Throwables.propagate(e);
+            if (data.length > maxItemSize) {
+                LOG.error("Data length is {}, which is bigger than maxItemSize ({})", data.length, maxItemSize);
+                throw new RuntimeException("Data too big.");
+            }
+            try {
+                setLine.setLong(3, id);
+                setLine.setShort(4, owner);
+                setLine.setLong(1, version);
+                setLine.setBytes(2, data);
+                if (setLine.executeUpdate() < 1) {
+                    LOG.debug("Setting line {} failed. Inserting.", id);
+                    insert(id, (short) owner, version, data, txn);
+                } else if (txn == null) // insert() commits
+                    conn.commit();
+            } catch (SQLException e) {
+                throw Throwables.propagate(e);
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
     @Override
     public MainMemoryEntry read(long id) {
-        if (getLine == null) {
-            getLine = prepareStatement("SELECT version, data FROM " + table + "  WHERE id = ?");
-            return null;
-        }
-
+        lock.lock();
         try {
-            ResultSet rs = null;
+            if (getLine == null) {
+                getLine = prepareStatement("SELECT version, data FROM " + table + "  WHERE id = ?");
+                return null;
+            }
+
             try {
-                getLine.setLong(1, id);
-                rs = getLine.executeQuery();
-                rs.next();
-                final long version = rs.getLong(1);
-                final byte[] data = rs.getBytes(2);
-                conn.commit();
-                return new MainMemoryEntry(version, data);
-            } finally {
-                if (rs != null)
-                    rs.close();
+                ResultSet rs = null;
+                try {
+                    getLine.setLong(1, id);
+                    rs = getLine.executeQuery();
+                    rs.next();
+                    final long version = rs.getLong(1);
+                    final byte[] data = rs.getBytes(2);
+                    conn.commit();
+                    return new MainMemoryEntry(version, data);
+                } finally {
+                    if (rs != null)
+                        rs.close();
+                }
+            } catch (SQLException e) {
+                throw Throwables.propagate(e);
             }
-        } catch (SQLException e) {
-            throw Throwables.propagate(e);
+        } finally {
+            lock.unlock();
         }
     }
 
     @Override
     public short casOwner(long id, short oldNode, short newNode) {
-        if (LOG.isDebugEnabled())
-            LOG.debug("CAS owner of {}: {} -> {}", new Object[]{id, oldNode, newNode});
-
+        lock.lock();
         try {
-            if (oldNode < 0) {
-                try {
-                    insert(id, newNode, -1, null, null);
-                    LOG.debug("CAS owner succeeded (insert).");
-                    return newNode;
-                } catch (SQLException e) {
+            if (LOG.isDebugEnabled())
+                LOG.debug("CAS owner of {}: {} -> {}", new Object[]{id, oldNode, newNode});
+
+            try {
+                if (oldNode < 0) {
+                    try {
+                        insert(id, newNode, -1, null, null);
+                        LOG.debug("CAS owner succeeded (insert).");
+                        return newNode;
+                    } catch (SQLException e) {
+                    }
+                    LOG.debug("CAS owner failed (insert).");
+                    return getOwner(id);
+                } else {
+                    if (useUpdateableCursors)
+                        return casOwnerUpdateableCursor(id, oldNode, newNode);
+                    else
+                        return casOwnerUpdate(id, oldNode, newNode);
                 }
-                LOG.debug("CAS owner failed (insert).");
-                return getOwner(id);
-            } else {
-                if (useUpdateableCursors)
-                    return casOwnerUpdateableCursor(id, oldNode, newNode);
-                else
-                    return casOwnerUpdate(id, oldNode, newNode);
+            } catch (SQLException e) {
+                throw Throwables.propagate(e);
             }
-        } catch (SQLException e) {
-            throw Throwables.propagate(e);
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -422,87 +455,162 @@ public class SQLDB extends Component implements MainMemoryDB {
 
     @Override
     public void delete(long id, Object txn) {
-        if (deleteLine == null) {
-            deleteLine = prepareStatement("DELETE FROM " + table + " WHERE id = ?");
-            return;
-        }
+        lock.lock();
         try {
-            deleteLine.setLong(1, id);
-            deleteLine.executeUpdate();
-            if (txn == null)
-                conn.commit();
-        } catch (SQLException e) {
-            throw Throwables.propagate(e);
+            if (deleteLine == null) {
+                deleteLine = prepareStatement("DELETE FROM " + table + " WHERE id = ?");
+                return;
+            }
+            try {
+                deleteLine.setLong(1, id);
+                deleteLine.executeUpdate();
+                if (txn == null)
+                    conn.commit();
+            } catch (SQLException e) {
+                throw Throwables.propagate(e);
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
     @Override
     public void removeOwner(short node) {
-        if (deleteOwner == null) {
-            deleteOwner = prepareStatement("UPDATE " + table + " SET owner = 0 WHERE owner = ?");
-            return;
+        lock.lock();
+        try {
+            if (deleteOwner == null) {
+                deleteOwner = prepareStatement("UPDATE " + table + " SET owner = 0 WHERE owner = ?");
+                return;
+            }
+
+            try {
+                deleteOwner.setShort(1, node);
+                deleteOwner.executeUpdate();
+                conn.commit();
+            } catch (SQLException e) {
+                throw Throwables.propagate(e);
+            }
+        } finally {
+            lock.unlock();
         }
+    }
 
+    @Override
+    public void setOwner(long id, short owner, Object txn) {
+        lock.lock();
         try {
-            deleteOwner.setShort(1, node);
-            deleteOwner.executeUpdate();
-            conn.commit();
-        } catch (SQLException e) {
-            throw Throwables.propagate(e);
+            if (setOwner == null) {
+                setOwner = prepareStatement("UPDATE " + table + " SET owner = ? WHERE id = ?");
+                return;
+            }
+
+            try {
+                setOwner.setShort(1, owner);
+                setOwner.setLong(2, id);
+                if (setOwner.executeUpdate() < 1)
+                    insert(id, owner, -1, null, txn);
+                else if (txn == null) // insert() commits
+                    conn.commit();
+            } catch (SQLException e) {
+                throw Throwables.propagate(e);
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
     @Override
-    public long getMaxId() {
-        if (getMaxId == null) {
-            getMaxId = prepareStatement("SELECT MAX(id) FROM " + table);
-            return 0;
+    public void forEachOwner(TLongShortProcedure procedure) {
+        lock.lock();
+        try {
+            if (getOwners == null) {
+                getOwners = prepareStatement("SELECT id, owner FROM " + table);
+                return;
+            }
+
+            ResultSet rs = null;
+            try {
+                rs = getOwners.executeQuery();
+                while (rs.next()) {
+                    if (!procedure.execute(rs.getLong(1), rs.getShort(2)))
+                        break;
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                throw Throwables.propagate(e);
+            } finally {
+                try {
+                    if (rs != null)
+                        rs.close();
+                } catch (SQLException e) {
+                }
+            }
+        } finally {
+            lock.unlock();
         }
+    }
 
-        ResultSet rs = null;
+    @Override
+    public long getMaxId() {
+        lock.lock();
         try {
-            rs = getMaxId.executeQuery();
-            rs.next();
-            final long res = rs.getLong(1);
-            conn.commit();
-            return res;
-        } catch (SQLException e) {
-            throw Throwables.propagate(e);
-        } finally {
+            if (getMaxId == null) {
+                getMaxId = prepareStatement("SELECT MAX(id) FROM " + table);
+                return 0;
+            }
+
+            ResultSet rs = null;
             try {
-                if (rs != null)
-                    rs.close();
+                rs = getMaxId.executeQuery();
+                rs.next();
+                final long res = rs.getLong(1);
+                conn.commit();
+                return res;
             } catch (SQLException e) {
+                throw Throwables.propagate(e);
+            } finally {
+                try {
+                    if (rs != null)
+                        rs.close();
+                } catch (SQLException e) {
+                }
             }
+        } finally {
+            lock.unlock();
         }
     }
 
     @Override
     public void dump(PrintStream ps) {
-        if (selectAll == null) {
-            selectAll = prepareStatement("SELECT * FROM " + table);
-            return;
-        }
+        lock.lock();
         try {
-            ps.println("MEMORY");
-            ps.println("===========");
-            ResultSet rs = null;
+            if (selectAll == null) {
+                selectAll = prepareStatement("SELECT * FROM " + table);
+                return;
+            }
             try {
-                rs = selectAll.executeQuery();
-                while (rs.next()) {
-                    final long id = rs.getLong("id");
-                    final short owner = rs.getShort("owner");
-                    final long version = rs.getLong("version");
-                    final byte[] data = rs.getBytes("data");
-                    ps.println("Id : " + hex(id) + " owner: " + owner + " version: " + version + " data: (" + data.length + " bytes).");
+                ps.println("MEMORY");
+                ps.println("===========");
+                ResultSet rs = null;
+                try {
+                    rs = selectAll.executeQuery();
+                    while (rs.next()) {
+                        final long id = rs.getLong("id");
+                        final short owner = rs.getShort("owner");
+                        final long version = rs.getLong("version");
+                        final byte[] data = rs.getBytes("data");
+                        ps.println("Id : " + hex(id) + " owner: " + owner + " version: " + version + " data: (" + data.length + " bytes).");
+                    }
+                    conn.commit();
+                } finally {
+                    if (rs != null)
+                        rs.close();
                 }
-                conn.commit();
-            } finally {
-                if (rs != null)
-                    rs.close();
+            } catch (SQLException e) {
+                throw Throwables.propagate(e);
             }
-        } catch (SQLException e) {
-            throw Throwables.propagate(e);
+        } finally {
+            lock.unlock();
         }
     }
 
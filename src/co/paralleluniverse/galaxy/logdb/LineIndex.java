@@ -0,0 +1,194 @@
+/*
+ * Galaxy
+ * Copyright (C) 2012 Parallel Universe Software Co.
+ *
+ * This file is part of Galaxy.
+ *
+ * Galaxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Galaxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Galaxy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package co.paralleluniverse.galaxy.logdb;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link LogDB}'s index: an open-addressing hash table, kept in a direct (off-heap) buffer, mapping each line's id to the log offsets of the
+ * records holding its latest data and latest owner, its version and its owner. <br/>
+ * Entries are addressed by their slot, which is only valid until the next insertion (which may resize the table). Not thread-safe.
+ *
+ * @author pron
+ */
+class LineIndex {
+    private static final int ID = 0;
+    private static final int DATA_OFFSET = 8;
+    private static final int OWNER_OFFSET = 16;
+    private static final int VERSION = 24;
+    private static final int OWNER = 32;
+    private static final int STATE = 34;
+    private static final int ENTRY_SIZE = 40;
+    private static final byte FREE = 0;
+    private static final byte USED = 1;
+    private static final byte REMOVED = 2;
+    private static final float LOAD_FACTOR = 0.75f;
+    private static final int MAX_CAPACITY = Integer.highestOneBit(Integer.MAX_VALUE / ENTRY_SIZE);
+    private ByteBuffer table;
+    private int capacity;
+    private int size;
+    private int used; // slots not free, including those of removed entries
+    private long maxId;
+
+    LineIndex(int initialCapacity) {
+        allocate(Math.max(16, Integer.highestOneBit(Math.max(1, (int) (initialCapacity / LOAD_FACTOR))) << 1));
+    }
+
+    /**
+     * Returns the slot of the given line, or -1 if it's not in the index.
+     */
+    int find(long id) {
+        final int mask = capacity - 1;
+        for (int i = hash(id) & mask;; i = (i + 1) & mask) {
+            final byte state = table.get(i * ENTRY_SIZE + STATE);
+            if (state == FREE)
+                return -1;
+            if (state == USED && table.getLong(i * ENTRY_SIZE + ID) == id)
+                return i;
+        }
+    }
+
+    /**
+     * Returns the slot of the given line, adding it (with no data, no owner and version -1) if it's not in the index.
+     */
+    int insert(long id) {
+        int slot = find(id);
+        if (slot >= 0)
+            return slot;
+        if (used + 1 > LOAD_FACTOR * capacity)
+            rehash(size + 1 > LOAD_FACTOR * capacity / 2 ? capacity * 2 : capacity);
+        final int mask = capacity - 1;
+        slot = hash(id) & mask;
+        while (table.get(slot * ENTRY_SIZE + STATE) == USED)
+            slot = (slot + 1) & mask;
+        if (table.get(slot * ENTRY_SIZE + STATE) == FREE)
+            used++;
+        final int pos = slot * ENTRY_SIZE;
+        table.putLong(pos + ID, id);
+        table.putLong(pos + DATA_OFFSET, -1);
+        table.putLong(pos + OWNER_OFFSET, -1);
+        table.putLong(pos + VERSION, -1);
+        table.putShort(pos + OWNER, (short) -1);
+        table.put(pos + STATE, USED);
+        size++;
+        if (id > maxId)
+            maxId = id;
+        return slot;
+    }
+
+    void remove(int slot) {
+        table.put(slot * ENTRY_SIZE + STATE, REMOVED);
+        size--;
+    }
+
+    /**
+     * Returns the number of slots, for iterating over them with {@link #isUsed(int) isUsed}.
+     */
+    int capacity() {
+        return capacity;
+    }
+
+    boolean isUsed(int slot) {
+        return table.get(slot * ENTRY_SIZE + STATE) == USED;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the largest id ever inserted.
+     */
+    long getMaxId() {
+        return maxId;
+    }
+
+    long getId(int slot) {
+        return table.getLong(slot * ENTRY_SIZE + ID);
+    }
+
+    long getDataOffset(int slot) {
+        return table.getLong(slot * ENTRY_SIZE + DATA_OFFSET);
+    }
+
+    void setDataOffset(int slot, long offset) {
+        table.putLong(slot * ENTRY_SIZE + DATA_OFFSET, offset);
+    }
+
+    long getOwnerOffset(int slot) {
+        return table.getLong(slot * ENTRY_SIZE + OWNER_OFFSET);
+    }
+
+    void setOwnerOffset(int slot, long offset) {
+        table.putLong(slot * ENTRY_SIZE + OWNER_OFFSET, offset);
+    }
+
+    long getVersion(int slot) {
+        return table.getLong(slot * ENTRY_SIZE + VERSION);
+    }
+
+    void setVersion(int slot, long version) {
+        table.putLong(slot * ENTRY_SIZE + VERSION, version);
+    }
+
+    short getOwner(int slot) {
+        return table.getShort(slot * ENTRY_SIZE + OWNER);
+    }
+
+    void setOwner(int slot, short owner) {
+        table.putShort(slot * ENTRY_SIZE + OWNER, owner);
+    }
+
+    private void allocate(int capacity) {
+        if (capacity > MAX_CAPACITY)
+            throw new IllegalStateException("Index capacity exceeded (" + MAX_CAPACITY + " slots)");
+        this.table = ByteBuffer.allocateDirect(capacity * ENTRY_SIZE); // zeroed, i.e. all FREE
+        this.capacity = capacity;
+        this.used = 0;
+    }
+
+    private void rehash(int newCapacity) {
+        final ByteBuffer old = table;
+        final int oldCapacity = capacity;
+        allocate(newCapacity);
+        final int mask = capacity - 1;
+        for (int i = 0; i < oldCapacity; i++) {
+            final int pos = i * ENTRY_SIZE;
+            if (old.get(pos + STATE) != USED)
+                continue;
+            int slot = hash(old.getLong(pos + ID)) & mask;
+            while (table.get(slot * ENTRY_SIZE + STATE) != FREE)
+                slot = (slot + 1) & mask;
+            final ByteBuffer entry = old.duplicate();
+            entry.limit(pos + ENTRY_SIZE).position(pos);
+            final ByteBuffer dest = table.duplicate();
+            dest.position(slot * ENTRY_SIZE);
+            dest.put(entry);
+            used++;
+        }
+    }
+
+    private static int hash(long id) {
+        id ^= id >>> 33;
+        id *= 0xff51afd7ed558ccdL;
+        id ^= id >>> 33;
+        return (int) id;
+    }
+}
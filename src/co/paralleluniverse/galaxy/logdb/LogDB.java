@@ -0,0 +1,640 @@
+/*
+ * Galaxy
+ * Copyright (C) 2012 Parallel Universe Software Co.
+ *
+ * This file is part of Galaxy.
+ *
+ * Galaxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Galaxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Galaxy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package co.paralleluniverse.galaxy.logdb;
+
+import co.paralleluniverse.common.io.MappedLog;
+import static co.paralleluniverse.common.logging.LoggingUtils.hex;
+import co.paralleluniverse.common.spring.Component;
+import co.paralleluniverse.galaxy.server.MainMemoryDB;
+import co.paralleluniverse.galaxy.server.MainMemoryEntry;
+import com.google.common.base.Throwables;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.procedure.TLongShortProcedure;
+import java.beans.ConstructorProperties;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+
+/**
+ * A store that appends all changes to a log of memory-mapped segment files, and keeps an in-memory index of where each line's latest
+ * data and owner are. <br/>
+ * Writes are sequential appends; reads are a lookup in the index followed by a read from the mapped segment. Each record carries a
+ * checksum, and the last record of each transaction is marked, so that on startup the log is replayed up to the last complete transaction
+ * and anything after it is discarded. <br/>
+ * A background task compacts the log: when enough of it is made of superseded records, the records of the oldest segment that are still
+ * current are appended again (with the line's current owner), and the segment is deleted.
+ *
+ * @author pron
+ */
+public class LogDB extends Component implements MainMemoryDB {
+    // Note: class must be public for Spring's auto generated javax.management.modelmbean.RequiredModelMBean to expose @ManagedAttribute
+
+    private static final Logger LOG = LoggerFactory.getLogger(LogDB.class);
+    private static final short SERVER = 0;
+    // record: [crc int][type byte][id long][owner short][version long][data]
+    private static final int HEADER_SIZE = 4 + 1 + 8 + 2 + 8;
+    private static final byte WRITE = 1;
+    private static final byte OWNER = 2;
+    private static final byte DELETE = 3;
+    private static final byte REMOVE_OWNER = 4;
+    private static final byte RESET_OWNERS = 5;
+    private static final byte END = 0x10; // marks the last record of a transaction
+    private static final byte[] NO_DATA = new byte[0];
+    private final String directory;
+    private int segmentSize = 64 * 1024 * 1024;
+    private boolean truncate;
+    private boolean syncCommits;
+    private float compactionThreshold = 0.5f;
+    private long compactionIntervalMillis = 1000;
+    private MappedLog log;
+    private final LineIndex index = new LineIndex(1024); // guarded by lock
+    private final ReadWriteLock lock = new ReentrantReadWriteLock(); // write-locked by appends, as records are applied to the index in log order
+    private long liveRecords; // the number of records the index refers to; guarded by lock
+    private final ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor();
+    private final Object syncLock = new Object();
+    private volatile long synced = -1;
+    private final CRC32 crc = new CRC32(); // guarded by lock
+
+    @ConstructorProperties({"name", "directory"})
+    public LogDB(String name, String directory) {
+        super(name);
+        this.directory = directory;
+    }
+
+    @ManagedAttribute(currencyTimeLimit = -1, description = "The log directory")
+    public String getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Sets the size of each log segment file, in bytes. Limits the size of a line.
+     */
+    public void setSegmentSize(int segmentSize) {
+        assertDuringInitialization();
+        this.segmentSize = segmentSize;
+    }
+
+    @ManagedAttribute
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Sets whether all data is deleted when the store starts.
+     */
+    public void setTruncate(boolean truncate) {
+        assertDuringInitialization();
+        this.truncate = truncate;
+    }
+
+    @ManagedAttribute
+    public boolean isTruncate() {
+        return truncate;
+    }
+
+    /**
+     * Sets whether each commit waits for the log to be written to the storage device. If not set (the default), committed transactions
+     * survive a crash of the process but not of the operating system.
+     */
+    public void setSyncCommits(boolean syncCommits) {
+        assertDuringInitialization();
+        this.syncCommits = syncCommits;
+    }
+
+    @ManagedAttribute
+    public boolean isSyncCommits() {
+        return syncCommits;
+    }
+
+    /**
+     * Sets the fraction of the log's records that must be superseded before the oldest segment is compacted.
+     */
+    public void setCompactionThreshold(float compactionThreshold) {
+        assertDuringInitialization();
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    @ManagedAttribute
+    public float getCompactionThreshold() {
+        return compactionThreshold;
+    }
+
+    /**
+     * Sets how often, in milliseconds, the log is checked for compaction.
+     */
+    public void setCompactionIntervalMillis(long compactionIntervalMillis) {
+        assertDuringInitialization();
+        this.compactionIntervalMillis = compactionIntervalMillis;
+    }
+
+    @ManagedAttribute
+    public long getCompactionIntervalMillis() {
+        return compactionIntervalMillis;
+    }
+
+    @ManagedAttribute
+    public int getNumLines() {
+        lock.readLock().lock();
+        try {
+            return index.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @ManagedAttribute
+    public long getNumRecords() {
+        return log.getEndOffset() - log.getStartOffset();
+    }
+
+    @ManagedAttribute
+    public long getNumLiveRecords() {
+        lock.readLock().lock();
+        try {
+            return liveRecords;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    protected void init() throws Exception {
+        super.init();
+        final File dir = new File(directory);
+        if (truncate && dir.isDirectory()) {
+            LOG.info("Truncating store, directory: {}", dir);
+            for (File file : dir.listFiles())
+                file.delete();
+        }
+        LOG.info("Opening store, directory: {}", dir);
+        this.log = new MappedLog(dir, segmentSize);
+        recover();
+        resetOwners();
+
+        compactor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } catch (Exception e) {
+                    LOG.error("Exception while compacting store.", e);
+                }
+            }
+        }, compactionIntervalMillis, compactionIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        compactor.shutdownNow();
+        try {
+            compactor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        log.force();
+    }
+
+    /**
+     * Replays the log into the index, up to the last complete transaction, and discards everything after it.
+     */
+    private void recover() throws IOException {
+        lock.writeLock().lock();
+        try {
+            final long start = log.getStartOffset();
+            final long end = log.getEndOffset();
+            final TLongArrayList transaction = new TLongArrayList();
+            long committed = start;
+            for (long offset = start; offset < end; offset++) {
+                final ByteBuffer record = log.read(offset);
+                if (!isValid(record)) {
+                    LOG.warn("Record {} is corrupt. Ignoring the rest of the log.", offset);
+                    break;
+                }
+                transaction.add(offset);
+                if ((record.get(4) & END) != 0) {
+                    for (int i = 0; i < transaction.size(); i++)
+                        apply(transaction.get(i), log.read(transaction.get(i)));
+                    transaction.clear();
+                    committed = offset + 1;
+                }
+            }
+            if (committed < end) {
+                LOG.warn("Discarding {} records following the last complete transaction.", end - committed);
+                log.truncate(committed);
+            }
+            LOG.info("Recovered {} lines from {} records.", index.size(), committed - start);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void resetOwners() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (index.size() > 0)
+                append(RESET_OWNERS, 0, SERVER, 0, null, true);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public short casOwner(long id, short oldNode, short newNode) {
+        final long offset;
+        lock.writeLock().lock();
+        try {
+            final int slot = index.find(id);
+            if (slot < 0) {
+                if (oldNode >= 0) {
+                    LOG.debug("CAS owner failed.");
+                    return (short) -1;
+                }
+            } else {
+                final short current = index.getOwner(slot);
+                if (LOG.isDebugEnabled())
+                    LOG.debug("CAS owner of {}: current old node: {} wanted old node: {}", new Object[]{hex(id), current, oldNode});
+                if (current != oldNode) {
+                    LOG.debug("CAS owner failed.");
+                    return current;
+                }
+            }
+            LOG.debug("CAS owner succeeded.");
+            offset = append(OWNER, id, newNode, 0, null, true);
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (syncCommits)
+            sync(offset);
+        return newNode;
+    }
+
+    @Override
+    public void removeOwner(short node) {
+        lock.writeLock().lock();
+        try {
+            append(REMOVE_OWNER, 0, node, 0, null, true);
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void setOwner(long id, short owner, Object txn) {
+        add(txn, new Op(OWNER, id, owner, 0, null));
+    }
+
+    @Override
+    public void forEachOwner(TLongShortProcedure procedure) {
+        lock.readLock().lock();
+        try {
+            for (int slot = 0; slot < index.capacity(); slot++) {
+                if (index.isUsed(slot) && !procedure.execute(index.getId(slot), index.getOwner(slot)))
+                    break;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Object beginTransaction() {
+        return new Transaction();
+    }
+
+    @Override
+    public void commit(Object txn) {
+        final List<Op> ops = ((Transaction) txn).ops;
+        if (ops.isEmpty())
+            return;
+        final long offset;
+        lock.writeLock().lock();
+        try {
+            long last = -1;
+            for (int i = 0; i < ops.size(); i++) {
+                final Op op = ops.get(i);
+                last = append(op.type, op.id, op.owner, op.version, op.data, i == ops.size() - 1);
+            }
+            offset = last;
+        } catch (IOException e) {
+            throw Throwables.propagate(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        ops.clear();
+        if (syncCommits)
+            sync(offset);
+    }
+
+    @Override
+    public void abort(Object txn) {
+        ((Transaction) txn).ops.clear();
+    }
+
+    @Override
+    public void write(long id, short owner, long version, byte[] data, Object txn) {
+        if (LOG.isDebugEnabled())
+            LOG.debug("WRITE " + hex(id) + " ver: " + version + " data: " + (data != null ? "(" + data.length + " bytes)" : "null"));
+        if (HEADER_SIZE + (data != null ? data.length : 0) + 4 > segmentSize)
+            throw new IllegalArgumentException("Data length is " + data.length + ", which is bigger than the segment size (" + segmentSize + ")");
+        add(txn, new Op(WRITE, id, owner, version, data));
+    }
+
+    @Override
+    public MainMemoryEntry read(long id) {
+        lock.readLock().lock(); // so that the record's segment isn't deleted while we read
+        try {
+            final int slot = index.find(id);
+            if (slot < 0 || index.getDataOffset(slot) < 0)
+                return null;
+            final ByteBuffer record = log.read(index.getDataOffset(slot));
+            record.position(HEADER_SIZE);
+            final byte[] data = new byte[record.remaining()];
+            record.get(data);
+            return new MainMemoryEntry(index.getVersion(slot), data);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void delete(long id, Object txn) {
+        add(txn, new Op(DELETE, id, (short) -1, 0, null));
+    }
+
+    @Override
+    public long getMaxId() {
+        lock.readLock().lock();
+        try {
+            return index.getMaxId();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void dump(PrintStream ps) {
+        ps.println();
+        ps.println("LOGDB " + directory);
+        ps.println("=====================================");
+        lock.readLock().lock();
+        try {
+            for (int slot = 0; slot < index.capacity(); slot++) {
+                if (index.isUsed(slot))
+                    ps.println("Id : " + hex(index.getId(slot)) + " owner: " + index.getOwner(slot) + " version: " + index.getVersion(slot));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        ps.println();
+    }
+
+    private void add(Object txn, Op op) {
+        if (txn != null)
+            ((Transaction) txn).ops.add(op);
+        else {
+            final Transaction t = new Transaction();
+            t.ops.add(op);
+            commit(t);
+        }
+    }
+
+    /**
+     * Writes all records up to and including the given offset to the storage device. Concurrent committers share a single write.
+     */
+    private void sync(long offset) {
+        if (synced >= offset)
+            return;
+        synchronized (syncLock) {
+            if (synced >= offset)
+                return;
+            final long end = log.getEndOffset() - 1;
+            log.force();
+            synced = end;
+        }
+    }
+
+    /**
+     * Appends a record to the log and applies it to the index. Must be called while holding the write lock.
+     *
+     * @return the record's offset.
+     */
+    private long append(byte type, long id, short owner, long version, byte[] data, boolean end) throws IOException {
+        if (type == WRITE) {
+            final int slot = index.find(id);
+            if (slot >= 0 && index.getOwner(slot) >= 0)
+                owner = index.getOwner(slot); // the owner is only set by the first write
+        }
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.position(4);
+        header.put((byte) (type | (end ? END : 0)));
+        header.putLong(id);
+        header.putShort(owner);
+        header.putLong(version);
+        if (data == null)
+            data = NO_DATA;
+
+        crc.reset();
+        crc.update(header.array(), 4, HEADER_SIZE - 4);
+        crc.update(data);
+        header.putInt(0, (int) crc.getValue());
+        header.flip();
+
+        final long offset = log.append(header, ByteBuffer.wrap(data));
+        apply(offset, header);
+        return offset;
+    }
+
+    private boolean isValid(ByteBuffer record) {
+        if (record.remaining() < HEADER_SIZE)
+            return false;
+        final byte[] bytes = new byte[record.remaining() - 4];
+        final ByteBuffer b = record.duplicate();
+        b.position(b.position() + 4);
+        b.get(bytes);
+        crc.reset();
+        crc.update(bytes);
+        return (int) crc.getValue() == record.getInt(record.position());
+    }
+
+    /**
+     * Applies a record to the index. Only the record's header is read.
+     */
+    private void apply(long offset, ByteBuffer record) {
+        final int p = record.position();
+        final byte type = (byte) (record.get(p + 4) & ~END);
+        final long id = record.getLong(p + 5);
+        final short owner = record.getShort(p + 13);
+        final long version = record.getLong(p + 15);
+        int slot;
+        switch (type) {
+            case WRITE:
+                slot = index.insert(id);
+                unlink(slot);
+                index.setDataOffset(slot, offset);
+                index.setOwnerOffset(slot, offset);
+                index.setVersion(slot, version);
+                index.setOwner(slot, owner);
+                link(slot);
+                break;
+            case OWNER:
+                slot = index.insert(id);
+                unlink(slot);
+                index.setOwnerOffset(slot, offset);
+                index.setOwner(slot, owner);
+                link(slot);
+                break;
+            case DELETE:
+                slot = index.find(id);
+                if (slot >= 0) {
+                    unlink(slot);
+                    index.remove(slot);
+                }
+                break;
+            case REMOVE_OWNER:
+            case RESET_OWNERS:
+                // the records holding the previous owners stay current; they're rewritten with the new owner when compacted
+                for (slot = 0; slot < index.capacity(); slot++) {
+                    if (index.isUsed(slot) && (type == RESET_OWNERS || index.getOwner(slot) == owner))
+                        index.setOwner(slot, SERVER);
+                }
+                break;
+            default:
+                throw new AssertionError("Unknown record type " + type + " at offset " + offset);
+        }
+    }
+
+    private void unlink(int slot) {
+        liveRecords -= numRecords(slot);
+    }
+
+    private void link(int slot) {
+        liveRecords += numRecords(slot);
+    }
+
+    private int numRecords(int slot) {
+        final long dataOffset = index.getDataOffset(slot);
+        final long ownerOffset = index.getOwnerOffset(slot);
+        return (dataOffset >= 0 ? 1 : 0) + (ownerOffset >= 0 && ownerOffset != dataOffset ? 1 : 0);
+    }
+
+    /**
+     * Compacts the oldest segments for as long as the fraction of superseded records exceeds the threshold.
+     */
+    void compact() throws IOException {
+        for (;;) {
+            final long start = log.getStartOffset();
+            final long end = log.getEndOffset();
+            if (end - start == 0 || log.getSegmentEndOffset(start) >= end)
+                return; // the last segment is never compacted
+            lock.readLock().lock();
+            try {
+                if ((double) (end - start - liveRecords) / (end - start) <= compactionThreshold)
+                    return;
+            } finally {
+                lock.readLock().unlock();
+            }
+
+            final long segmentEnd = log.getSegmentEndOffset(start);
+            int moved = 0;
+            for (long offset = start; offset < segmentEnd; offset++) {
+                lock.writeLock().lock();
+                try {
+                    if (relocate(offset))
+                        moved++;
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+            sync(log.getEndOffset() - 1); // the relocated records must be on disk before the segment is deleted
+            lock.writeLock().lock();
+            try {
+                log.deleteBefore(segmentEnd);
+            } finally {
+                lock.writeLock().unlock();
+            }
+            LOG.debug("Compacted records {}-{}; {} still current.", new Object[]{start, segmentEnd, moved});
+        }
+    }
+
+    /**
+     * Appends the record with the given offset again, with its line's current owner, if the index still refers to it.
+     * Must be called while holding the write lock.
+     */
+    private boolean relocate(long offset) throws IOException {
+        final ByteBuffer record = log.read(offset);
+        final long id = record.getLong(record.position() + 5);
+        final int slot = index.find(id);
+        if (slot < 0)
+            return false;
+        if (index.getDataOffset(slot) == offset) {
+            final ByteBuffer d = record.duplicate();
+            d.position(d.position() + HEADER_SIZE);
+            final byte[] data = new byte[d.remaining()];
+            d.get(data);
+            append(WRITE, id, index.getOwner(slot), index.getVersion(slot), data, true);
+            return true;
+        } else if (index.getOwnerOffset(slot) == offset) {
+            append(OWNER, id, index.getOwner(slot), 0, null, true);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "LogDB{" + directory + '}';
+    }
+
+    private static class Transaction {
+        final List<Op> ops = new ArrayList<Op>();
+    }
+
+    private static class Op {
+        final byte type;
+        final long id;
+        final short owner;
+        final long version;
+        final byte[] data;
+
+        Op(byte type, long id, short owner, long version, byte[] data) {
+            this.type = type;
+            this.id = id;
+            this.owner = owner;
+            this.version = version;
+            this.data = data;
+        }
+    }
+}
@@ -33,4 +33,10 @@ public interface BackupMXBean {
     int getBackups();
     
     int getReplicationBackups();
+
+    int getInFlightPackets();
+
+    long getReplicationRemaining();
+
+    long getReplicationEtaMillis();
 }
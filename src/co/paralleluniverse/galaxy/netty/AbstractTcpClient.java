@@ -56,6 +56,7 @@ import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
 import org.jboss.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
 
 /**
  *
@@ -68,7 +69,7 @@ abstract class AbstractTcpClient extends ClusterService {
     private String nodeName;
     private final String portProperty;
     private InetSocketAddress address;
-    private final ChannelPipelineFactory origChannelFacotry;
+    private final TcpMessagePipelineFactory origChannelFacotry;
     private final ChannelFactory channelFactory;
     private final ClientBootstrap bootstrap;
     private boolean connecting;
@@ -161,6 +162,16 @@ abstract class AbstractTcpClient extends ClusterService {
         this.receiveExecutor = receiveExecutor;
     }
 
+    public void setMaxWriteBatchSize(int maxWriteBatchSize) {
+        assertDuringInitialization();
+        origChannelFacotry.setMaxWriteBatchSize(maxWriteBatchSize);
+    }
+
+    @ManagedAttribute
+    public int getMaxWriteBatchSize() {
+        return origChannelFacotry.getMaxWriteBatchSize();
+    }
+
     private void configureThreadPool(String name, ThreadPoolExecutor executor) {
         executor.setRejectedExecutionHandler(new ThreadPoolExecutor.DiscardPolicy());
         executor.setThreadFactory(new CustomThreadFactory(name) {
@@ -58,7 +58,7 @@ public abstract class AbstractTcpServer extends ClusterService {
     private final ServerBootstrap bootstrap;
     private final DefaultChannelGroup channels;
     private final AtomicLong nextMessageId = new AtomicLong(1L);
-    private final ChannelPipelineFactory origChannelFacotry;
+    private final TcpMessagePipelineFactory origChannelFacotry;
     private ThreadPoolExecutor bossExecutor;
     private ThreadPoolExecutor workerExecutor;
     private OrderedMemoryAwareThreadPoolExecutor receiveExecutor;
@@ -124,6 +124,16 @@ public abstract class AbstractTcpServer extends ClusterService {
         this.receiveExecutor = receiveExecutor;
     }
     
+    public void setMaxWriteBatchSize(int maxWriteBatchSize) {
+        assertDuringInitialization();
+        origChannelFacotry.setMaxWriteBatchSize(maxWriteBatchSize);
+    }
+
+    @ManagedAttribute
+    public int getMaxWriteBatchSize() {
+        return origChannelFacotry.getMaxWriteBatchSize();
+    }
+
     private void configureThreadPool(String name, ThreadPoolExecutor executor) {
         executor.setRejectedExecutionHandler(new ThreadPoolExecutor.DiscardPolicy());
         executor.setThreadFactory(new CustomThreadFactory(name) {
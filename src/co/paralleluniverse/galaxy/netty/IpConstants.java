@@ -33,6 +33,8 @@ import java.net.UnknownHostException;
 public final class IpConstants {
     public final static String IP_ADDRESS = "ip_addr";
     public final static String IP_COMM_PORT = "ip_port";
+    public final static String IP_COMM_RECEIVE_SOCKETS = "ip_comm_sockets";
+    public final static String IP_COMM_SHARED_MEMORY = "ip_comm_shm";
     public final static String IP_SERVER_PORT = "ip_server_port";
     public final static String IP_SLAVE_PORT = "ip_slave_port";
     public final static ReaderWriter<InetAddress> INET_ADDRESS_READER_WRITER = new ReaderWriter<InetAddress>() {
@@ -0,0 +1,220 @@
+/*
+ * Galaxy
+ * Copyright (C) 2012 Parallel Universe Software Co.
+ * 
+ * This file is part of Galaxy.
+ *
+ * Galaxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ *
+ * Galaxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with Galaxy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package co.paralleluniverse.galaxy.netty;
+
+import co.paralleluniverse.galaxy.core.Message;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded blocking message queue made of several lanes (traffic classes), each with its own capacity.
+ * Lanes are ordered by priority (lane 0 is the highest), and when messages are waiting in more than one lane, they are taken in a weighted
+ * round-robin. <br/>
+ * A message may overtake messages in lower-priority lanes that were queued before it, but never ones in higher-priority lanes; i.e. a message
+ * is only taken once all higher-priority messages queued before it have been taken. Messages in the same lane are taken in FIFO order.
+ *
+ * @author pron
+ */
+class MessageLaneQueue {
+    public static final int COHERENCE = 0;
+    public static final int MESSAGES = 1;
+
+    /**
+     * Returns the lane a message should be queued in.
+     */
+    public static int laneOf(Message message) {
+        switch (message.getType()) {
+            case MSG:
+            case MSGACK:
+                return MESSAGES;
+            default:
+                return COHERENCE;
+        }
+    }
+    //
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final List<ArrayDeque<Entry>> lanes;
+    private final int[] weights;
+    private final int capacity;
+    private int size;
+    private long nextSeq;
+    private int current; // the lane whose turn it is
+    private int taken; // number of messages taken from the current lane in its turn
+
+    /**
+     * @param capacity the capacity of each lane.
+     * @param coherenceWeight the number of consecutive messages taken from the {@link #COHERENCE} lane in its turn.
+     * @param messagesWeight the number of consecutive messages taken from the {@link #MESSAGES} lane in its turn.
+     */
+    public MessageLaneQueue(int capacity, int coherenceWeight, int messagesWeight) {
+        if (coherenceWeight < 1 || messagesWeight < 1)
+            throw new IllegalArgumentException("Lane weights must be positive: " + coherenceWeight + ", " + messagesWeight);
+        this.capacity = capacity;
+        this.weights = new int[]{coherenceWeight, messagesWeight};
+        this.lanes = new ArrayList<ArrayDeque<Entry>>(weights.length);
+        for (int i = 0; i < weights.length; i++)
+            lanes.add(new ArrayDeque<Entry>(capacity));
+    }
+
+    public boolean offer(Message message) {
+        lock.lock();
+        try {
+            final ArrayDeque<Entry> lane = lanes.get(laneOf(message));
+            if (lane.size() >= capacity)
+                return false;
+            enqueue(lane, message);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void put(Message message) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            final ArrayDeque<Entry> lane = lanes.get(laneOf(message));
+            while (lane.size() >= capacity)
+                notFull.await();
+            enqueue(lane, message);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Message poll() {
+        lock.lock();
+        try {
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Message poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                if (nanos <= 0)
+                    return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size(int lane) {
+        lock.lock();
+        try {
+            return lanes.get(lane).size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void enqueue(ArrayDeque<Entry> lane, Message message) {
+        lane.addLast(new Entry(message, nextSeq++));
+        size++;
+        notEmpty.signal();
+    }
+
+    private Message dequeue() {
+        if (size == 0)
+            return null;
+        if (taken >= weights[current] || !isEligible(current))
+            nextTurn();
+        final Entry entry = lanes.get(current).pollFirst();
+        taken++;
+        size--;
+        notFull.signalAll();
+        return entry.message;
+    }
+
+    private void nextTurn() {
+        // there's always at least one eligible lane: the highest-priority non-empty one
+        do {
+            current = (current + 1) % lanes.size();
+        } while (!isEligible(current));
+        taken = 0;
+    }
+
+    private boolean isEligible(int lane) {
+        final Entry head = lanes.get(lane).peekFirst();
+        if (head == null)
+            return false;
+        for (int i = 0; i < lane; i++) {
+            final Entry h = lanes.get(i).peekFirst();
+            if (h != null && h.seq < head.seq)
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            final StringBuilder sb = new StringBuilder();
+            sb.append('[');
+            for (int i = 0; i < lanes.size(); i++) {
+                if (i > 0)
+                    sb.append(" | ");
+                boolean first = true;
+                for (Entry e : lanes.get(i)) {
+                    if (!first)
+                        sb.append(", ");
+                    sb.append(e.message);
+                    first = false;
+                }
+            }
+            sb.append(']');
+            return sb.toString();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static class Entry {
+        final Message message;
+        final long seq;
+
+        Entry(Message message, long seq) {
+            this.message = message;
+            this.seq = seq;
+        }
+    }
+}
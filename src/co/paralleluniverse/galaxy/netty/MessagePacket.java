@@ -23,18 +23,28 @@ import co.paralleluniverse.common.collection.Util;
 import co.paralleluniverse.galaxy.core.Message;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import org.jboss.netty.buffer.ChannelBufferFactory;
+import org.jboss.netty.buffer.DirectChannelBufferFactory;
 
 /**
  *
  * @author pron
  */
 public class MessagePacket implements Iterable<Message>, Cloneable {
+    /**
+     * Message headers are encoded into slices of large, preallocated direct buffers.
+     */
+    private static final ChannelBufferFactory HEADER_BUFFER_FACTORY = new DirectChannelBufferFactory();
     private int size;
     private int numBuffers;
     private transient boolean multicast;
     private transient long timestamp;
     private ArrayList<Message> messages = new ArrayList<Message>();
+    private transient ByteBuffer[] encoded; // cached until the packet is modified
 
     public void setTimestamp(long timestamp) {
         this.timestamp = timestamp;
@@ -47,6 +57,7 @@ public class MessagePacket implements Iterable<Message>, Cloneable {
     public void addMessage(Message message) {
         assert messages.size() < 256;
         messages.add(message);
+        encoded = null;
         size += message.size();
         numBuffers += 1 + message.getNumDataBuffers();
     }
@@ -76,6 +87,7 @@ public class MessagePacket implements Iterable<Message>, Cloneable {
     }
 
     private void messageRemoved(Message message) {
+        encoded = null;
         size -= message.size();
         numBuffers -= 1 + message.getNumDataBuffers();
     }
@@ -107,8 +119,12 @@ public class MessagePacket implements Iterable<Message>, Cloneable {
         return messages.size();
     }
 
-    public ArrayList<Message> getMessages() {
-        return messages;
+    /**
+     * Returns an unmodifiable view of the packet's messages; the packet is modified only through its own methods, which keep its
+     * encoding up to date.
+     */
+    public List<Message> getMessages() {
+        return Collections.unmodifiableList(messages);
     }
 
     public boolean isMulticast() {
@@ -163,18 +179,39 @@ public class MessagePacket implements Iterable<Message>, Cloneable {
         return numBuffers;
     }
 
+    /**
+     * Returns the packet's encoded form. The encoding is computed once and cached until the packet is modified, so re-sending an unmodified
+     * packet does not re-encode it. The returned buffers are fresh views, so the caller is free to consume them.
+     */
     public ByteBuffer[] toByteBuffers() {
-        ByteBuffer[] buffers = new ByteBuffer[numBuffers];
+        if (encoded == null)
+            encoded = encode();
+        final ByteBuffer[] buffers = new ByteBuffer[encoded.length];
+        for (int i = 0; i < encoded.length; i++)
+            buffers[i] = encoded[i].duplicate();
+        return buffers;
+    }
+
+    private ByteBuffer[] encode() {
+        int headersSize = 0;
+        for (Message message : messages)
+            headersSize += message.headerSize();
+
+        // all headers share one direct buffer. we never write into it again once it's been handed out, because it may still be in a channel's
+        // write queue; if the packet changes, a new one is allocated.
+        final ByteBuffer headers = HEADER_BUFFER_FACTORY.getBuffer(headersSize).toByteBuffer(0, headersSize);
+        final ByteBuffer[] buffers = new ByteBuffer[numBuffers];
         int i = 0;
         for (Message message : messages) {
-            ByteBuffer[] bs = message.toByteBuffers();
-            for (ByteBuffer b : bs) {
-                b.rewind();
-                buffers[i] = b;
-                i++;
+            for (ByteBuffer b : message.toByteBuffers(headers)) {
+                if (b == null)
+                    continue; // the header records its length as 0
+                final ByteBuffer view = b.duplicate();
+                view.rewind();
+                buffers[i++] = view;
             }
         }
-        return buffers;
+        return i == buffers.length ? buffers : Arrays.copyOf(buffers, i);
     }
 
     public void fromByteBuffer(ByteBuffer buffer) {
@@ -187,6 +224,7 @@ public class MessagePacket implements Iterable<Message>, Cloneable {
     }
 
     public void setNode(short node) {
+        encoded = null;
         for (Message m : messages)
             m.setNode(node);
     }
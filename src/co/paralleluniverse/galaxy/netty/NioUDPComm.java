@@ -0,0 +1,204 @@
+/*
+ * Galaxy
+ * Copyright (C) 2012 Parallel Universe Software Co.
+ * 
+ * This file is part of Galaxy.
+ *
+ * Galaxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ *
+ * Galaxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with Galaxy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package co.paralleluniverse.galaxy.netty;
+
+import co.paralleluniverse.galaxy.Cluster;
+import co.paralleluniverse.galaxy.core.CommThread;
+import co.paralleluniverse.galaxy.core.ServerComm;
+import java.beans.ConstructorProperties;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+
+/**
+ * A {@link UDPComm} that uses {@code java.nio} datagram channels directly rather than Netty.
+ * Each socket is read by its own thread, which decodes packets and processes them in place, so there are no thread hand-offs between
+ * the socket and the cache. It uses the same packet format and reliability protocol as {@link UDPComm}. <br/>
+ * The {@code workerExecutor} and {@code receiveExecutor} properties are ignored.
+ *
+ * @author pron
+ */
+public class NioUDPComm extends UDPComm {
+    private static final Logger LOG = LoggerFactory.getLogger(NioUDPComm.class);
+    private static final int MAX_DATAGRAM_SIZE = 65536;
+    //
+    private boolean busyPolling = false;
+    private DatagramChannel channel;
+    private NetworkInterface multicastInterface;
+    private final List<DatagramChannel> channels = new ArrayList<DatagramChannel>();
+    private final List<Thread> receiveThreads = new ArrayList<Thread>();
+    private final ThreadLocal<ByteBuffer> sendBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(Math.max(getMaxPacketSize(), MAX_DATAGRAM_SIZE));
+        }
+    };
+
+    @ConstructorProperties({"name", "cluster", "serverComm", "port"})
+    NioUDPComm(String name, Cluster cluster, ServerComm serverComm, int port) throws Exception {
+        super(name, cluster, serverComm, port);
+    }
+
+    /**
+     * If set to {@code true}, the receiving threads spin on their (non-blocking) sockets rather than block on them. This reduces latency at
+     * the cost of keeping a CPU core busy for each socket.
+     */
+    public void setBusyPolling(boolean busyPolling) {
+        assertDuringInitialization();
+        this.busyPolling = busyPolling;
+    }
+
+    @ManagedAttribute
+    public boolean isBusyPolling() {
+        return busyPolling;
+    }
+
+    @Override
+    protected void initTransport() throws Exception {
+        if (!isSendToServerInsteadOfMulticast()) {
+            NetworkInterface networkInterface = getMulticastNetworkInterface();
+            if (networkInterface == null) {
+                final InetAddress address = ((InetSocketAddress) getMyAddress()).getAddress();
+                networkInterface = address != null ? NetworkInterface.getByInetAddress(address) : null;
+                if (networkInterface == null) {
+                    LOG.error("No network interface found for address {}, and multicastNetworkInterface not set!", address);
+                    throw new RuntimeException("Network interface for multicast not found for address " + address + ". Set multicastNetworkInterface.");
+                }
+            }
+            this.multicastInterface = networkInterface;
+        }
+    }
+
+    @Override
+    protected void startTransport() {
+        try {
+            this.channel = openChannel(new InetSocketAddress(getPort()), false);
+            for (int i = 1; i < getReceiveSockets(); i++)
+                openChannel(new InetSocketAddress(getPort() + i), false);
+
+            if (!isSendToServerInsteadOfMulticast()) {
+                final InetSocketAddress multicastGroup = getMulticastGroup();
+                channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, multicastInterface);
+
+                final DatagramChannel multicastChannel = openChannel(new InetSocketAddress(multicastGroup.getPort()), true);
+                LOG.info("Channel {} joining multicast group {} on network interface {}", new Object[]{multicastChannel, multicastGroup, multicastInterface});
+                multicastChannel.join(multicastGroup.getAddress(), multicastInterface);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Could not bind sockets", e);
+        }
+
+        for (Thread thread : receiveThreads)
+            thread.start();
+    }
+
+    private DatagramChannel openChannel(InetSocketAddress address, final boolean multicast) throws IOException {
+        final DatagramChannel ch = DatagramChannel.open(StandardProtocolFamily.INET);
+        if (multicast)
+            ch.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        if (getReceiveBufferSize() > 0)
+            ch.setOption(StandardSocketOptions.SO_RCVBUF, getReceiveBufferSize());
+        ch.bind(address);
+        ch.configureBlocking(!busyPolling);
+        LOG.info("Channel {} listening on port {}", ch, address.getPort());
+
+        channels.add(ch);
+        receiveThreads.add(new CommThread(new Runnable() {
+            @Override
+            public void run() {
+                receiveLoop(ch, multicast);
+            }
+        }, "udpCommReceive-" + address.getPort()));
+        return ch;
+    }
+
+    @Override
+    protected void shutdownTransport() {
+        for (DatagramChannel ch : channels) {
+            try {
+                ch.close();
+            } catch (IOException e) {
+                LOG.warn("Exception while closing channel " + ch, e);
+            }
+        }
+    }
+
+    @Override
+    protected void sendPacket(MessagePacket packet, InetSocketAddress address) {
+        final ByteBuffer buffer = sendBuffer.get();
+        buffer.clear();
+        for (ByteBuffer b : packet.toByteBuffers())
+            buffer.put(b);
+        buffer.flip();
+        try {
+            channel.send(buffer, address);
+        } catch (IOException e) {
+            LOG.error("Exception while sending packet " + packet + " to " + address, e);
+        }
+    }
+
+    private void receiveLoop(DatagramChannel ch, boolean multicast) {
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+        while (ch.isOpen()) {
+            try {
+                buffer.clear();
+                final SocketAddress sender = ch.receive(buffer);
+                if (sender == null)
+                    continue; // busy polling
+                if (multicast && sender.equals(getMyAddress()))
+                    continue; // this is our own multicast
+
+                final short node = getNode((InetSocketAddress) sender);
+                if (node < 0) {
+                    LOG.warn("Node not found for address {}. Dropping packet.", sender);
+                    continue;
+                }
+
+                buffer.flip();
+                // decoded messages keep slices of the buffer they're read from, so we can't decode the receive buffer itself
+                final ByteBuffer data = ByteBuffer.allocate(buffer.remaining());
+                data.put(buffer);
+                data.flip();
+
+                final MessagePacket packet = new MessagePacket();
+                packet.fromByteBuffer(data);
+                packet.setNode(node);
+                packetReceived(packet, sender, multicast);
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (Exception e) {
+                LOG.error("Exception while receiving packet on channel " + ch, e);
+            }
+        }
+        LOG.info("Channel {} closed.", ch);
+    }
+}
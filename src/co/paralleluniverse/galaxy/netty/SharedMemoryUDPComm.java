@@ -0,0 +1,256 @@
+/*
+ * Galaxy
+ * Copyright (C) 2012 Parallel Universe Software Co.
+ * 
+ * This file is part of Galaxy.
+ *
+ * Galaxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ *
+ * Galaxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with Galaxy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package co.paralleluniverse.galaxy.netty;
+
+import co.paralleluniverse.common.io.MappedRingBuffer;
+import co.paralleluniverse.galaxy.Cluster;
+import co.paralleluniverse.galaxy.cluster.NodeInfo;
+import co.paralleluniverse.galaxy.cluster.ReaderWriters;
+import co.paralleluniverse.galaxy.core.CommThread;
+import co.paralleluniverse.galaxy.core.ServerComm;
+import static co.paralleluniverse.galaxy.netty.IpConstants.*;
+import java.beans.ConstructorProperties;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import static java.util.concurrent.TimeUnit.*;
+import java.util.concurrent.locks.LockSupport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+
+/**
+ * A {@link UDPComm} that exchanges packets with nodes running on the same host through shared memory rather than through the network.
+ * For each co-located node (one with the same {@link IpConstants#IP_ADDRESS address} that also uses this comm) there's a pair of
+ * single-producer/single-consumer {@link MappedRingBuffer ring buffers}, one for each direction, in memory-mapped files under
+ * {@code sharedMemoryDirectory}. All other nodes, as well as multicasts, are handled by the usual UDP transport. <br/>
+ * The reliability protocol is unchanged, so a packet that doesn't fit in a full ring is simply sent over UDP, and packets lost when a node
+ * restarts and re-creates its rings are re-sent.
+ *
+ * @author pron
+ */
+public class SharedMemoryUDPComm extends UDPComm {
+    private static final Logger LOG = LoggerFactory.getLogger(SharedMemoryUDPComm.class);
+    private static final int SPINS_BEFORE_PARK = 10000;
+    private static final long PARK_NANOS = NANOSECONDS.convert(50, MICROSECONDS);
+    private static final long CHECK_FILE_NANOS = NANOSECONDS.convert(100, MILLISECONDS);
+    //
+    private File sharedMemoryDirectory = new File("/dev/shm");
+    private int ringSize = 1 << 20;
+    private final ConcurrentMap<Short, MappedRingBuffer> outgoing = new ConcurrentHashMap<Short, MappedRingBuffer>();
+    private final ConcurrentMap<Short, Incoming> incoming = new ConcurrentHashMap<Short, Incoming>();
+    private volatile boolean running;
+    private Thread pollThread;
+
+    @ConstructorProperties({"name", "cluster", "serverComm", "port"})
+    SharedMemoryUDPComm(String name, Cluster cluster, ServerComm serverComm, int port) throws Exception {
+        super(name, cluster, serverComm, port);
+        cluster.addNodeProperty(IP_COMM_SHARED_MEMORY, false, false, ReaderWriters.BOOLEAN);
+        cluster.setNodeProperty(IP_COMM_SHARED_MEMORY, Boolean.TRUE);
+    }
+
+    public void setSharedMemoryDirectory(String directory) {
+        assertDuringInitialization();
+        this.sharedMemoryDirectory = new File(directory);
+    }
+
+    @ManagedAttribute
+    public String getSharedMemoryDirectory() {
+        return sharedMemoryDirectory.getPath();
+    }
+
+    /**
+     * Sets the size, in bytes, of each ring buffer. Must be a power of two.
+     */
+    public void setRingSize(int ringSize) {
+        assertDuringInitialization();
+        if (Integer.bitCount(ringSize) != 1)
+            throw new IllegalArgumentException("ringSize must be a power of two, but was " + ringSize);
+        this.ringSize = ringSize;
+    }
+
+    @ManagedAttribute
+    public int getRingSize() {
+        return ringSize;
+    }
+
+    @ManagedAttribute
+    public int getNumSharedMemoryPeers() {
+        return outgoing.size();
+    }
+
+    @Override
+    protected void startTransport() {
+        super.startTransport();
+        this.running = true;
+        this.pollThread = new CommThread(new Runnable() {
+            @Override
+            public void run() {
+                pollLoop();
+            }
+        }, "udpCommSharedMemory");
+        pollThread.setDaemon(true);
+        pollThread.start();
+    }
+
+    @Override
+    protected void shutdownTransport() {
+        running = false;
+        if (pollThread != null) {
+            try {
+                pollThread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (short node : outgoing.keySet())
+            closeSharedMemory(node);
+        super.shutdownTransport();
+    }
+
+    @Override
+    public synchronized void nodeAdded(short id) {
+        super.nodeAdded(id);
+        if (!outgoing.containsKey(id))
+            openSharedMemory(id);
+    }
+
+    @Override
+    public synchronized void nodeSwitched(short id) {
+        closeSharedMemory(id);
+        openSharedMemory(id);
+        super.nodeSwitched(id);
+    }
+
+    @Override
+    public synchronized void nodeRemoved(short id) {
+        super.nodeRemoved(id);
+        closeSharedMemory(id);
+    }
+
+    @Override
+    protected void sendPacket(short node, MessagePacket packet, InetSocketAddress address) {
+        final MappedRingBuffer ring = outgoing.get(node);
+        if (ring != null) {
+            if (ring.offer(packet.toByteBuffers()))
+                return;
+            LOG.debug("Ring buffer {} is full. Sending packet over UDP.", ring);
+        }
+        super.sendPacket(node, packet, address);
+    }
+
+    private void openSharedMemory(short node) {
+        if (node == 0 || node == getCluster().getMyNodeId())
+            return;
+        final NodeInfo nodeInfo = getCluster().getMaster(node);
+        if (nodeInfo == null || !Boolean.TRUE.equals(nodeInfo.get(IP_COMM_SHARED_MEMORY)))
+            return;
+        final InetAddress address = (InetAddress) nodeInfo.get(IP_ADDRESS);
+        if (address == null || !address.equals(getCluster().getNodeProperty(IP_ADDRESS)))
+            return;
+        final int peerPort = (Integer) nodeInfo.get(IP_COMM_PORT);
+
+        try {
+            final MappedRingBuffer ring = MappedRingBuffer.create(ringFile(getPort(), peerPort), ringSize);
+            LOG.info("Node {} is on this host. Using shared memory ring {}", node, ring);
+            incoming.put(node, new Incoming(node, ringFile(peerPort, getPort())));
+            outgoing.put(node, ring);
+        } catch (IOException e) {
+            LOG.warn("Could not create shared memory ring for node " + node + ". Using UDP.", e);
+        }
+    }
+
+    private void closeSharedMemory(short node) {
+        incoming.remove(node);
+        final MappedRingBuffer ring = outgoing.remove(node);
+        if (ring != null) {
+            try {
+                ring.delete();
+            } catch (IOException e) {
+                LOG.warn("Could not delete file " + ring.getFile(), e);
+            }
+        }
+    }
+
+    private File ringFile(int fromPort, int toPort) {
+        return new File(sharedMemoryDirectory, "galaxy-comm-" + fromPort + "-" + toPort);
+    }
+
+    private void pollLoop() {
+        int idle = 0;
+        while (running) {
+            final long now = System.nanoTime();
+            boolean received = false;
+            for (Incoming in : incoming.values()) {
+                try {
+                    ByteBuffer data;
+                    while ((data = in.poll(now)) != null) {
+                        received = true;
+                        final MessagePacket packet = new MessagePacket();
+                        packet.fromByteBuffer(data);
+                        packet.setNode(in.node);
+                        messageReceived(packet);
+                    }
+                } catch (Exception e) {
+                    LOG.error("Exception while receiving packet from node " + in.node, e);
+                }
+            }
+            if (received)
+                idle = 0;
+            else if (++idle > SPINS_BEFORE_PARK)
+                LockSupport.parkNanos(PARK_NANOS);
+        }
+    }
+
+    /**
+     * The consumer side of a ring. Maps the peer's file once it's created, and re-maps it if the peer re-creates it.
+     */
+    private static class Incoming {
+        final short node;
+        final File file;
+        MappedRingBuffer ring;
+        long lastCheck;
+
+        Incoming(short node, File file) {
+            this.node = node;
+            this.file = file;
+            this.lastCheck = System.nanoTime() - CHECK_FILE_NANOS - 1;
+        }
+
+        ByteBuffer poll(long now) throws IOException {
+            if (now - lastCheck > CHECK_FILE_NANOS) {
+                lastCheck = now;
+                final Object key = MappedRingBuffer.fileKey(file);
+                if (key == null)
+                    ring = null;
+                else if (ring == null || !key.equals(ring.getFileKey())) {
+                    ring = MappedRingBuffer.open(file);
+                    if (ring != null)
+                        LOG.info("Receiving from node {} through shared memory ring {}", node, ring);
+                }
+            }
+            return ring != null ? ring.poll() : null;
+        }
+    }
+}
@@ -44,6 +44,7 @@ public class TcpMessagePipelineFactory implements ChannelPipelineFactory {
     private final ChannelMessageNodeResolver nodeResolver;
     private final int lengthFieldSize;
     private final Executor executor;
+    private int maxWriteBatchSize = 16 * 1024;
 
     public TcpMessagePipelineFactory(Logger logger, DefaultChannelGroup channelGroup, Executor executor) {
         this.logger = logger;
@@ -53,9 +54,22 @@ public class TcpMessagePipelineFactory implements ChannelPipelineFactory {
         this.executor = executor;
     }
 
+    /**
+     * Sets the maximum number of bytes gathered into a single socket write. Zero disables write coalescing.
+     */
+    public void setMaxWriteBatchSize(int maxWriteBatchSize) {
+        this.maxWriteBatchSize = maxWriteBatchSize;
+    }
+
+    public int getMaxWriteBatchSize() {
+        return maxWriteBatchSize;
+    }
+
     @Override
     public ChannelPipeline getPipeline() throws Exception {
         final ChannelPipeline pipeline = Channels.pipeline();
+        if (maxWriteBatchSize > 0)
+            pipeline.addLast("writeCoalescer", new WriteCoalescingHandler(maxWriteBatchSize)); // below the frame encoder
         pipeline.addLast("frameDecoder", new LengthFieldBasedFrameDecoder((int) ((1L << (lengthFieldSize * 8)) - 1) & (-1 >>> 1), 0, lengthFieldSize, 0, lengthFieldSize));
         pipeline.addLast("frameEncoder", new LengthFieldPrepender(lengthFieldSize, false));
         if (executor != null)
@@ -100,6 +100,47 @@ public class TcpSlaveComm extends ClusterService implements SlaveComm {
         server.setReceiveExecutor(executor);
         client.setReceiveExecutor(executor);
     }
+
+    public void setMaxWriteBatchSize(int maxWriteBatchSize) {
+        assertDuringInitialization();
+        server.setMaxWriteBatchSize(maxWriteBatchSize);
+        client.setMaxWriteBatchSize(maxWriteBatchSize);
+    }
+
+    @ManagedAttribute
+    public int getMaxWriteBatchSize() {
+        return server.getMaxWriteBatchSize();
+    }
+
+    public void setReplicationThreads(int replicationThreads) {
+        assertDuringInitialization();
+        server.setReplicationThreads(replicationThreads);
+    }
+
+    @ManagedAttribute
+    public int getReplicationThreads() {
+        return server.getReplicationThreads();
+    }
+
+    public void setReplicationBatchSize(int replicationBatchSize) {
+        assertDuringInitialization();
+        server.setReplicationBatchSize(replicationBatchSize);
+    }
+
+    @ManagedAttribute
+    public int getReplicationBatchSize() {
+        return server.getReplicationBatchSize();
+    }
+
+    public void setReplicationBytesPerSecond(long replicationBytesPerSecond) {
+        assertDuringInitialization();
+        server.setReplicationBytesPerSecond(replicationBytesPerSecond);
+    }
+
+    @ManagedAttribute
+    public long getReplicationBytesPerSecond() {
+        return server.getReplicationBytesPerSecond();
+    }
     
     @Override
     protected void start(boolean master) {
@@ -38,12 +38,17 @@ import java.beans.ConstructorProperties;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelHandler;
@@ -56,15 +61,25 @@ import org.jboss.netty.channel.group.ChannelGroupFuture;
 import org.jboss.netty.channel.group.DefaultChannelGroup;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
 
 /**
- * Right now, because we can only have one slave anyway (due to consensus), this class has been simplified and assumes one slave.
- * If and when this is fixed, it's ok to assume one backup packet at a time, i.e., we don't send a new one until we get a
- * response. This is because backups are asynchronous, and BackupImpl buffers them.
+ * Serves any number of slaves. Each slave gets its own replication stream: when a slave connects, all owned lines are replicated to it
+ * by dedicated threads, which only write to the slave's channel while it's writable, so a slow slave doesn't hold back the others
+ * (see {@link Replicator}).
  *
- * With INVs, however, things are more complicated, as they are synchronous, and we'd like to send them as fast as possible, and
- * not wait until the previous has been acked by all before we inform Backup, so it's a little more effort to keep track of
- * multiple slaves (it would simply require some more bookkeeping).
+ * Backup packets and INVs are written to all connected slaves, and we keep track of which slaves have yet to acknowledge each of them.
+ * Every time a slave acks (or goes away) Backup is told how many slaves have acked and how many the message has been sent to, and it
+ * decides whether the acknowledgement quorum has been reached. It's ok to assume one backup packet at a time, i.e., Backup doesn't
+ * send a new one until the previous has been acked by the quorum, because backups are asynchronous, and BackupImpl buffers them. But
+ * as a packet may be acked by a quorum before all slaves have acked it, there may be more than one packet waiting for acks from the
+ * slower slaves.
+ *
+ * With INVs, things are more complicated, as they are synchronous, and we'd like to send them as fast as possible, and
+ * not wait until the previous has been acked by all before we inform Backup. The same line may even be INVed again while a slow
+ * slave has yet to ack the previous INV, so we keep the INVs of each line in order, and, because each slave processes its messages
+ * in order, attribute a slave's INVACK to the first INV that slave hasn't acked yet. As INVACKs carry only the line, it's us, rather
+ * than Backup, who tell when each INV reaches the quorum, and Backup is told once per INV, when it does.
  *
  * @author pron
  */
@@ -77,10 +92,15 @@ final class TcpSlaveServerComm extends AbstractTcpServer implements SlaveComm {
 
     private static final Logger LOG = LoggerFactory.getLogger(TcpSlaveServerComm.class);
     private Backup backup;
-    private boolean sentSlave; // Set<Channel> sentSlaves; use a simple flag for one server, just to keep track. not really necessary with one slave.
-    private final ConcurrentMap<Channel, Iterator<BACKUP>> replIters = new ConcurrentHashMap<Channel, Iterator<BACKUP>>();
-    private long lastId;
-    private volatile Thread replThread;
+    private final Map<Long, LinkedList<Pending>> pendingPackets = new HashMap<Long, LinkedList<Pending>>(); // guarded by this
+    private final Map<Long, LinkedList<Pending>> pendingInvs = new HashMap<Long, LinkedList<Pending>>(); // guarded by this
+    private final ConcurrentMap<Channel, Replicator> replicators = new ConcurrentHashMap<Channel, Replicator>();
+    private int replicationThreads = 2;
+    private int replicationBatchSize = 256;
+    private long replicationBytesPerSecond = 0;
+    private Throttle replicationThrottle;
+    private long invSequence; // guarded by this
+    private long nextReplicationId = -2; // guarded by this. -1 marks the end of the replication stream
 
     @ConstructorProperties({"name", "cluster", "port"})
     public TcpSlaveServerComm(String name, Cluster cluster, int port) throws Exception {
@@ -122,6 +142,50 @@ final class TcpSlaveServerComm extends AbstractTcpServer implements SlaveComm {
         this.backup = backup;
     }
 
+    /**
+     * Sets the number of threads replicating the owned lines to each new slave.
+     */
+    public void setReplicationThreads(int replicationThreads) {
+        assertDuringInitialization();
+        if (replicationThreads < 1)
+            throw new IllegalArgumentException("replicationThreads must be at least 1, but was " + replicationThreads);
+        this.replicationThreads = replicationThreads;
+    }
+
+    @ManagedAttribute
+    public int getReplicationThreads() {
+        return replicationThreads;
+    }
+
+    /**
+     * Sets the number of lines written together to a new slave during replication.
+     */
+    public void setReplicationBatchSize(int replicationBatchSize) {
+        assertDuringInitialization();
+        if (replicationBatchSize < 1)
+            throw new IllegalArgumentException("replicationBatchSize must be at least 1, but was " + replicationBatchSize);
+        this.replicationBatchSize = replicationBatchSize;
+    }
+
+    @ManagedAttribute
+    public int getReplicationBatchSize() {
+        return replicationBatchSize;
+    }
+
+    /**
+     * Sets the maximum rate, in bytes of line data per second, at which owned lines are replicated to new slaves (all of them together).
+     * 0 means no limit.
+     */
+    public void setReplicationBytesPerSecond(long replicationBytesPerSecond) {
+        assertDuringInitialization();
+        this.replicationBytesPerSecond = replicationBytesPerSecond;
+    }
+
+    @ManagedAttribute
+    public long getReplicationBytesPerSecond() {
+        return replicationBytesPerSecond;
+    }
+
     @Override
     protected void postInit() throws Exception {
         super.postInit();
@@ -130,6 +194,8 @@ final class TcpSlaveServerComm extends AbstractTcpServer implements SlaveComm {
     @Override
     protected void init() throws Exception {
         super.init();
+        if (replicationBytesPerSecond > 0)
+            this.replicationThrottle = new Throttle(replicationBytesPerSecond);
     }
 
     @Override
@@ -139,22 +205,20 @@ final class TcpSlaveServerComm extends AbstractTcpServer implements SlaveComm {
 
     @Override
     protected void start(boolean master) {
-        if (master) {
+        if (master)
             bind();
-            startReplicationThread();
-        }
     }
 
     @Override
     public void switchToMaster() {
         super.switchToMaster();
         bind();
-        startReplicationThread();
     }
 
     @Override
     public void shutdown() {
-        replThread.interrupt();
+        for (Replicator replicator : replicators.values())
+            replicator.interrupt();
         super.shutdown();
     }
 
@@ -165,9 +229,6 @@ final class TcpSlaveServerComm extends AbstractTcpServer implements SlaveComm {
 
             @Override
             public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
-                if (getChannels().size() > 2) { // 2 b/c one is the server channel
-                    throw new RuntimeException("Only one slave is currently supported! - " + new ArrayList<Channel>(getChannels()));
-                }
                 final InetAddress remoteAddress = ((InetSocketAddress) ctx.getChannel().getRemoteAddress()).getAddress();
                 if (getCluster().getNodesByProperty(IP_ADDRESS, remoteAddress).isEmpty()) {
                     LOG.warn("An attempt to connect from an unrecognized address {}. No registered cluster node has this address.", remoteAddress);
@@ -175,17 +236,26 @@ final class TcpSlaveServerComm extends AbstractTcpServer implements SlaveComm {
                     return;
                 }
 
-                replIters.put(ctx.getChannel(), backup.iterOwned());
-                synchronized (replIters) {
-                    replIters.notify();
-                }
+                final Replicator replicator = new Replicator(ctx.getChannel());
+                replicators.put(ctx.getChannel(), replicator);
+                replicator.start();
                 super.channelConnected(ctx, e);
             }
 
+            @Override
+            public void channelInterestChanged(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+                final Replicator replicator = replicators.get(ctx.getChannel());
+                if (replicator != null)
+                    replicator.writabilityChanged();
+                super.channelInterestChanged(ctx, e);
+            }
+
             @Override
             public void channelDisconnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
-                ack(ctx, null);
-                replIters.remove(ctx.getChannel());
+                final Replicator replicator = replicators.remove(ctx.getChannel());
+                if (replicator != null)
+                    replicator.interrupt();
+                slaveRemoved(ctx.getChannel());
                 super.channelDisconnected(ctx, e);
             }
 
@@ -208,29 +278,114 @@ final class TcpSlaveServerComm extends AbstractTcpServer implements SlaveComm {
     }
 
     private void ack(ChannelHandlerContext ctx, BACKUP_PACKETACK ack) {
+        if (ack.getId() < 0)
+            return; // a replication batch
+        final Pending pending;
+        synchronized (this) {
+            final Pending p = ack(pendingPackets, ack.getId(), ctx.getChannel());
+            pending = p != null ? p.snapshot() : null;
+        }
+        if (pending == null) {
+            LOG.warn("Received backup ack id {} from slave {}, which isn't waiting for it", ack.getId(), ctx.getChannel());
+            return;
+        }
+        LOG.debug("Received backup ack from slave {}", ctx.getChannel());
+        backup.slavesAck(ack.getId(), pending.acks, pending.slaves);
+    }
+
+    private void invack(ChannelHandlerContext ctx, LineMessage invack) {
+        final Pending pending;
+        final boolean done;
+        synchronized (this) {
+            pending = ack(pendingInvs, invack.getLine(), ctx.getChannel());
+            done = pending != null && completeInv(pending);
+        }
+        if (pending == null) {
+            LOG.warn("Received INVACK for line {} from slave {}, which isn't waiting for it", invack.getLine(), ctx.getChannel());
+            return;
+        }
+        if (done)
+            backup.slavesInvAck(invack.getLine());
+    }
+
+    /**
+     * Marks the INV as done if it has reached the quorum and hasn't been reported to Backup yet.
+     *
+     * @return {@code true} if Backup should now be told the INV is done.
+     */
+    private boolean completeInv(Pending pending) {
+        assert Thread.holdsLock(this);
+        if (pending.done || !backup.isSlaveAckQuorum(pending.acks, pending.slaves))
+            return false;
+        pending.done = true;
+        return true;
+    }
+
+    /**
+     * Attributes the ack to the first message with the given id the channel hasn't acked yet.
+     *
+     * @return the message, or {@code null} if the channel wasn't waiting for an ack.
+     */
+    private Pending ack(Map<Long, LinkedList<Pending>> pendingMap, long id, Channel channel) {
+        assert Thread.holdsLock(this);
+        final LinkedList<Pending> pendings = pendingMap.get(id);
+        if (pendings == null)
+            return null;
+        for (Iterator<Pending> it = pendings.iterator(); it.hasNext();) {
+            final Pending pending = it.next();
+            if (pending.waiting.remove(channel)) {
+                pending.acks++;
+                if (pending.waiting.isEmpty())
+                    it.remove();
+                if (pendings.isEmpty())
+                    pendingMap.remove(id);
+                return pending;
+            }
+        }
+        return null;
+    }
 
-//        boolean allAck = false;
+    /**
+     * A slave that has gone away no longer counts towards the acknowledgement of any outstanding message.
+     */
+    void slaveRemoved(Channel channel) { // visible for testing
+        final List<Map.Entry<Long, Pending>> packets = new ArrayList<Map.Entry<Long, Pending>>();
+        final List<Long> invs = new ArrayList<Long>();
         synchronized (this) {
-            if (ack != null && ack.getId() != lastId) {
-                LOG.warn("Received backup ack id {} which is different from last sent: {}", ack.getId(), lastId);
-                return;
+            for (Map.Entry<Long, Pending> entry : slaveRemoved(pendingPackets, channel))
+                packets.add(Maps.immutableEntry(entry.getKey(), entry.getValue().snapshot()));
+            for (Map.Entry<Long, Pending> entry : slaveRemoved(pendingInvs, channel)) {
+                if (completeInv(entry.getValue()))
+                    invs.add(entry.getKey());
             }
-//            if (sentSlaves == null || !sentSlaves.remove(ctx.getChannel())) {
-//                LOG.warn("Received backup ack from an unexpected node {}", ctx.getChannel());
-//                return;
-//            }
-            LOG.debug("Received backup ack from slave {}", ctx.getChannel());
-//            if (sentSlaves.isEmpty()) {
-            sentSlave = false;
-//                allAck = true;
-//            }
         }
-//        if (allAck)
-        backup.slavesAck(lastId);
+        for (Map.Entry<Long, Pending> entry : packets)
+            backup.slavesAck(entry.getKey(), entry.getValue().acks, entry.getValue().slaves);
+        for (long line : invs)
+            backup.slavesInvAck(line);
     }
 
-    private void invack(ChannelHandlerContext ctx, LineMessage invack) {
-        backup.slavesInvAck(invack.getLine());
+    /**
+     * @return the messages the channel was waiting for (not snapshots).
+     */
+    private List<Map.Entry<Long, Pending>> slaveRemoved(Map<Long, LinkedList<Pending>> pendingMap, Channel channel) {
+        assert Thread.holdsLock(this);
+        final List<Map.Entry<Long, Pending>> changed = new ArrayList<Map.Entry<Long, Pending>>();
+        for (Iterator<Map.Entry<Long, LinkedList<Pending>>> it = pendingMap.entrySet().iterator(); it.hasNext();) {
+            final Map.Entry<Long, LinkedList<Pending>> entry = it.next();
+            for (Iterator<Pending> it1 = entry.getValue().iterator(); it1.hasNext();) {
+                final Pending pending = it1.next();
+                if (pending.waiting.remove(channel)) {
+                    pending.slaves--;
+                    if (pending.waiting.isEmpty())
+                        it1.remove();
+                    changed.add(Maps.immutableEntry(entry.getKey(), pending));
+                }
+            }
+            if (entry.getValue().isEmpty())
+                it.remove();
+        }
+        return changed;
     }
 
     private static NodeInfo getNodeInfo(Channel channel) {
@@ -239,9 +394,6 @@ final class TcpSlaveServerComm extends AbstractTcpServer implements SlaveComm {
 
     @Override
     public synchronized boolean send(Message message) {
-        if (message.getType() == Message.Type.BACKUP_PACKET && sentSlave)
-            throw new RuntimeException("Previous backup not handled yet!");
-
         if (!message.isResponse())
             message.setMessageId(nextMessageId());
         LOG.debug("Send {}", message);
@@ -257,15 +409,17 @@ final class TcpSlaveServerComm extends AbstractTcpServer implements SlaveComm {
         } else
             LOG.debug("Sending to slaves: {}", slaves);
 
-        if (slaves.size() > 1)
-            throw new RuntimeException("Only one slave is currently supported! - " + slaves);
-
         switch (message.getType()) {
             case INV:
+                addPending(pendingInvs, ((LineMessage) message).getLine(), slaves);
+                if (!replicators.isEmpty()) {
+                    invSequence++;
+                    for (Replicator replicator : replicators.values())
+                        replicator.invalidated(((LineMessage) message).getLine(), invSequence);
+                }
                 return true;
             case BACKUP_PACKET:
-                lastId = ((BACKUP_PACKET) message).getId();
-                sentSlave = true;
+                addPending(pendingPackets, ((BACKUP_PACKET) message).getId(), slaves);
                 return true;
             default:
                 LOG.warn("Unhandled message: {}", message);
@@ -274,6 +428,30 @@ final class TcpSlaveServerComm extends AbstractTcpServer implements SlaveComm {
 
     }
 
+    private synchronized long invSequence() {
+        return invSequence;
+    }
+
+    private void reportReplicationProgress() {
+        long remaining = 0;
+        long eta = 0;
+        for (Replicator replicator : replicators.values()) {
+            remaining += replicator.getRemaining();
+            eta = Math.max(eta, replicator.getEtaMillis());
+        }
+        backup.replicationProgress(remaining, eta);
+    }
+
+    private void addPending(Map<Long, LinkedList<Pending>> pendingMap, long id, Set<Channel> slaves) {
+        assert Thread.holdsLock(this);
+        LinkedList<Pending> pendings = pendingMap.get(id);
+        if (pendings == null) {
+            pendings = new LinkedList<Pending>();
+            pendingMap.put(id, pendings);
+        }
+        pendings.add(new Pending(slaves));
+    }
+
     @Override
     protected ChannelGroup getChannels() {
         return (ChannelGroup) super.getChannels();
@@ -341,49 +519,191 @@ final class TcpSlaveServerComm extends AbstractTcpServer implements SlaveComm {
 
     }
 
-    private void startReplicationThread() {
-        if (this.replThread != null)
-            return;
-        this.replThread = new Thread(new Runnable() {
+    /**
+     * A message sent to the slaves and not yet acked by all of them.
+     */
+    private static class Pending {
+        final Set<Channel> waiting;
+        int acks;
+        int slaves;
+        boolean done; // an INV that's been reported to Backup
+
+        Pending(Set<Channel> slaves) {
+            this.waiting = slaves;
+            this.slaves = slaves.size();
+        }
 
-            @Override
-            public void run() {
-                try {
-                    while (!Thread.interrupted()) {
-                        synchronized (replIters) {
-                            while (replIters.isEmpty())
-                                replIters.wait();
-                        }
+        Pending(int acks, int slaves) {
+            this.waiting = null;
+            this.acks = acks;
+            this.slaves = slaves;
+        }
+
+        Pending snapshot() {
+            return new Pending(acks, slaves);
+        }
+    }
+
+    /**
+     * Replicates all owned lines to a newly connected slave. The owned lines are partitioned among {@code replicationThreads} workers, each
+     * of which copies the lines in its partition and writes them to the slave in batches (as backup packets with negative ids, whose acks
+     * are ignored), only while the channel is writable, and within the bandwidth budget. The end of the stream is marked once all workers
+     * are done. <br/>
+     * Live backup packets and INVs are written to the slave while it's being replicated to. A backup packet may overtake a batch
+     * containing an older version of one of its lines (or the other way around), but the slave keeps the newer version. An INV must not
+     * be overtaken, though, or the slave would think we own a line we've given away, so a batch drops the lines that have been INVed
+     * since the worker started copying it. As both INVs and batches are written under the comm's lock, an INV is written either before
+     * a batch that drops its line, or after a batch that contains it.
+     */
+    private class Replicator extends Thread {
+        private final Channel channel;
+        private final long total;
+        private final AtomicLong replicated = new AtomicLong();
+        private final long startNanos = System.nanoTime();
+        private final Map<Long, Long> invalidated = new HashMap<Long, Long>(); // line -> invSequence of its last INV; guarded by TcpSlaveServerComm.this
+
+        Replicator(Channel channel) {
+            super("backup-replication-" + channel.getRemoteAddress());
+            this.channel = channel;
+            this.total = backup.getNumOwned();
+            setDaemon(true);
+            setPriority(Thread.NORM_PRIORITY - 1);
+        }
 
-                        for (Iterator<Map.Entry<Channel, Iterator<BACKUP>>> entryIter = replIters.entrySet().iterator(); entryIter.hasNext();) {
-                            final Map.Entry<Channel, Iterator<BACKUP>> entry = entryIter.next();
-                            final Channel channel = entry.getKey();
-                            final Iterator<BACKUP> iter = entry.getValue();
-
-                            for (int i = 0; i < 10; i++) {
-                                if (iter.hasNext()) {
-                                    final BACKUP backup = iter.next();
-                                    LOG.debug("Replicating {} to channel {}", backup, channel);
-                                    channel.write(backup);
-                                } else {
-                                    channel.write(Message.BACKUP(-1, -1, null)); // marks the end of the stream
-                                    LOG.debug("Finished replicating to channel {}", channel);
-                                    entryIter.remove(); // we're done
-                                    break;
-                                }
+        synchronized void writabilityChanged() {
+            notifyAll();
+        }
+
+        @Override
+        public void run() {
+            final Thread[] workers = new Thread[replicationThreads];
+            try {
+                final List<Iterator<BACKUP>> iters = backup.iterOwned(workers.length);
+                for (int i = 0; i < workers.length; i++) {
+                    final Iterator<BACKUP> iter = iters.get(i);
+                    workers[i] = new Thread(getName() + "-" + i) {
+                        @Override
+                        public void run() {
+                            try {
+                                replicate(iter);
+                            } catch (InterruptedException e) {
                             }
                         }
+                    };
+                    workers[i].setDaemon(true);
+                    workers[i].setPriority(Thread.NORM_PRIORITY - 1);
+                    workers[i].start();
+                }
+                for (Thread worker : workers)
+                    worker.join();
+                if (!channel.isConnected())
+                    return;
+                channel.write(Message.BACKUP(-1, -1, null)); // marks the end of the stream
+                LOG.info("Finished replicating {} lines to channel {} in {} ms", new Object[]{replicated.get(), channel,
+                            TimeUnit.MILLISECONDS.convert(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS)});
+            } catch (InterruptedException e) {
+                LOG.info("Replication to channel {} interrupted", channel);
+                for (Thread worker : workers) {
+                    if (worker != null)
+                        worker.interrupt();
+                }
+            } finally {
+                replicators.remove(channel, this);
+                reportReplicationProgress();
+            }
+        }
+
+        private void replicate(Iterator<BACKUP> iter) throws InterruptedException {
+            List<BACKUP> batch = new ArrayList<BACKUP>(replicationBatchSize);
+            int bytes = 0;
+            long since = invSequence();
+            while (iter.hasNext()) {
+                if (!channel.isConnected() || isInterrupted())
+                    return;
+                final BACKUP backup = iter.next();
+                if (backup == null)
+                    continue;
+                batch.add(backup);
+                bytes += backup.getData() != null ? backup.getData().remaining() : 0;
+                if (batch.size() >= replicationBatchSize) {
+                    write(batch, bytes, since);
+                    batch = new ArrayList<BACKUP>(replicationBatchSize);
+                    bytes = 0;
+                    since = invSequence();
+                }
+            }
+            if (!batch.isEmpty())
+                write(batch, bytes, since);
+        }
+
+        private void write(List<BACKUP> batch, int bytes, long since) throws InterruptedException {
+            synchronized (this) {
+                while (!channel.isWritable() && channel.isConnected())
+                    wait(100);
+            }
+            if (replicationThrottle != null)
+                replicationThrottle.acquire(bytes);
+
+            final int count = batch.size();
+            synchronized (TcpSlaveServerComm.this) {
+                if (!invalidated.isEmpty()) {
+                    for (Iterator<BACKUP> it = batch.iterator(); it.hasNext();) {
+                        final Long inv = invalidated.get(it.next().getLine());
+                        if (inv != null && inv > since)
+                            it.remove();
                     }
-                } catch (InterruptedException e) {
                 }
-                LOG.info("Replication thread interrupted");
+                if (!batch.isEmpty()) {
+                    final BACKUP_PACKET packet = Message.BACKUP_PACKET(nextReplicationId--, batch);
+                    LOG.debug("Replicating {} to channel {}", packet, channel);
+                    channel.write(packet);
+                }
             }
+            replicated.addAndGet(count);
+            reportReplicationProgress();
+        }
 
-        });
-        replThread.setName("backup-replication");
-        replThread.setDaemon(true);
-        replThread.setPriority(Thread.NORM_PRIORITY - 1);
-        replThread.start();
+        void invalidated(long line, long sequence) {
+            assert Thread.holdsLock(TcpSlaveServerComm.this);
+            invalidated.put(line, sequence);
+        }
+
+        long getRemaining() {
+            return Math.max(0, total - replicated.get());
+        }
+
+        long getEtaMillis() {
+            final long done = replicated.get();
+            if (done == 0)
+                return -1;
+            final long elapsedMillis = TimeUnit.MILLISECONDS.convert(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+            return elapsedMillis * getRemaining() / done;
+        }
     }
 
+    /**
+     * Limits the rate at which bytes are written. Each writer is allowed to write once the previous writers' bytes would have been
+     * written at the permitted rate.
+     */
+    private static class Throttle {
+        private final long nanosPerByte;
+        private long next = System.nanoTime();
+
+        Throttle(long bytesPerSecond) {
+            this.nanosPerByte = Math.max(1, TimeUnit.SECONDS.toNanos(1) / bytesPerSecond);
+        }
+
+        void acquire(int bytes) throws InterruptedException {
+            final long wait;
+            synchronized (this) {
+                final long now = System.nanoTime();
+                if (next < now)
+                    next = now;
+                wait = next - now;
+                next += bytes * nanosPerByte;
+            }
+            if (wait > 0)
+                TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
 }
@@ -22,6 +22,7 @@ package co.paralleluniverse.galaxy.netty;
 import co.paralleluniverse.common.concurrent.CustomThreadFactory;
 import co.paralleluniverse.common.monitoring.ThreadPoolExecutorMonitor;
 import co.paralleluniverse.galaxy.Cluster;
+import co.paralleluniverse.galaxy.cluster.NodeInfo;
 import co.paralleluniverse.galaxy.cluster.ReaderWriters;
 import co.paralleluniverse.galaxy.core.AbstractComm;
 import co.paralleluniverse.galaxy.core.Comm;
@@ -46,7 +47,6 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -93,6 +93,10 @@ public class UDPComm extends AbstractComm<InetSocketAddress> {
     private boolean jitter = false;
     private boolean exponentialBackoff = true;
     private int minimumNodesToMulticast = 3;
+    private int receiveSockets = 1;
+    private int receiveBufferSize;
+    private int coherenceTrafficWeight = 4;
+    private int messageTrafficWeight = 1;
     private ThreadPoolExecutor workerExecutor;
     private OrderedMemoryAwareThreadPoolExecutor receiveExecutor;
     //
@@ -101,6 +105,7 @@ public class UDPComm extends AbstractComm<InetSocketAddress> {
     private ConnectionlessBootstrap bootstrap;
     private DatagramChannel channel;
     private DatagramChannel multicastChannel;
+    private final List<DatagramChannel> receiveChannels = new ArrayList<DatagramChannel>();
     private BroadcastPeer broadcastPeer = new BroadcastPeer();
     private SocketAddress myAddress;
     private final ConcurrentMap<Short, NodePeer> peers = new ConcurrentHashMap<Short, NodePeer>();
@@ -115,6 +120,8 @@ public class UDPComm extends AbstractComm<InetSocketAddress> {
 
         cluster.addNodeProperty(IP_COMM_PORT, true, false, ReaderWriters.INTEGER);
         cluster.setNodeProperty(IP_COMM_PORT, port);
+        cluster.addNodeProperty(IP_COMM_RECEIVE_SOCKETS, true, false, ReaderWriters.INTEGER);
+        cluster.setNodeProperty(IP_COMM_RECEIVE_SOCKETS, receiveSockets);
 
         this.monitor = new UDPCommMonitor(name, this);
     }
@@ -124,9 +131,63 @@ public class UDPComm extends AbstractComm<InetSocketAddress> {
         return port;
     }
 
+    /**
+     * Sets the number of sockets this node receives packets on. The sockets are bound to consecutive ports starting at {@code port}, and each
+     * peer sends all of its packets to the same one, chosen by its node id, so packets from a given node are still received in order, while
+     * packets from different nodes may be received in parallel.
+     */
+    public void setReceiveSockets(int receiveSockets) {
+        assertDuringInitialization();
+        if (receiveSockets < 1)
+            throw new IllegalArgumentException("receiveSockets must be at least 1, but was " + receiveSockets);
+        this.receiveSockets = receiveSockets;
+        getCluster().setNodeProperty(IP_COMM_RECEIVE_SOCKETS, receiveSockets);
+    }
+
+    @ManagedAttribute
+    public int getReceiveSockets() {
+        return receiveSockets;
+    }
+
+    /**
+     * Sets the number of consecutive cache-coherence messages to put in a packet, when user messages ({@code MSG}s) are also waiting,
+     * before letting user messages in.
+     */
+    public void setCoherenceTrafficWeight(int coherenceTrafficWeight) {
+        assertDuringInitialization();
+        if (coherenceTrafficWeight < 1)
+            throw new IllegalArgumentException("coherenceTrafficWeight must be at least 1, but was " + coherenceTrafficWeight);
+        this.coherenceTrafficWeight = coherenceTrafficWeight;
+    }
+
+    @ManagedAttribute
+    public int getCoherenceTrafficWeight() {
+        return coherenceTrafficWeight;
+    }
+
+    /**
+     * Sets the number of consecutive user messages ({@code MSG}s) to put in a packet, when cache-coherence messages are also waiting,
+     * before letting cache-coherence messages in.
+     */
+    public void setMessageTrafficWeight(int messageTrafficWeight) {
+        assertDuringInitialization();
+        if (messageTrafficWeight < 1)
+            throw new IllegalArgumentException("messageTrafficWeight must be at least 1, but was " + messageTrafficWeight);
+        this.messageTrafficWeight = messageTrafficWeight;
+    }
+
+    @ManagedAttribute
+    public int getMessageTrafficWeight() {
+        return messageTrafficWeight;
+    }
+
     public void setReceiveBufferSize(int size) {
         assertDuringInitialization();
-        bootstrap.setOption("receiveBufferSize", size);
+        this.receiveBufferSize = size;
+    }
+
+    int getReceiveBufferSize() {
+        return receiveBufferSize;
     }
 
     public void setMulticastGroup(InetSocketAddress group) {
@@ -134,6 +195,10 @@ public class UDPComm extends AbstractComm<InetSocketAddress> {
         this.multicastGroup = group;
     }
 
+    InetSocketAddress getMulticastGroup() {
+        return multicastGroup;
+    }
+
     @ManagedAttribute
     public String getMulticastGroupName() {
         return multicastGroup.toString();
@@ -144,6 +209,10 @@ public class UDPComm extends AbstractComm<InetSocketAddress> {
         this.multicastNetworkInterface = multicastNetworkInterface;
     }
 
+    NetworkInterface getMulticastNetworkInterface() {
+        return multicastNetworkInterface;
+    }
+
     @ManagedAttribute
     public String getMulticastNetworkInterfaceName() {
         return multicastNetworkInterface.toString();
@@ -279,6 +348,15 @@ public class UDPComm extends AbstractComm<InetSocketAddress> {
         //this.myAddress = new InetSocketAddress(InetAddress.getLocalHost(), port);
         this.myAddress = new InetSocketAddress((InetAddress)getCluster().getNodeProperty(IP_ADDRESS), port);
 
+        initTransport();
+
+        monitor.registerMBean();
+    }
+
+    /**
+     * Sets up the network transport. Called by {@link #init() init}.
+     */
+    protected void initTransport() throws Exception {
         configureThreadPool(getWorkerExecutorName(), workerExecutor);
 
         if (receiveExecutor != null)
@@ -296,12 +374,7 @@ public class UDPComm extends AbstractComm<InetSocketAddress> {
 
                     @Override
                     public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) {
-                        if (ctx.getChannel() == multicastChannel) {
-                            if (e.getRemoteAddress().equals(myAddress))
-                                return; // this is our own multicast
-                            ((MessagePacket) e.getMessage()).setMulticast();
-                        }
-                        UDPComm.this.messageReceived((MessagePacket) e.getMessage());
+                        packetReceived((MessagePacket) e.getMessage(), e.getRemoteAddress(), ctx.getChannel() == multicastChannel);
                     }
 
                     @Override
@@ -319,8 +392,8 @@ public class UDPComm extends AbstractComm<InetSocketAddress> {
 
         bootstrap.setOption("localAddress", new InetSocketAddress(port));
         bootstrap.setOption("tcpNoDelay", true);
-
-        monitor.registerMBean();
+        if (receiveBufferSize > 0)
+            bootstrap.setOption("receiveBufferSize", receiveBufferSize);
     }
 
     private void configureThreadPool(String name, ThreadPoolExecutor executor) {
@@ -345,8 +418,21 @@ public class UDPComm extends AbstractComm<InetSocketAddress> {
 
     @Override
     public void start(boolean master) {
+        startTransport();
+        setReady(true);
+    }
+
+    /**
+     * Binds the sockets and starts receiving packets. Called by {@link #start(boolean) start}.
+     */
+    protected void startTransport() {
         this.channel = (DatagramChannel) bootstrap.bind();
         LOG.info("Channel {} listening on port {}", channel, port);
+        for (int i = 1; i < receiveSockets; i++) {
+            final DatagramChannel receiveChannel = (DatagramChannel) bootstrap.bind(new InetSocketAddress(port + i));
+            LOG.info("Channel {} listening on port {}", receiveChannel, port + i);
+            receiveChannels.add(receiveChannel);
+        }
         if (!isSendToServerInsteadOfMulticast()) {
 
             final int multicastPort = multicastGroup.getPort();
@@ -360,18 +446,30 @@ public class UDPComm extends AbstractComm<InetSocketAddress> {
             }
         } else
             this.multicastChannel = null;
-        setReady(true);
     }
 
     @Override
     public void shutdown() {
         LOG.info("Shutting down.");
         monitor.unregisterMBean();
+        shutdownTransport();
+    }
+
+    /**
+     * Closes the sockets and releases the transport's resources. Called by {@link #shutdown() shutdown}.
+     */
+    protected void shutdownTransport() {
         if (channel != null)
             channel.close();
+        for (DatagramChannel receiveChannel : receiveChannels)
+            receiveChannel.close();
         channelFactory.releaseExternalResources();
     }
 
+    SocketAddress getMyAddress() {
+        return myAddress;
+    }
+
     // for testing only
     void setChannel(DatagramChannel channel) {
         this.channel = channel;
@@ -441,6 +539,43 @@ public class UDPComm extends AbstractComm<InetSocketAddress> {
         }
     }
 
+    /**
+     * Sends a packet over the network.
+     *
+     * @param packet the packet
+     * @param address the packet's destination (a node or the multicast group)
+     */
+    protected void sendPacket(MessagePacket packet, InetSocketAddress address) {
+        channel.write(packet, address);
+    }
+
+    /**
+     * Sends a packet to a node. By default, simply calls {@link #sendPacket(MessagePacket, InetSocketAddress) sendPacket(packet, address)}.
+     *
+     * @param node the destination node
+     * @param packet the packet
+     * @param address the node's address
+     */
+    protected void sendPacket(short node, MessagePacket packet, InetSocketAddress address) {
+        sendPacket(packet, address);
+    }
+
+    /**
+     * Called by the transport when a packet is received. The packet's node must already be set.
+     *
+     * @param packet the packet
+     * @param sender the address the packet was sent from
+     * @param multicast whether the packet was received on the multicast socket
+     */
+    void packetReceived(MessagePacket packet, SocketAddress sender, boolean multicast) {
+        if (multicast) {
+            if (sender.equals(myAddress))
+                return; // this is our own multicast
+            packet.setMulticast();
+        }
+        messageReceived(packet);
+    }
+
     // visible for testing
     void messageReceived(MessagePacket packet) {
         if(!getCluster().isMaster())
@@ -472,7 +607,7 @@ public class UDPComm extends AbstractComm<InetSocketAddress> {
             return;
         final NodePeer peer = new NodePeer(id);
         LOG.info("Adding peer {} for node {}", peer, id);
-        peer.setAddress(getNodeAddress(id));
+        peer.setAddress(getPeerAddress(id));
         peers.put(id, peer);
     }
 
@@ -481,7 +616,7 @@ public class UDPComm extends AbstractComm<InetSocketAddress> {
         super.nodeSwitched(id);
         final NodePeer peer = peers.get(id);
         LOG.info("Node switched. Fixing peer {}", peer);
-        peer.setAddress(getNodeAddress(id));
+        peer.setAddress(getPeerAddress(id));
         executor.submit(peer); // resend
         executor.submit(broadcastPeer); // resend
     }
@@ -496,11 +631,27 @@ public class UDPComm extends AbstractComm<InetSocketAddress> {
         broadcastPeer.removeNode(id);
     }
 
+    /**
+     * Returns the address of the socket the given node receives our packets on.
+     * We always send from our primary socket (so that the receiver can identify us by our address), but if the node has several receive sockets,
+     * we pick one of them by our node id.
+     */
+    private InetSocketAddress getPeerAddress(short node) {
+        final InetSocketAddress address = getNodeAddress(node);
+        final NodeInfo nodeInfo = getCluster().getMaster(node);
+        final Integer sockets = nodeInfo != null ? (Integer) nodeInfo.get(IP_COMM_RECEIVE_SOCKETS) : null;
+        if (address == null || sockets == null || sockets <= 1)
+            return address;
+        final int index = getCluster().getMyNodeId() % sockets;
+        return index == 0 ? address : new InetSocketAddress(address.getAddress(), address.getPort() + index);
+    }
+
     private static final ThreadLocal<Boolean> recursive = new ThreadLocal<Boolean>();
 
     abstract class Peer implements Callable<Void> {
 
-        protected final ArrayBlockingQueue<Message> queue = new ArrayBlockingQueue<Message>(maxQueueSize);
+        // coherence messages may overtake user messages queued before them, but not vice versa, so messages are still ordered after data ops.
+        protected final MessageLaneQueue queue = new MessageLaneQueue(maxQueueSize, coherenceTrafficWeight, messageTrafficWeight);
         protected Message overflow;
         protected MessagePacket sentPacket;
         private int delayMultiplier = 1;
@@ -687,7 +838,7 @@ public class UDPComm extends AbstractComm<InetSocketAddress> {
                     if (sentPacket != null && !broadcast) {
                         if (isTimeToResned(now)) { // if messages have been added tos sentPacket has changed, handleQueue sets lastSent to 0
                             LOG.debug("Peer {} sending packet {}", this, sentPacket);
-                            channel.write(sentPacket, nodeAddress);
+                            sendPacket(node, sentPacket, nodeAddress);
                             if (hasRequests)
                                 resend(now);
                         }
@@ -958,7 +1109,7 @@ public class UDPComm extends AbstractComm<InetSocketAddress> {
                     if (sentPacket != null) { // if messages have been added tos sentPacket has changed, handleQueue sets lastSent to 0
                         assert !sendToServerInsteadOfMulticast;
                         LOG.debug("BroadcastPeer {} multicasting packet {}", this, sentPacket);
-                        channel.write(sentPacket, multicastGroup);
+                        sendPacket(sentPacket, multicastGroup);
                         resend(now);
                     } else if (!broadcasts.isEmpty()) {
                         executor.schedule(this, getTimeout(), MILLISECONDS);
@@ -0,0 +1,139 @@
+/*
+ * Galaxy
+ * Copyright (C) 2012 Parallel Universe Software Co.
+ *
+ * This file is part of Galaxy.
+ *
+ * Galaxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Galaxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Galaxy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package co.paralleluniverse.galaxy.netty;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelStateEvent;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelDownstreamHandler;
+import org.jboss.netty.channel.socket.nio.NioSocketChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Gathers the frames written to a channel, and writes them to the socket together, so that many small messages written back to back cost
+ * a single write (and a single system call) rather than one each. A batch is written as soon as it reaches {@code maxBatchSize} bytes, and
+ * otherwise by the channel's I/O thread once it's done with whatever it's currently doing. Frames are always written in order.
+ *
+ * Must be placed below the frame encoder, as it only handles {@link ChannelBuffer}s, and must not be shared among channels.
+ *
+ * @author pron
+ */
+class WriteCoalescingHandler extends SimpleChannelDownstreamHandler {
+    private static final Logger LOG = LoggerFactory.getLogger(WriteCoalescingHandler.class);
+    private final int maxBatchSize;
+    private final List<MessageEvent> pending = new ArrayList<MessageEvent>();
+    private int pendingSize;
+    private boolean flushScheduled;
+
+    public WriteCoalescingHandler(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    @Override
+    public void writeRequested(final ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        synchronized (this) {
+            if (!(e.getMessage() instanceof ChannelBuffer)) {
+                flush(ctx);
+                ctx.sendDownstream(e);
+                return;
+            }
+            pending.add(e);
+            pendingSize += ((ChannelBuffer) e.getMessage()).readableBytes();
+            if (pendingSize >= maxBatchSize)
+                flush(ctx);
+            else if (!flushScheduled) {
+                flushScheduled = true;
+                executeLater(ctx, new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (WriteCoalescingHandler.this) {
+                            flushScheduled = false;
+                            flush(ctx);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    @Override
+    public void disconnectRequested(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        synchronized (this) {
+            flush(ctx);
+        }
+        super.disconnectRequested(ctx, e);
+    }
+
+    @Override
+    public void closeRequested(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        synchronized (this) {
+            flush(ctx);
+        }
+        super.closeRequested(ctx, e);
+    }
+
+    private void flush(ChannelHandlerContext ctx) {
+        assert Thread.holdsLock(this);
+        if (pending.isEmpty())
+            return;
+        if (pending.size() == 1)
+            ctx.sendDownstream(pending.get(0));
+        else {
+            final MessageEvent[] events = pending.toArray(new MessageEvent[pending.size()]);
+            final ChannelBuffer[] buffers = new ChannelBuffer[events.length];
+            for (int i = 0; i < events.length; i++)
+                buffers[i] = (ChannelBuffer) events[i].getMessage();
+            LOG.debug("Writing {} frames ({} bytes) to channel {}", new Object[]{events.length, pendingSize, ctx.getChannel()});
+
+            final ChannelFuture future = Channels.future(ctx.getChannel());
+            future.addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    for (MessageEvent e : events) {
+                        if (future.isSuccess())
+                            e.getFuture().setSuccess();
+                        else
+                            e.getFuture().setFailure(future.getCause());
+                    }
+                }
+            });
+            Channels.write(ctx, future, ChannelBuffers.wrappedBuffer(buffers), events[0].getRemoteAddress());
+        }
+        pending.clear();
+        pendingSize = 0;
+    }
+
+    private static void executeLater(ChannelHandlerContext ctx, Runnable task) {
+        final Channel channel = ctx.getChannel();
+        if (channel instanceof NioSocketChannel)
+            ((NioSocketChannel) channel).getWorker().executeInIoThread(task, true); // run even if we're on the I/O thread, so that we don't flush right away
+        else
+            ctx.getPipeline().execute(task);
+    }
+}
@@ -19,13 +19,27 @@
  */
 package co.paralleluniverse.galaxy.server;
 
+import gnu.trove.procedure.TLongShortProcedure;
+
 /**
+ * The main-memory store. It may be used concurrently (by the server's worker threads, group committer and owner flusher); a
+ * transaction, however, is begun, used and committed or aborted by a single thread.
  *
  * @author pron
  */
 public interface MainMemoryDB {
     short casOwner(long id, short oldNode, short newNode);
     void removeOwner(short node);
+
+    /**
+     * Sets the owner of the given line, creating the line if it doesn't exist.
+     */
+    void setOwner(long id, short owner, Object txn);
+
+    /**
+     * Passes the id and owner of every line in the store to the given procedure, until it returns {@code false}.
+     */
+    void forEachOwner(TLongShortProcedure procedure);
     
     Object beginTransaction();
     void commit(Object txn);
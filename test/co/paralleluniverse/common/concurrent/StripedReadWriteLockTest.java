@@ -0,0 +1,126 @@
+/*
+ * Galaxy
+ * Copyright (C) 2012 Parallel Universe Software Co.
+ *
+ * This file is part of Galaxy.
+ *
+ * Galaxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Galaxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Galaxy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package co.paralleluniverse.common.concurrent;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ *
+ * @author pron
+ */
+public class StripedReadWriteLockTest {
+    @Test
+    public void whenReadLockedThenWriterWaitsAndReadersDoNot() throws Exception {
+        final StripedReadWriteLock lock = new StripedReadWriteLock(8);
+        lock.readLock().lock();
+        lock.readLock().lock(); // reentrant
+
+        final AtomicBoolean readerAcquired = new AtomicBoolean();
+        final Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readerAcquired.set(lock.readLock().tryLock());
+                lock.readLock().unlock();
+            }
+        });
+        reader.start();
+        reader.join();
+        assertThat(readerAcquired.get(), is(true));
+
+        final CountDownLatch writerAcquired = new CountDownLatch(1);
+        final Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                lock.writeLock().lock();
+                writerAcquired.countDown();
+                lock.writeLock().unlock();
+            }
+        });
+        writer.start();
+
+        lock.readLock().unlock();
+        assertThat(writerAcquired.await(100, TimeUnit.MILLISECONDS), is(false));
+        lock.readLock().unlock();
+        assertThat(writerAcquired.await(5, TimeUnit.SECONDS), is(true));
+    }
+
+    @Test
+    public void whenWriteLockedThenReadersWait() throws Exception {
+        final StripedReadWriteLock lock = new StripedReadWriteLock(8);
+        lock.writeLock().lock();
+        lock.readLock().lock(); // the writer may read
+        lock.readLock().unlock();
+
+        final CountDownLatch readerAcquired = new CountDownLatch(1);
+        final Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                lock.readLock().lock();
+                readerAcquired.countDown();
+                lock.readLock().unlock();
+            }
+        });
+        reader.start();
+
+        assertThat(readerAcquired.await(100, TimeUnit.MILLISECONDS), is(false));
+        lock.writeLock().unlock();
+        assertThat(readerAcquired.await(5, TimeUnit.SECONDS), is(true));
+    }
+
+    @Test
+    public void writersAndReadersAreMutuallyExclusive() throws Exception {
+        final StripedReadWriteLock lock = new StripedReadWriteLock(4);
+        final AtomicInteger activeReaders = new AtomicInteger();
+        final AtomicBoolean violated = new AtomicBoolean();
+        final Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final boolean isWriter = t == 0;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        if (isWriter) {
+                            lock.writeLock().lock();
+                            if (activeReaders.get() != 0)
+                                violated.set(true);
+                            lock.writeLock().unlock();
+                        } else {
+                            lock.readLock().lock();
+                            activeReaders.incrementAndGet();
+                            activeReaders.decrementAndGet();
+                            lock.readLock().unlock();
+                        }
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        assertThat(violated.get(), is(false));
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Galaxy
+ * Copyright (C) 2012 Parallel Universe Software Co.
+ * 
+ * This file is part of Galaxy.
+ *
+ * Galaxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ *
+ * Galaxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with Galaxy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package co.paralleluniverse.common.io;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ *
+ * @author pron
+ */
+public class MappedLogTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("log", null);
+        dir.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void recordsAreReadByOffsetAcrossSegments() throws Exception {
+        final MappedLog log = new MappedLog(dir, 256);
+        for (int i = 0; i < 20; i++)
+            assertThat(log.append(buffer(i, 10), buffer(i + 1, 30)), is((long) i));
+
+        assertThat(dir.listFiles().length, is(4)); // 6 records per segment
+        assertThat(log.getEndOffset(), is(20L));
+        for (int i = 0; i < 20; i++) {
+            final ByteBuffer record = log.read(i);
+            assertThat(record.remaining(), is(40));
+            assertThat(record.get(0), is((byte) i));
+            assertThat(record.get(10), is((byte) (i + 1)));
+        }
+        assertThat(log.read(20), is(nullValue()));
+    }
+
+    @Test
+    public void whenReopenedThenRecordsAreRecovered() throws Exception {
+        final MappedLog log1 = new MappedLog(dir, 256);
+        for (int i = 0; i < 10; i++)
+            log1.append(buffer(i, 40));
+        log1.force();
+
+        final MappedLog log2 = new MappedLog(dir, 256);
+        assertThat(log2.getEndOffset(), is(10L));
+        assertThat(log2.read(9).get(0), is((byte) 9));
+        assertThat(log2.append(buffer(10, 40)), is(10L));
+        assertThat(log2.read(10).get(0), is((byte) 10));
+    }
+
+    @Test
+    public void deleteBeforeRemovesWholeSegmentsOnly() throws Exception {
+        final MappedLog log = new MappedLog(dir, 256);
+        for (int i = 0; i < 20; i++)
+            log.append(buffer(i, 40)); // 5 records per segment
+
+        log.deleteBefore(7);
+        assertThat(log.getStartOffset(), is(5L));
+        assertThat(log.read(5).get(0), is((byte) 5));
+        assertThat(dir.listFiles().length, is(3));
+
+        assertThat(new MappedLog(dir, 256).getStartOffset(), is(5L));
+    }
+
+    @Test
+    public void whenTruncatedThenLaterRecordsAreGoneAndOffsetsReused() throws Exception {
+        final MappedLog log = new MappedLog(dir, 256);
+        for (int i = 0; i < 20; i++)
+            log.append(buffer(i, 40)); // 5 records per segment
+        assertThat(log.getSegmentEndOffset(7), is(10L));
+
+        log.truncate(7);
+        assertThat(log.getEndOffset(), is(7L));
+        assertThat(dir.listFiles().length, is(2));
+        assertThat(log.append(buffer(100, 40)), is(7L));
+        assertThat(log.read(7).get(0), is((byte) 100));
+
+        final MappedLog log2 = new MappedLog(dir, 256);
+        assertThat(log2.getEndOffset(), is(8L));
+        assertThat(log2.read(6).get(0), is((byte) 6));
+    }
+
+    private static ByteBuffer buffer(int value, int size) {
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining())
+            buffer.put((byte) value);
+        buffer.flip();
+        return buffer;
+    }
+}
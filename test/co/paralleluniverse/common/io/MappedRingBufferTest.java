@@ -0,0 +1,127 @@
+/*
+ * Galaxy
+ * Copyright (C) 2012 Parallel Universe Software Co.
+ * 
+ * This file is part of Galaxy.
+ *
+ * Galaxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ *
+ * Galaxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with Galaxy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package co.paralleluniverse.common.io;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ *
+ * @author pron
+ */
+public class MappedRingBufferTest {
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("ring", null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        file.delete();
+    }
+
+    @Test
+    public void whenEmptyThenPollReturnsNull() throws Exception {
+        MappedRingBuffer.create(file, 1024);
+        final MappedRingBuffer consumer = MappedRingBuffer.open(file);
+        assertThat(consumer.poll(), is(nullValue()));
+    }
+
+    @Test
+    public void recordsAreReadInOrderAcrossWrapAround() throws Exception {
+        final MappedRingBuffer producer = MappedRingBuffer.create(file, 256);
+        final MappedRingBuffer consumer = MappedRingBuffer.open(file);
+
+        for (int i = 0; i < 100; i++) {
+            assertTrue(producer.offer(new ByteBuffer[]{buffer(i, 10), buffer(i + 1, 27)}));
+            final ByteBuffer record = consumer.poll();
+            assertThat(record.remaining(), is(37));
+            assertThat(record.get(0), is((byte) i));
+            assertThat(record.get(10), is((byte) (i + 1)));
+            assertThat(consumer.poll(), is(nullValue()));
+        }
+    }
+
+    @Test
+    public void whenFullThenOfferFailsUntilConsumed() throws Exception {
+        final MappedRingBuffer producer = MappedRingBuffer.create(file, 256);
+        final MappedRingBuffer consumer = MappedRingBuffer.open(file);
+
+        int n = 0;
+        while (producer.offer(new ByteBuffer[]{buffer(n, 60)}))
+            n++;
+        assertThat(n, is(4));
+
+        assertThat(consumer.poll().get(0), is((byte) 0));
+        assertTrue(producer.offer(new ByteBuffer[]{buffer(n, 60)}));
+        for (int i = 1; i <= n; i++)
+            assertThat(consumer.poll().get(0), is((byte) i));
+        assertThat(consumer.poll(), is(nullValue()));
+    }
+
+    @Test
+    public void whenReopenedThenPollResumesAtTail() throws Exception {
+        final MappedRingBuffer producer = MappedRingBuffer.create(file, 256);
+        final MappedRingBuffer consumer1 = MappedRingBuffer.open(file);
+        for (int i = 0; i < 3; i++)
+            assertTrue(producer.offer(new ByteBuffer[]{buffer(i, 20)}));
+        assertThat(consumer1.poll().get(0), is((byte) 0));
+
+        final MappedRingBuffer consumer2 = MappedRingBuffer.open(file); // picks up where the first consumer has left off
+        assertThat(consumer2.poll().get(0), is((byte) 1));
+        assertThat(consumer2.poll().get(0), is((byte) 2));
+        assertThat(consumer2.poll(), is(nullValue()));
+
+        final MappedRingBuffer consumer3 = MappedRingBuffer.open(file); // a drained ring
+        assertThat(consumer3.poll(), is(nullValue()));
+
+        // the producer's free-space accounting is intact
+        int n = 0;
+        while (producer.offer(new ByteBuffer[]{buffer(n, 60)}))
+            n++;
+        assertThat(n, is(3)); // not 4, as the third wraps around, skipping the end of the ring
+        for (int i = 0; i < n; i++)
+            assertThat(consumer3.poll().get(0), is((byte) i));
+        assertThat(consumer3.poll(), is(nullValue()));
+    }
+
+    @Test
+    public void whenFileRecreatedThenFileKeyChanges() throws Exception {
+        final MappedRingBuffer ring1 = MappedRingBuffer.create(file, 256);
+        final MappedRingBuffer ring2 = MappedRingBuffer.create(file, 256);
+        assertThat(MappedRingBuffer.fileKey(file), is(ring2.getFileKey()));
+        assertThat(MappedRingBuffer.fileKey(file), is(not(ring1.getFileKey())));
+    }
+
+    private static ByteBuffer buffer(int value, int size) {
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining())
+            buffer.put((byte) value);
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,455 @@
+/*
+ * Galaxy
+ * Copyright (C) 2012 Parallel Universe Software Co.
+ *
+ * This file is part of Galaxy.
+ *
+ * Galaxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Galaxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Galaxy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package co.paralleluniverse.galaxy.core;
+
+import co.paralleluniverse.galaxy.Cluster;
+import co.paralleluniverse.galaxy.cluster.NodeChangeListener;
+import co.paralleluniverse.galaxy.cluster.NodeInfo;
+import co.paralleluniverse.galaxy.cluster.SlaveConfigurationListener;
+import co.paralleluniverse.galaxy.core.Cache.CacheLine;
+import co.paralleluniverse.galaxy.core.Message.BACKUP;
+import co.paralleluniverse.galaxy.core.Message.BACKUP_PACKET;
+import co.paralleluniverse.galaxy.core.Message.LineMessage;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import static org.mockito.Mockito.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Matchers.any;
+
+/**
+ * Drives BackupImpl as a master with mocked comms and cache, acking its packets by hand.
+ *
+ * @author pron
+ */
+public class BackupImplTest {
+    Cluster cluster;
+    ServerComm serverComm;
+    SlaveComm slaveComm;
+    Cache cache;
+    BackupImpl backup;
+
+    @Before
+    public void setUp() throws Exception {
+        cluster = mock(Cluster.class);
+        when(cluster.hasServer()).thenReturn(true);
+        when(cluster.isMaster()).thenReturn(true);
+        when(cluster.getMyNodeId()).thenReturn(sh(1));
+
+        serverComm = mock(ServerComm.class);
+        slaveComm = mock(SlaveComm.class);
+        when(slaveComm.send(any(Message.class))).thenReturn(true);
+        cache = mock(Cache.class);
+
+        backup = new BackupImpl("backup", cluster, serverComm, slaveComm, mock(BackupMonitor.class));
+        backup.setCache(cache);
+    }
+
+    @After
+    public void tearDown() {
+        backup.shutdown();
+    }
+
+    @Test
+    public void whenPacketsAckedOutOfOrderThenBackupAcksDeliveredInOrder() throws Exception {
+        backup.setMaxInFlightPackets(2);
+        final BACKUP_PACKET packet1 = flush(1, 10L);
+        final BACKUP_PACKET packet2 = flush(2, 20L);
+
+        backup.slavesAck(packet2.getId(), 1, 1); // the slaves ack the second packet first...
+        backup.receive(Message.BACKUP_PACKETACK(packet2)); // ...and so does the server
+        assertThat(backupAcks(), is(lines()));
+
+        backup.receive(Message.BACKUP_PACKETACK(packet1)); // server before slaves
+        assertThat(backupAcks(), is(lines()));
+
+        backup.slavesAck(packet1.getId(), 1, 1);
+        assertThat(backupAcks(), is(lines(10L, 20L)));
+    }
+
+    @Test
+    public void whenPacketAckedBySlavesBeforeServerThenNotCompleteUntilServerAcks() throws Exception {
+        final BACKUP_PACKET packet = flush(1, 10L);
+
+        backup.slavesAck(packet.getId(), 1, 1);
+        assertThat(backupAcks(), is(lines()));
+
+        backup.receive(Message.BACKUP_PACKETACK(packet));
+        assertThat(backupAcks(), is(lines(10L)));
+
+        backup.receive(Message.BACKUP_PACKETACK(packet)); // no longer in flight; ignored
+        backup.slavesAck(packet.getId(), 1, 1);
+        assertThat(backupAcks(), is(lines(10L)));
+    }
+
+    @Test
+    public void whenSlaveQuorumAckedThenCompleteButSnapshotKeptUntilAllSlavesAck() throws Exception {
+        final CacheStorage storage = snapshotStorage(1024);
+        backup.setSlaveAckQuorum(BackupImpl.SlaveAckQuorum.MAJORITY);
+        final BACKUP_PACKET packet = flush(1, 10L);
+
+        backup.receive(Message.BACKUP_PACKETACK(packet));
+        backup.slavesAck(packet.getId(), 1, 3);
+        assertThat(backupAcks(), is(lines()));
+
+        backup.slavesAck(packet.getId(), 2, 3);
+        assertThat(backupAcks(), is(lines(10L)));
+        verify(storage, never()).deallocateStorage(anyLong(), any(ByteBuffer.class)); // the slow slave's comm may still be writing it
+
+        backup.slavesAck(packet.getId(), 3, 3);
+        verify(storage).deallocateStorage(eq(10L), any(ByteBuffer.class));
+        assertThat(backupAcks(), is(lines(10L)));
+    }
+
+    @Test
+    public void whenLineLargerThanSnapshotStorageMaxItemSizeThenCopiedToHeap() throws Exception {
+        final CacheStorage storage = snapshotStorage(16);
+        backup(10L, 1, 8);
+        backup(20L, 1, 32);
+        backup.flush();
+        final BACKUP_PACKET packet = awaitPacket(1);
+        assertThat(packet.getBackups().size(), is(2));
+        verify(storage).allocateStorage(8);
+        verify(storage, times(1)).allocateStorage(anyInt());
+
+        backup.receive(Message.BACKUP_PACKETACK(packet));
+        backup.slavesAck(packet.getId(), 1, 1);
+        assertThat(backupAcks().size(), is(2));
+        verify(storage).deallocateStorage(eq(10L), any(ByteBuffer.class));
+        verify(storage, times(1)).deallocateStorage(anyLong(), any(ByteBuffer.class)); // not the heap copy of line 20
+    }
+
+    @Test
+    public void whenServerRemovedThenSnapshotsReleasedButPacketNotCompleted() throws Exception {
+        final CacheStorage storage = snapshotStorage(1024);
+        final ArgumentCaptor<NodeChangeListener> captor = ArgumentCaptor.forClass(NodeChangeListener.class);
+        verify(cluster).addNodeChangeListener(captor.capture());
+        final BACKUP_PACKET packet = flush(1, 10L);
+        backup.slavesAck(packet.getId(), 1, 1);
+
+        captor.getValue().nodeRemoved(sh(2));
+        verify(storage, never()).deallocateStorage(anyLong(), any(ByteBuffer.class));
+
+        captor.getValue().nodeRemoved(Comm.SERVER);
+        verify(storage).deallocateStorage(eq(10L), any(ByteBuffer.class));
+        assertThat(backupAcks(), is(lines()));
+
+        captor.getValue().nodeRemoved(Comm.SERVER);
+        verify(storage, times(1)).deallocateStorage(anyLong(), any(ByteBuffer.class));
+    }
+
+    @Test
+    public void whenAllSlavesRemovedThenSnapshotsReleasedAndPacketStillCompleted() throws Exception {
+        final CacheStorage storage = snapshotStorage(1024);
+        final ArgumentCaptor<SlaveConfigurationListener> captor = ArgumentCaptor.forClass(SlaveConfigurationListener.class);
+        verify(cluster).addSlaveConfigurationListener(captor.capture());
+        final BACKUP_PACKET packet = flush(1, 10L);
+        backup.receive(Message.BACKUP_PACKETACK(packet));
+
+        when(cluster.getMySlaves()).thenReturn(Collections.singletonList(mock(NodeInfo.class)));
+        captor.getValue().slaveRemoved(mock(NodeInfo.class));
+        verify(storage, never()).deallocateStorage(anyLong(), any(ByteBuffer.class));
+
+        when(cluster.getMySlaves()).thenReturn(Collections.<NodeInfo>emptyList());
+        captor.getValue().slaveRemoved(mock(NodeInfo.class));
+        verify(storage).deallocateStorage(eq(10L), any(ByteBuffer.class));
+        assertThat(backupAcks(), is(lines()));
+
+        backup.slavesAck(packet.getId(), 0, 0); // the slave comm gives up on the removed slaves
+        assertThat(backupAcks(), is(lines(10L)));
+        verify(storage, times(1)).deallocateStorage(anyLong(), any(ByteBuffer.class));
+    }
+
+    @Test
+    public void whenNoSlavesThenOnlyServerAckIsAwaited() throws Exception {
+        when(slaveComm.send(any(Message.class))).thenReturn(false);
+        final BACKUP_PACKET packet = flush(1, 10L);
+        assertThat(backupAcks(), is(lines()));
+
+        backup.receive(Message.BACKUP_PACKETACK(packet));
+        assertThat(backupAcks(), is(lines(10L)));
+    }
+
+    @Test
+    public void whenWindowFullThenFlushIsDeferredUntilAck() throws Exception {
+        final BACKUP_PACKET packet1 = flush(1, 10L);
+
+        backup(20L, 1);
+        backup.flush();
+        verify(cache, timeout(1000).times(2)).getLine(anyLong()); // the flush has copied the line...
+        Thread.sleep(100);
+        verify(serverComm, times(1)).send(any(Message.class)); // ...but can't send it
+
+        backup.receive(Message.BACKUP_PACKETACK(packet1));
+        backup.slavesAck(packet1.getId(), 1, 1);
+        final BACKUP_PACKET packet2 = awaitPacket(2); // resubmitted by the ack
+        assertThat(packet2.getId(), is(packet1.getId() + 1));
+        assertThat(packet2.getBackups().size(), is(1));
+        assertThat(packet2.getBackups().iterator().next().getLine(), is(20L));
+
+        backup.receive(Message.BACKUP_PACKETACK(packet2));
+        backup.slavesAck(packet2.getId(), 1, 1);
+        assertThat(backupAcks(), is(lines(10L, 20L)));
+    }
+
+    @Test
+    public void whenUpdatesPendingOrInFlightThenNoHeartbeat() throws Exception {
+        backup.sendHeartbeat();
+        assertThat(heartbeats(), is(1));
+
+        backup(10L, 1); // waiting to be flushed
+        backup.sendHeartbeat();
+        assertThat(heartbeats(), is(1));
+
+        final BACKUP_PACKET packet = flush(1, 20L);
+        backup.sendHeartbeat(); // in flight
+        assertThat(heartbeats(), is(1));
+
+        backup.slavesAck(packet.getId(), 1, 1);
+        backup.sendHeartbeat(); // the slaves are up to date, but the packet is still in flight
+        assertThat(heartbeats(), is(1));
+
+        backup.receive(Message.BACKUP_PACKETACK(packet));
+        backup.sendHeartbeat();
+        assertThat(heartbeats(), is(2));
+    }
+
+    @Test
+    public void whenOwnedLinesPartitionedThenScannedOnce() throws Exception {
+        final List<CacheLine> owned = new ArrayList<CacheLine>();
+        for (long id = 1; id <= 30; id++) {
+            final CacheLine line = line(id, 1, 8);
+            when(line.getState()).thenReturn(id == 7 ? Cache.State.S : Cache.State.O); // line 7 has been given away
+            owned.add(line);
+        }
+        final int[] scanned = new int[1];
+        when(cache.ownedIterator()).thenReturn(new Iterator<CacheLine>() {
+            private final Iterator<CacheLine> it = owned.iterator();
+
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public CacheLine next() {
+                scanned[0]++;
+                return it.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        });
+
+        final List<Iterator<BACKUP>> iters = backup.iterOwned(3);
+        assertThat(iters.size(), is(3));
+        final List<List<Long>> partitions = new ArrayList<List<Long>>();
+        for (int i = 0; i < 3; i++)
+            partitions.add(new ArrayList<Long>());
+        for (boolean more = true; more;) { // interleaved, as the replication threads would
+            more = false;
+            for (int i = 0; i < 3; i++) {
+                if (iters.get(i).hasNext()) {
+                    final BACKUP b = iters.get(i).next();
+                    if (b != null)
+                        partitions.get(i).add(b.getLine());
+                    more = true;
+                }
+            }
+        }
+
+        assertThat(scanned[0], is(30));
+        final Set<Long> all = new HashSet<Long>();
+        for (int i = 0; i < 3; i++) {
+            assertThat(partitions.get(i).isEmpty(), is(false));
+            for (long id : partitions.get(i))
+                assertThat(all.add(id), is(true)); // the partitions are disjoint
+        }
+        assertThat(all.size(), is(29));
+        assertThat(all.contains(7L), is(false));
+    }
+
+    @Test
+    public void whenLogReplayedThenRecoveredVersionsAreBackedUpWithoutAckingTheCache() throws Exception {
+        final File dir = File.createTempFile("wal", null);
+        dir.delete();
+        try {
+            final WriteAheadLog wal = new WriteAheadLog(dir, 1024);
+            wal.append(10L, 1, ByteBuffer.allocate(8));
+            wal.append(20L, 2, ByteBuffer.allocate(8));
+            wal.append(10L, 3, ByteBuffer.allocate(8));
+            wal.force();
+
+            // the first of our group to come up, and there's no server to have taken over our lines
+            backup.shutdown();
+            when(cluster.hasServer()).thenReturn(false);
+            backup = new BackupImpl("backup", cluster, null, slaveComm, mock(BackupMonitor.class));
+            backup.setCache(cache);
+            backup.setLogDirectory(dir.getPath());
+            backup.setLogSyncPolicy(BackupImpl.LogSyncPolicy.NONE);
+            backup.openLog(true);
+
+            final ArgumentCaptor<Message> captor = ArgumentCaptor.forClass(Message.class);
+            verify(cache, times(3)).receive(captor.capture());
+            final List<Long> replayed = new ArrayList<Long>();
+            for (Message m : captor.getAllValues()) {
+                assertThat(m.getType(), is(Message.Type.BACKUP));
+                replayed.add(((LineMessage) m).getLine());
+            }
+            assertThat(replayed, is(lines(10L, 20L, 10L)));
+
+            // the recovered lines are backed up with the first flush...
+            final CacheLine line10 = line(10L, 3, 8);
+            final CacheLine line20 = line(20L, 2, 8);
+            when(cache.getLine(10L)).thenReturn(line10);
+            when(cache.getLine(20L)).thenReturn(line20);
+            backup.flush();
+            final ArgumentCaptor<Message> sent = ArgumentCaptor.forClass(Message.class);
+            verify(slaveComm, timeout(1000)).send(sent.capture());
+            final BACKUP_PACKET packet1 = (BACKUP_PACKET) sent.getValue();
+            assertThat(packet1.getBackups().size(), is(2));
+
+            // ...but the cache isn't waiting for their acks
+            backup.slavesAck(packet1.getId(), 1, 1);
+            assertThat(backupAcks(), is(lines()));
+
+            // a version the cache has backed up since is acked as usual
+            backup(10L, 4);
+            backup.flush();
+            verify(slaveComm, timeout(1000).times(2)).send(sent.capture());
+            final BACKUP_PACKET packet2 = (BACKUP_PACKET) sent.getValue();
+            backup.slavesAck(packet2.getId(), 1, 1);
+            assertThat(backupAcks(), is(lines(10L)));
+
+            // and the log's records are no longer needed
+            assertThat(new WriteAheadLog(dir, 1024).replay(mock(WriteAheadLog.Listener.class)), is(0));
+        } finally {
+            for (File f : dir.listFiles())
+                f.delete();
+            dir.delete();
+        }
+    }
+
+    private BACKUP_PACKET flush(int packets, long... ids) throws Exception {
+        for (long id : ids)
+            backup(id, 1);
+        backup.flush();
+        return awaitPacket(packets);
+    }
+
+    private void backup(long id, long version) {
+        backup(id, version, 8);
+    }
+
+    private void backup(long id, long version, int size) {
+        final CacheLine line = line(id, version, size);
+        when(cache.getLine(id)).thenReturn(line);
+        backup.startBackup();
+        backup.backup(id, version);
+        backup.endBackup();
+    }
+
+    /**
+     * A snapshot storage that, like {@link OffHeapLocalStorage}, can't allocate buffers larger than its maxItemSize.
+     */
+    private CacheStorage snapshotStorage(final int maxItemSize) {
+        final CacheStorage storage = mock(CacheStorage.class);
+        when(storage.getMaxItemSize()).thenReturn(maxItemSize);
+        when(storage.allocateStorage(anyInt())).thenAnswer(new Answer<ByteBuffer>() {
+            @Override
+            public ByteBuffer answer(InvocationOnMock invocation) throws Throwable {
+                final int size = (Integer) invocation.getArguments()[0];
+                if (size > maxItemSize)
+                    throw new IllegalArgumentException("Size " + size + " is larger than maximum size: " + maxItemSize);
+                return ByteBuffer.allocate(size);
+            }
+        });
+        backup.setSnapshotStorage(storage);
+        return storage;
+    }
+
+    private BACKUP_PACKET awaitPacket(int n) throws Exception {
+        final ArgumentCaptor<Message> captor = ArgumentCaptor.forClass(Message.class);
+        verify(serverComm, timeout(1000).times(n)).send(captor.capture());
+        return (BACKUP_PACKET) captor.getAllValues().get(n - 1);
+    }
+
+    private int heartbeats() throws Exception {
+        final ArgumentCaptor<Message> captor = ArgumentCaptor.forClass(Message.class);
+        verify(slaveComm, atLeast(0)).send(captor.capture());
+        int heartbeats = 0;
+        for (Message m : captor.getAllValues()) {
+            if (m.getType() == Message.Type.BACKUP_PACKET && ((BACKUP_PACKET) m).getBackups().isEmpty())
+                heartbeats++;
+        }
+        return heartbeats;
+    }
+
+    private List<Long> backupAcks() {
+        final ArgumentCaptor<Message> captor = ArgumentCaptor.forClass(Message.class);
+        verify(cache, atLeast(0)).receive(captor.capture());
+        final List<Long> lines = new ArrayList<Long>();
+        for (Message m : captor.getAllValues()) {
+            if (m.getType() == Message.Type.BACKUPACK)
+                lines.add(((LineMessage) m).getLine());
+        }
+        return lines;
+    }
+
+    private static CacheLine line(long id, long version, int size) {
+        final byte[] data = new byte[size];
+        final CacheLine line = mock(CacheLine.class);
+        when(line.getId()).thenReturn(id);
+        when(line.getVersion()).thenReturn(version);
+        when(line.getData()).thenAnswer(new Answer<ByteBuffer>() {
+            @Override
+            public ByteBuffer answer(InvocationOnMock invocation) throws Throwable {
+                return ByteBuffer.wrap(data);
+            }
+        });
+        return line;
+    }
+
+    private static List<Long> lines(Long... lines) {
+        final List<Long> list = new ArrayList<Long>();
+        for (Long line : lines)
+            list.add(line);
+        return list;
+    }
+
+    static short sh(int x) {
+        return (short) x;
+    }
+}
@@ -2024,6 +2024,32 @@ public class CacheTest {
         assertThat((Long) res, is(400L));
     }
 
+    /**
+     * A slave serves gets of the lines it has received from its master only while the backup says it's up to date.
+     */
+    @Test
+    public void whenSlaveAndBackupCanServeReadsThenGetLine() throws Exception {
+        when(cluster.isMaster()).thenReturn(false);
+        cache.receive(Message.BACKUP(1234L, 3L, toBuffer("hello")).setNode(sh(5)).setIncoming());
+
+        when(backup.canServeReads()).thenReturn(true);
+        assertThat(deserialize((byte[]) doOp(GET, 1234L)), is("hello"));
+
+        when(backup.canServeReads()).thenReturn(false);
+        try {
+            doOp(GET, 1234L);
+            fail();
+        } catch (IllegalStateException e) {
+        }
+
+        when(backup.canServeReads()).thenReturn(true);
+        try {
+            doOp(GETX, 1234L);
+            fail();
+        } catch (IllegalStateException e) {
+        }
+    }
+
     @Test
     public void testTransactions() {
         pending();
@@ -26,7 +26,9 @@ import co.paralleluniverse.galaxy.server.MainMemoryEntry;
 import co.paralleluniverse.galaxy.server.MainMemoryDB;
 import com.google.common.primitives.Ints;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
 import co.paralleluniverse.galaxy.core.Message.LineMessage;
 import org.junit.After;
@@ -46,10 +48,14 @@ import static co.paralleluniverse.galaxy.test.MockitoUtil.*;
 import static co.paralleluniverse.galaxy.core.MessageMatchers.*;
 import static co.paralleluniverse.galaxy.core.MessageMatchers.equalTo;
 import static co.paralleluniverse.galaxy.core.Cache.MAX_RESERVED_REF_ID;
+import co.paralleluniverse.galaxy.core.Message.BACKUP;
 import co.paralleluniverse.galaxy.core.Message.BACKUP_PACKET;
 import co.paralleluniverse.common.io.Persistables;
 import co.paralleluniverse.galaxy.Cluster;
+import gnu.trove.procedure.TLongShortProcedure;
 import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 /**
  *
@@ -216,6 +222,150 @@ public class MainMemoryTest {
         verifyNoMoreInteractions(monitor);
     }
 
+    /**
+     * With group commit, BACKUP_PACKETs from all nodes are written in one transaction, with the last write of each line winning, and
+     * acked after the commit
+     */
+    @Test
+    public void whenGroupCommitThenBACKUP_PACKETsCommittedTogether() throws Exception {
+        mm.setGroupCommit(true);
+
+        final ByteBuffer buffer1 = randomBuffer(50);
+        final ByteBuffer buffer2 = randomBuffer(50);
+        final ByteBuffer buffer3 = randomBuffer(50);
+
+        final BACKUP_PACKET bp1 = Message.BACKUP_PACKET(7, Arrays.asList(
+                Message.BACKUP(id(1), 4, buffer1),
+                Message.BACKUP(id(2), 5, buffer2)));
+        bp1.setNode(sh(10));
+        final BACKUP_PACKET bp2 = Message.BACKUP_PACKET(3, Arrays.asList(
+                Message.BACKUP(id(2), 6, buffer3)));
+        bp2.setNode(sh(20));
+        mm.receive(bp1);
+        mm.receive(bp2);
+
+        verify(store, never()).beginTransaction();
+
+        mm.commitQueued(false);
+
+        InOrder inOrder = inOrder(store, comm);
+        inOrder.verify(store).beginTransaction();
+        inOrder.verify(store).write(eq(id(1)), eq(sh(10)), eq(4L), eq(Persistables.toByteArray(buffer1)), anyObject());
+        inOrder.verify(store).write(eq(id(2)), eq(sh(20)), eq(6L), eq(Persistables.toByteArray(buffer3)), anyObject());
+        inOrder.verify(store).commit(anyObject());
+        inOrder.verify(comm).send(argThat(equalTo(Message.BACKUP_PACKETACK(bp1))));
+        inOrder.verify(comm).send(argThat(equalTo(Message.BACKUP_PACKETACK(bp2))));
+        verify(store, times(1)).beginTransaction();
+        verify(store, never()).write(eq(id(2)), eq(sh(10)), anyLong(), any(byte[].class), anyObject());
+        verify(monitor).addTransaction(2);
+        verifyNoMoreInteractions(monitor);
+    }
+
+    /**
+     * With group commit, when the transaction fails, the messages are committed one at a time, so that the bad one doesn't hold back the
+     * others
+     */
+    @Test
+    public void whenGroupCommitFailsThenMessagesCommittedOneAtATime() throws Exception {
+        mm.setGroupCommit(true);
+        doThrow(new RuntimeException("bad line")).when(store).write(eq(id(3)), anyShort(), anyLong(), any(byte[].class), anyObject());
+
+        final BACKUP_PACKET bp1 = Message.BACKUP_PACKET(7, Arrays.asList(
+                Message.BACKUP(id(1), 4, randomBuffer(50))));
+        bp1.setNode(sh(10));
+        final BACKUP_PACKET bp2 = Message.BACKUP_PACKET(3, Arrays.asList(
+                Message.BACKUP(id(2), 5, randomBuffer(50)),
+                Message.BACKUP(id(3), 5, randomBuffer(50))));
+        bp2.setNode(sh(20));
+        final LineMessage del = Message.DEL(sh(30), id(4));
+        mm.receive(bp1);
+        mm.receive(bp2);
+        mm.receive(del);
+
+        mm.commitQueued(false);
+
+        verify(store, times(4)).beginTransaction(); // the group, and then each message
+        verify(store, times(2)).abort(anyObject()); // the group, and bp2
+        verify(store, times(2)).commit(anyObject());
+        InOrder inOrder = inOrder(comm);
+        inOrder.verify(comm).send(argThat(equalTo(Message.BACKUP_PACKETACK(bp1))));
+        inOrder.verify(comm).send(argThat(equalTo(Message.INVACK(del))));
+        verify(comm, never()).send(argThat(equalTo(Message.BACKUP_PACKETACK(bp2))));
+
+        mm.commitQueued(false); // the failed packet isn't queued again
+        verify(store, times(4)).beginTransaction();
+    }
+
+    /**
+     * When owners are cached, GET changes ownership in memory only, and the new owner is written to the store at the next flush
+     */
+    @Test
+    public void whenCacheOwnersThenGETDoesNotCASStoreAndOwnerIsFlushed() throws Exception {
+        mm.setCacheOwners(true);
+        mm.setOwnerFlushIntervalMillis(100000);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                ((TLongShortProcedure) invocation.getArguments()[0]).execute(id(154), sh(0));
+                return null;
+            }
+        }).when(store).forEachOwner(any(TLongShortProcedure.class));
+        when(store.read(id(154))).thenReturn(new MainMemoryEntry(1234, new byte[]{3, 4, 5}));
+        final Object txn = new Object();
+        when(store.beginTransaction()).thenReturn(txn);
+        mm.init();
+        mm.switchToMaster();
+
+        final LineMessage get = Message.GET(sh(10), id(154));
+        mm.receive(get);
+        final LineMessage get2 = Message.GET(sh(20), id(154));
+        mm.receive(get2);
+        final LineMessage get3 = Message.GET(sh(20), id(155));
+        mm.receive(get3);
+
+        verify(store, never()).casOwner(anyLong(), anyShort(), anyShort());
+        verify(comm).send(argThat(equalTo(Message.PUTX(get, id(154), new short[0], 1234, ByteBuffer.wrap(new byte[]{3, 4, 5})))));
+        verify(comm).send(argThat(equalTo(Message.CHNGD_OWNR(get2, id(154), sh(10), true))));
+        verify(comm).send(argThat(equalTo(Message.NOT_FOUND(get3))));
+        verify(store, never()).setOwner(anyLong(), anyShort(), anyObject());
+
+        mm.flushOwners();
+
+        InOrder inOrder = inOrder(store);
+        inOrder.verify(store).beginTransaction();
+        inOrder.verify(store).setOwner(id(154), sh(10), txn);
+        inOrder.verify(store).commit(txn);
+        verify(store, times(1)).setOwner(anyLong(), anyShort(), anyObject());
+    }
+
+    /**
+     * With worker threads, a BACKUP_PACKET spanning the lines of several workers is written before later messages concerning its lines
+     */
+    @Test
+    public void whenWorkerThreadsThenBACKUP_PACKETOrderedWithLaterMessagesOfItsLines() throws Exception {
+        mm.setWorkerThreads(4);
+        mm.init();
+
+        final List<BACKUP> backups = new ArrayList<BACKUP>();
+        for (int i = 1; i <= 20; i++)
+            backups.add(Message.BACKUP(id(i), 4, randomBuffer(10)));
+        final BACKUP_PACKET bp = Message.BACKUP_PACKET(7, backups);
+        bp.setNode(sh(10));
+        mm.receive(bp);
+        final LineMessage del = Message.DEL(sh(10), id(5));
+        mm.receive(del);
+
+        verify(store, timeout(5000).times(2)).commit(anyObject()); // one transaction for the packet, and one for the delete
+        mm.shutdown(); // waits for the workers
+
+        InOrder inOrder = inOrder(store, comm);
+        inOrder.verify(store).write(eq(id(5)), eq(sh(10)), eq(4L), any(byte[].class), anyObject());
+        inOrder.verify(comm).send(argThat(equalTo(Message.BACKUP_PACKETACK(bp))));
+        inOrder.verify(store).delete(eq(id(5)), anyObject());
+        inOrder.verify(comm).send(argThat(equalTo(Message.INVACK(del))));
+        verify(store, times(20)).write(anyLong(), eq(sh(10)), eq(4L), any(byte[].class), anyObject());
+    }
+
     /////////////////////////////////////////////////////////////////////////////////
     short sh(int x) {
         return (short) x;
@@ -19,6 +19,9 @@
  */
 package co.paralleluniverse.galaxy.core;
 
+import co.paralleluniverse.common.io.Streamable;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Collections;
@@ -197,6 +200,36 @@ public class MessageTest {
         testSerialize(Message.MSG(randomShortArray(2), rand.nextLong(), randomArray(80)));
     }
 
+    @Test
+    public void testMSGWithPayloadSer() {
+        final byte[] data = randomArray(80);
+        final MSG msg = Message.MSG((short) rand.nextInt(), rand.nextLong(), new Streamable() {
+            @Override
+            public int size() {
+                return data.length;
+            }
+
+            @Override
+            public void write(DataOutput out) throws java.io.IOException {
+                out.write(data);
+            }
+
+            @Override
+            public void read(DataInput in) {
+                throw new UnsupportedOperationException();
+            }
+        });
+
+        final MSG msg2 = (MSG) Message.fromByteArray(msg.toByteArray());
+        assertThat(msg2.getLine(), is(msg.getLine()));
+        assertThat(msg2.getData(), is(data));
+
+        final MSG msg3 = (MSG) Message.fromByteBuffer(combine(msg.toByteBuffers()));
+        assertThat(msg3.getData(), is(data));
+
+        assertThat(msg.getData(), is(data));
+    }
+
     @Test
     public void testMSGACKSer() {
         final MSG msg1 = Message.MSG((short) rand.nextInt(), rand.nextLong(), randomArray(50));
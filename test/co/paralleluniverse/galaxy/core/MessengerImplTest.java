@@ -0,0 +1,526 @@
+/*
+ * Galaxy
+ * Copyright (C) 2012 Parallel Universe Software Co.
+ * 
+ * This file is part of Galaxy.
+ *
+ * Galaxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ *
+ * Galaxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with Galaxy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package co.paralleluniverse.galaxy.core;
+
+import co.paralleluniverse.common.io.Streamable;
+import co.paralleluniverse.galaxy.Cluster;
+import co.paralleluniverse.galaxy.DecodedMessageListener;
+import co.paralleluniverse.galaxy.DurableMessageListener;
+import co.paralleluniverse.galaxy.MessageDecoder;
+import co.paralleluniverse.galaxy.MessageOrdering;
+import co.paralleluniverse.galaxy.MessageListener;
+import co.paralleluniverse.galaxy.RequestListener;
+import co.paralleluniverse.galaxy.Responder;
+import co.paralleluniverse.galaxy.TimeoutException;
+import co.paralleluniverse.galaxy.cluster.DistributedTree;
+import co.paralleluniverse.galaxy.cluster.NodeChangeListener;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.mockito.AdditionalMatchers.aryEq;
+import static org.mockito.Mockito.*;
+import static org.mockito.Matchers.*;
+
+/**
+ *
+ * @author pron
+ */
+public class MessengerImplTest {
+    MessengerImpl messenger;
+    Cache cache;
+    Cluster cluster;
+    DistributedTree tree;
+    final List<Short> sentTo = new CopyOnWriteArrayList<Short>();
+    MessageReceiver receiver;
+    NodeOrderedThreadPoolExecutor executor;
+    volatile short sender = sh(5);
+
+    public MessengerImplTest() {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        cluster = mock(Cluster.class);
+        tree = mock(DistributedTree.class);
+        when(cluster.getDistributedTree()).thenReturn(tree);
+        when(cluster.getMyNodeId()).thenReturn(sh(1));
+        when(cluster.isMaster()).thenReturn(true);
+        cache = mock(Cache.class);
+        when(cache.getCluster()).thenReturn(cluster);
+        executor = new NodeOrderedThreadPoolExecutor(mock(Cluster.class), 4, 4, 1000, TimeUnit.MILLISECONDS, 100);
+        messenger = new MessengerImpl("messenger", cache, executor);
+        messenger.setCallTimeout(200);
+        messenger.init();
+
+        final ArgumentCaptor<MessageReceiver> captor = ArgumentCaptor.forClass(MessageReceiver.class);
+        verify(cache).setReceiver(captor.capture());
+        receiver = captor.getValue();
+
+        // every message we send comes back to us as if sent by node 5 (or by sender, if set)
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                final Message.MSG msg = (Message.MSG) invocation.getArguments()[0];
+                sentTo.add(msg.getNode());
+                msg.setNode(sender);
+                receiver.receive(msg);
+                return null;
+            }
+        }).when(cache).send(any(Message.MSG.class));
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void whenRequestListenerRepliesThenCallCompletes() throws Exception {
+        messenger.addRequestListener("echo", new RequestListener() {
+            @Override
+            public void requestReceived(short fromNode, byte[] request, Responder responder) {
+                assertThat(fromNode, is(sh(5)));
+                responder.reply(new byte[]{request[0], (byte) (request[0] + 1)});
+            }
+        });
+
+        final ListenableFuture<byte[]> reply = messenger.call(sh(5), "echo", new byte[]{7});
+
+        assertThat(reply.get(1, TimeUnit.SECONDS), is(new byte[]{7, 8}));
+    }
+
+    @Test
+    public void whenNoReplyThenCallTimesOut() throws Exception {
+        final ListenableFuture<byte[]> reply = messenger.call(sh(5), 100L, new byte[]{1});
+
+        try {
+            reply.get(1, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), is(instanceOf(TimeoutException.class)));
+        }
+    }
+
+    @Test
+    public void requestsAreNotPassedToMessageListeners() throws Exception {
+        final MessageListener listener = mock(MessageListener.class);
+        messenger.addMessageListener(100L, listener);
+        messenger.addRequestListener(100L, new RequestListener() {
+            @Override
+            public void requestReceived(short fromNode, byte[] request, Responder responder) {
+                responder.reply(request);
+            }
+        });
+
+        messenger.call(sh(5), 100L, new byte[]{1}).get(1, TimeUnit.SECONDS);
+        messenger.sendToNode(sh(5), 100L, new byte[]{2});
+
+        verify(listener, timeout(1000)).messageReceived(sh(5), new byte[]{2});
+        verifyNoMoreInteractions(listener);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void whenReplyTwiceThenThrowException() throws Exception {
+        final Responder[] responder = new Responder[1];
+        messenger.addRequestListener(100L, new RequestListener() {
+            @Override
+            public void requestReceived(short fromNode, byte[] request, Responder r) {
+                responder[0] = r;
+                r.reply(request);
+            }
+        });
+
+        messenger.call(sh(5), 100L, new byte[]{1}).get(1, TimeUnit.SECONDS);
+        responder[0].reply(new byte[]{2});
+    }
+
+    @Test
+    public void whenStreamableSentThenDecodedListenersShareDecodedMessage() throws Exception {
+        final MessageDecoder<Integer> decoder = spy(new MessageDecoder<Integer>() {
+            @Override
+            public Integer decode(ByteBuffer message) {
+                assertTrue(message.isReadOnly());
+                return message.getInt();
+            }
+        });
+        final DecodedMessageListener<Integer> listener1 = mock(DecodedMessageListener.class);
+        final DecodedMessageListener<Integer> listener2 = mock(DecodedMessageListener.class);
+        final DecodedMessageListener<ByteBuffer> listener3 = mock(DecodedMessageListener.class);
+        messenger.addMessageListener("ints", decoder, listener1);
+        messenger.addMessageListener("ints", decoder, listener2);
+        messenger.addMessageListener("ints", MessageDecoder.BUFFER, listener3);
+
+        messenger.send(sh(5), "ints", new Streamable() {
+            @Override
+            public int size() {
+                return 4;
+            }
+
+            @Override
+            public void write(DataOutput out) throws IOException {
+                out.writeInt(1234);
+            }
+
+            @Override
+            public void read(DataInput in) throws IOException {
+                throw new UnsupportedOperationException();
+            }
+        });
+
+        verify(listener1, timeout(1000)).messageReceived(sh(5), 1234);
+        verify(listener2, timeout(1000)).messageReceived(sh(5), 1234);
+        verify(listener3, timeout(1000)).messageReceived(sh(5), ByteBuffer.wrap(new byte[]{0, 0, 0x04, (byte) 0xd2}));
+        verify(decoder, times(1)).decode(any(ByteBuffer.class));
+    }
+
+    @Test
+    public void whenDecodedListenerRemovedThenNotCalled() throws Exception {
+        final DecodedMessageListener<ByteBuffer> listener = mock(DecodedMessageListener.class);
+        final MessageListener other = mock(MessageListener.class);
+        messenger.addMessageListener(100L, MessageDecoder.BUFFER, listener);
+        messenger.addMessageListener(100L, other);
+        messenger.removeDecodedMessageListener(100L, listener);
+
+        messenger.sendToNode(sh(5), 100L, new byte[]{1});
+
+        verify(other, timeout(1000)).messageReceived(sh(5), new byte[]{1});
+        verifyZeroInteractions(listener);
+    }
+
+    @Test
+    public void whenTopicsAreOrderedPerTopicThenSlowListenerDoesNotBlockOtherTopic() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final MessageListener slow = blockingListener(latch, 1);
+        final MessageListener other = mock(MessageListener.class);
+        messenger.setMessageOrdering(1L, MessageOrdering.PER_TOPIC);
+        messenger.setMessageOrdering(2L, MessageOrdering.PER_TOPIC);
+        messenger.addMessageListener(1L, slow);
+        messenger.addMessageListener(2L, other);
+
+        messenger.sendToNode(sh(5), 1L, new byte[]{1});
+        messenger.sendToNode(sh(5), 2L, new byte[]{2});
+
+        verify(other, timeout(1000)).messageReceived(sh(5), new byte[]{2});
+        latch.countDown();
+    }
+
+    @Test
+    public void whenNoOrderingThenSlowSenderDoesNotBlockOtherSenders() throws Exception {
+        // nodes 5 and 9 fall on the same lane, but topics with no ordering are ordered per node
+        final CountDownLatch latch = new CountDownLatch(1);
+        final MessageListener slow = blockingListener(latch, 1);
+        final MessageListener other = mock(MessageListener.class);
+        messenger.addMessageListener(1L, slow);
+        messenger.addMessageListener(2L, other);
+
+        messenger.sendToNode(sh(5), 1L, new byte[]{1});
+        sender = sh(9);
+        messenger.sendToNode(sh(9), 2L, new byte[]{2});
+
+        verify(other, timeout(1000)).messageReceived(sh(9), new byte[]{2});
+        latch.countDown();
+    }
+
+    @Test
+    public void whenTopicIsOrderedPerKeyThenMessagesWithOtherKeysAreNotBlocked() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final MessageListener slow = blockingListener(latch, 0);
+        final MessageListener listener = mock(MessageListener.class);
+        messenger.setMessageOrdering(100L, MessageOrdering.perKey(new MessageOrdering.KeyExtractor() {
+            @Override
+            public Object getKey(short fromNode, ByteBuffer message) {
+                return message.get(0);
+            }
+        }));
+        messenger.addMessageListener(100L, slow);
+        messenger.addMessageListener(100L, listener);
+
+        messenger.sendToNode(sh(5), 100L, new byte[]{0});
+        messenger.sendToNode(sh(5), 100L, new byte[]{1});
+
+        verify(listener, timeout(1000)).messageReceived(sh(5), new byte[]{1});
+        verify(listener, never()).messageReceived(sh(5), new byte[]{0});
+        latch.countDown();
+        verify(listener, timeout(1000)).messageReceived(sh(5), new byte[]{0});
+    }
+
+    @Test
+    public void whenSendBatchThenSingleMessageAndReceivedInOrder() throws Exception {
+        final MessageListener listener = mock(MessageListener.class);
+        messenger.addMessageListener("batch", listener);
+
+        messenger.sendBatch(sh(5), "batch", Arrays.asList(new byte[]{1}, new byte[]{2}, new byte[]{3}));
+
+        verify(listener, timeout(1000).times(3)).messageReceived(anyShort(), any(byte[].class));
+        verify(cache, times(1)).send(any(Message.MSG.class));
+        final InOrder inOrder = inOrder(listener);
+        inOrder.verify(listener).messageReceived(sh(5), new byte[]{1});
+        inOrder.verify(listener).messageReceived(sh(5), new byte[]{2});
+        inOrder.verify(listener).messageReceived(sh(5), new byte[]{3});
+    }
+
+    @Test
+    public void whenBatchFilledToTheBoundaryThenEncodedSizeFitsInAShort() throws Exception {
+        final MessageListener listener = mock(MessageListener.class);
+        messenger.addMessageListener(100L, listener);
+        final int header = 1 + 8 + 2; // flags, long topic and length; a batch message has the same header as its elements
+
+        // the elements fill the batch's data exactly, so only the batch's own header is too much
+        messenger.sendBatch(sh(5), 100L, Arrays.asList(new byte[32756], new byte[0xffff - 2 * header - 32756]));
+        verify(listener, timeout(1000).times(2)).messageReceived(anyShort(), any(byte[].class));
+        assertThat(sentDataSizes(2), is(Arrays.asList(2 * header + 32756, 0xffff - 32756)));  // each sent as a batch of one
+
+        // batch header and elements together fill the message exactly
+        reset(cache);
+        messenger.sendBatch(sh(5), 100L, Arrays.asList(new byte[32756], new byte[0xffff - 3 * header - 32756]));
+        assertThat(sentDataSizes(1), is(Arrays.asList(0xffff)));
+    }
+
+    @Test
+    public void whenMessageTooLargeThenRejected() throws Exception {
+        try {
+            messenger.sendBatch(sh(5), 100L, Arrays.asList(new byte[1], new byte[0xffff - 2 * (1 + 8 + 2) + 1]));
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            messenger.sendToNode(sh(5), 100L, new byte[0xffff - (1 + 8 + 2) + 1]);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        verify(cache, never()).send(any(Message.MSG.class));
+
+        messenger.sendToNode(sh(5), 100L, new byte[0xffff - (1 + 8 + 2)]);
+        assertThat(sentDataSizes(1), is(Arrays.asList(0xffff)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void whenMaxCoalescedSizeLeavesNoRoomForTheBatchHeaderThenRejected() throws Exception {
+        new MessengerImpl("messenger2", cache, executor).setMaxCoalescedSize(0xffff);
+    }
+
+    @Test
+    public void whenCoalescingThenSmallMessagesSentTogether() throws Exception {
+        messenger.setCoalescingWindowMicros(100000);
+        messenger.setCoalescing(100L, true);
+        final MessageListener listener = mock(MessageListener.class);
+        messenger.addMessageListener(100L, listener);
+
+        messenger.sendToNode(sh(5), 100L, new byte[]{1});
+        messenger.sendToNode(sh(5), 100L, new byte[]{2});
+        verify(cache, never()).send(any(Message.MSG.class));
+
+        verify(listener, timeout(1000).times(2)).messageReceived(anyShort(), any(byte[].class));
+        verify(cache, times(1)).send(any(Message.MSG.class));
+        final InOrder inOrder = inOrder(listener);
+        inOrder.verify(listener).messageReceived(sh(5), new byte[]{1});
+        inOrder.verify(listener).messageReceived(sh(5), new byte[]{2});
+    }
+
+    @Test
+    public void whenUncoalescedMessageSentThenCoalescedMessagesFlushedFirst() throws Exception {
+        messenger.setCoalescingWindowMicros(10000000);
+        messenger.setCoalescing(100L, true);
+        final MessageListener listener = mock(MessageListener.class);
+        messenger.addMessageListener(100L, listener);
+        messenger.addMessageListener(200L, listener);
+
+        messenger.sendToNode(sh(5), 100L, new byte[]{1});
+        messenger.sendToNode(sh(5), 200L, new byte[]{2});
+
+        verify(listener, timeout(1000).times(2)).messageReceived(anyShort(), any(byte[].class));
+        verify(cache, times(2)).send(any(Message.MSG.class));
+        final InOrder inOrder = inOrder(listener);
+        inOrder.verify(listener).messageReceived(sh(5), new byte[]{1});
+        inOrder.verify(listener).messageReceived(sh(5), new byte[]{2});
+    }
+
+    @Test
+    public void whenPublishThenSentToAllSubscribers() throws Exception {
+        final ArgumentCaptor<DistributedTree.Listener> captor = ArgumentCaptor.forClass(DistributedTree.Listener.class);
+        verify(tree).addListener(eq(MessengerImpl.SUBSCRIPTIONS), captor.capture());
+        final DistributedTree.Listener treeListener = captor.getValue();
+
+        when(tree.get(MessengerImpl.SUBSCRIPTIONS + "/3")).thenReturn(MessengerImpl.writeTopics(Arrays.<Object>asList("news", 7L)));
+        treeListener.nodeChildAdded(MessengerImpl.SUBSCRIPTIONS, "3");
+        when(tree.get(MessengerImpl.SUBSCRIPTIONS + "/2")).thenReturn(MessengerImpl.writeTopics(Arrays.<Object>asList(7L)));
+        treeListener.nodeChildAdded(MessengerImpl.SUBSCRIPTIONS, "2");
+        messenger.subscribe("news");
+        verify(tree).set(eq(MessengerImpl.SUBSCRIPTIONS + "/1"), aryEq(MessengerImpl.writeTopics(Arrays.<Object>asList("news"))));
+
+        messenger.publish("news", new byte[]{1});
+        assertThat(sentTo, is(Arrays.asList(sh(1), sh(3))));
+
+        sentTo.clear();
+        treeListener.nodeChildDeleted(MessengerImpl.SUBSCRIPTIONS, "3");
+        messenger.publish("news", new byte[]{1});
+        messenger.publish(7L, new byte[]{1});
+        assertThat(sentTo, is(Arrays.asList(sh(1), sh(2))));
+    }
+
+    @Test
+    public void whenUnsubscribedThenNotPublishedTo() throws Exception {
+        messenger.subscribe(7L);
+        messenger.unsubscribe(7L);
+
+        messenger.publish(7L, new byte[]{1});
+        assertThat(sentTo.isEmpty(), is(true));
+        verify(tree).set(eq(MessengerImpl.SUBSCRIPTIONS + "/1"), aryEq(MessengerImpl.writeTopics(Arrays.<Object>asList())));
+    }
+
+    @Test
+    public void whenReceiverFallsBehindThenSenderIsOutOfCredits() throws Exception {
+        messenger.setSendWindow(10);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final MessageListener slow = blockingListener(latch, 0);
+        final MessageListener listener = mock(MessageListener.class);
+        messenger.addMessageListener(100L, slow);
+        messenger.addMessageListener(100L, listener);
+
+        for (int i = 0; i < 10; i++)
+            assertThat(messenger.trySend(sh(5), 100L, new byte[]{(byte) i}), is(true));
+        assertThat(messenger.trySend(sh(5), 100L, new byte[]{10}), is(false));
+        final ListenableFuture<Void> future = messenger.sendAsync(sh(5), 100L, new byte[]{11});
+        assertThat(messenger.trySend(sh(5), 200L, new byte[]{0}), is(true)); // other topics have their own credits
+        Thread.sleep(100);
+        assertThat(future.isDone(), is(false));
+
+        latch.countDown();
+        future.get(1, TimeUnit.SECONDS);
+        verify(listener, timeout(1000).times(11)).messageReceived(anyShort(), any(byte[].class));
+        verify(listener, never()).messageReceived(sh(5), new byte[]{10});
+    }
+
+    @Test
+    public void whenNodeSwitchedThenWaitingMessagesCountAgainstNewMastersWindow() throws Exception {
+        doAnswer(new Answer<Void>() { // nothing is received, so no credits come back
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                sentTo.add(((Message.MSG) invocation.getArguments()[0]).getNode());
+                return null;
+            }
+        }).when(cache).send(any(Message.MSG.class));
+        messenger.setSendWindow(10);
+
+        for (int i = 0; i < 10; i++)
+            assertThat(messenger.trySend(sh(5), 100L, new byte[]{(byte) i}), is(true));
+        final List<ListenableFuture<Void>> futures = new ArrayList<ListenableFuture<Void>>();
+        for (int i = 10; i < 25; i++)
+            futures.add(messenger.sendAsync(sh(5), 100L, new byte[]{(byte) i}));
+        assertThat(sentTo.size(), is(10));
+
+        final ArgumentCaptor<NodeChangeListener> captor = ArgumentCaptor.forClass(NodeChangeListener.class);
+        verify(cluster, atLeastOnce()).addNodeChangeListener(captor.capture());
+        for (NodeChangeListener l : captor.getAllValues())
+            l.nodeSwitched(sh(5));
+
+        assertThat(sentTo.size(), is(20)); // a full window to the new master, and no more
+        for (int i = 0; i < 15; i++)
+            assertThat(futures.get(i).isDone(), is(i < 10));
+        assertThat(messenger.trySend(sh(5), 100L, new byte[]{25}), is(false));
+    }
+
+    @Test
+    public void whenDurableTopicThenUncommittedMessagesAreReplayed() throws Exception {
+        final File dir = File.createTempFile("messenger", null);
+        dir.delete();
+        messenger.setDurableLogDirectory(dir.getPath());
+        messenger.setDurable("durable", true);
+        final DurableMessageListener listener = mock(DurableMessageListener.class);
+        messenger.addMessageListener("durable", listener);
+
+        for (int i = 0; i < 5; i++)
+            messenger.send(sh(5), "durable", new byte[]{(byte) i});
+        verify(listener, timeout(1000).times(5)).messageReceived(anyShort(), anyLong(), any(byte[].class));
+        verify(listener).messageReceived(sh(5), 2L, new byte[]{2});
+        messenger.commit("durable", 2L);
+        assertThat(messenger.getCommittedOffset("durable"), is(2L));
+
+        // as if after a restart
+        messenger.setDurable("durable", false);
+        messenger.setDurable("durable", true);
+        final DurableMessageListener replayed = mock(DurableMessageListener.class);
+        messenger.replay("durable", replayed);
+        final InOrder inOrder = inOrder(replayed);
+        inOrder.verify(replayed).messageReceived(sh(5), 3L, new byte[]{3});
+        inOrder.verify(replayed).messageReceived(sh(5), 4L, new byte[]{4});
+        verifyNoMoreInteractions(replayed);
+        delete(dir);
+    }
+
+    /**
+     * A listener that blocks until the latch is released when it receives a message whose first byte is {@code value}.
+     */
+    private List<Integer> sentDataSizes(int count) {
+        final ArgumentCaptor<Message.MSG> captor = ArgumentCaptor.forClass(Message.MSG.class);
+        verify(cache, times(count)).send(captor.capture());
+        final List<Integer> sizes = new ArrayList<Integer>();
+        for (Message.MSG msg : captor.getAllValues())
+            sizes.add(msg.getData().length);
+        return sizes;
+    }
+
+    private static MessageListener blockingListener(final CountDownLatch latch, final int value) {
+        return new MessageListener() {
+            @Override
+            public void messageReceived(short fromNode, byte[] message) {
+                if (message[0] != value)
+                    return;
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+
+    private static void delete(File file) {
+        if (file.isDirectory()) {
+            for (File f : file.listFiles())
+                delete(f);
+        }
+        file.delete();
+    }
+
+    static short sh(int x) {
+        return (short) x;
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Galaxy
+ * Copyright (C) 2012 Parallel Universe Software Co.
+ *
+ * This file is part of Galaxy.
+ *
+ * Galaxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Galaxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Galaxy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package co.paralleluniverse.galaxy.core;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ *
+ * @author pron
+ */
+public class OwnerDirectoryTest {
+    OwnerDirectory directory;
+
+    @Before
+    public void setUp() {
+        directory = new OwnerDirectory(16);
+    }
+
+    @After
+    public void tearDown() {
+        directory.free();
+    }
+
+    @Test
+    public void casOwnerHasStoreSemantics() {
+
+        assertThat(directory.casOwner(100, (short) 0, (short) 5), is((short) -1)); // nonexistent
+        assertThat(directory.casOwner(100, (short) -1, (short) 5), is((short) 5)); // create
+        assertThat(directory.casOwner(100, (short) -1, (short) 6), is((short) 5)); // exists
+        assertThat(directory.casOwner(100, (short) 0, (short) 6), is((short) 5)); // wrong owner
+        assertThat(directory.casOwner(100, (short) 5, (short) 6), is((short) 6));
+        assertThat(directory.getOwner(100), is((short) 6));
+
+        directory.remove(100);
+        assertThat(directory.getOwner(100), is((short) -1));
+        assertThat(directory.casOwner(100, (short) 6, (short) 7), is((short) -1));
+        assertThat(directory.size(), is(0));
+    }
+
+    @Test
+    public void whenOwnerChangedThenDirtyUntilDrained() {
+        directory.putIfAbsent(1, (short) 0);
+        directory.putIfAbsent(2, (short) 0);
+        directory.putIfAbsent(3, (short) 0);
+        assertThat(directory.drainDirty().length, is(0));
+
+        directory.casOwner(1, (short) 0, (short) 5);
+        directory.casOwner(3, (short) 0, (short) 5);
+        directory.casOwner(3, (short) 5, (short) 7);
+        final long[] dirty = directory.drainDirty();
+        Arrays.sort(dirty);
+        assertThat(dirty, equalTo(new long[]{1, 3}));
+        assertThat(directory.isDirty(1), is(false));
+
+        directory.replaceOwner((short) 7, (short) 0);
+        assertThat(directory.getOwner(3), is((short) 0));
+        assertThat(directory.getOwner(1), is((short) 5));
+    }
+
+    @Test
+    public void whenManyLinesAddedConcurrentlyThenAllFound() throws Exception {
+        final int perThread = 20000;
+        final AtomicInteger failures = new AtomicInteger();
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final short node = (short) (t + 1);
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < perThread; i++) {
+                        final long id = i * 4 + node;
+                        if (directory.casOwner(id, (short) -1, node) != node)
+                            failures.incrementAndGet();
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        assertThat(failures.get(), is(0));
+        assertThat(directory.size(), is(perThread * threads.length));
+        for (int i = 0; i < perThread * threads.length; i++)
+            assertThat(directory.getOwner(i + 1), is((short) ((i % 4) + 1)));
+    }
+
+    @Test
+    public void whenResizedThenRemovedLinesDroppedAndOthersKept() {
+        for (long id = 1; id <= 1000; id++)
+            directory.putIfAbsent(id, (short) 1);
+        for (long id = 1; id <= 1000; id += 2)
+            directory.remove(id);
+        final int capacity = directory.getCapacity();
+        for (long id = 1001; id <= 3000; id++)
+            directory.putIfAbsent(id, (short) 2);
+
+        assertThat(directory.getCapacity() > capacity, is(true));
+        assertThat(directory.size(), is(500 + 2000));
+        for (long id = 1; id <= 1000; id++)
+            assertThat(directory.getOwner(id), is(id % 2 == 0 ? (short) 1 : (short) -1));
+        for (long id = 1001; id <= 3000; id++)
+            assertThat(directory.getOwner(id), is((short) 2));
+    }
+
+    @Test
+    public void whenFreedThenUnusable() {
+        directory.putIfAbsent(1, (short) 1);
+        directory.free();
+        try {
+            directory.getOwner(1);
+            fail();
+        } catch (IllegalStateException e) {
+        }
+        try {
+            directory.casOwner(1, (short) 1, (short) 2);
+            fail();
+        } catch (IllegalStateException e) {
+        }
+        directory.free(); // again; harmless
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Galaxy
+ * Copyright (C) 2012 Parallel Universe Software Co.
+ *
+ * This file is part of Galaxy.
+ *
+ * Galaxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Galaxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Galaxy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package co.paralleluniverse.galaxy.core;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ *
+ * @author pron
+ */
+public class WriteAheadLogTest {
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("wal", null);
+        dir.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void whenReopenedThenUncommittedRecordsAreReplayed() throws Exception {
+        final WriteAheadLog log = new WriteAheadLog(dir, 256);
+        for (int i = 0; i < 20; i++)
+            log.append(i, 100 + i, buffer(i, 10));
+        log.commit(15);
+        log.force();
+
+        final List<Long> lines = replay(new WriteAheadLog(dir, 256));
+        assertThat(lines.size(), is(5));
+        for (int i = 0; i < 5; i++)
+            assertThat(lines.get(i), is(15L + i));
+    }
+
+    @Test
+    public void whenRecordIsCorruptThenReplayStopsBeforeIt() throws Exception {
+        final WriteAheadLog log = new WriteAheadLog(dir, 1024);
+        for (int i = 0; i < 3; i++)
+            log.append(i, 100 + i, buffer(i, 10));
+        log.force();
+
+        final File segment = dir.listFiles()[0].getName().endsWith(".log") ? dir.listFiles()[0] : dir.listFiles()[1];
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            final int record = 4 + 20 + 10; // length header + WAL header + data
+            raf.seek(record + 4 + 20 + 3); // a data byte of the second record
+            raf.write(0x7f);
+        }
+
+        final List<Long> lines = replay(new WriteAheadLog(dir, 1024));
+        assertThat(lines.size(), is(1));
+        assertThat(lines.get(0), is(0L));
+    }
+
+    @Test
+    public void whenCrashedMidRecordThenLaterRecordsSurviveTheNextRecovery() throws Exception {
+        final WriteAheadLog log = new WriteAheadLog(dir, 1024);
+        for (int i = 0; i < 3; i++)
+            log.append(i, 100 + i, buffer(i, 10));
+        log.force();
+
+        final File segment = dir.listFiles()[0].getName().endsWith(".log") ? dir.listFiles()[0] : dir.listFiles()[1];
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            final int record = 4 + 20 + 10;
+            raf.seek(2 * record + 4 + 20 + 5); // the crash left the second half of the last record's data unwritten
+            raf.write(new byte[5]);
+        }
+
+        final WriteAheadLog recovered1 = new WriteAheadLog(dir, 1024);
+        assertThat(replay(recovered1), is(lines(0, 1)));
+        assertThat(recovered1.getEndOffset(), is(2L));
+        for (int i = 3; i < 5; i++)
+            recovered1.append(i, 100 + i, buffer(i, 10));
+        recovered1.force();
+
+        final WriteAheadLog recovered2 = new WriteAheadLog(dir, 1024);
+        assertThat(replay(recovered2), is(lines(0, 1, 3, 4)));
+    }
+
+    private static List<Long> lines(long... lines) {
+        final List<Long> list = new ArrayList<Long>();
+        for (long line : lines)
+            list.add(line);
+        return list;
+    }
+
+    private static List<Long> replay(WriteAheadLog log) {
+        final List<Long> lines = new ArrayList<Long>();
+        log.replay(new WriteAheadLog.Listener() {
+            @Override
+            public void record(long line, long version, ByteBuffer data) {
+                assertThat(version, is(100 + line));
+                assertThat(data.remaining(), is(10));
+                assertThat(data.get(0), is((byte) line));
+                lines.add(line);
+            }
+        });
+        return lines;
+    }
+
+    private static ByteBuffer buffer(int value, int size) {
+        final ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining())
+            buffer.put((byte) value);
+        buffer.flip();
+        return buffer;
+    }
+}
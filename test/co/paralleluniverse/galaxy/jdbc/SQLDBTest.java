@@ -0,0 +1,132 @@
+/*
+ * Galaxy
+ * Copyright (C) 2012 Parallel Universe Software Co.
+ *
+ * This file is part of Galaxy.
+ *
+ * Galaxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Galaxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Galaxy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package co.paralleluniverse.galaxy.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.sql.DataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+import static org.mockito.Mockito.*;
+import static org.mockito.Matchers.*;
+
+/**
+ * Tests that the connection shared by all of SQLDB's users is used by one thread at a time, and by no other thread during a transaction.
+ *
+ * @author pron
+ */
+public class SQLDBTest {
+    SQLDB db;
+    final AtomicInteger inUse = new AtomicInteger();
+    final AtomicInteger overlaps = new AtomicInteger();
+    final List<String> ops = Collections.synchronizedList(new ArrayList<String>()); // thread name and operation
+    ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        final Connection conn = mock(Connection.class);
+        final PreparedStatement statement = mock(PreparedStatement.class);
+        when(statement.executeUpdate()).thenAnswer(use("update", 1));
+        doAnswer(use("commit", null)).when(conn).commit();
+        when(conn.createStatement()).thenReturn(mock(Statement.class));
+        when(conn.prepareStatement(anyString())).thenReturn(statement);
+        final DataSource dataSource = mock(DataSource.class);
+        when(dataSource.getConnection()).thenReturn(conn);
+
+        db = new SQLDB("sqldb", dataSource);
+        db.setBigintType("BIGINT");
+        db.setSmallintType("SMALLINT");
+        db.setVarbinaryType("VARBINARY");
+        db.afterPropertiesSet();
+        ops.clear();
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void whenUsedConcurrentlyThenConnectionUsedByOneThreadAtATime() throws Exception {
+        final List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (int i = 0; i < 4; i++) {
+            final int worker = i;
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 50; j++) {
+                        if (worker % 2 == 0) // like the group committer or the owner flusher
+                            writeInTransaction(100 * worker + j);
+                        else // like a worker thread
+                            db.write(100 * worker + j, (short) 1, j, new byte[10], null);
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : futures)
+            future.get();
+
+        assertThat(overlaps.get(), is(0));
+        assertThat(ops.size(), is(2 * 50 * 2 + 3 * 50 * 2)); // update and commit; transactions make two updates
+        for (int i = 0; i < ops.size() - 1; i++) {
+            if (ops.get(i).endsWith("update")) // an update is followed by its own thread's commit or update
+                assertThat(thread(ops.get(i + 1)), is(thread(ops.get(i))));
+        }
+    }
+
+    private void writeInTransaction(long id) {
+        final Object txn = db.beginTransaction();
+        db.write(id, (short) 1, 1, new byte[10], txn);
+        db.setOwner(id + 1000, (short) 2, txn);
+        db.commit(txn);
+    }
+
+    private Answer<Object> use(final String op, final Object result) {
+        return new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                if (inUse.incrementAndGet() > 1)
+                    overlaps.incrementAndGet();
+                ops.add(Thread.currentThread().getName() + " " + op);
+                Thread.sleep(0, 100000);
+                inUse.decrementAndGet();
+                return result;
+            }
+        };
+    }
+
+    private static String thread(String op) {
+        return op.substring(0, op.lastIndexOf(' '));
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Galaxy
+ * Copyright (C) 2012 Parallel Universe Software Co.
+ *
+ * This file is part of Galaxy.
+ *
+ * Galaxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Galaxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Galaxy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package co.paralleluniverse.galaxy.logdb;
+
+import co.paralleluniverse.common.io.MappedLog;
+import co.paralleluniverse.galaxy.server.MainMemoryEntry;
+import java.io.File;
+import java.nio.ByteBuffer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ *
+ * @author pron
+ */
+public class LogDBTest {
+    private File dir;
+    private LogDB db;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("logdb", null);
+        dir.delete();
+        db = open();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        db.close();
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void testWriteReadAndCasOwner() throws Exception {
+        final Object txn = db.beginTransaction();
+        db.write(100, (short) 5, 1, bytes(1, 20), txn);
+        db.write(101, (short) 5, 1, bytes(2, 20), txn);
+        assertThat(db.read(100), is(nullValue())); // not committed
+        db.commit(txn);
+
+        assertThat(db.read(100).version, is(1L));
+        assertThat(db.read(100).data, equalTo(bytes(1, 20)));
+        assertThat(db.casOwner(100, (short) 0, (short) 7), is((short) 5));
+        assertThat(db.casOwner(100, (short) 5, (short) 7), is((short) 7));
+        assertThat(db.casOwner(102, (short) 0, (short) 7), is((short) -1));
+        assertThat(db.casOwner(102, (short) -1, (short) 7), is((short) 7));
+        assertThat(db.read(102), is(nullValue()));
+
+        db.write(100, (short) 5, 2, bytes(3, 20), null);
+        assertThat(db.casOwner(100, (short) 7, (short) 8), is((short) 8)); // owner unchanged by write
+
+        db.removeOwner((short) 8);
+        assertThat(db.casOwner(100, (short) 0, (short) 9), is((short) 9));
+        assertThat(db.getMaxId(), is(102L));
+
+        db.delete(101, null);
+        assertThat(db.read(101), is(nullValue()));
+    }
+
+    @Test
+    public void whenReopenedThenCommittedStateRecoveredAndOwnersReset() throws Exception {
+        db.write(100, (short) 5, 1, bytes(1, 20), null);
+        db.write(101, (short) 5, 1, bytes(2, 20), null);
+        db.write(100, (short) 5, 2, bytes(3, 20), null);
+        db.delete(101, null);
+        final Object txn = db.beginTransaction();
+        db.write(103, (short) 5, 1, bytes(4, 20), txn);
+        db.abort(txn);
+        db.close();
+
+        db = open();
+        final MainMemoryEntry entry = db.read(100);
+        assertThat(entry.version, is(2L));
+        assertThat(entry.data, equalTo(bytes(3, 20)));
+        assertThat(db.read(101), is(nullValue()));
+        assertThat(db.read(103), is(nullValue()));
+        assertThat(db.casOwner(100, (short) 0, (short) 6), is((short) 6));
+    }
+
+    @Test
+    public void whenTailIsCorruptOrIncompleteThenDiscarded() throws Exception {
+        db.write(100, (short) 5, 1, bytes(1, 20), null);
+        db.close();
+
+        final MappedLog log = new MappedLog(dir, 4096);
+        log.append(ByteBuffer.wrap(bytes(9, 40))); // garbage
+        log.force();
+
+        db = open();
+        assertThat(db.read(100).version, is(1L));
+        db.write(100, (short) 5, 2, bytes(2, 20), null);
+        db.close();
+
+        db = open();
+        assertThat(db.read(100).version, is(2L));
+    }
+
+    @Test
+    public void whenMostRecordsSupersededThenCompacted() throws Exception {
+        for (int i = 0; i < 1000; i++)
+            db.write(100 + (i % 10), (short) 5, i, bytes(i, 100), null);
+        final long records = db.getNumRecords();
+        db.compact();
+
+        assertThat(db.getNumRecords() < records / 2, is(true));
+        for (int i = 990; i < 1000; i++)
+            assertThat(db.read(100 + (i % 10)).version, is((long) i));
+        db.close();
+
+        db = open();
+        for (int i = 990; i < 1000; i++) {
+            final MainMemoryEntry entry = db.read(100 + (i % 10));
+            assertThat(entry.version, is((long) i));
+            assertThat(entry.data, equalTo(bytes(i, 100)));
+        }
+    }
+
+    private LogDB open() throws Exception {
+        final LogDB logDB = new LogDB("test", dir.getPath());
+        logDB.setSegmentSize(4096);
+        logDB.setCompactionIntervalMillis(100000);
+        logDB.init();
+        return logDB;
+    }
+
+    private static byte[] bytes(int value, int size) {
+        final byte[] array = new byte[size];
+        for (int i = 0; i < size; i++)
+            array[i] = (byte) (value + i);
+        return array;
+    }
+}
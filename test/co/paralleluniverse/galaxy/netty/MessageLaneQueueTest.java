@@ -0,0 +1,100 @@
+/*
+ * Galaxy
+ * Copyright (C) 2012 Parallel Universe Software Co.
+ * 
+ * This file is part of Galaxy.
+ *
+ * Galaxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of 
+ * the License, or (at your option) any later version.
+ *
+ * Galaxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public 
+ * License along with Galaxy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package co.paralleluniverse.galaxy.netty;
+
+import co.paralleluniverse.galaxy.core.Message;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ *
+ * @author pron
+ */
+public class MessageLaneQueueTest {
+    @Test
+    public void whenOnlyOneLaneThenFifo() {
+        final MessageLaneQueue queue = new MessageLaneQueue(10, 2, 1);
+        final Message m1 = get(1), m2 = get(2), m3 = get(3);
+        queue.offer(m1);
+        queue.offer(m2);
+        queue.offer(m3);
+
+        assertThat(queue.poll(), sameInstance(m1));
+        assertThat(queue.poll(), sameInstance(m2));
+        assertThat(queue.poll(), sameInstance(m3));
+        assertThat(queue.poll(), is(nullValue()));
+    }
+
+    @Test
+    public void coherenceMessagesOvertakeUserMessagesByWeight() {
+        final MessageLaneQueue queue = new MessageLaneQueue(10, 2, 1);
+        final Message u1 = msg(1), u2 = msg(2);
+        final Message c1 = get(1), c2 = get(2), c3 = get(3);
+        queue.offer(u1);
+        queue.offer(u2);
+        queue.offer(c1);
+        queue.offer(c2);
+        queue.offer(c3);
+
+        assertThat(queue.poll(), sameInstance(c1));
+        assertThat(queue.poll(), sameInstance(c2));
+        assertThat(queue.poll(), sameInstance(u1));
+        assertThat(queue.poll(), sameInstance(c3));
+        assertThat(queue.poll(), sameInstance(u2));
+    }
+
+    @Test
+    public void userMessagesNeverOvertakeEarlierCoherenceMessages() {
+        final MessageLaneQueue queue = new MessageLaneQueue(10, 1, 5);
+        final Message c1 = get(1), c2 = get(2);
+        final Message u1 = msg(1), u2 = msg(2);
+        queue.offer(c1);
+        queue.offer(u1);
+        queue.offer(c2);
+        queue.offer(u2);
+
+        assertThat(queue.poll(), sameInstance(c1));
+        assertThat(queue.poll(), sameInstance(u1));
+        assertThat(queue.poll(), sameInstance(c2));
+        assertThat(queue.poll(), sameInstance(u2));
+    }
+
+    @Test
+    public void eachLaneHasItsOwnCapacity() throws Exception {
+        final MessageLaneQueue queue = new MessageLaneQueue(2, 1, 1);
+        assertTrue(queue.offer(msg(1)));
+        assertTrue(queue.offer(msg(2)));
+        assertFalse(queue.offer(msg(3)));
+        assertTrue(queue.offer(get(1)));
+        assertThat(queue.size(), is(3));
+        assertThat(queue.size(MessageLaneQueue.MESSAGES), is(2));
+        assertThat(queue.poll(1, TimeUnit.MILLISECONDS), is(notNullValue()));
+    }
+
+    private static Message get(long line) {
+        return Message.GET((short) 2, line);
+    }
+
+    private static Message msg(long line) {
+        return Message.MSG((short) 2, line, new byte[]{1});
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Galaxy
+ * Copyright (C) 2012 Parallel Universe Software Co.
+ *
+ * This file is part of Galaxy.
+ *
+ * Galaxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Galaxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Galaxy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package co.paralleluniverse.galaxy.netty;
+
+import co.paralleluniverse.galaxy.core.Message;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+import static org.mockito.Mockito.*;
+import static org.mockito.Matchers.*;
+import static org.mockito.Matchers.any;
+
+/**
+ * Tests that a packet's encoding is reused when it's re-sent, and recomputed whenever the packet changes.
+ *
+ * @author pron
+ */
+public class MessagePacketTest {
+    MessagePacket packet;
+    Message m1;
+    Message m2;
+
+    @Before
+    public void setUp() {
+        m1 = get(1, 101);
+        m2 = get(2, 102);
+        packet = new MessagePacket();
+        packet.addMessage(m1);
+        packet.addMessage(m2);
+    }
+
+    @Test
+    public void whenResentUnmodifiedThenEncodedOnce() {
+        final ByteBuffer[] first = packet.toByteBuffers();
+        for (ByteBuffer b : first)
+            b.position(b.limit()); // written to the channel
+        final ByteBuffer[] second = packet.toByteBuffers();
+
+        verify(m1, times(1)).toByteBuffers(any(ByteBuffer.class));
+        verify(m2, times(1)).toByteBuffers(any(ByteBuffer.class));
+        assertThat(remaining(second), is(packet.sizeInBytes()));
+        assertThat(decode(second).numMessages(), is(2));
+    }
+
+    @Test
+    public void whenMessageAddedThenReEncoded() {
+        packet.toByteBuffers();
+        packet.addMessage(get(3, 103));
+        assertThat(decode(packet.toByteBuffers()).numMessages(), is(3));
+        verify(m1, times(2)).toByteBuffers(any(ByteBuffer.class));
+    }
+
+    @Test
+    public void whenMessageRemovedThenReEncoded() {
+        packet.toByteBuffers();
+        assertThat(packet.removeMessage(m2), is(true));
+        assertThat(decode(packet.toByteBuffers()).numMessages(), is(1));
+        verify(m1, times(2)).toByteBuffers(any(ByteBuffer.class));
+    }
+
+    @Test
+    public void whenMessageRemovedByIdThenReEncoded() {
+        packet.toByteBuffers();
+        assertThat(packet.removeMessage(102), is(true));
+        assertThat(decode(packet.toByteBuffers()).numMessages(), is(1));
+        verify(m1, times(2)).toByteBuffers(any(ByteBuffer.class));
+    }
+
+    @Test
+    public void whenMessageRemovedByIteratorThenReEncoded() {
+        packet.toByteBuffers();
+        final Iterator<Message> it = packet.iterator();
+        it.next();
+        it.next();
+        it.remove();
+        assertThat(decode(packet.toByteBuffers()).numMessages(), is(1));
+        verify(m1, times(2)).toByteBuffers(any(ByteBuffer.class));
+    }
+
+    @Test
+    public void whenNodeSetThenReEncoded() {
+        packet.toByteBuffers();
+        packet.setNode((short) 7);
+        packet.toByteBuffers();
+        verify(m1, times(2)).toByteBuffers(any(ByteBuffer.class));
+        verify(m2, times(2)).toByteBuffers(any(ByteBuffer.class));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void messagesCannotBeModifiedBehindThePacketsBack() {
+        packet.getMessages().add(get(3, 103));
+    }
+
+    private static Message get(long line, long id) {
+        return spy(Message.GET((short) 2, line).setMessageId(id));
+    }
+
+    private static int remaining(ByteBuffer[] buffers) {
+        int n = 0;
+        for (ByteBuffer b : buffers)
+            n += b.remaining();
+        return n;
+    }
+
+    private static MessagePacket decode(ByteBuffer[] buffers) {
+        final ByteBuffer buffer = ByteBuffer.allocate(remaining(buffers));
+        for (ByteBuffer b : buffers)
+            buffer.put(b);
+        buffer.flip();
+        final MessagePacket decoded = new MessagePacket();
+        decoded.fromByteBuffer(buffer);
+        return decoded;
+    }
+}
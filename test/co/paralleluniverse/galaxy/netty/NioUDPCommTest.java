@@ -0,0 +1,122 @@
+/*
+ * Galaxy
+ * Copyright (C) 2012 Parallel Universe Software Co.
+ *
+ * This file is part of Galaxy.
+ *
+ * Galaxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Galaxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Galaxy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package co.paralleluniverse.galaxy.netty;
+
+import co.paralleluniverse.galaxy.Cluster;
+import co.paralleluniverse.galaxy.cluster.NodeInfo;
+import co.paralleluniverse.galaxy.core.Message;
+import co.paralleluniverse.galaxy.core.Message.LineMessage;
+import co.paralleluniverse.galaxy.core.MessageReceiver;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+import org.mockito.ArgumentCaptor;
+import static org.mockito.Mockito.*;
+
+/**
+ * Sends real packets between two comms over the loopback interface.
+ *
+ * @author pron
+ */
+public class NioUDPCommTest {
+    static final int PORT = 17310;
+    final List<NioUDPComm> comms = new ArrayList<NioUDPComm>();
+
+    @After
+    public void tearDown() {
+        for (NioUDPComm comm : comms)
+            comm.shutdown();
+    }
+
+    @Test
+    public void testSendAndReceiveOverLoopback() throws Exception {
+        final InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        final MessageReceiver receiver1 = mock(MessageReceiver.class);
+        final MessageReceiver receiver2 = mock(MessageReceiver.class);
+        final NioUDPComm comm1 = startComm(sh(1), PORT, sh(2), PORT + 1, loopback, receiver1, true);
+        final NioUDPComm comm2 = startComm(sh(2), PORT + 1, sh(1), PORT, loopback, receiver2, true);
+
+        comm1.send(Message.GET(sh(2), 1234L));
+
+        final ArgumentCaptor<Message> captor = ArgumentCaptor.forClass(Message.class);
+        verify(receiver2, timeout(2000)).receive(captor.capture());
+        final Message received = captor.getValue();
+        assertThat(received.getType(), is(Message.Type.GET));
+        assertThat(received.getNode(), is(sh(1)));
+        assertThat(((LineMessage) received).getLine(), is(1234L));
+
+        comm2.send(Message.GET(sh(1), 5678L));
+
+        verify(receiver1, timeout(2000)).receive(captor.capture());
+        assertThat(captor.getValue().getType(), is(Message.Type.GET));
+        assertThat(captor.getValue().getNode(), is(sh(2)));
+        assertThat(((LineMessage) captor.getValue()).getLine(), is(5678L));
+    }
+
+    @Test
+    public void whenMulticastInterfaceCannotBeResolvedThenFailOnInit() throws Exception {
+        try {
+            startComm(sh(1), PORT, sh(2), PORT + 1, InetAddress.getByName("0.0.0.0"), mock(MessageReceiver.class), false);
+            fail("Expected configuration error");
+        } catch (RuntimeException e) {
+            assertThat(e.getMessage().contains("multicastNetworkInterface"), is(true));
+        }
+    }
+
+    private NioUDPComm startComm(short node, int port, short peer, int peerPort, InetAddress address, MessageReceiver receiver, boolean unicast) throws Exception {
+        final NodeInfo peerInfo = mock(NodeInfo.class);
+        when(peerInfo.getNodeId()).thenReturn(peer);
+        when(peerInfo.get(IpConstants.IP_ADDRESS)).thenReturn(InetAddress.getByName("127.0.0.1"));
+        when(peerInfo.get(IpConstants.IP_COMM_PORT)).thenReturn(peerPort);
+
+        final Collection<NodeInfo> masters = Arrays.asList(peerInfo);
+        final Cluster cluster = mock(Cluster.class);
+        when(cluster.isMaster()).thenReturn(true);
+        when(cluster.isOnline()).thenReturn(true);
+        when(cluster.getMyNodeId()).thenReturn(node);
+        when(cluster.getNodes()).thenReturn(new HashSet<Short>(Arrays.asList(peer)));
+        when(cluster.getMasters()).thenReturn(masters);
+        when(cluster.getMaster(peer)).thenReturn(peerInfo);
+        when(cluster.getNodeProperty(IpConstants.IP_ADDRESS)).thenReturn(address);
+
+        final NioUDPComm comm = new NioUDPComm("comm" + node, cluster, null, port);
+        comm.setReceiver(receiver);
+        comm.setSendToServerInsteadOfMulticast(unicast);
+        if (!unicast)
+            comm.setMulticastGroup(new InetSocketAddress(InetAddress.getByName("225.0.0.1"), PORT + 10));
+        comm.init();
+        comms.add(comm);
+        comm.postInit();
+        comm.nodeAdded(peer);
+        return comm;
+    }
+
+    static short sh(int x) {
+        return (short) x;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Galaxy
+ * Copyright (C) 2012 Parallel Universe Software Co.
+ *
+ * This file is part of Galaxy.
+ *
+ * Galaxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Galaxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Galaxy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package co.paralleluniverse.galaxy.netty;
+
+import co.paralleluniverse.galaxy.Cluster;
+import co.paralleluniverse.galaxy.cluster.NodeInfo;
+import co.paralleluniverse.galaxy.core.Message;
+import co.paralleluniverse.galaxy.core.Message.LineMessage;
+import co.paralleluniverse.galaxy.core.MessageReceiver;
+import static co.paralleluniverse.galaxy.netty.IpConstants.*;
+import java.io.File;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+import org.mockito.ArgumentCaptor;
+import static org.mockito.Mockito.*;
+
+/**
+ * Runs two comms in this process, as two nodes on the same host.
+ *
+ * @author pron
+ */
+public class SharedMemoryUDPCommTest {
+    static final int PORT = 17320;
+    File dir;
+    static final AtomicInteger executors = new AtomicInteger();
+    final List<UDPComm> comms = new ArrayList<UDPComm>();
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("galaxy-shm").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        for (UDPComm comm : comms)
+            comm.shutdown();
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void testSendAndReceiveThroughSharedMemory() throws Exception {
+        final MessageReceiver receiver1 = mock(MessageReceiver.class);
+        final MessageReceiver receiver2 = mock(MessageReceiver.class);
+        final SharedMemoryUDPComm comm1 = sharedMemoryComm("comm1", cluster(sh(1), sh(2), PORT + 1), PORT);
+        final SharedMemoryUDPComm comm2 = sharedMemoryComm("comm2", cluster(sh(2), sh(1), PORT), PORT + 1);
+        start(comm1, receiver1, sh(2));
+        start(comm2, receiver2, sh(1));
+
+        assertThat(comm1.getNumSharedMemoryPeers(), is(1));
+        assertThat(comm2.getNumSharedMemoryPeers(), is(1));
+        assertThat(new File(dir, "galaxy-comm-" + PORT + "-" + (PORT + 1)).exists(), is(true));
+        assertThat(new File(dir, "galaxy-comm-" + (PORT + 1) + "-" + PORT).exists(), is(true));
+
+        comm1.send(Message.GET(sh(2), 1234L));
+        assertThat(received(receiver2).getLine(), is(1234L));
+
+        comm2.send(Message.GET(sh(1), 5678L));
+        assertThat(received(receiver1).getLine(), is(5678L));
+    }
+
+    @Test
+    public void whenRingIsFullThenSendOverUDP() throws Exception {
+        // node 2 claims to use shared memory but never reads the ring, so it fills up with the first packet
+        final MessageReceiver receiver2 = mock(MessageReceiver.class);
+        final SharedMemoryUDPComm comm1 = sharedMemoryComm("comm1", cluster(sh(1), sh(2), PORT + 1), PORT);
+        comm1.setRingSize(64);
+        comm1.setResendPeriodMillisecs(20);
+        final NioUDPComm comm2 = new NioUDPComm("comm2", cluster(sh(2), sh(1), PORT), null, PORT + 1);
+        start(comm1, mock(MessageReceiver.class), sh(2));
+        start(comm2, receiver2, sh(1));
+
+        assertThat(comm1.getNumSharedMemoryPeers(), is(1));
+
+        comm1.send(Message.GET(sh(2), 1234L));
+        assertThat(received(receiver2).getLine(), is(1234L)); // resent over UDP
+    }
+
+    private LineMessage received(MessageReceiver receiver) {
+        final ArgumentCaptor<Message> captor = ArgumentCaptor.forClass(Message.class);
+        verify(receiver, timeout(2000).atLeastOnce()).receive(captor.capture());
+        final Message m = captor.getValue();
+        assertThat(m.getType(), is(Message.Type.GET));
+        return (LineMessage) m;
+    }
+
+    private Cluster cluster(short node, short peer, int peerPort) throws Exception {
+        final InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        final NodeInfo peerInfo = mock(NodeInfo.class);
+        when(peerInfo.getNodeId()).thenReturn(peer);
+        when(peerInfo.get(IP_ADDRESS)).thenReturn(loopback);
+        when(peerInfo.get(IP_COMM_PORT)).thenReturn(peerPort);
+        when(peerInfo.get(IP_COMM_SHARED_MEMORY)).thenReturn(Boolean.TRUE);
+
+        final Collection<NodeInfo> masters = Arrays.asList(peerInfo);
+        final Cluster cluster = mock(Cluster.class);
+        when(cluster.isMaster()).thenReturn(true);
+        when(cluster.isOnline()).thenReturn(true);
+        when(cluster.getMyNodeId()).thenReturn(node);
+        when(cluster.getNodes()).thenReturn(new HashSet<Short>(Arrays.asList(peer)));
+        when(cluster.getMasters()).thenReturn(masters);
+        when(cluster.getMaster(peer)).thenReturn(peerInfo);
+        when(cluster.getNodeProperty(IP_ADDRESS)).thenReturn(loopback);
+        return cluster;
+    }
+
+    private SharedMemoryUDPComm sharedMemoryComm(String name, Cluster cluster, int port) throws Exception {
+        final String executorName = "udpCommWorkerExecutor-" + name + "-" + executors.incrementAndGet(); // executors are registered as MBeans
+        return new SharedMemoryUDPComm(name, cluster, null, port) {
+            @Override
+            public String getWorkerExecutorName() {
+                return executorName;
+            }
+        };
+    }
+
+    private void start(UDPComm comm, MessageReceiver receiver, short peer) throws Exception {
+        if (comm instanceof SharedMemoryUDPComm) {
+            ((SharedMemoryUDPComm) comm).setSharedMemoryDirectory(dir.getPath());
+            comm.setWorkerExecutor(new ThreadPoolExecutor(1, 4, 10, TimeUnit.SECONDS, new SynchronousQueue<Runnable>()));
+        }
+        comm.setReceiver(receiver);
+        comm.setSendToServerInsteadOfMulticast(true);
+        comm.init();
+        comms.add(comm);
+        comm.postInit();
+        comm.nodeAdded(peer);
+    }
+
+    static short sh(int x) {
+        return (short) x;
+    }
+}
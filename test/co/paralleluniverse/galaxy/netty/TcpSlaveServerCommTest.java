@@ -0,0 +1,233 @@
+/*
+ * Galaxy
+ * Copyright (C) 2012 Parallel Universe Software Co.
+ *
+ * This file is part of Galaxy.
+ *
+ * Galaxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Galaxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Galaxy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package co.paralleluniverse.galaxy.netty;
+
+import co.paralleluniverse.galaxy.Cluster;
+import co.paralleluniverse.galaxy.cluster.NodeInfo;
+import co.paralleluniverse.galaxy.core.Backup;
+import co.paralleluniverse.galaxy.core.BackupImpl.SlaveAckQuorum;
+import co.paralleluniverse.galaxy.core.Message;
+import co.paralleluniverse.galaxy.core.Message.BACKUP;
+import co.paralleluniverse.galaxy.core.Message.BACKUP_PACKET;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.group.ChannelGroup;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import static org.mockito.Mockito.*;
+import static org.mockito.Matchers.*;
+
+/**
+ * Tests the slave-ack bookkeeping: which message each ack is attributed to, and when Backup is told about it.
+ *
+ * @author pron
+ */
+public class TcpSlaveServerCommTest {
+    static final AtomicInteger instances = new AtomicInteger();
+    static final long LINE = 1234L;
+    TcpSlaveServerComm comm;
+    Backup backup;
+    SlaveAckQuorum quorum;
+    Channel slave1;
+    Channel slave2;
+    Channel slave3;
+
+    @Before
+    public void setUp() throws Exception {
+        final Cluster cluster = mock(Cluster.class);
+        backup = mock(Backup.class);
+        when(backup.isSlaveAckQuorum(anyInt(), anyInt())).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                final int acks = (Integer) invocation.getArguments()[0];
+                final int slaves = (Integer) invocation.getArguments()[1];
+                return acks >= required(slaves);
+            }
+        });
+
+        comm = new TcpSlaveServerComm("slaveServerComm" + instances.incrementAndGet(), cluster, 0);
+        comm.setBackup(backup);
+        slave1 = addSlave(1);
+        slave2 = addSlave(2);
+        slave3 = null;
+    }
+
+    @Test
+    public void whenINVAckedByQuorumThenBackupToldOnce() throws Exception {
+        quorum = SlaveAckQuorum.ANY;
+        comm.send(inv());
+
+        invack(slave1);
+        verify(backup).slavesInvAck(LINE);
+        invack(slave2);
+        verify(backup, times(1)).slavesInvAck(LINE);
+    }
+
+    @Test
+    public void whenLineReINVedThenLateAckOfPreviousINVDoesNotCompleteNewINV() throws Exception {
+        quorum = SlaveAckQuorum.ANY;
+        comm.send(inv());
+        invack(slave1); // first INV done; slave2 still owes its ack
+        verify(backup, times(1)).slavesInvAck(LINE);
+
+        comm.send(inv());
+        invack(slave2); // slave2's ack of the *first* INV
+        verify(backup, times(1)).slavesInvAck(LINE);
+
+        invack(slave2); // now slave2 acks the second INV
+        verify(backup, times(2)).slavesInvAck(LINE);
+        invack(slave1);
+        verify(backup, times(2)).slavesInvAck(LINE);
+    }
+
+    @Test
+    public void whenMajorityThenINVDoneWhenMajorityAcked() throws Exception {
+        quorum = SlaveAckQuorum.MAJORITY;
+        slave3 = addSlave(3);
+        comm.send(inv());
+
+        invack(slave1);
+        verify(backup, never()).slavesInvAck(LINE);
+        invack(slave3);
+        verify(backup, times(1)).slavesInvAck(LINE);
+        invack(slave2);
+        verify(backup, times(1)).slavesInvAck(LINE);
+    }
+
+    @Test
+    public void whenSlaveRemovedThenItNoLongerCountsTowardsQuorum() throws Exception {
+        quorum = SlaveAckQuorum.ALL;
+        comm.send(inv());
+        final BACKUP_PACKET packet = packet(100);
+        comm.send(packet);
+
+        invack(slave1);
+        ack(slave1, packet);
+        verify(backup, never()).slavesInvAck(LINE);
+        verify(backup).slavesAck(100, 1, 2);
+
+        comm.slaveRemoved(slave2);
+        verify(backup, times(1)).slavesInvAck(LINE);
+        verify(backup).slavesAck(100, 1, 1);
+
+        comm.slaveRemoved(slave2);
+        verify(backup, times(1)).slavesInvAck(LINE);
+        verify(backup, times(1)).slavesAck(100, 1, 1);
+    }
+
+    @Test
+    public void whenAllSlavesRemovedThenINVDone() throws Exception {
+        quorum = SlaveAckQuorum.ALL;
+        comm.send(inv());
+
+        comm.slaveRemoved(slave1);
+        verify(backup, never()).slavesInvAck(LINE);
+        comm.slaveRemoved(slave2);
+        verify(backup, times(1)).slavesInvAck(LINE);
+    }
+
+    @Test
+    public void eachPacketAckIsReportedWithCounts() throws Exception {
+        quorum = SlaveAckQuorum.ALL;
+        final BACKUP_PACKET packet1 = packet(100);
+        final BACKUP_PACKET packet2 = packet(101);
+        comm.send(packet1);
+        comm.send(packet2);
+
+        ack(slave2, packet2);
+        ack(slave1, packet1);
+        ack(slave1, packet1); // duplicate; ignored
+        ack(slave2, packet1);
+        ack(slave1, packet2);
+
+        final InOrder inOrder = inOrder(backup);
+        inOrder.verify(backup).slavesAck(101, 1, 2);
+        inOrder.verify(backup).slavesAck(100, 1, 2);
+        inOrder.verify(backup).slavesAck(100, 2, 2);
+        inOrder.verify(backup).slavesAck(101, 2, 2);
+        verify(backup, times(4)).slavesAck(anyLong(), anyInt(), anyInt());
+    }
+
+    @Test
+    public void whenNoSlavesThenSendReturnsFalse() throws Exception {
+        comm.slaveRemoved(slave1);
+        channels().remove(slave1);
+        channels().remove(slave2);
+        assertThat(comm.send(inv()), is(false));
+        assertThat(comm.send(packet(100)), is(false));
+    }
+
+    private int required(int slaves) {
+        switch (quorum) {
+            case ANY:
+                return Math.min(1, slaves);
+            case MAJORITY:
+                return slaves > 0 ? slaves / 2 + 1 : 0;
+            default:
+                return slaves;
+        }
+    }
+
+    private Message inv() {
+        return Message.INV((short) 1, LINE, (short) 5);
+    }
+
+    private BACKUP_PACKET packet(long id) {
+        return Message.BACKUP_PACKET(id, Collections.<BACKUP>emptyList());
+    }
+
+    private void invack(Channel slave) {
+        comm.receive(ctx(slave), Message.INVACK((short) 1, LINE));
+    }
+
+    private void ack(Channel slave, BACKUP_PACKET packet) {
+        comm.receive(ctx(slave), Message.BACKUP_PACKETACK(packet));
+    }
+
+    private ChannelHandlerContext ctx(Channel channel) {
+        final ChannelHandlerContext ctx = mock(ChannelHandlerContext.class);
+        when(ctx.getChannel()).thenReturn(channel);
+        return ctx;
+    }
+
+    private ChannelGroup channels() {
+        return comm.getChannels();
+    }
+
+    private Channel addSlave(int id) {
+        final Channel channel = mock(Channel.class);
+        when(channel.getId()).thenReturn(id);
+        when(channel.getCloseFuture()).thenReturn(mock(ChannelFuture.class));
+        final ChannelFuture writeFuture = mock(ChannelFuture.class);
+        when(writeFuture.getChannel()).thenReturn(channel);
+        when(channel.write(any())).thenReturn(writeFuture);
+        ChannelNodeInfo.nodeInfo.set(channel, mock(NodeInfo.class));
+        channels().add(channel);
+        return channel;
+    }
+}
@@ -152,6 +152,22 @@ public class UDPCommTest {
         verify(channel, atLeastOnce()).write(argThat(is(packetThatContains(m))), eq(node2Address));
     }
 
+    @Test
+    public void whenTrafficWeightLessThanOneThenRejected() throws Exception {
+        try {
+            comm.setCoherenceTrafficWeight(0);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            comm.setMessageTrafficWeight(-1);
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        assertThat(comm.getCoherenceTrafficWeight(), is(4));
+        assertThat(comm.getMessageTrafficWeight(), is(1));
+    }
+
     @Test
     public void whenSeveralMessagesThenAggregateInPacketUntilMaxDelay() throws Exception {
         // we test on responses because requests actually send immediately when comm.send() is called
@@ -408,6 +424,61 @@ public class UDPCommTest {
         verify(receiver).receive(argThat(equalTo(Message.NOT_FOUND(m))));
         verify(receiver, never()).receive(argThat(equalTo(Message.TIMEOUT(m))));
     }
+
+    @Test
+    public void whenSendToSelfThenReceiveOnCallingThread() throws Exception {
+        final Message m = Message.GET(sh(1), id(1234L));
+        comm.send(m);
+        verify(receiver).receive(m); // no await
+        verify(channel, never()).write(any(), any(SocketAddress.class));
+    }
+
+    @Test
+    public void whenSendToSelfWhileReceivingThenReceiveInOrderAfterReturn() throws Exception {
+        final Message m1 = Message.GET(sh(1), id(1111L));
+        final Message m2 = Message.GET(sh(1), id(2222L));
+        final Message m3 = Message.GET(sh(1), id(3333L));
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                comm.send(m2);
+                comm.send(m3);
+                verify(receiver, never()).receive(m2);
+                return null;
+            }
+        }).when(receiver).receive(m1);
+
+        comm.send(m1);
+
+        final InOrder inOrder = inOrder(receiver);
+        inOrder.verify(receiver).receive(m1);
+        inOrder.verify(receiver).receive(m2);
+        inOrder.verify(receiver).receive(m3);
+    }
+
+    @Test
+    public void whenNodeHasSeveralReceiveSocketsThenSendToSocketChosenByOurNodeId() throws Exception {
+        final InetSocketAddress node5Address = new InetSocketAddress(InetAddress.getByName("1.1.1.5"), PORT);
+        addNodeInfo(sh(5), node5Address);
+        when(cluster.getMaster(sh(5)).get(IpConstants.IP_COMM_RECEIVE_SOCKETS)).thenReturn(4);
+
+        comm = new UDPComm("comm", cluster, serverComm, PORT);
+        comm.setChannel(channel);
+        comm.setReceiver(receiver);
+        comm.setMulticastGroup(GROUP);
+        comm.setMinDelayMicrosecs(5000);
+        comm.setMaxDelayMicrosecs(15000);
+        for (short node : sh(0, 2, 3, 4, 5))
+            comm.nodeAdded(node);
+
+        final Message m1 = Message.GET(sh(5), 1234L);
+        final Message m2 = Message.GET(sh(2), 1234L);
+        comm.send(m1);
+        comm.send(m2);
+        await();
+        verify(channel, atLeastOnce()).write(argThat(is(packetThatContains(m1))), eq(new InetSocketAddress(node5Address.getAddress(), PORT + 1)));
+        verify(channel, atLeastOnce()).write(argThat(is(packetThatContains(m2))), eq(node2Address));
+    }
     ///////////////////////////////////////////////
 
     static NodeChangeListener getNodeChangeListener(Cluster mock) {
@@ -0,0 +1,121 @@
+/*
+ * Galaxy
+ * Copyright (C) 2012 Parallel Universe Software Co.
+ *
+ * This file is part of Galaxy.
+ *
+ * Galaxy is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Galaxy is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with Galaxy. If not, see <http://www.gnu.org/licenses/>.
+ */
+package co.paralleluniverse.galaxy.netty;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.ChannelPipeline;
+import org.jboss.netty.channel.ChannelPipelineFactory;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.jboss.netty.channel.socket.nio.NioServerSocketChannelFactory;
+import org.jboss.netty.handler.codec.frame.LengthFieldBasedFrameDecoder;
+import org.jboss.netty.handler.codec.frame.LengthFieldPrepender;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import static org.hamcrest.CoreMatchers.*;
+
+/**
+ *
+ * @author pron
+ */
+public class WriteCoalescingHandlerTest {
+    private ServerBootstrap server;
+    private ClientBootstrap client;
+    private Channel serverChannel;
+    private Channel channel;
+    private final BlockingQueue<Integer> received = new LinkedBlockingQueue<Integer>();
+
+    @Before
+    public void setUp() throws Exception {
+        server = new ServerBootstrap(new NioServerSocketChannelFactory(Executors.newCachedThreadPool(), Executors.newCachedThreadPool()));
+        server.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override
+            public ChannelPipeline getPipeline() throws Exception {
+                return Channels.pipeline(new LengthFieldBasedFrameDecoder(1024, 0, 4, 0, 4), new SimpleChannelUpstreamHandler() {
+                    @Override
+                    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) {
+                        received.add(((ChannelBuffer) e.getMessage()).readInt());
+                    }
+                });
+            }
+        });
+        serverChannel = server.bind(new InetSocketAddress("localhost", 0));
+
+        client = new ClientBootstrap(new NioClientSocketChannelFactory(Executors.newCachedThreadPool(), Executors.newCachedThreadPool()));
+        client.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override
+            public ChannelPipeline getPipeline() throws Exception {
+                return Channels.pipeline(new WriteCoalescingHandler(64), new LengthFieldPrepender(4));
+            }
+        });
+        channel = client.connect(serverChannel.getLocalAddress()).awaitUninterruptibly().getChannel();
+    }
+
+    @After
+    public void tearDown() {
+        channel.close().awaitUninterruptibly();
+        serverChannel.close().awaitUninterruptibly();
+        client.releaseExternalResources();
+        server.releaseExternalResources();
+    }
+
+    @Test
+    public void whenWritingManyFramesThenAllArriveInOrderAndFuturesComplete() throws Exception {
+        final List<ChannelFuture> futures = new ArrayList<ChannelFuture>();
+        for (int i = 0; i < 1000; i++)
+            futures.add(channel.write(intBuffer(i)));
+
+        for (int i = 0; i < 1000; i++)
+            assertThat(received.poll(5, TimeUnit.SECONDS), is(i));
+        for (ChannelFuture f : futures)
+            assertThat(f.awaitUninterruptibly(1000) && f.isSuccess(), is(true));
+    }
+
+    @Test
+    public void whenSingleSmallFrameThenWrittenWithoutWaitingForMore() throws Exception {
+        final ChannelFuture f = channel.write(intBuffer(42));
+
+        assertThat(received.poll(5, TimeUnit.SECONDS), is(42));
+        assertThat(f.awaitUninterruptibly(1000) && f.isSuccess(), is(true));
+    }
+
+    private static ChannelBuffer intBuffer(int i) {
+        final ChannelBuffer buffer = ChannelBuffers.buffer(4);
+        buffer.writeInt(i);
+        return buffer;
+    }
+}